@@ -3,6 +3,7 @@ package com.dstukalov.videoconverterdemo;
 import android.app.Application;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.net.Uri;
 import android.util.Log;
 
 import androidx.annotation.MainThread;
@@ -51,14 +52,14 @@ public class Converter {
     }
 
     @MainThread
-    public void convert(@NonNull File input, @NonNull String outputFileName, long timeFrom, long timeTo, @NonNull ConversionParameters conversionParameters) {
+    public void convert(@NonNull Uri input, @NonNull String outputFileName, long timeFrom, long timeTo, @NonNull ConversionParameters conversionParameters) {
         result.setValue(null);
         progress.postValue(new Progress(0, 0));
         convertRunnableFuture = executor.submit(() -> {
             try {
                 final File output = new File(application.getExternalFilesDir(null), outputFileName);
                 final MediaConverter converter = new MediaConverter();
-                converter.setInput(input);
+                converter.setInput(application, input);
                 converter.setOutput(output);
                 converter.setTimeRange(timeFrom, timeTo);
                 converter.setVideoResolution(conversionParameters.mVideoResolution);
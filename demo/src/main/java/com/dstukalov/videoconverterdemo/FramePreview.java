@@ -1,7 +1,9 @@
 package com.dstukalov.videoconverterdemo;
 
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.media.MediaMetadataRetriever;
+import android.net.Uri;
 import android.util.Log;
 import android.widget.ImageView;
 
@@ -14,14 +16,16 @@ public class FramePreview extends Thread {
 
     private static final String TAG = "frame-preview";
 
-    private final String mFilePath;
+    private final Context mContext;
+    private final Uri mUri;
     private final ImageView mThumbView;
     private long mFrameTime = -1;
     private final Object mLock = new Object();
     private final AtomicBoolean mRunning = new AtomicBoolean(true);
 
-    FramePreview(@NonNull String filePath, @NonNull ImageView thumbView) {
-        mFilePath = filePath;
+    FramePreview(@NonNull Context context, @NonNull Uri uri, @NonNull ImageView thumbView) {
+        mContext = context.getApplicationContext();
+        mUri = uri;
         mThumbView = thumbView;
         setPriority(Thread.NORM_PRIORITY - 1);
         start();
@@ -41,9 +45,9 @@ public class FramePreview extends Thread {
     public void run() {
         final MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
         try {
-            mediaMetadataRetriever.setDataSource(mFilePath);
+            mediaMetadataRetriever.setDataSource(mContext, mUri);
         } catch (Exception ex) {
-            Log.e(TAG, "failed to initialize MediaMetadataRetriever for " + mFilePath, ex);
+            Log.e(TAG, "failed to initialize MediaMetadataRetriever for " + mUri, ex);
             return;
         }
         try {
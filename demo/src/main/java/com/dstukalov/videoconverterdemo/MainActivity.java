@@ -128,7 +128,8 @@ public class MainActivity extends AppCompatActivity implements OutputSettingsDia
 
         findViewById(R.id.input_play).setOnClickListener(v -> {
             final Intent intent = new Intent(Intent.ACTION_VIEW);
-            intent.setDataAndType(FileProvider.getUriForFile(getBaseContext(), FILE_PROVIDER_AUTHORITY, Objects.requireNonNull(mMainViewModel.getLoadedFile())), "video/*");
+            final File loadedFile = mMainViewModel.getLoadedFile();
+            intent.setDataAndType(loadedFile != null ? FileProvider.getUriForFile(getBaseContext(), FILE_PROVIDER_AUTHORITY, loadedFile) : Objects.requireNonNull(mMainViewModel.getLoadedUri()), "video/*");
             intent.setFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
             startActivity(intent);
         });
@@ -245,14 +246,14 @@ public class MainActivity extends AppCompatActivity implements OutputSettingsDia
 
     private void initInputData(@NonNull MainViewModel.LoadUriResult result) {
 
-        final File file = Objects.requireNonNull(result.file);
+        final Uri uri = Objects.requireNonNull(result.uri);
 
         if (mFramePreview != null) {
             mFramePreview.interrupt();
             mFramePreview = null;
         }
 
-        mFramePreview = new FramePreview(file.getAbsolutePath(), mThumbView);
+        mFramePreview = new FramePreview(this, uri, mThumbView);
         mFramePreview.requestShowFrame(0);
 
         // to fill image view with proper width/height until we get thumbnail
@@ -265,7 +266,7 @@ public class MainActivity extends AppCompatActivity implements OutputSettingsDia
                 DateUtils.formatElapsedTime(result.duration / 1000),
                 Formatter.formatShortFileSize(this, result.fileLength)));
 
-        mTimelineView.setVideoFile(file.getAbsolutePath());
+        mTimelineView.setVideoUri(uri);
 
         mTimelineRangeBar.setDuration(result.duration);
         mTimelineRangeBar.setMinRange(1000L);
@@ -430,7 +431,7 @@ public class MainActivity extends AppCompatActivity implements OutputSettingsDia
             timeTo = 0;
         }
 
-        mConverter.convert(Objects.requireNonNull(mMainViewModel.getLoadedFile()), "converted.mp4", timeFrom, timeTo, mConversionParameters);
+        mConverter.convert(Objects.requireNonNull(mMainViewModel.getLoadedUri()), "converted.mp4", timeFrom, timeTo, mConversionParameters);
     }
 
     private void loadUri(final @NonNull Uri uri) {
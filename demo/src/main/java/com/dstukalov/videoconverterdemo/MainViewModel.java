@@ -2,12 +2,15 @@ package com.dstukalov.videoconverterdemo;
 
 import android.app.Application;
 import android.content.ContentResolver;
+import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.util.Log;
 
@@ -19,14 +22,16 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.SavedStateHandle;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
-import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Objects;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -36,6 +41,8 @@ public class MainViewModel extends AndroidViewModel {
 
     private static final String TAG = "LoadUriViewModel";
 
+    private static final long COPY_CHUNK_SIZE = 8 * 1024 * 1024;
+
     private final SavedStateHandle savedStateHandle;
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
     private final MutableLiveData<LoadUriResult> loadUriResultLiveData = new MutableLiveData<>();
@@ -43,7 +50,8 @@ public class MainViewModel extends AndroidViewModel {
 
     static class LoadUriResult implements Parcelable {
 
-        @Nullable File file;
+        @Nullable Uri uri; // what the video is read from
+        @Nullable File file; // set if the video is a local file
         int width;
         int height;
         long duration;
@@ -61,13 +69,14 @@ public class MainViewModel extends AndroidViewModel {
         };
 
         boolean isOk() {
-            return file != null && width > 0 && height > 0 && duration > 0 && fileLength > 0 && mime != null;
+            return uri != null && width > 0 && height > 0 && duration > 0 && fileLength > 0 && mime != null;
         }
 
         LoadUriResult() {
         }
 
         private LoadUriResult(Parcel in) {
+            uri = in.readParcelable(Uri.class.getClassLoader());
             file = (File)in.readSerializable();
             width = in.readInt();
             height = in.readInt();
@@ -83,6 +92,7 @@ public class MainViewModel extends AndroidViewModel {
 
         @Override
         public void writeToParcel(Parcel dest, int flags) {
+            dest.writeParcelable(uri, flags);
             dest.writeSerializable(file);
             dest.writeInt(width);
             dest.writeInt(height);
@@ -96,6 +106,11 @@ public class MainViewModel extends AndroidViewModel {
         super(application);
         this.savedStateHandle = savedStateHandle;
         LoadUriResult result = savedStateHandle.get("result");
+        if (result != null && result.file == null && result.uri != null
+                && application.checkCallingOrSelfUriPermission(result.uri, Intent.FLAG_GRANT_READ_URI_PERMISSION) != PackageManager.PERMISSION_GRANTED) {
+            Log.i(TAG, "access to " + result.uri + " is gone");
+            result = new LoadUriResult();
+        }
         if (result != null) {
             Log.i(TAG, "restore from saved state");
             loadUriResultLiveData.setValue(result);
@@ -147,67 +162,95 @@ public class MainViewModel extends AndroidViewModel {
         return result == null ? null : result.file;
     }
 
+    public @Nullable Uri getLoadedUri() {
+        final LoadUriResult result = loadUriResultLiveData.getValue();
+        return result == null ? null : result.uri;
+    }
+
     @WorkerThread
     private @NonNull LoadUriResult loadUriInBackground(@NonNull Uri uri) throws InterruptedException {
         final LoadUriResult result = new LoadUriResult();
-        if ("file".equals(uri.getScheme())) {
-            result.file = new File(Objects.requireNonNull(uri.getPath()));
-        } else {
-            result.file = new File(getApplication().getExternalFilesDir(null), "tmp.mp4");
-            //noinspection ResultOfMethodCallIgnored
-            result.file.delete();
-            final ContentResolver cr = getApplication().getContentResolver();
-            if (cr != null) {
-                try (InputStream inputStream = new BufferedInputStream(cr.openInputStream(uri)); OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(result.file))) {
-                    byte[] buffer = new byte[4096];
-                    int n;
-                    while ((n = inputStream.read(buffer, 0, buffer.length)) >= 0) {
-                        outputStream.write(buffer, 0, n);
-                    }
-                } catch (InterruptedIOException e) {
-                    throw new InterruptedException();
-                } catch (SecurityException | IOException e) {
-                    Log.w(TAG, "Unable to open stream", e);
-                    result.file = null;
-                }
-            }
-        }
-        if (result.file != null) {
-            final MediaExtractor extractor = new MediaExtractor();
-            try {
+        final MediaExtractor extractor = new MediaExtractor();
+        try {
+            if ("file".equals(uri.getScheme())) {
+                result.file = new File(Objects.requireNonNull(uri.getPath()));
+                result.uri = uri;
+                result.fileLength = result.file.length();
                 extractor.setDataSource(result.file.getAbsolutePath());
-            } catch (IOException e) {
-                Log.w(TAG, "Unable get media meta", e);
-                result.file = null;
-            }
-            if (result.file != null) {
-                MediaFormat mediaFormat = null;
-                for (int index = 0; index < extractor.getTrackCount(); ++index) {
-                    String mime = extractor.getTrackFormat(index).getString(MediaFormat.KEY_MIME);
-                    if (mime != null && mime.startsWith("video/")) {
-                        extractor.selectTrack(index);
-                        mediaFormat = extractor.getTrackFormat(index);
-                        break;
-                    }
+            } else {
+                final ContentResolver cr = getApplication().getContentResolver();
+                final ParcelFileDescriptor pfd = cr.openFileDescriptor(uri, "r");
+                if (pfd == null) {
+                    throw new FileNotFoundException(uri.toString());
                 }
-                if (mediaFormat != null) {
-                    final int rotation = mediaFormat.containsKey(MediaFormat.KEY_ROTATION) ? mediaFormat.getInteger(MediaFormat.KEY_ROTATION) : 0;
-                    result.width = mediaFormat.getInteger(MediaFormat.KEY_WIDTH);
-                    result.height = mediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
-                    result.duration = mediaFormat.getLong(MediaFormat.KEY_DURATION) / 1000L;
-                    result.mime = mediaFormat.getString(MediaFormat.KEY_MIME);
-                    if (rotation % 180 == 90) {
-                        int tmp = result.width;
-                        //noinspection SuspiciousNameCombination
-                        result.width = result.height;
-                        result.height = tmp;
+                if (pfd.getStatSize() >= 0) {
+                    // a regular file behind the provider, the uri gives everyone the same descriptor to read in place
+                    try {
+                        result.uri = uri;
+                        result.fileLength = pfd.getStatSize();
+                        extractor.setDataSource(pfd.getFileDescriptor());
+                    } finally {
+                        pfd.close();
                     }
+                } else {
+                    // a pipe, the extractor needs to seek so it has to be copied; not a plain FileInputStream,
+                    // so Channels.newChannel doesn't hand back the file channel, which can't transfer from a pipe
+                    result.file = copyToTempFile(new ParcelFileDescriptor.AutoCloseInputStream(pfd));
+                    result.uri = Uri.fromFile(result.file);
                     result.fileLength = result.file.length();
+                    extractor.setDataSource(result.file.getAbsolutePath());
                 }
             }
+        } catch (ClosedByInterruptException | InterruptedIOException e) {
             extractor.release();
+            throw new InterruptedException();
+        } catch (SecurityException | IOException e) {
+            Log.w(TAG, "Unable to open " + uri, e);
+            result.uri = null;
+            result.file = null;
+        }
+        if (result.uri != null) {
+            MediaFormat mediaFormat = null;
+            for (int index = 0; index < extractor.getTrackCount(); ++index) {
+                String mime = extractor.getTrackFormat(index).getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("video/")) {
+                    extractor.selectTrack(index);
+                    mediaFormat = extractor.getTrackFormat(index);
+                    break;
+                }
+            }
+            if (mediaFormat != null) {
+                final int rotation = mediaFormat.containsKey(MediaFormat.KEY_ROTATION) ? mediaFormat.getInteger(MediaFormat.KEY_ROTATION) : 0;
+                result.width = mediaFormat.getInteger(MediaFormat.KEY_WIDTH);
+                result.height = mediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
+                result.duration = mediaFormat.getLong(MediaFormat.KEY_DURATION) / 1000L;
+                result.mime = mediaFormat.getString(MediaFormat.KEY_MIME);
+                if (rotation % 180 == 90) {
+                    int tmp = result.width;
+                    //noinspection SuspiciousNameCombination
+                    result.width = result.height;
+                    result.height = tmp;
+                }
+            }
         }
-        Log.i(TAG, "result " + result.file + " " + result.mime + " " + result.width + "x" + result.height + " " + result.duration + "ms");
+        extractor.release();
+        Log.i(TAG, "result " + result.uri + " " + result.mime + " " + result.width + "x" + result.height + " " + result.duration + "ms");
         return result;
     }
+
+    /**
+     * Copies in chunks over interruptible channels, so cancelling the load stops the copy.
+     */
+    @WorkerThread
+    private @NonNull File copyToTempFile(@NonNull InputStream inputStream) throws IOException {
+        final File file = new File(getApplication().getExternalFilesDir(null), "tmp.mp4");
+        try (ReadableByteChannel source = Channels.newChannel(inputStream); FileChannel target = new FileOutputStream(file).getChannel()) {
+            long position = 0;
+            long count;
+            while ((count = target.transferFrom(source, position, COPY_CHUNK_SIZE)) > 0) {
+                position += count;
+            }
+        }
+        return file;
+    }
 }
@@ -1,9 +1,11 @@
 package com.dstukalov.videoconverterdemo;
 
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.net.Uri;
 import android.opengl.GLES20;
 import android.os.Build;
 import android.os.Bundle;
@@ -26,7 +28,8 @@ public class VideoThumbnailsExtractor {
     }
 
     public static void extractThumbnails(
-            final @NonNull String videoFilePath,
+            final @NonNull Context context,
+            final @NonNull Uri videoUri,
             final int thumbnailCount,
             final int thumbnailResolution,
             final @NonNull Callback callback) {
@@ -35,7 +38,7 @@ public class VideoThumbnailsExtractor {
         MediaCodec decoder = null;
         OutputSurface outputSurface = null;
         try {
-            extractor.setDataSource(videoFilePath);
+            extractor.setDataSource(context, videoUri, null);
             MediaFormat mediaFormat = null;
             for (int index = 0; index < extractor.getTrackCount(); ++index) {
                 if (extractor.getTrackFormat(index).getString(MediaFormat.KEY_MIME).startsWith("video/")) {
@@ -6,6 +6,7 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -22,7 +23,7 @@ public class VideoThumbnailsView extends View {
 
     private static final String TAG = "video-thumbnails";
 
-    private String mVideoFilePath;
+    private Uri mVideoUri;
     private ArrayList<Bitmap> mThumbnails;
     private AsyncTask<Void, Bitmap, Void> mThumbnailsTask;
 
@@ -47,8 +48,8 @@ public class VideoThumbnailsView extends View {
         super(context, attrs, defStyleAttr, defStyleRes);
     }
 
-    public void setVideoFile(final @Nullable String videoFilePath) {
-        mVideoFilePath = videoFilePath;
+    public void setVideoUri(final @Nullable Uri videoUri) {
+        mVideoUri = videoUri;
         mThumbnails = null;
         if (mThumbnailsTask != null) {
             mThumbnailsTask.cancel(true);
@@ -72,7 +73,7 @@ public class VideoThumbnailsView extends View {
     protected void onDraw(@NonNull final Canvas canvas) {
         super.onDraw(canvas);
 
-        if (mVideoFilePath == null) {
+        if (mVideoUri == null) {
             return;
         }
 
@@ -93,7 +94,7 @@ public class VideoThumbnailsView extends View {
                 final float thumbnailWidth = (float) mDrawRect.width() / thumbnailCount;
                 final float thumbnailHeight = mDrawRect.height();
                 mThumbnails = new ArrayList<>(thumbnailCount);
-                mThumbnailsTask = new ThumbnailsTask(this, mVideoFilePath, thumbnailWidth, thumbnailHeight, thumbnailCount);
+                mThumbnailsTask = new ThumbnailsTask(this, mVideoUri, thumbnailWidth, thumbnailHeight, thumbnailCount);
                 mThumbnailsTask.execute();
             }
         } else {
@@ -129,14 +130,16 @@ public class VideoThumbnailsView extends View {
     private static class ThumbnailsTask extends AsyncTask<Void, Bitmap, Void> {
 
         final WeakReference<VideoThumbnailsView> mViewReference;
-        final String mVideoFilePath;
+        final Context mContext;
+        final Uri mVideoUri;
         final float mThumbnailWidth;
         final float mThumbnailHeight;
         final int mThumbnailCount;
 
-        ThumbnailsTask(final @NonNull VideoThumbnailsView view, final @NonNull String videoFilePath, final float thumbnailWidth, final float thumbnailHeight, final int thumbnailCount) {
+        ThumbnailsTask(final @NonNull VideoThumbnailsView view, final @NonNull Uri videoUri, final float thumbnailWidth, final float thumbnailHeight, final int thumbnailCount) {
             mViewReference = new WeakReference<>(view);
-            mVideoFilePath = videoFilePath;
+            mContext = view.getContext().getApplicationContext();
+            mVideoUri = videoUri;
             mThumbnailWidth = thumbnailWidth;
             mThumbnailHeight = thumbnailHeight;
             mThumbnailCount = thumbnailCount;
@@ -146,7 +149,7 @@ public class VideoThumbnailsView extends View {
         @Override
         protected Void doInBackground(Void... params) {
             Log.i(TAG, "generate " + mThumbnailCount + " thumbnails " + mThumbnailWidth + "x" + mThumbnailHeight);
-            VideoThumbnailsExtractor.extractThumbnails(mVideoFilePath, mThumbnailCount, (int) mThumbnailHeight, (index, thumbnail) -> {
+            VideoThumbnailsExtractor.extractThumbnails(mContext, mVideoUri, mThumbnailCount, (int) mThumbnailHeight, (index, thumbnail) -> {
                 ThumbnailsTask.this.publishProgress(thumbnail);
                 return !isCancelled();
             });
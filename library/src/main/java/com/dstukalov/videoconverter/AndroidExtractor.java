@@ -0,0 +1,81 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+class AndroidExtractor implements Extractor {
+
+    private final MediaExtractor mExtractor;
+
+    /**
+     * Takes an extractor with its data source set.
+     */
+    AndroidExtractor(final @NonNull MediaExtractor extractor) {
+        mExtractor = extractor;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return mExtractor.getTrackCount();
+    }
+
+    @Override
+    public @NonNull MediaFormat getTrackFormat(final int index) {
+        return mExtractor.getTrackFormat(index);
+    }
+
+    @Override
+    public void selectTrack(final int index) {
+        mExtractor.selectTrack(index);
+    }
+
+    @Override
+    public void unselectTrack(final int index) {
+        mExtractor.unselectTrack(index);
+    }
+
+    @Override
+    public void seekTo(final long timeUs, final int mode) {
+        mExtractor.seekTo(timeUs, mode);
+    }
+
+    @Override
+    public int readSampleData(final @NonNull ByteBuffer byteBuf, final int offset) {
+        return mExtractor.readSampleData(byteBuf, offset);
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return mExtractor.getSampleTrackIndex();
+    }
+
+    @Override
+    public long getSampleSize() {
+        return Build.VERSION.SDK_INT >= 28 ? mExtractor.getSampleSize() : -1;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mExtractor.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mExtractor.getSampleFlags();
+    }
+
+    @Override
+    public boolean advance() {
+        return mExtractor.advance();
+    }
+
+    @Override
+    public void release() {
+        mExtractor.release();
+    }
+}
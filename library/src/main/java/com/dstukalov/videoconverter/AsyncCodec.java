@@ -0,0 +1,189 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Drives a {@link MediaCodec} in asynchronous mode.
+ * <p>
+ * Buffers reported by {@link MediaCodec.Callback} on the dispatcher thread are queued here and
+ * handed out through the same dequeue calls as {@link SyncCodec}, so the track converters don't
+ * care which mode is used. Dequeue calls return immediately when nothing is queued unless a
+ * timeout is given; the conversion loop waits on the {@link CodecDispatcher} instead.
+ */
+@RequiresApi(23)
+class AsyncCodec implements Codec {
+
+    private final MediaCodec mCodec;
+    private final CodecDispatcher mDispatcher;
+
+    // all guarded by mDispatcher
+    private final ArrayDeque<Integer> mInputBuffers = new ArrayDeque<>();
+    private final ArrayDeque<Output> mOutputs = new ArrayDeque<>();
+    private MediaFormat mOutputFormat;
+    private MediaCodec.CodecException mError;
+
+    AsyncCodec(final @NonNull MediaCodec codec, final @NonNull CodecDispatcher dispatcher) {
+        mCodec = codec;
+        mDispatcher = dispatcher;
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+                synchronized (mDispatcher) {
+                    mInputBuffers.add(index);
+                    mDispatcher.signal();
+                }
+            }
+
+            @Override
+            public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+                final MediaCodec.BufferInfo copy = new MediaCodec.BufferInfo();
+                copy.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                synchronized (mDispatcher) {
+                    mOutputs.add(new Output(index, copy, null));
+                    mDispatcher.signal();
+                }
+            }
+
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+                synchronized (mDispatcher) {
+                    mOutputs.add(new Output(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED, null, format));
+                    mDispatcher.signal();
+                }
+            }
+
+            @Override
+            public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+                synchronized (mDispatcher) {
+                    mError = e;
+                    mDispatcher.signal();
+                }
+            }
+        }, dispatcher.getHandler());
+    }
+
+    @Override
+    public @NonNull Surface createInputSurface() {
+        return mCodec.createInputSurface();
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public int dequeueInputBuffer(final long timeoutUs) {
+        synchronized (mDispatcher) {
+            awaitLocked(mInputBuffers, timeoutUs);
+            final Integer index = mInputBuffers.poll();
+            return index == null ? MediaCodec.INFO_TRY_AGAIN_LATER : index;
+        }
+    }
+
+    @Override
+    public @NonNull ByteBuffer getInputBuffer(final int index) {
+        return Preconditions.checkNotNull(mCodec.getInputBuffer(index));
+    }
+
+    @Override
+    public void queueInputBuffer(final int index, final int offset, final int size, final long presentationTimeUs, final int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(final @NonNull MediaCodec.BufferInfo info, final long timeoutUs) {
+        synchronized (mDispatcher) {
+            awaitLocked(mOutputs, timeoutUs);
+            final Output output = mOutputs.poll();
+            if (output == null) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            if (output.format != null) {
+                mOutputFormat = output.format;
+            } else {
+                info.set(output.info.offset, output.info.size, output.info.presentationTimeUs, output.info.flags);
+            }
+            return output.index;
+        }
+    }
+
+    @Override
+    public @NonNull ByteBuffer getOutputBuffer(final int index) {
+        return Preconditions.checkNotNull(mCodec.getOutputBuffer(index));
+    }
+
+    @Override
+    public @NonNull MediaFormat getOutputFormat() {
+        synchronized (mDispatcher) {
+            return mOutputFormat == null ? mCodec.getOutputFormat() : mOutputFormat;
+        }
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index, final boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @RequiresApi(19)
+    @Override
+    public void setParameters(final @NonNull Bundle params) {
+        mCodec.setParameters(params);
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+    }
+
+    private void awaitLocked(final @NonNull ArrayDeque<?> queue, final long timeoutUs) {
+        final long deadline = System.nanoTime() + timeoutUs * 1000;
+        while (mError == null && queue.isEmpty()) {
+            final long remainingMs = (deadline - System.nanoTime()) / 1000000;
+            if (remainingMs <= 0) {
+                break;
+            }
+            try {
+                mDispatcher.wait(remainingMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    private static class Output {
+        final int index;
+        final @Nullable MediaCodec.BufferInfo info;
+        final @Nullable MediaFormat format;
+
+        Output(final int index, final @Nullable MediaCodec.BufferInfo info, final @Nullable MediaFormat format) {
+            this.index = index;
+            this.info = info;
+            this.format = format;
+        }
+    }
+}
@@ -9,7 +9,6 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Locale;
@@ -19,25 +18,29 @@ class AudioTrackConverter {
     private static final String TAG = "media-converter";
     private static final boolean VERBOSE = false; // lots of logging
 
+    private static final int TRACE_READ_SAMPLE = Tracer.event("audio readSampleData");
+    private static final int TRACE_WRITE_SAMPLE = Tracer.event("audio writeSampleData");
+
     private static final String OUTPUT_AUDIO_MIME_TYPE = "audio/mp4a-latm"; // Advanced Audio Coding
     private static final int OUTPUT_AUDIO_AAC_PROFILE = MediaCodecInfo.CodecProfileLevel.AACObjectLC; //MediaCodecInfo.CodecProfileLevel.AACObjectHE;
 
     private static final int TIMEOUT_USEC = 10000;
 
-    private final long mTimeFrom;
-    private final long mTimeTo;
+    // input time taken by any of the outputs, and its mapping to output time
+    private final TimeRanges mRanges;
+    private int mExtractedRange;
     private final int mAudioBitrate;
 
     final long mInputDuration;
+    final TrackMetrics mMetrics;
+
+    private final Extractor mAudioExtractor;
+    private final Codec mAudioDecoder;
+    private final Codec mAudioEncoder;
 
-    private final MediaExtractor mAudioExtractor;
-    private final MediaCodec mAudioDecoder;
-    private final MediaCodec mAudioEncoder;
+    private final long mDecoderTimeoutUs;
+    private final long mEncoderTimeoutUs;
 
-    private final ByteBuffer[] mAudioDecoderInputBuffers;
-    private ByteBuffer[] mAudioDecoderOutputBuffers;
-    private final ByteBuffer[] mAudioEncoderInputBuffers;
-    private ByteBuffer[] mAudioEncoderOutputBuffers;
     private final MediaCodec.BufferInfo mAudioDecoderOutputBufferInfo;
     private final MediaCodec.BufferInfo mAudioEncoderOutputBufferInfo;
 
@@ -47,10 +50,12 @@ class AudioTrackConverter {
     private boolean mAudioDecoderDone;
     boolean mAudioEncoderDone;
 
-    private int mOutputAudioTrack = -1;
+    int mOutputAudioTrack = -1;
 
     private int mPendingAudioDecoderOutputBufferIndex = -1;
-    long mMuxingAudioPresentationTime;
+    volatile long mMuxingAudioPresentationTime;
+    private long mLastFramePresentationTime = Long.MIN_VALUE;
+    private long mLastOutputPresentationTime = Long.MIN_VALUE;
 
     private int mAudioExtractedFrameCount;
     private int mAudioDecodedFrameCount;
@@ -60,39 +65,33 @@ class AudioTrackConverter {
 
     static @Nullable AudioTrackConverter create(
             final @NonNull MediaConverter.Input input,
-            final long timeFrom,
-            final long timeTo,
-            final int audioBitrate) throws IOException {
+            final @NonNull TimeRanges ranges,
+            final int audioBitrate,
+            final @NonNull MediaCodecBackend codecs,
+            final @Nullable Tracer tracer) throws IOException {
 
-        final MediaExtractor audioExtractor = input.createExtractor();
+        final Extractor audioExtractor = input.createExtractor();
         final int audioInputTrack = getAndSelectAudioTrackIndex(audioExtractor);
         if (audioInputTrack == -1) {
             audioExtractor.release();
             return null;
         }
-        return new AudioTrackConverter(audioExtractor, audioInputTrack, timeFrom, timeTo, audioBitrate);
+        return new AudioTrackConverter(audioExtractor, audioInputTrack, ranges, audioBitrate, codecs, tracer);
     }
 
     private AudioTrackConverter(
-            final @NonNull MediaExtractor audioExtractor,
+            final @NonNull Extractor audioExtractor,
             final int audioInputTrack,
-            long timeFrom,
-            long timeTo,
-            int audioBitrate) throws IOException {
+            final @NonNull TimeRanges ranges,
+            int audioBitrate,
+            final @NonNull MediaCodecBackend codecs,
+            final @Nullable Tracer tracer) throws IOException {
 
-        mTimeFrom = timeFrom;
-        mTimeTo = timeTo;
+        mRanges = ranges;
+        mMetrics = new TrackMetrics(tracer);
         mAudioExtractor = audioExtractor;
         mAudioBitrate = audioBitrate;
 
-        final MediaCodecInfo audioCodecInfo = MediaConverter.selectCodec(OUTPUT_AUDIO_MIME_TYPE);
-        if (audioCodecInfo == null) {
-            // Don't fail CTS if they don't have an AAC codec (not here, anyway).
-            Log.e(TAG, "Unable to find an appropriate codec for " + OUTPUT_AUDIO_MIME_TYPE);
-            throw new FileNotFoundException();
-        }
-        if (VERBOSE) Log.d(TAG, "audio found codec: " + audioCodecInfo.getName());
-
         final MediaFormat inputAudioFormat = mAudioExtractor.getTrackFormat(audioInputTrack);
         mInputDuration = inputAudioFormat.containsKey(MediaFormat.KEY_DURATION) ? inputAudioFormat.getLong(MediaFormat.KEY_DURATION) : 0;
 
@@ -107,25 +106,32 @@ class AudioTrackConverter {
 
         // Create a MediaCodec for the desired codec, then configure it as an encoder with
         // our desired properties. Request a Surface to use for input.
-        mAudioEncoder = createAudioEncoder(audioCodecInfo, outputAudioFormat);
+        final Codec encoder = codecs.createEncoder(outputAudioFormat);
+        // with callbacks there is no point to block here, MediaConverter waits for codec events instead
+        mEncoderTimeoutUs = codecs.getTimeoutUs(encoder, TIMEOUT_USEC);
+        mAudioEncoder = new MeteredCodec(encoder, mMetrics.encode, "audio encoder");
+        mAudioEncoder.start();
         // Create a MediaCodec for the decoder, based on the extractor's format.
-        mAudioDecoder = createAudioDecoder(inputAudioFormat);
+        final Codec decoder = codecs.createDecoder(inputAudioFormat, null);
+        mDecoderTimeoutUs = codecs.getTimeoutUs(decoder, TIMEOUT_USEC);
+        mAudioDecoder = new MeteredCodec(decoder, mMetrics.decode, "audio decoder");
+        mAudioDecoder.start();
 
-        mAudioDecoderInputBuffers = mAudioDecoder.getInputBuffers();
-        mAudioDecoderOutputBuffers = mAudioDecoder.getOutputBuffers();
-        mAudioEncoderInputBuffers = mAudioEncoder.getInputBuffers();
-        mAudioEncoderOutputBuffers = mAudioEncoder.getOutputBuffers();
         mAudioDecoderOutputBufferInfo = new MediaCodec.BufferInfo();
         mAudioEncoderOutputBufferInfo = new MediaCodec.BufferInfo();
 
-        if (mTimeFrom > 0) {
-            mAudioExtractor.seekTo(mTimeFrom * 1000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
-            Log.i(TAG, "Seek audio to " + mTimeFrom + ", actual:" + mAudioExtractor.getSampleTime());
-            if (mAudioExtractor.getSampleTime() > mTimeFrom * 1000) {
-                // on some old systems seek to previous doesn't work well, looks like it seeks to next or closest
-                mAudioExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-                Log.w(TAG, "Seek audio to beginning, actual:" + mAudioExtractor.getSampleTime());
-            }
+        if (mRanges.getStart() > 0) {
+            seekTo(mRanges.getStart());
+        }
+    }
+
+    private void seekTo(final long timeUs) {
+        mAudioExtractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        Log.i(TAG, "Seek audio to " + timeUs + ", actual:" + mAudioExtractor.getSampleTime());
+        if (mAudioExtractor.getSampleTime() > timeUs) {
+            // on some old systems seek to previous doesn't work well, looks like it seeks to next or closest
+            mAudioExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            Log.w(TAG, "Seek audio to beginning, actual:" + mAudioExtractor.getSampleTime());
         }
     }
 
@@ -143,12 +149,19 @@ class AudioTrackConverter {
         }
     }
 
-    void step() throws IOException {
+    /**
+     * Moves every stage of the pipeline forward by at most one buffer.
+     *
+     * @return false if no stage could make progress
+     */
+    boolean step() throws IOException {
+        boolean progress = false;
+
         // Extract audio from file and feed to decoder.
         // Do not extract audio if we have determined the output format but we are not yet
         // ready to mux the frames.
         while (!mAudioExtractorDone && (mEncoderOutputAudioFormat == null || mMuxer != null)) {
-            int decoderInputBufferIndex = mAudioDecoder.dequeueInputBuffer(TIMEOUT_USEC);
+            int decoderInputBufferIndex = mAudioDecoder.dequeueInputBuffer(mDecoderTimeoutUs);
             if (decoderInputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 if (VERBOSE) Log.d(TAG, "no audio decoder input buffer");
                 break;
@@ -156,14 +169,24 @@ class AudioTrackConverter {
             if (VERBOSE) {
                 Log.d(TAG, "audio decoder: returned input buffer: " + decoderInputBufferIndex);
             }
-            final ByteBuffer decoderInputBuffer = mAudioDecoderInputBuffers[decoderInputBufferIndex];
-            final int size = mAudioExtractor.readSampleData(decoderInputBuffer, 0);
-            final long presentationTime = mAudioExtractor.getSampleTime();
+            final ByteBuffer decoderInputBuffer = mAudioDecoder.getInputBuffer(decoderInputBufferIndex);
+            int size = readSampleData(decoderInputBuffer);
+            long presentationTime = mAudioExtractor.getSampleTime();
+            while (size >= 0 && presentationTime > mRanges.getTo(mExtractedRange) && mExtractedRange + 1 < mRanges.size()) {
+                // skip the gap till the next range
+                mExtractedRange++;
+                if (presentationTime < mRanges.getFrom(mExtractedRange)) {
+                    seekTo(mRanges.getFrom(mExtractedRange));
+                    decoderInputBuffer.clear();
+                    size = readSampleData(decoderInputBuffer);
+                    presentationTime = mAudioExtractor.getSampleTime();
+                }
+            }
             if (VERBOSE) {
                 Log.d(TAG, "audio extractor: returned buffer of size " + size);
                 Log.d(TAG, "audio extractor: returned buffer for time " + presentationTime);
             }
-            mAudioExtractorDone = size < 0 || (mTimeTo > 0 && presentationTime > mTimeTo * 1000);
+            mAudioExtractorDone = size < 0 || presentationTime > mRanges.getTo(mExtractedRange);
             if (mAudioExtractorDone) {
                 if (VERBOSE) Log.d(TAG, "audio extractor: EOS");
                 mAudioDecoder.queueInputBuffer(
@@ -173,6 +196,7 @@ class AudioTrackConverter {
                         0,
                         MediaCodec.BUFFER_FLAG_END_OF_STREAM);
             } else {
+                mMetrics.extract.pass(size);
                 mAudioDecoder.queueInputBuffer(
                         decoderInputBufferIndex,
                         0,
@@ -182,6 +206,7 @@ class AudioTrackConverter {
             }
             mAudioExtractor.advance();
             mAudioExtractedFrameCount++;
+            progress = true;
             // We extracted a frame, let's try something else next.
             break;
         }
@@ -192,14 +217,14 @@ class AudioTrackConverter {
                 && (mEncoderOutputAudioFormat == null || mMuxer != null)) {
             final int decoderOutputBufferIndex =
                     mAudioDecoder.dequeueOutputBuffer(
-                            mAudioDecoderOutputBufferInfo, TIMEOUT_USEC);
+                            mAudioDecoderOutputBufferInfo, mDecoderTimeoutUs);
             if (decoderOutputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 if (VERBOSE) Log.d(TAG, "no audio decoder output buffer");
                 break;
             }
+            progress = true;
             if (decoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                 if (VERBOSE) Log.d(TAG, "audio decoder: output buffers changed");
-                mAudioDecoderOutputBuffers = mAudioDecoder.getOutputBuffers();
                 break;
             }
             if (decoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
@@ -218,13 +243,15 @@ class AudioTrackConverter {
                 mAudioDecoder.releaseOutputBuffer(decoderOutputBufferIndex, false);
                 break;
             }
-            if (mAudioDecoderOutputBufferInfo.presentationTimeUs < mTimeFrom * 1000 &&
+            final long presentationTime = mAudioDecoderOutputBufferInfo.presentationTimeUs;
+            if ((presentationTime <= mLastFramePresentationTime || mRanges.indexOf(presentationTime) < 0) &&
                     (mAudioDecoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
                 if (VERBOSE)
-                    Log.d(TAG, "audio decoder: frame prior to " + mAudioDecoderOutputBufferInfo.presentationTimeUs);
+                    Log.d(TAG, "audio decoder: frame out of range " + presentationTime);
                 mAudioDecoder.releaseOutputBuffer(decoderOutputBufferIndex, false);
                 break;
             }
+            mLastFramePresentationTime = presentationTime;
             if (VERBOSE) {
                 Log.d(TAG, "audio decoder: returned buffer for time " + mAudioDecoderOutputBufferInfo.presentationTimeUs);
                 Log.d(TAG, "audio decoder: output buffer is now pending: " + mPendingAudioDecoderOutputBufferIndex);
@@ -240,7 +267,7 @@ class AudioTrackConverter {
             if (VERBOSE) {
                 Log.d(TAG, "audio decoder: attempting to process pending buffer: " + mPendingAudioDecoderOutputBufferIndex);
             }
-            final int encoderInputBufferIndex = mAudioEncoder.dequeueInputBuffer(TIMEOUT_USEC);
+            final int encoderInputBufferIndex = mAudioEncoder.dequeueInputBuffer(mEncoderTimeoutUs);
             if (encoderInputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 if (VERBOSE) Log.d(TAG, "no audio encoder input buffer");
                 break;
@@ -248,7 +275,7 @@ class AudioTrackConverter {
             if (VERBOSE) {
                 Log.d(TAG, "audio encoder: returned input buffer: " + encoderInputBufferIndex);
             }
-            final ByteBuffer encoderInputBuffer = mAudioEncoderInputBuffers[encoderInputBufferIndex];
+            final ByteBuffer encoderInputBuffer = mAudioEncoder.getInputBuffer(encoderInputBufferIndex);
             final int size = mAudioDecoderOutputBufferInfo.size;
             final long presentationTime = mAudioDecoderOutputBufferInfo.presentationTimeUs;
             if (VERBOSE) {
@@ -259,17 +286,20 @@ class AudioTrackConverter {
                 Log.d(TAG, "audio decoder: pending buffer for time " + presentationTime);
             }
             if (size >= 0) {
-                final ByteBuffer decoderOutputBuffer = mAudioDecoderOutputBuffers[mPendingAudioDecoderOutputBufferIndex].duplicate();
+                final ByteBuffer decoderOutputBuffer = mAudioDecoder.getOutputBuffer(mPendingAudioDecoderOutputBufferIndex).duplicate();
                 decoderOutputBuffer.position(mAudioDecoderOutputBufferInfo.offset);
                 decoderOutputBuffer.limit(mAudioDecoderOutputBufferInfo.offset + size);
                 encoderInputBuffer.position(0);
                 encoderInputBuffer.put(decoderOutputBuffer);
 
+                // buffers at both ends of a gap in a cut list may map to the same time
+                final long outputPresentationTime = Math.max(mRanges.toOutputTime(presentationTime), mLastOutputPresentationTime + 1);
+                mLastOutputPresentationTime = outputPresentationTime;
                 mAudioEncoder.queueInputBuffer(
                         encoderInputBufferIndex,
                         0,
                         size,
-                        presentationTime,
+                        outputPresentationTime,
                         mAudioDecoderOutputBufferInfo.flags);
             }
             mAudioDecoder.releaseOutputBuffer(mPendingAudioDecoderOutputBufferIndex, false);
@@ -278,20 +308,21 @@ class AudioTrackConverter {
                 if (VERBOSE) Log.d(TAG, "audio decoder: EOS");
                 mAudioDecoderDone = true;
             }
+            progress = true;
             // We enqueued a pending frame, let's try something else next.
             break;
         }
 
         // Poll frames from the audio encoder and send them to the muxer.
         while (!mAudioEncoderDone && (mEncoderOutputAudioFormat == null || mMuxer != null)) {
-            final int encoderOutputBufferIndex = mAudioEncoder.dequeueOutputBuffer(mAudioEncoderOutputBufferInfo, TIMEOUT_USEC);
+            final int encoderOutputBufferIndex = mAudioEncoder.dequeueOutputBuffer(mAudioEncoderOutputBufferInfo, mEncoderTimeoutUs);
             if (encoderOutputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 if (VERBOSE) Log.d(TAG, "no audio encoder output buffer");
                 break;
             }
+            progress = true;
             if (encoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                 if (VERBOSE) Log.d(TAG, "audio encoder: output buffers changed");
-                mAudioEncoderOutputBuffers = mAudioEncoder.getOutputBuffers();
                 break;
             }
             if (encoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
@@ -306,7 +337,7 @@ class AudioTrackConverter {
                 Log.d(TAG, "audio encoder: returned output buffer: " + encoderOutputBufferIndex);
                 Log.d(TAG, "audio encoder: returned buffer of size " + mAudioEncoderOutputBufferInfo.size);
             }
-            final ByteBuffer encoderOutputBuffer = mAudioEncoderOutputBuffers[encoderOutputBufferIndex];
+            final ByteBuffer encoderOutputBuffer = mAudioEncoder.getOutputBuffer(encoderOutputBufferIndex);
             if ((mAudioEncoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
                 if (VERBOSE) Log.d(TAG, "audio encoder: codec config buffer");
                 // Simply ignore codec config buffers.
@@ -317,7 +348,10 @@ class AudioTrackConverter {
                 Log.d(TAG, "audio encoder: returned buffer for time " + mAudioEncoderOutputBufferInfo.presentationTimeUs);
             }
             if (mAudioEncoderOutputBufferInfo.size != 0) {
+                final long writeStartTime = System.nanoTime();
                 mMuxer.writeSampleData(mOutputAudioTrack, encoderOutputBuffer, mAudioEncoderOutputBufferInfo);
+                mMetrics.mux.block(writeStartTime, TRACE_WRITE_SAMPLE);
+                mMetrics.mux.pass(mAudioEncoderOutputBufferInfo.size);
                 mMuxingAudioPresentationTime = Math.max(mMuxingAudioPresentationTime, mAudioEncoderOutputBufferInfo.presentationTimeUs);
             }
             if ((mAudioEncoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
@@ -329,6 +363,7 @@ class AudioTrackConverter {
             // We enqueued an encoded frame, let's try something else next.
             break;
         }
+        return progress;
     }
 
     void release() throws Exception {
@@ -387,21 +422,14 @@ class AudioTrackConverter {
         Preconditions.checkState("no frame should be pending", -1 == mPendingAudioDecoderOutputBufferIndex);
     }
 
-    private static @NonNull MediaCodec createAudioDecoder(final @NonNull MediaFormat inputFormat) throws IOException {
-        final MediaCodec decoder = MediaCodec.createDecoderByType(MediaConverter.getMimeTypeFor(inputFormat));
-        decoder.configure(inputFormat, null, null, 0);
-        decoder.start();
-        return decoder;
-    }
-
-    private static @NonNull MediaCodec createAudioEncoder(final @NonNull MediaCodecInfo codecInfo, final @NonNull MediaFormat format) throws IOException {
-        final MediaCodec encoder = MediaCodec.createByCodecName(codecInfo.getName());
-        encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        encoder.start();
-        return encoder;
+    private int readSampleData(final @NonNull ByteBuffer buffer) {
+        final long startTime = System.nanoTime();
+        final int size = mAudioExtractor.readSampleData(buffer, 0);
+        mMetrics.extract.block(startTime, TRACE_READ_SAMPLE);
+        return size;
     }
 
-    private static int getAndSelectAudioTrackIndex(MediaExtractor extractor) {
+    private static int getAndSelectAudioTrackIndex(Extractor extractor) {
         for (int index = 0; index < extractor.getTrackCount(); ++index) {
             if (VERBOSE) {
                 Log.d(TAG, "format for track " + index + " is " + MediaConverter.getMimeTypeFor(extractor.getTrackFormat(index)));
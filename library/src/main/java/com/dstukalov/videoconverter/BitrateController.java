@@ -0,0 +1,84 @@
+package com.dstukalov.videoconverter;
+
+/**
+ * Content-adaptive bitrate of one video encoder.
+ * <p>
+ * Each drawn frame is scored by how detailed it is and how much it changed, both taken from its
+ * {@link FrameSignature}. Once per window the mean score scales the base bitrate for the next
+ * window, so that simple scenes get fewer bits and complex scenes more. Complex windows only
+ * spend what simple ones saved: while the encoder output is over the base bitrate the scale is
+ * capped at 1, so the average bitrate stays at or under the base one.
+ */
+class BitrateController {
+
+    private static final long WINDOW_US = 1000000;
+    // score of content that needs the full base bitrate
+    private static final float REFERENCE_COMPLEXITY = 16;
+    private static final float MOTION_WEIGHT = 2;
+    private static final float MIN_SCALE = 0.5f;
+    private static final float MAX_SCALE = 1.25f;
+    // smaller changes are not worth retuning the encoder
+    private static final float MIN_CHANGE = 0.1f;
+
+    private int mBaseBitrate;
+    private int mBitrate;
+
+    private long mStartTime = -1;
+    private long mWindowStartTime;
+    private float mComplexitySum;
+    private int mFrameCount;
+    private long mOutputBytes;
+
+    BitrateController(final int baseBitrate) {
+        mBaseBitrate = baseBitrate;
+        mBitrate = baseBitrate;
+    }
+
+    /**
+     * Changes the bitrate that the content scales, from the next window on.
+     */
+    void setBaseBitrate(final int baseBitrate) {
+        mBaseBitrate = baseBitrate;
+    }
+
+    /**
+     * Scores a frame sent to the encoder, detail and motion are mean luma differences out of 255
+     * between neighbour pixels and from the previous frame.
+     *
+     * @return the bitrate to switch the encoder to, or 0 to keep the current one
+     */
+    int addFrame(final long presentationTimeUs, final float detail, final float motion) {
+        if (mStartTime < 0) {
+            mStartTime = presentationTimeUs;
+            mWindowStartTime = presentationTimeUs;
+        }
+        // the first frame has nothing to be compared with
+        mComplexitySum += detail + MOTION_WEIGHT * (motion == Float.MAX_VALUE ? 0 : motion);
+        mFrameCount++;
+        if (presentationTimeUs - mWindowStartTime < WINDOW_US) {
+            return 0;
+        }
+
+        float scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, mComplexitySum / mFrameCount / REFERENCE_COMPLEXITY));
+        if (mOutputBytes * 8 * 1000000 > mBaseBitrate * (presentationTimeUs - mStartTime)) {
+            scale = Math.min(scale, 1);
+        }
+        mWindowStartTime = presentationTimeUs;
+        mComplexitySum = 0;
+        mFrameCount = 0;
+
+        final int bitrate = Math.round(mBaseBitrate * scale);
+        if (Math.abs(bitrate - mBitrate) < mBitrate * MIN_CHANGE) {
+            return 0;
+        }
+        mBitrate = bitrate;
+        return bitrate;
+    }
+
+    /**
+     * Counts an encoded sample.
+     */
+    void addOutput(final int size) {
+        mOutputBytes += size;
+    }
+}
@@ -0,0 +1,130 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaDataSource;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Block cache in front of a slow {@link MediaDataSource}, e.g. one backed by a content provider or
+ * the network.
+ * <p>
+ * The extractor keeps coming back to the same places, the moov box and the chunks of the tracks it
+ * interleaves, so the last blocks read are kept in an LRU cache. Misses on consecutive blocks
+ * double the number of blocks fetched ahead with a single read of the wrapped source, up to
+ * a quarter of the cache.
+ * <p>
+ * The wrapped source stays open when this one is closed, see {@link #close}.
+ */
+@RequiresApi(23)
+public class CachingDataSource extends MediaDataSource {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    public static final int DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+
+    private final MediaDataSource mSource;
+    private final int mBlockSize;
+    private final int mMaxReadAhead;
+    private final Map<Long, byte[]> mBlocks;
+    private long mSize = -2;
+    private long mLastMissedBlock = -2;
+    private int mReadAhead = 1;
+    private byte[] mReadBuffer;
+
+    public CachingDataSource(final @NonNull MediaDataSource source) {
+        this(source, DEFAULT_BLOCK_SIZE, DEFAULT_CACHE_SIZE);
+    }
+
+    public CachingDataSource(final @NonNull MediaDataSource source, final int blockSize, final int cacheSize) {
+        Preconditions.checkState("cache holds less than 4 blocks", blockSize > 0 && cacheSize / blockSize >= 4);
+        mSource = source;
+        mBlockSize = blockSize;
+        final int capacity = cacheSize / blockSize;
+        mMaxReadAhead = capacity / 4;
+        mBlocks = new LinkedHashMap<Long, byte[]>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, byte[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @Override
+    public synchronized int readAt(final long position, final @NonNull byte[] buffer, final int offset, final int size) throws IOException {
+        int done = 0;
+        while (done < size) {
+            final long current = position + done;
+            final byte[] block = getBlock(current / mBlockSize);
+            final int blockOffset = (int) (current % mBlockSize);
+            if (block == null || blockOffset >= block.length) {
+                break;
+            }
+            final int count = Math.min(size - done, block.length - blockOffset);
+            System.arraycopy(block, blockOffset, buffer, offset + done, count);
+            done += count;
+        }
+        return done == 0 && size > 0 ? -1 : done;
+    }
+
+    @Override
+    public synchronized long getSize() throws IOException {
+        if (mSize == -2) {
+            mSize = mSource.getSize();
+        }
+        return mSize;
+    }
+
+    /**
+     * Called by every extractor released, while the conversion may still create another one, so the
+     * cached blocks are kept and the wrapped source is left open. Whoever created the wrapped source
+     * closes it once the conversion is over.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Returns the block, shorter than the block size at the end of the source, or null past the end.
+     */
+    private byte[] getBlock(final long index) throws IOException {
+        final byte[] cached = mBlocks.get(index);
+        if (cached != null) {
+            return cached;
+        }
+        mReadAhead = index == mLastMissedBlock + 1 ? Math.min(mReadAhead * 2, mMaxReadAhead) : 1;
+        mLastMissedBlock = index + mReadAhead - 1;
+
+        int count = mReadAhead;
+        while (count > 1 && mBlocks.containsKey(index + count - 1)) {
+            count--;
+        }
+        final int length = count * mBlockSize;
+        if (mReadBuffer == null || mReadBuffer.length < length) {
+            mReadBuffer = new byte[mMaxReadAhead * mBlockSize];
+        }
+        final long position = index * mBlockSize;
+        int read = 0;
+        while (read < length) {
+            final int result = mSource.readAt(position + read, mReadBuffer, read, length - read);
+            if (result <= 0) {
+                break;
+            }
+            read += result;
+        }
+
+        byte[] first = null;
+        for (int i = 0; i * mBlockSize < read; i++) {
+            final byte[] block = new byte[Math.min(mBlockSize, read - i * mBlockSize)];
+            System.arraycopy(mReadBuffer, i * mBlockSize, block, 0, block.length);
+            mBlocks.put(index + i, block);
+            if (i == 0) {
+                first = block;
+            }
+        }
+        return first;
+    }
+}
@@ -0,0 +1,56 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The subset of {@link MediaCodec} used by the track converters.
+ * <p>
+ * Lets the same conversion code drive a codec either by polling it with timeouts
+ * ({@link SyncCodec}) or from {@link MediaCodec.Callback} notifications ({@link AsyncCodec}).
+ * Apps implement it to convert with codecs of their own, see {@link CodecBackend}; calls follow
+ * the MediaCodec contract, and dequeue calls wait up to the given timeout.
+ */
+public interface Codec {
+
+    /**
+     * Returns the surface that a video encoder takes its frames from, see
+     * {@link MediaCodec#createInputSurface}. Called before {@link #start}.
+     */
+    @NonNull Surface createInputSurface();
+
+    void start();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    @NonNull ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    int dequeueOutputBuffer(@NonNull MediaCodec.BufferInfo info, long timeoutUs);
+
+    @NonNull ByteBuffer getOutputBuffer(int index);
+
+    @NonNull MediaFormat getOutputFormat();
+
+    void releaseOutputBuffer(int index, boolean render);
+
+    void signalEndOfInputStream();
+
+    /**
+     * Changes encoder settings on the fly, see {@link MediaCodec#setParameters}.
+     */
+    @RequiresApi(19)
+    void setParameters(@NonNull Bundle params);
+
+    void stop();
+
+    void release();
+}
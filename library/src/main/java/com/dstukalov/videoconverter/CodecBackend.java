@@ -0,0 +1,30 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Source of the decoders and encoders of a conversion, see {@link MediaConverter#setCodecBackend}.
+ * <p>
+ * Codecs are returned configured but not started. A backend may return null for any format it
+ * doesn't handle, then {@link android.media.MediaCodec} is used as usual.
+ */
+public interface CodecBackend {
+
+    /**
+     * Returns a decoder of the input track format. Video decoders render to the surface, audio
+     * decoders get a null surface and return their output in buffers.
+     */
+    @Nullable Codec createDecoder(@NonNull MediaFormat format, @Nullable Surface surface) throws IOException;
+
+    /**
+     * Returns an encoder of the output format. Video encoders take their frames through
+     * {@link Codec#createInputSurface}, audio encoders through input buffers.
+     */
+    @Nullable Codec createEncoder(@NonNull MediaFormat format) throws IOException;
+}
@@ -0,0 +1,69 @@
+package com.dstukalov.videoconverter;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.annotation.NonNull;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Owns the thread that receives {@link AsyncCodec} callbacks and lets the conversion loop sleep
+ * until any of the codecs has something new for it.
+ * <p>
+ * The dispatcher object itself is the lock that guards the state of all codecs attached to it.
+ */
+class CodecDispatcher {
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private long mEventCount;
+
+    CodecDispatcher() {
+        mThread = new HandlerThread("media-converter-codec");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @NonNull Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Returns the number of events seen so far. Pass it to {@link #awaitEvent} to wait for
+     * events that arrive after this call.
+     */
+    synchronized long getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * Called with the lock held whenever a codec produces an event.
+     */
+    void signal() {
+        mEventCount++;
+        notifyAll();
+    }
+
+    /**
+     * Blocks until some event arrives after the one counted by {@code eventCount}, or the timeout
+     * expires.
+     */
+    synchronized void awaitEvent(final long eventCount, final long timeoutMs) throws InterruptedIOException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining = timeoutMs;
+        while (mEventCount == eventCount && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    void release() {
+        mThread.quitSafely();
+    }
+}
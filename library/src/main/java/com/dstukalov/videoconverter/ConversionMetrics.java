@@ -0,0 +1,75 @@
+package com.dstukalov.videoconverter;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Throughput of a conversion, per track and per stage, as returned by
+ * {@link MediaConverter#convert()} and {@link MediaConverter#getMetrics()}.
+ */
+public class ConversionMetrics {
+
+    public final long elapsedMs;
+    public final @Nullable Track video;
+    public final @Nullable Track audio;
+
+    ConversionMetrics(final long elapsedMs, final @Nullable Track video, final @Nullable Track audio) {
+        this.elapsedMs = elapsedMs;
+        this.video = video;
+        this.audio = audio;
+    }
+
+    @Override
+    public @NonNull String toString() {
+        return "elapsed:" + elapsedMs + "ms" + (video == null ? "" : " video:" + video) + (audio == null ? "" : " audio:" + audio);
+    }
+
+    /**
+     * Stages of one track, the render stage is empty for audio.
+     */
+    public static class Track {
+        public final @NonNull Stage extract;
+        public final @NonNull Stage decode;
+        public final @NonNull Stage render;
+        public final @NonNull Stage encode;
+        public final @NonNull Stage mux;
+
+        Track(final @NonNull Stage extract, final @NonNull Stage decode, final @NonNull Stage render, final @NonNull Stage encode, final @NonNull Stage mux) {
+            this.extract = extract;
+            this.decode = decode;
+            this.render = render;
+            this.encode = encode;
+            this.mux = mux;
+        }
+
+        @Override
+        public @NonNull String toString() {
+            return "{extract:" + extract + " decode:" + decode + " render:" + render + " encode:" + encode + " mux:" + mux + "}";
+        }
+    }
+
+    /**
+     * Frames a stage has passed on, time it spent waiting for buffers or frames, frames it took
+     * but has not passed on yet, and bytes it produced.
+     */
+    public static class Stage {
+        public final long frames;
+        public final float fps;
+        public final long blockedMs;
+        public final long queueDepth;
+        public final long bytes;
+
+        Stage(final long frames, final float fps, final long blockedMs, final long queueDepth, final long bytes) {
+            this.frames = frames;
+            this.fps = fps;
+            this.blockedMs = blockedMs;
+            this.queueDepth = queueDepth;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public @NonNull String toString() {
+            return "{frames:" + frames + " fps:" + fps + " blocked:" + blockedMs + "ms queue:" + queueDepth + " bytes:" + bytes + "}";
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Muxer of one output when a conversion writes several of them.
+ * <p>
+ * Outputs learn their track formats at different times, since the video encoder of a clip starts
+ * only when the clip does. So the underlying muxer is created and started by the last expected
+ * {@link #addTrack} call rather than by {@link #start}, and samples that arrive before that are
+ * kept until then. Samples outside the time window of the output are dropped, and {@link #stop}
+ * may be called early, once the output is complete.
+ */
+class DeferredMuxer implements Muxer {
+
+    private static final String TAG = "media-converter";
+
+    private final MediaConverter.Output mOutput;
+    private final int mTrackCount;
+    private final long mTimeFromUs;
+    private final long mTimeToUs;
+
+    private final List<MediaFormat> mFormats = new ArrayList<>();
+    private final ArrayDeque<Sample> mPendingSamples = new ArrayDeque<>();
+    private int[] mTracks;
+    private Muxer mMuxer;
+    private boolean mStopped;
+    private boolean mReleased;
+
+    DeferredMuxer(final @NonNull MediaConverter.Output output, final int trackCount, final long timeFromUs, final long timeToUs) {
+        mOutput = output;
+        mTrackCount = trackCount;
+        mTimeFromUs = timeFromUs;
+        mTimeToUs = timeToUs;
+    }
+
+    @Override
+    public void start() {
+        // started by the last addTrack
+    }
+
+    @Override
+    public void stop() throws IOException {
+        if (mStopped) {
+            return;
+        }
+        mStopped = true;
+        mPendingSamples.clear();
+        if (mMuxer != null) {
+            mMuxer.stop();
+        } else {
+            Log.w(TAG, "no output written, some tracks have no samples in " + mTimeFromUs + ".." + mTimeToUs);
+        }
+    }
+
+    @Override
+    public int addTrack(final @NonNull MediaFormat format) throws IOException {
+        Preconditions.checkState("too many tracks", mFormats.size() < mTrackCount);
+        mFormats.add(format);
+        if (mFormats.size() == mTrackCount) {
+            mMuxer = mOutput.createMuxer();
+            mTracks = new int[mTrackCount];
+            for (int i = 0; i < mTrackCount; i++) {
+                mTracks[i] = mMuxer.addTrack(mFormats.get(i));
+            }
+            mMuxer.start();
+            while (!mPendingSamples.isEmpty()) {
+                final Sample sample = mPendingSamples.remove();
+                mMuxer.writeSampleData(mTracks[sample.trackIndex], sample.data, sample.info);
+            }
+        }
+        return mFormats.size() - 1;
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final @NonNull ByteBuffer byteBuf, final @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException {
+        if (mStopped || bufferInfo.presentationTimeUs < mTimeFromUs || bufferInfo.presentationTimeUs > mTimeToUs) {
+            return;
+        }
+        if (mMuxer != null) {
+            mMuxer.writeSampleData(mTracks[trackIndex], byteBuf, bufferInfo);
+            return;
+        }
+        final ByteBuffer data = ByteBuffer.allocate(bufferInfo.size);
+        final ByteBuffer src = byteBuf.duplicate();
+        src.position(bufferInfo.offset);
+        src.limit(bufferInfo.offset + bufferInfo.size);
+        data.put(src);
+        data.flip();
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        mPendingSamples.add(new Sample(trackIndex, data, info));
+    }
+
+    @Override
+    public void release() {
+        if (mMuxer != null && !mReleased) {
+            mReleased = true;
+            mMuxer.release();
+        }
+    }
+
+    private static class Sample {
+        final int trackIndex;
+        final @NonNull ByteBuffer data;
+        final @NonNull MediaCodec.BufferInfo info;
+
+        Sample(final int trackIndex, final @NonNull ByteBuffer data, final @NonNull MediaCodec.BufferInfo info) {
+            this.trackIndex = trackIndex;
+            this.data = data;
+            this.info = info;
+        }
+    }
+}
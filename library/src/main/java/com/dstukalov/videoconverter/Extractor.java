@@ -0,0 +1,52 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The subset of {@link MediaExtractor} used by the track converters.
+ * <p>
+ * Together with {@link Codec} and {@link Muxer} it keeps the conversion loop off the framework
+ * classes, so that scripted fakes can stand in for them.
+ */
+interface Extractor {
+
+    int getTrackCount();
+
+    @NonNull MediaFormat getTrackFormat(int index);
+
+    void selectTrack(int index);
+
+    void unselectTrack(int index);
+
+    /**
+     * See {@link MediaExtractor#seekTo}, mode is one of the {@code MediaExtractor.SEEK_TO_}
+     * constants.
+     */
+    void seekTo(long timeUs, int mode);
+
+    int readSampleData(@NonNull ByteBuffer byteBuf, int offset);
+
+    /**
+     * Returns the track of the current sample, or -1 if no more samples are available.
+     */
+    int getSampleTrackIndex();
+
+    /**
+     * Returns the size of the current sample, or -1 if it is unknown or no more samples are
+     * available.
+     */
+    long getSampleSize();
+
+    long getSampleTime();
+
+    int getSampleFlags();
+
+    boolean advance();
+
+    void release();
+}
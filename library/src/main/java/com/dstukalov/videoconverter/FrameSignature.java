@@ -0,0 +1,142 @@
+package com.dstukalov.videoconverter;
+
+import android.opengl.GLES20;
+import android.opengl.GLException;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Tiny luma thumbnail of the decoded frame, used to find frames that look the same as the
+ * previous one, and scene cuts.
+ * <p>
+ * The frame is averaged down through the {@link TextureRender} pyramid into a small framebuffer
+ * and read back, which costs far less than drawing and encoding a full frame.
+ */
+class FrameSignature {
+
+    private static final int SIZE = 32;
+
+    private static final String LUMA_FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "void main() {\n" +
+            "  float y = dot(texture2D(sTexture, vTextureCoord).rgb, vec3(0.299, 0.587, 0.114));\n" +
+            "  gl_FragColor = vec4(y, y, y, 1.0);\n" +
+            "}\n";
+
+    private final OutputSurface mOutputSurface;
+    private final TextureRender mTextureRender;
+    private final int[] mTexture = new int[1];
+    private final int[] mFramebuffer = new int[1];
+    private final int[] mViewport = new int[4];
+    private final int[] mPreviousFramebuffer = new int[1];
+
+    private final ByteBuffer mPixels = ByteBuffer.allocateDirect(SIZE * SIZE * 4).order(ByteOrder.nativeOrder());
+    private final byte[] mCurrent = new byte[SIZE * SIZE * 4];
+    private final byte[] mPrevious = new byte[SIZE * SIZE * 4];
+    private final byte[] mReference = new byte[SIZE * SIZE * 4];
+    private boolean mHasCurrent;
+    private boolean mHasPrevious;
+    private boolean mHasReference;
+
+    /**
+     * Call with the EGL context of the output surface current.
+     */
+    FrameSignature(final @NonNull OutputSurface outputSurface, final int srcWidth, final int srcHeight) {
+        mOutputSurface = outputSurface;
+        mTextureRender = outputSurface.createTextureRender();
+        mTextureRender.changeFragmentShader(LUMA_FRAGMENT_SHADER);
+        mTextureRender.setDownscale(srcWidth, srcHeight, SIZE, SIZE);
+
+        GLES20.glGenTextures(1, mTexture, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[0]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, SIZE, SIZE, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glGenFramebuffers(1, mFramebuffer, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTexture[0], 0);
+        final int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new GLException(status, "incomplete signature framebuffer");
+        }
+        mTextureRender.checkGlError("signature setup");
+    }
+
+    /**
+     * Takes the signature of the latched frame.
+     */
+    void measure() {
+        if (mHasCurrent) {
+            System.arraycopy(mCurrent, 0, mPrevious, 0, mCurrent.length);
+            mHasPrevious = true;
+        }
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mViewport, 0);
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mPreviousFramebuffer, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        GLES20.glViewport(0, 0, SIZE, SIZE);
+        mOutputSurface.drawImage(mTextureRender);
+        mPixels.clear();
+        GLES20.glReadPixels(0, 0, SIZE, SIZE, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mPixels);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mPreviousFramebuffer[0]);
+        GLES20.glViewport(mViewport[0], mViewport[1], mViewport[2], mViewport[3]);
+        mTextureRender.checkGlError("signature read");
+
+        mPixels.get(mCurrent);
+        mHasCurrent = true;
+    }
+
+    /**
+     * Returns the mean absolute luma difference of the measured frame from the one measured
+     * before, 0 to 255, or {@link Float#MAX_VALUE} if there is none.
+     */
+    float getDifferenceFromPrevious() {
+        return mHasPrevious ? getDifference(mPrevious) : Float.MAX_VALUE;
+    }
+
+    /**
+     * Returns the mean absolute luma difference of the measured frame from the last accepted
+     * one, 0 to 255, or {@link Float#MAX_VALUE} if no frame was accepted yet.
+     */
+    float getDifferenceFromAccepted() {
+        return mHasReference ? getDifference(mReference) : Float.MAX_VALUE;
+    }
+
+    /**
+     * Returns the mean absolute luma difference between neighbour pixels of the measured frame,
+     * 0 to 255, which is higher for detailed frames.
+     */
+    float getDetail() {
+        long sum = 0;
+        for (int y = 0; y < SIZE - 1; y++) {
+            for (int x = 0; x < SIZE - 1; x++) {
+                final int i = (y * SIZE + x) * 4;
+                final int luma = mCurrent[i] & 0xFF;
+                sum += Math.abs(luma - (mCurrent[i + 4] & 0xFF)) + Math.abs(luma - (mCurrent[i + SIZE * 4] & 0xFF));
+            }
+        }
+        return (float) sum / (2 * (SIZE - 1) * (SIZE - 1));
+    }
+
+    private float getDifference(final @NonNull byte[] other) {
+        long sum = 0;
+        for (int i = 0; i < mCurrent.length; i += 4) {
+            sum += Math.abs((mCurrent[i] & 0xFF) - (other[i] & 0xFF));
+        }
+        return (float) sum / (SIZE * SIZE);
+    }
+
+    /**
+     * Makes the last measured frame the one that the next ones are compared with.
+     */
+    void accept() {
+        System.arraycopy(mCurrent, 0, mReference, 0, mCurrent.length);
+        mHasReference = true;
+    }
+}
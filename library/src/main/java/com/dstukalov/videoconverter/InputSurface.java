@@ -17,15 +17,19 @@
 package com.dstukalov.videoconverter;
 
 import android.opengl.EGL14;
+import android.opengl.EGL15;
 import android.opengl.EGLExt;
 import android.opengl.EGLConfig;
 import android.opengl.EGLContext;
 import android.opengl.EGLDisplay;
 import android.opengl.EGLSurface;
+import android.opengl.EGLSync;
+import android.opengl.GLES20;
 import android.opengl.GLException;
 import android.util.Log;
 import android.view.Surface;
 
+import androidx.annotation.RequiresApi;
 
 /**
  * Holds state associated with a Surface used for MediaCodec encoder input.
@@ -43,7 +47,11 @@ class InputSurface {
 
     private EGLDisplay mEGLDisplay;
     private EGLContext mEGLContext;
+    private EGLConfig mEGLConfig;
     private EGLSurface mEGLSurface;
+    private boolean mOwnsContext;
+    private int mWidth;
+    private int mHeight;
 
     private Surface mSurface;
 
@@ -59,6 +67,22 @@ class InputSurface {
         eglSetup();
     }
 
+    /**
+     * Creates an InputSurface from a Surface, drawing with the EGL context of another
+     * InputSurface.  The context stays with the other one, so release that one last.
+     */
+    public InputSurface(Surface surface, InputSurface shared) {
+        if (surface == null) {
+            throw new NullPointerException();
+        }
+        mSurface = surface;
+        mEGLDisplay = shared.mEGLDisplay;
+        mEGLContext = shared.mEGLContext;
+        mEGLConfig = shared.mEGLConfig;
+
+        createWindowSurface();
+    }
+
     /**
      * Prepares EGL.  We want a GLES 2.0 context and a surface that supports recording.
      */
@@ -101,17 +125,31 @@ class InputSurface {
         if (mEGLContext == null) {
             throw new GLException(0, "null context");
         }
+        mEGLConfig = configs[0];
+        mOwnsContext = true;
+
+        createWindowSurface();
+    }
 
-        // Create a window surface, and attach it to the Surface we received.
+    /**
+     * Creates a window surface, and attaches it to the Surface we received.
+     */
+    private void createWindowSurface() {
         int[] surfaceAttribs = {
                 EGL14.EGL_NONE
         };
-        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, configs[0], mSurface,
+        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, mEGLConfig, mSurface,
                 surfaceAttribs, 0);
         checkEglError("eglCreateWindowSurface");
         if (mEGLSurface == null) {
             throw new GLException(0, "surface was null");
         }
+
+        int[] size = new int[2];
+        EGL14.eglQuerySurface(mEGLDisplay, mEGLSurface, EGL14.EGL_WIDTH, size, 0);
+        EGL14.eglQuerySurface(mEGLDisplay, mEGLSurface, EGL14.EGL_HEIGHT, size, 1);
+        mWidth = size[0];
+        mHeight = size[1];
     }
 
     /**
@@ -119,13 +157,15 @@ class InputSurface {
      * Surface that was passed to our constructor.
      */
     public void release() {
-        if (EGL14.eglGetCurrentContext().equals(mEGLContext)) {
+        if (mOwnsContext && EGL14.eglGetCurrentContext().equals(mEGLContext)) {
             // Clear the current context and surface to ensure they are discarded immediately.
             EGL14.eglMakeCurrent(mEGLDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
                     EGL14.EGL_NO_CONTEXT);
         }
         EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
-        EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
+        if (mOwnsContext) {
+            EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
+        }
         //EGL14.eglTerminate(mEGLDisplay);
 
         mSurface.release();
@@ -133,18 +173,21 @@ class InputSurface {
         // null everything out so future attempts to use this object will cause an NPE
         mEGLDisplay = null;
         mEGLContext = null;
+        mEGLConfig = null;
         mEGLSurface = null;
 
         mSurface = null;
     }
 
     /**
-     * Makes our EGL context and surface current.
+     * Makes our EGL context and surface current, with the viewport covering the surface.
      */
     public void makeCurrent() {
         if (!EGL14.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext)) {
             throw new GLException(0, "eglMakeCurrent failed");
         }
+        // the viewport is per context, it doesn't follow when another surface is made current
+        GLES20.glViewport(0, 0, mWidth, mHeight);
     }
 
     /**
@@ -168,6 +211,39 @@ class InputSurface {
         EGLExt.eglPresentationTimeANDROID(mEGLDisplay, mEGLSurface, nsecs);
     }
 
+    /**
+     * Inserts a fence after the GL commands issued so far.  Returns null if the display doesn't
+     * support EGL 1.5 fences.
+     */
+    @RequiresApi(29)
+    public EGLSync createFence() {
+        EGLSync sync = EGL15.eglCreateSync(mEGLDisplay, EGL15.EGL_SYNC_FENCE,
+                new long[] { EGL14.EGL_NONE }, 0);
+        if (sync == null || sync.equals(EGL15.EGL_NO_SYNC)) {
+            Log.w(TAG, "eglCreateSync failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+            return null;
+        }
+        return sync;
+    }
+
+    /**
+     * Blocks until the GPU has passed the fence, then destroys it.
+     */
+    @RequiresApi(29)
+    public void waitFence(EGLSync sync) {
+        EGL15.eglClientWaitSync(mEGLDisplay, sync, EGL15.EGL_SYNC_FLUSH_COMMANDS_BIT,
+                EGL15.EGL_FOREVER);
+        EGL15.eglDestroySync(mEGLDisplay, sync);
+    }
+
+    /**
+     * Destroys the fence without waiting for it.
+     */
+    @RequiresApi(29)
+    public void destroyFence(EGLSync sync) {
+        EGL15.eglDestroySync(mEGLDisplay, sync);
+    }
+
     /**
      * Checks for EGL errors.
      */
@@ -0,0 +1,161 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thread-safe muxer wrapper for tracks that are produced on different threads.
+ * <p>
+ * Samples are copied into per-track queues and passed to the wrapped muxer in presentation time
+ * order, which is only possible once every unfinished track has something queued. A track that
+ * gets too far ahead of the others is blocked until they catch up, so memory stays bounded.
+ */
+class InterleavingMuxer implements Muxer {
+
+    private static final long MAX_LEAD_US = 1000000; // 1 second
+
+    private final Muxer mMuxer;
+    private final List<Track> mTracks = new ArrayList<>();
+    private IOException mException;
+
+    InterleavingMuxer(final @NonNull Muxer muxer) {
+        mMuxer = muxer;
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        mMuxer.start();
+    }
+
+    @Override
+    public synchronized void stop() throws IOException {
+        for (Track track : mTracks) {
+            track.finished = true;
+        }
+        drainLocked();
+        mMuxer.stop();
+    }
+
+    @Override
+    public synchronized int addTrack(final @NonNull MediaFormat format) throws IOException {
+        mTracks.add(new Track(mMuxer.addTrack(format)));
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public synchronized void writeSampleData(final int trackIndex, final @NonNull ByteBuffer byteBuf, final @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException {
+        final Track track = mTracks.get(trackIndex);
+        Preconditions.checkState("track " + trackIndex + " is finished", !track.finished);
+
+        final ByteBuffer data = ByteBuffer.allocate(bufferInfo.size);
+        final ByteBuffer src = byteBuf.duplicate();
+        src.position(bufferInfo.offset);
+        src.limit(bufferInfo.offset + bufferInfo.size);
+        data.put(src);
+        data.flip();
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        track.samples.add(new Sample(data, info));
+        track.lastPresentationTimeUs = Math.max(track.lastPresentationTimeUs, bufferInfo.presentationTimeUs);
+
+        drainLocked();
+
+        while (!track.samples.isEmpty()
+                && track.lastPresentationTimeUs - Preconditions.checkNotNull(track.samples.peek()).info.presentationTimeUs > MAX_LEAD_US
+                && hasOtherUnfinishedTrack(track)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Tells that no more samples will come for the track, so that the other tracks don't wait
+     * for it.
+     */
+    synchronized void finishTrack(final int trackIndex) {
+        if (trackIndex < 0 || trackIndex >= mTracks.size()) {
+            return;
+        }
+        mTracks.get(trackIndex).finished = true;
+        try {
+            drainLocked();
+        } catch (IOException e) {
+            // the caller is done with the track, report it to whoever writes next
+            mException = e;
+        }
+        notifyAll();
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+    }
+
+    private void drainLocked() throws IOException {
+        if (mException != null) {
+            throw mException;
+        }
+        while (true) {
+            Track next = null;
+            for (Track track : mTracks) {
+                final Sample head = track.samples.peek();
+                if (head == null) {
+                    if (!track.finished) {
+                        // cannot tell yet which sample goes first
+                        return;
+                    }
+                } else if (next == null || head.info.presentationTimeUs < Preconditions.checkNotNull(next.samples.peek()).info.presentationTimeUs) {
+                    next = track;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            final Sample sample = next.samples.remove();
+            mMuxer.writeSampleData(next.muxerTrackIndex, sample.data, sample.info);
+            notifyAll();
+        }
+    }
+
+    private boolean hasOtherUnfinishedTrack(final @NonNull Track track) {
+        for (Track other : mTracks) {
+            if (other != track && !other.finished) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Track {
+        final int muxerTrackIndex;
+        final ArrayDeque<Sample> samples = new ArrayDeque<>();
+        long lastPresentationTimeUs;
+        boolean finished;
+
+        Track(final int muxerTrackIndex) {
+            this.muxerTrackIndex = muxerTrackIndex;
+        }
+    }
+
+    private static class Sample {
+        final @NonNull ByteBuffer data;
+        final @NonNull MediaCodec.BufferInfo info;
+
+        Sample(final @NonNull ByteBuffer data, final @NonNull MediaCodec.BufferInfo info) {
+            this.data = data;
+            this.info = info;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaDataSource;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory-mapped file input for {@link MediaConverter#setInput(MediaDataSource)}.
+ * <p>
+ * The many small reads of the extractor are served from the page cache without a system call each.
+ * The file is mapped in regions on first access and only the few last used regions are kept, so
+ * large files don't need to fit in the address space, which matters on 32-bit devices. A region
+ * that is dropped is unmapped once it is garbage collected.
+ */
+@RequiresApi(23)
+public class MappedFileDataSource extends MediaDataSource {
+
+    private static final long REGION_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_MAPPED_REGIONS = 4;
+
+    private final @Nullable File mFile;
+    private @Nullable FileChannel mChannel;
+    private final long mSize;
+    private final Map<Integer, MappedByteBuffer> mRegions = new LinkedHashMap<Integer, MappedByteBuffer>(MAX_MAPPED_REGIONS + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Integer, MappedByteBuffer> eldest) {
+            return size() > MAX_MAPPED_REGIONS;
+        }
+    };
+
+    public MappedFileDataSource(final @NonNull File file) throws IOException {
+        this(new RandomAccessFile(file, "r").getChannel(), file);
+    }
+
+    /**
+     * The descriptor, e.g. of a {@link android.os.ParcelFileDescriptor}, stays open and owned by
+     * the caller. It has to refer to a regular file.
+     */
+    public MappedFileDataSource(final @NonNull FileDescriptor fileDescriptor) throws IOException {
+        this(new FileInputStream(fileDescriptor).getChannel(), null);
+    }
+
+    private MappedFileDataSource(final @NonNull FileChannel channel, final @Nullable File file) throws IOException {
+        mChannel = channel;
+        mFile = file;
+        mSize = channel.size();
+    }
+
+    @Override
+    public synchronized int readAt(final long position, final @NonNull byte[] buffer, final int offset, final int size) throws IOException {
+        if (position >= mSize) {
+            return -1;
+        }
+        final int length = (int) Math.min(size, mSize - position);
+        int done = 0;
+        while (done < length) {
+            final long current = position + done;
+            final int index = (int) (current / REGION_SIZE);
+            MappedByteBuffer mapped = mRegions.get(index);
+            if (mapped == null) {
+                if (mChannel == null) {
+                    mChannel = new RandomAccessFile(mFile, "r").getChannel();
+                }
+                final long start = index * REGION_SIZE;
+                mapped = mChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, mSize - start));
+                mRegions.put(index, mapped);
+            }
+            final ByteBuffer region = mapped.duplicate();
+            region.position((int) (current - index * REGION_SIZE));
+            final int count = Math.min(length - done, region.remaining());
+            region.get(buffer, offset + done, count);
+            done += count;
+        }
+        return length;
+    }
+
+    @Override
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Called by every extractor released, while the conversion may still create another one. Mapped
+     * regions stay valid after the file is closed, the file is opened again only to map a new one.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mFile != null && mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Creates codecs with {@link MediaCodec}, after giving the backend set by the app a chance.
+ * <p>
+ * MediaCodec codecs are driven asynchronously when there is a dispatcher, codecs of the app's
+ * backend are always polled, in the same conversion.
+ */
+class MediaCodecBackend implements CodecBackend {
+
+    private static final String TAG = "media-converter";
+
+    private final @Nullable CodecBackend mBackend;
+    private final @Nullable CodecDispatcher mDispatcher;
+    private volatile boolean mPolledCodecs;
+
+    MediaCodecBackend(final @Nullable CodecBackend backend, final @Nullable CodecDispatcher dispatcher) {
+        mBackend = backend;
+        mDispatcher = dispatcher;
+    }
+
+    @Nullable CodecDispatcher getDispatcher() {
+        return mDispatcher;
+    }
+
+    /**
+     * Returns true once a codec that doesn't signal the dispatcher was created.
+     */
+    boolean hasPolledCodecs() {
+        return mPolledCodecs;
+    }
+
+    /**
+     * Returns the timeout for dequeue calls on the codec: none for codecs driven by callbacks, as
+     * the conversion loop waits on the dispatcher for them, the given one for polled codecs.
+     */
+    long getTimeoutUs(final @NonNull Codec codec, final long timeoutUs) {
+        return codec instanceof AsyncCodec ? 0 : timeoutUs;
+    }
+
+    @Override
+    public @NonNull Codec createDecoder(final @NonNull MediaFormat format, final @Nullable Surface surface) throws IOException {
+        if (mBackend != null) {
+            final Codec codec = mBackend.createDecoder(format, surface);
+            if (codec != null) {
+                mPolledCodecs = true;
+                return codec;
+            }
+        }
+        final MediaCodec decoder = MediaCodec.createDecoderByType(MediaConverter.getMimeTypeFor(format));
+        final Codec codec = wrap(decoder);
+        if (surface != null && Build.VERSION.SDK_INT >= 31) {
+            final String VENDOR_DOLBY_CODEC_TRANSFER_PARAMKEY = "vendor.dolby.codec.transfer.value";
+            final MediaCodec.ParameterDescriptor descriptor = decoder.getParameterDescriptor(VENDOR_DOLBY_CODEC_TRANSFER_PARAMKEY);
+            if (descriptor != null) {
+                final Bundle transferBundle = new Bundle();
+                transferBundle.putString(VENDOR_DOLBY_CODEC_TRANSFER_PARAMKEY, "transfer.sdr.normal");
+                decoder.setParameters(transferBundle);
+            } else {
+                format.setInteger(MediaFormat.KEY_COLOR_TRANSFER_REQUEST, MediaFormat.COLOR_TRANSFER_SDR_VIDEO);
+            }
+        } else {
+            //The Dolby Vision decoder doesn't support transfer parameter
+            //In this case the decoded video buffer is HLG and in-app tone mapping has to be used instead
+        }
+        decoder.configure(format, surface, null, 0);
+        return codec;
+    }
+
+    @Override
+    public @NonNull Codec createEncoder(final @NonNull MediaFormat format) throws IOException {
+        if (mBackend != null) {
+            final Codec codec = mBackend.createEncoder(format);
+            if (codec != null) {
+                mPolledCodecs = true;
+                return codec;
+            }
+        }
+        final String mimeType = MediaConverter.getMimeTypeFor(format);
+        final MediaCodecInfo codecInfo = MediaConverter.selectCodec(mimeType);
+        if (codecInfo == null) {
+            // Don't fail CTS if they don't have the codec (not here, anyway).
+            Log.e(TAG, "Unable to find an appropriate codec for " + mimeType);
+            throw new FileNotFoundException();
+        }
+        Log.d(TAG, "found codec: " + codecInfo.getName());
+        final MediaCodec encoder = MediaCodec.createByCodecName(codecInfo.getName());
+        final Codec codec = wrap(encoder);
+        encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        return codec;
+    }
+
+    /**
+     * Wraps a codec that is not configured yet. Must be called before {@link MediaCodec#configure},
+     * since asynchronous mode has to be set up prior to configuration.
+     */
+    private @NonNull Codec wrap(final @NonNull MediaCodec codec) {
+        if (mDispatcher != null && Build.VERSION.SDK_INT >= 23) {
+            return new AsyncCodec(codec, mDispatcher);
+        } else {
+            return new SyncCodec(codec);
+        }
+    }
+}
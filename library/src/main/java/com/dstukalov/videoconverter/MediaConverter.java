@@ -23,15 +23,22 @@ import android.media.MediaDataSource;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.net.Uri;
+import android.os.Build;
 import android.util.Log;
 
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -53,7 +60,20 @@ public class MediaConverter {
     public static final String VIDEO_CODEC_H264 = "video/avc";
     public static final String VIDEO_CODEC_H265 = "video/hevc";
 
+    private static final long CODEC_EVENT_TIMEOUT_MS = 100;
+    private static final long POLLED_CODEC_EVENT_TIMEOUT_MS = 10;
+
+    // estimate() converts this many windows of this length
+    private static final int PROBE_COUNT = 3;
+    private static final long PROBE_DURATION_US = 2000000;
+    // probes see a small part of the input, so the range is widened by this share
+    private static final float PROBE_MARGIN = 0.1f;
+
+    // latest events kept by the tracer, 24 bytes each
+    private static final int TRACE_CAPACITY = 1 << 16;
+
     private Input mInput;
+    private boolean mProbe; // shares the input of the converter that created it
     private Output mOutput;
 
     private long mTimeFrom;
@@ -61,16 +81,61 @@ public class MediaConverter {
     private int mVideoResolution;
     private int mVideoBitrate = 2000000; // 2Mbps
     private int mVideoBitrateMode = -1; // see MediaCodecInfo.EncoderCapabilities
+    private long mTargetSize; // 0 uses the video bitrate as set
     private @VideoCodec String mVideoCodec = VIDEO_CODEC_H264;
+    private int mVideoFrameRate; // 0 keeps the frame rate of the input
+    private float mStaticFrameThreshold; // 0 keeps static frames
+    private boolean mSceneChangeKeyFrames;
+    private boolean mAdaptiveVideoBitrate;
     private int mAudioBitrate = 128000; // 128Kbps
+    private boolean mAsyncMode;
+    private boolean mConcurrentMode;
+    private boolean mPipelinedRendering;
+    private @Nullable File mTraceFile;
+    private @Nullable CodecBackend mCodecBackend;
+    private final List<Rendition> mRenditions = new ArrayList<>();
+    private final List<Clip> mClips = new ArrayList<>();
+    // {timeFrom, timeTo} in milliseconds
+    private final List<long[]> mCutList = new ArrayList<>();
 
     private Listener mListener;
-    private boolean mCancelled;
+    private volatile boolean mCancelled;
+    // set once the track converters of a conversion exist
+    private volatile long mStartTime;
+    private volatile @Nullable TrackMetrics mVideoMetrics;
+    private volatile @Nullable TrackMetrics mAudioMetrics;
 
     public interface Listener {
         boolean onProgress(int percent);
     }
 
+    /**
+     * Predicted output size, in bytes, and conversion time, in milliseconds, each with the range
+     * it is likely to fall in.
+     */
+    public static class Estimate {
+        public final long size;
+        public final long sizeMin;
+        public final long sizeMax;
+        public final long time;
+        public final long timeMin;
+        public final long timeMax;
+
+        Estimate(final long size, final long sizeMin, final long sizeMax, final long time, final long timeMin, final long timeMax) {
+            this.size = size;
+            this.sizeMin = sizeMin;
+            this.sizeMax = sizeMax;
+            this.time = time;
+            this.timeMin = timeMin;
+            this.timeMax = timeMax;
+        }
+
+        @Override
+        public @NonNull String toString() {
+            return "size:" + size + " [" + sizeMin + ".." + sizeMax + "] time:" + time + " [" + timeMin + ".." + timeMax + "]";
+        }
+    }
+
     public MediaConverter() {
     }
 
@@ -90,6 +155,24 @@ public class MediaConverter {
         mInput = new MediaDataSourceInput(mediaDataSource);
     }
 
+    /**
+     * Converts the stream while it is still arriving, e.g. from the network. The stream is read to its
+     * end on a background thread and appended to bufferFile, both stay owned by the caller, closing the
+     * stream stops the conversion with an error. Reading stops when {@link #convert()} returns.
+     */
+    @SuppressWarnings("unused")
+    @RequiresApi(23)
+    public void setInput(final @NonNull InputStream inputStream, final @NonNull File bufferFile) {
+        mInput = new StreamInput(inputStream, bufferFile);
+    }
+
+    /**
+     * Converts from any input, e.g. a scripted one in tests.
+     */
+    void setInput(final @NonNull Input input) {
+        mInput = input;
+    }
+
     @SuppressWarnings("unused")
     public void setOutput(final @NonNull File file) {
         mOutput = new FileOutput(file);
@@ -106,6 +189,13 @@ public class MediaConverter {
         mOutput = new StreamOutput(outputStream);
     }
 
+    /**
+     * Converts to any output, e.g. a recording one in tests.
+     */
+    void setOutput(final @NonNull Output output) {
+        mOutput = output;
+    }
+
     @SuppressWarnings("unused")
     public void setTimeRange(long timeFrom, long timeTo) {
         mTimeFrom = timeFrom;
@@ -116,14 +206,39 @@ public class MediaConverter {
         }
     }
 
+    /**
+     * Adds a range to keep, in milliseconds, with non-positive timeTo meaning the end of the input.
+     * The ranges are written one after another to the same output in a single pass, the input is
+     * skipped between them and output timestamps continue without gaps. Ranges must be added in
+     * increasing order and must not overlap. Replaces the range set with {@link #setTimeRange},
+     * and cannot be combined with clips.
+     */
+    @SuppressWarnings("unused")
+    public void addTimeRange(final long timeFrom, final long timeTo) {
+        if (timeFrom < 0 || (timeTo > 0 && timeFrom >= timeTo)) {
+            throw new IllegalArgumentException("timeFrom:" + timeFrom + " timeTo:" + timeTo);
+        }
+        if (!mCutList.isEmpty()) {
+            final long previousTimeTo = mCutList.get(mCutList.size() - 1)[1];
+            if (previousTimeTo <= 0 || timeFrom <= previousTimeTo) {
+                throw new IllegalArgumentException("timeFrom:" + timeFrom + " is not after previous timeTo:" + previousTimeTo);
+            }
+        }
+        mCutList.add(new long[] {timeFrom, timeTo});
+    }
+
     @SuppressWarnings("unused")
     public void setVideoResolution(int videoResolution) {
         mVideoResolution = videoResolution;
     }
 
+    /**
+     * Throws if MediaCodec has no encoder for the codec, unless a codec backend is set, which may
+     * have one, then the conversion fails if neither does.
+     */
     @SuppressWarnings("unused")
     public void setVideoCodec(final @VideoCodec String videoCodec) throws FileNotFoundException {
-        if (selectCodec(videoCodec) == null) {
+        if (!hasEncoder(videoCodec)) {
             throw new FileNotFoundException();
         }
         mVideoCodec = videoCodec;
@@ -134,16 +249,182 @@ public class MediaConverter {
         mVideoBitrate = videoBitrate;
     }
 
+    /**
+     * Fits the output into the given number of bytes, instead of using the set video bitrate.
+     * The video bitrate is derived from the converted duration, the audio bitrate and the
+     * container overhead, then, on API 19 and later, corrected every second from the bytes
+     * actually written. Has no effect when renditions or clips are added.
+     */
+    @SuppressWarnings("unused")
+    public void setTargetSize(final long targetSize) {
+        mTargetSize = targetSize;
+    }
+
     @SuppressWarnings("unused")
     public void setVideoBitrateMode(final int videoBitrateMode) {
         mVideoBitrateMode = videoBitrateMode;
     }
 
+    /**
+     * Limits the output frame rate by dropping decoded frames before they are drawn, so dropped
+     * frames cost no GL or encoder time. Inputs at or below this rate are not changed. Zero, the
+     * default, keeps every frame.
+     */
+    @SuppressWarnings("unused")
+    public void setVideoFrameRate(final int videoFrameRate) {
+        if (videoFrameRate < 0) {
+            throw new IllegalArgumentException("videoFrameRate:" + videoFrameRate);
+        }
+        mVideoFrameRate = videoFrameRate;
+    }
+
+    /**
+     * Drops video frames that look the same as the previous one, which suits screen recordings
+     * and slideshows: the previous frame then lasts longer, making the output variable frame
+     * rate. The threshold is the mean absolute difference of a small luma thumbnail of the
+     * frames, from 0 to 255; values around 1 catch only frames that are identical apart from
+     * coding noise. A static frame is still encoded once a second. Zero, the default, keeps
+     * every frame.
+     */
+    @SuppressWarnings("unused")
+    public void setStaticFrameThreshold(final float staticFrameThreshold) {
+        if (staticFrameThreshold < 0) {
+            throw new IllegalArgumentException("staticFrameThreshold:" + staticFrameThreshold);
+        }
+        mStaticFrameThreshold = staticFrameThreshold;
+    }
+
+    /**
+     * Places video I-frames at scene cuts, found by comparing small luma thumbnails of
+     * consecutive frames, and stretches the fixed I-frame interval from 1 to 5 seconds, so that
+     * I-frames go where they help. Needs API 19, ignored before.
+     */
+    @SuppressWarnings("unused")
+    public void setSceneChangeKeyFrames(final boolean sceneChangeKeyFrames) {
+        mSceneChangeKeyFrames = sceneChangeKeyFrames;
+    }
+
+    /**
+     * Lets the video bitrate follow the content: every second it is retuned from how detailed
+     * and how moving the recent frames were, between half and 1.25 of the set bitrate, while the
+     * average stays at or under it. Needs API 19, ignored before.
+     */
+    @SuppressWarnings("unused")
+    public void setAdaptiveVideoBitrate(final boolean adaptiveVideoBitrate) {
+        mAdaptiveVideoBitrate = adaptiveVideoBitrate;
+    }
+
     @SuppressWarnings("unused")
     public void setAudioBitrate(final int audioBitrate) {
         mAudioBitrate = audioBitrate;
     }
 
+    /**
+     * Adds another output with its own video size, bitrate and codec. The input is decoded once
+     * for the main output and all renditions, each rendition gets its own encoder and muxer.
+     * Time range, bitrate mode and audio are the same as for the main output. Throws like
+     * {@link #setVideoCodec} when there is no encoder for the codec.
+     */
+    @SuppressWarnings("unused")
+    public void addRendition(final int videoResolution, final int videoBitrate, final @VideoCodec String videoCodec, final @NonNull File file) throws FileNotFoundException {
+        addRendition(videoResolution, videoBitrate, videoCodec, new FileOutput(file));
+    }
+
+    /**
+     * Adds another output with its own video size, bitrate and codec, see
+     * {@link #addRendition(int, int, String, File)}.
+     */
+    @SuppressWarnings("unused")
+    public void addRendition(final int videoResolution, final int videoBitrate, final @VideoCodec String videoCodec, final @NonNull OutputStream outputStream) throws FileNotFoundException {
+        addRendition(videoResolution, videoBitrate, videoCodec, new StreamOutput(outputStream));
+    }
+
+    private void addRendition(final int videoResolution, final int videoBitrate, final @VideoCodec String videoCodec, final @NonNull Output output) throws FileNotFoundException {
+        if (!hasEncoder(videoCodec)) {
+            throw new FileNotFoundException();
+        }
+        mRenditions.add(new Rendition(output, videoResolution, videoBitrate, -1, videoCodec, 0, 0));
+    }
+
+    /**
+     * Adds a clip: the part of the input from timeFrom to timeTo, in milliseconds, written to an
+     * output of its own with the video and audio settings of the main output. The main output, if
+     * set, and all clips are converted in one pass over the input, skipping the parts nobody
+     * takes. Clips may overlap, each gets its own encoder while it lasts.
+     */
+    @SuppressWarnings("unused")
+    public void addClip(final long timeFrom, final long timeTo, final @NonNull File file) {
+        addClip(timeFrom, timeTo, new FileOutput(file));
+    }
+
+    /**
+     * Adds a clip written to a stream, see {@link #addClip(long, long, File)}.
+     */
+    @SuppressWarnings("unused")
+    public void addClip(final long timeFrom, final long timeTo, final @NonNull OutputStream outputStream) {
+        addClip(timeFrom, timeTo, new StreamOutput(outputStream));
+    }
+
+    private void addClip(final long timeFrom, final long timeTo, final @NonNull Output output) {
+        if (timeFrom < 0 || timeFrom >= timeTo) {
+            throw new IllegalArgumentException("timeFrom:" + timeFrom + " timeTo:" + timeTo);
+        }
+        mClips.add(new Clip(output, timeFrom, timeTo));
+    }
+
+    /**
+     * Drives codecs through {@link android.media.MediaCodec.Callback} instead of polling them with
+     * timeouts, so every stage moves on as soon as a buffer is ready.
+     */
+    @SuppressWarnings("unused")
+    @RequiresApi(23)
+    public void setAsyncMode(final boolean asyncMode) {
+        mAsyncMode = asyncMode;
+    }
+
+    /**
+     * Runs the audio track converter on its own thread, so that audio transcoding overlaps with
+     * video instead of taking turns with it. Samples are still written in presentation time order.
+     * Has no effect when renditions or clips are added.
+     */
+    @SuppressWarnings("unused")
+    public void setConcurrentMode(final boolean concurrentMode) {
+        mConcurrentMode = concurrentMode;
+    }
+
+    /**
+     * Draws video frames on a dedicated GL thread, so that the decoder can move on to the next
+     * frame while the previous ones are still being drawn and encoded. Has no effect when
+     * renditions or clips are added, static frames are dropped, I-frames follow scene cuts or the
+     * bitrate is adaptive.
+     */
+    @SuppressWarnings("unused")
+    public void setPipelinedRendering(final boolean pipelinedRendering) {
+        mPipelinedRendering = pipelinedRendering;
+    }
+
+    /**
+     * Takes decoders and encoders from the backend where it provides them, for example software
+     * codecs for when the hardware ones are busy or broken, instead of from MediaCodec. Codecs of
+     * the backend are polled, in async mode only the MediaCodec ones get callbacks. Set it before
+     * the video codec, see {@link #setVideoCodec}.
+     */
+    @SuppressWarnings("unused")
+    public void setCodecBackend(final @Nullable CodecBackend codecBackend) {
+        mCodecBackend = codecBackend;
+    }
+
+    /**
+     * Records the time taken by every per-frame step of the conversion, such as codec dequeue
+     * calls, extractor reads, drawing and muxing, and writes it to the file when the conversion
+     * ends, as Chrome trace events that chrome://tracing and Perfetto open. Only the latest 65536
+     * steps are kept.
+     */
+    @SuppressWarnings("unused")
+    public void setTraceFile(final @Nullable File traceFile) {
+        mTraceFile = traceFile;
+    }
+
     @SuppressWarnings("unused")
     public void setListener(final Listener listener) {
         mListener = listener;
@@ -153,29 +434,111 @@ public class MediaConverter {
         return mOutput.createMuxer();
     }
 
+    /**
+     * Returns the throughput of the conversion so far, may be called from any thread, or null
+     * before the conversion starts.
+     */
+    @SuppressWarnings("unused")
+    public @Nullable ConversionMetrics getMetrics() {
+        final TrackMetrics videoMetrics = mVideoMetrics;
+        final TrackMetrics audioMetrics = mAudioMetrics;
+        if (videoMetrics == null && audioMetrics == null) {
+            return null;
+        }
+        final long elapsed = System.nanoTime() - mStartTime;
+        return new ConversionMetrics(elapsed / 1000000,
+                videoMetrics == null ? null : videoMetrics.snapshot(elapsed),
+                audioMetrics == null ? null : audioMetrics.snapshot(elapsed));
+    }
+
+    /**
+     * Converts the input to the outputs.
+     *
+     * @return the throughput of the conversion, see {@link #getMetrics()}
+     */
     @WorkerThread
-    public void convert() throws BadMediaException, IOException, MediaConversionException {
+    public @NonNull ConversionMetrics convert() throws BadMediaException, IOException, MediaConversionException {
+        mStartTime = System.nanoTime();
+        mVideoMetrics = null;
+        mAudioMetrics = null;
+        final File traceFile = mTraceFile;
+        final Tracer tracer = traceFile == null ? null : new Tracer(TRACE_CAPACITY);
         // Exception that may be thrown during release.
         Exception exception = null;
         Muxer muxer = null;
+        List<Muxer> muxers = Collections.emptyList();
         VideoTrackConverter videoTrackConverter = null;
         AudioTrackConverter audioTrackConverter = null;
+        // codecs of the app's backend are polled, MediaCodec ones still get callbacks
+        final CodecDispatcher dispatcher = mAsyncMode && Build.VERSION.SDK_INT >= 23 ? new CodecDispatcher() : null;
+        final MediaCodecBackend codecs = new MediaCodecBackend(mCodecBackend, dispatcher);
 
         try {
-            videoTrackConverter = VideoTrackConverter.create(mInput, mTimeFrom, mTimeTo, mVideoResolution, mVideoBitrate, mVideoBitrateMode, mVideoCodec);
-            audioTrackConverter = AudioTrackConverter.create(mInput, mTimeFrom, mTimeTo, mAudioBitrate);
+            Preconditions.checkState("clips cannot be combined with a cut list", mCutList.isEmpty() || mClips.isEmpty());
+            final long timeFrom = mCutList.isEmpty() ? mTimeFrom : mCutList.get(0)[0];
+            final long timeTo = mCutList.isEmpty() ? mTimeTo : mCutList.get(mCutList.size() - 1)[1];
+            final List<Rendition> renditions = new ArrayList<>();
+            if (mOutput != null) {
+                renditions.add(new Rendition(mOutput, mVideoResolution, mVideoBitrate, mVideoBitrateMode, mVideoCodec, timeFrom, timeTo));
+                for (Rendition rendition : mRenditions) {
+                    renditions.add(new Rendition(rendition.output, rendition.videoResolution, rendition.videoBitrate, mVideoBitrateMode, rendition.videoCodec, timeFrom, timeTo));
+                }
+            }
+            for (Clip clip : mClips) {
+                renditions.add(new Rendition(clip.output, mVideoResolution, mVideoBitrate, mVideoBitrateMode, mVideoCodec, clip.timeFrom, clip.timeTo));
+            }
+            Preconditions.checkState("no output", !renditions.isEmpty());
+            final TimeRanges ranges = mCutList.isEmpty() ? TimeRanges.union(renditions) : TimeRanges.join(mCutList);
+            final SizeBudget sizeBudget = mTargetSize > 0 && mOutput != null && renditions.size() == 1 ? createSizeBudget(ranges, getInputFormats()) : null;
+            if (sizeBudget != null) {
+                Log.i(TAG, "video bitrate " + sizeBudget.getVideoBitrate() + " for target size " + mTargetSize);
+                renditions.set(0, new Rendition(mOutput, mVideoResolution, sizeBudget.getVideoBitrate(), mVideoBitrateMode, mVideoCodec, timeFrom, timeTo));
+            }
+
+            // both converters take their samples from a single pass over the input
+            final Input input = new SharedDemuxer(mInput);
+            videoTrackConverter = VideoTrackConverter.create(input, renditions, ranges, mVideoFrameRate, mStaticFrameThreshold, mSceneChangeKeyFrames, mAdaptiveVideoBitrate, codecs, mPipelinedRendering && renditions.size() == 1, tracer);
+            audioTrackConverter = AudioTrackConverter.create(input, ranges, mAudioBitrate, codecs, tracer);
+            if (sizeBudget != null && videoTrackConverter != null) {
+                videoTrackConverter.setSizeBudget(sizeBudget);
+            }
+            mVideoMetrics = videoTrackConverter == null ? null : videoTrackConverter.mMetrics;
+            mAudioMetrics = audioTrackConverter == null ? null : audioTrackConverter.mMetrics;
 
             if (videoTrackConverter == null && audioTrackConverter == null) {
                 Log.e(TAG, "no video and audio tracks");
                 throw new BadMediaException();
             }
 
-            muxer = createMuxer();
+            if (renditions.size() == 1) {
+                muxer = traced(renditions.get(0).output, tracer).createMuxer();
+                if (sizeBudget != null) {
+                    muxer = sizeBudget.track(muxer);
+                }
+                if (mConcurrentMode && videoTrackConverter != null && audioTrackConverter != null) {
+                    // also in front of StreamingMuxer, which is thread-safe but doesn't hold back a track that runs ahead
+                    muxer = new InterleavingMuxer(muxer);
+                }
+                muxers = Collections.singletonList(muxer);
+            } else {
+                // outputs start when their own tracks are ready, and take only their time window
+                final int trackCount = (videoTrackConverter == null ? 0 : 1) + (audioTrackConverter == null ? 0 : 1);
+                muxers = new ArrayList<>();
+                for (Rendition rendition : renditions) {
+                    muxers.add(new DeferredMuxer(traced(rendition.output, tracer), trackCount, rendition.timeFromUs, rendition.timeToUs));
+                }
+                // the audio track is encoded once and written to every rendition
+                muxer = new TeeMuxer(muxers);
+            }
 
             doExtractDecodeEditEncodeMux(
                     videoTrackConverter,
                     audioTrackConverter,
-                    muxer);
+                    muxer,
+                    renditions,
+                    muxers,
+                    ranges,
+                    codecs);
 
         } catch (BadMediaException | IOException e) {
             Log.e(TAG, "error converting", e);
@@ -213,6 +576,11 @@ public class MediaConverter {
                 if (muxer != null) {
                     muxer.stop();
                     muxer.release();
+                } else {
+                    // failed while creating the muxers of the renditions
+                    for (Muxer createdMuxer : muxers) {
+                        createdMuxer.release();
+                    }
                 }
             } catch (Exception e) {
                 Log.e(TAG, "error while releasing muxer", e);
@@ -220,21 +588,42 @@ public class MediaConverter {
                     exception = e;
                 }
             }
+            if (dispatcher != null) {
+                dispatcher.release();
+            }
+            if (!mProbe && mInput != null) {
+                mInput.release();
+            }
+            if (tracer != null) {
+                writeTrace(tracer, traceFile);
+            }
         }
         if (exception != null) {
             throw new MediaConversionException(exception);
         }
+        final ConversionMetrics metrics = Preconditions.checkNotNull(getMetrics());
+        Log.i(TAG, "metrics: " + metrics);
+        return metrics;
     }
 
     /**
      * Does the actual work for extracting, decoding, encoding and muxing.
+     *
+     * @param muxer takes the audio track, and is started and stopped for all renditions
+     * @param videoMuxers take the video track, one per rendition
      */
     private void doExtractDecodeEditEncodeMux(
             final @Nullable VideoTrackConverter videoTrackConverter,
             final @Nullable AudioTrackConverter audioTrackConverter,
-            final @NonNull Muxer muxer) throws IOException {
+            final @NonNull Muxer muxer,
+            final @NonNull List<Rendition> renditions,
+            final @NonNull List<Muxer> videoMuxers,
+            final @NonNull TimeRanges ranges,
+            final @NonNull MediaCodecBackend codecs) throws IOException {
 
+        final CodecDispatcher dispatcher = codecs.getDispatcher();
         boolean muxing = false;
+        final boolean[] stopped = new boolean[videoMuxers.size()];
         int percentProcessed = 0;
         long inputDuration = Math.max(
                 videoTrackConverter == null ? 0 : videoTrackConverter.mInputDuration,
@@ -251,34 +640,29 @@ public class MediaConverter {
                         " muxing:" + muxing);
             }
 
+            // Events that arrive while stepping must wake us up, so count them before stepping.
+            final long eventCount = dispatcher == null ? 0 : dispatcher.getEventCount();
+            boolean progress = false;
+
             if (videoTrackConverter != null && (audioTrackConverter == null || audioTrackConverter.mAudioExtractorDone || videoTrackConverter.mMuxingVideoPresentationTime <= audioTrackConverter.mMuxingAudioPresentationTime)) {
-                videoTrackConverter.step();
+                progress |= videoTrackConverter.step();
             }
 
             if (audioTrackConverter != null && (videoTrackConverter == null || videoTrackConverter.mVideoExtractorDone || videoTrackConverter.mMuxingVideoPresentationTime >= audioTrackConverter.mMuxingAudioPresentationTime)) {
-                audioTrackConverter.step();
+                progress |= audioTrackConverter.step();
             }
 
-            if (inputDuration != 0 && mListener != null) {
-                final long timeFromUs = mTimeFrom <= 0 ? 0 : mTimeFrom * 1000;
-                final long timeToUs = mTimeTo <= 0 ? inputDuration : mTimeTo * 1000;
-                final int curPercentProcessed = (int) (100 *
-                        (Math.max(
-                                videoTrackConverter == null ? 0 : videoTrackConverter.mMuxingVideoPresentationTime,
-                                audioTrackConverter == null ? 0 : audioTrackConverter.mMuxingAudioPresentationTime)
-                         - timeFromUs) / (timeToUs - timeFromUs));
+            percentProcessed = updateProgress(videoTrackConverter, audioTrackConverter, ranges, inputDuration, percentProcessed);
 
-                if (curPercentProcessed != percentProcessed) {
-                    percentProcessed = curPercentProcessed;
-                    mCancelled = mCancelled || mListener.onProgress(percentProcessed);
-                }
+            if (muxing && videoMuxers.size() > 1) {
+                progress |= stopFinishedOutputs(videoTrackConverter, audioTrackConverter, renditions, videoMuxers, stopped);
             }
 
             if (!muxing
-                    && (videoTrackConverter == null || videoTrackConverter.mEncoderOutputVideoFormat != null)
+                    && (videoTrackConverter == null || videoTrackConverter.hasOutputFormats())
                     && (audioTrackConverter == null || audioTrackConverter.mEncoderOutputAudioFormat != null)) {
                 if (videoTrackConverter != null) {
-                    videoTrackConverter.setMuxer(muxer);
+                    videoTrackConverter.setMuxers(videoMuxers);
                 }
                 if (audioTrackConverter != null) {
                     audioTrackConverter.setMuxer(muxer);
@@ -286,6 +670,25 @@ public class MediaConverter {
                 Log.d(TAG, "muxer: starting");
                 muxer.start();
                 muxing = true;
+                progress = true;
+
+                if (mConcurrentMode && videoTrackConverter != null && audioTrackConverter != null && videoMuxers.size() == 1) {
+                    // Both output formats are known, from now on each track can go at its own pace.
+                    doConcurrentDecodeEditEncodeMux(
+                            videoTrackConverter,
+                            audioTrackConverter,
+                            muxer,
+                            codecs,
+                            ranges,
+                            inputDuration,
+                            percentProcessed);
+                    break;
+                }
+            }
+
+            if (!progress && dispatcher != null) {
+                // Nothing to do until some codec gets a buffer for us.
+                dispatcher.awaitEvent(eventCount, getEventTimeoutMs(codecs));
             }
         }
 
@@ -300,6 +703,334 @@ public class MediaConverter {
         // TODO: Check the generated output file.
     }
 
+    /**
+     * Converts video on the calling thread and audio on a separate one. The GL context of the
+     * video track converter is bound to the calling thread, so video stays here.
+     */
+    private void doConcurrentDecodeEditEncodeMux(
+            final @NonNull VideoTrackConverter videoTrackConverter,
+            final @NonNull AudioTrackConverter audioTrackConverter,
+            final @NonNull Muxer muxer,
+            final @NonNull MediaCodecBackend codecs,
+            final @NonNull TimeRanges ranges,
+            final long inputDuration,
+            int percentProcessed) throws IOException {
+
+        final CodecDispatcher dispatcher = codecs.getDispatcher();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final AtomicReference<Exception> audioException = new AtomicReference<>();
+        final Thread audioThread = new Thread(() -> {
+            try {
+                while (!mCancelled && !stopped.get() && !audioTrackConverter.mAudioEncoderDone) {
+                    final long eventCount = dispatcher == null ? 0 : dispatcher.getEventCount();
+                    if (!audioTrackConverter.step() && dispatcher != null) {
+                        dispatcher.awaitEvent(eventCount, getEventTimeoutMs(codecs));
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "error converting audio", e);
+                audioException.set(e);
+            } finally {
+                if (muxer instanceof InterleavingMuxer) {
+                    ((InterleavingMuxer) muxer).finishTrack(audioTrackConverter.mOutputAudioTrack);
+                }
+            }
+        }, "media-converter-audio");
+        audioThread.start();
+
+        try {
+            while (!mCancelled && audioException.get() == null && !videoTrackConverter.mVideoEncoderDone) {
+                if (VERBOSE) {
+                    Log.d(TAG, "loop: " + videoTrackConverter.dumpState() + audioTrackConverter.dumpState());
+                }
+                final long eventCount = dispatcher == null ? 0 : dispatcher.getEventCount();
+                if (!videoTrackConverter.step() && dispatcher != null) {
+                    dispatcher.awaitEvent(eventCount, getEventTimeoutMs(codecs));
+                }
+                percentProcessed = updateProgress(videoTrackConverter, audioTrackConverter, ranges, inputDuration, percentProcessed);
+            }
+        } finally {
+            // Let the audio thread go in case it waits for video samples, then wait for it to finish.
+            if (muxer instanceof InterleavingMuxer) {
+                ((InterleavingMuxer) muxer).finishTrack(videoTrackConverter.getOutputVideoTrack());
+            }
+            if (!videoTrackConverter.mVideoEncoderDone) {
+                stopped.set(true);
+            }
+            boolean interrupted = false;
+            while (audioThread.isAlive()) {
+                try {
+                    audioThread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        final Exception exception = audioException.get();
+        if (exception instanceof IOException) {
+            throw (IOException) exception;
+        } else if (exception != null) {
+            throw (RuntimeException) exception;
+        }
+    }
+
+    /**
+     * Stops the muxers of outputs that end before the others, such as clips, so that they are
+     * complete as soon as their last samples are written.
+     *
+     * @return true if any muxer was stopped
+     */
+    private static boolean stopFinishedOutputs(
+            final @Nullable VideoTrackConverter videoTrackConverter,
+            final @Nullable AudioTrackConverter audioTrackConverter,
+            final @NonNull List<Rendition> renditions,
+            final @NonNull List<Muxer> muxers,
+            final @NonNull boolean[] stopped) throws IOException {
+        boolean progress = false;
+        for (int i = 0; i < muxers.size(); i++) {
+            if (!stopped[i]
+                    && (videoTrackConverter == null || videoTrackConverter.isEncoderDone(i))
+                    && (audioTrackConverter == null || audioTrackConverter.mAudioEncoderDone || audioTrackConverter.mMuxingAudioPresentationTime > renditions.get(i).timeToUs)) {
+                Log.d(TAG, "muxer: stopping output " + i);
+                stopped[i] = true;
+                progress = true;
+                final Muxer muxer = muxers.get(i);
+                try {
+                    muxer.stop();
+                } finally {
+                    muxer.release();
+                }
+            }
+        }
+        return progress;
+    }
+
+    private int updateProgress(
+            final @Nullable VideoTrackConverter videoTrackConverter,
+            final @Nullable AudioTrackConverter audioTrackConverter,
+            final @NonNull TimeRanges ranges,
+            final long inputDuration,
+            final int percentProcessed) {
+        if (inputDuration != 0 && mListener != null) {
+            final long timeFromUs = ranges.getStart();
+            final long timeToUs = ranges.toOutputTime(ranges.getEnd() == Long.MAX_VALUE ? inputDuration : ranges.getEnd());
+            final int curPercentProcessed = (int) (100 *
+                    (Math.max(
+                            videoTrackConverter == null ? 0 : videoTrackConverter.mMuxingVideoPresentationTime,
+                            audioTrackConverter == null ? 0 : audioTrackConverter.mMuxingAudioPresentationTime)
+                     - timeFromUs) / (timeToUs - timeFromUs));
+
+            if (curPercentProcessed != percentProcessed) {
+                mCancelled = mCancelled || mListener.onProgress(curPercentProcessed);
+                return curPercentProcessed;
+            }
+        }
+        return percentProcessed;
+    }
+
+    /**
+     * Predicts the size of the main output and how long its conversion takes with the current
+     * settings, without writing anything.
+     * <p>
+     * A few short windows spread over the time range are converted into a byte counter, and
+     * their bytes and time per second of input are scaled to the whole duration. The range
+     * spans the slowest and fastest windows, widened a little since the windows see only part of
+     * the input. Inputs shorter than the windows together are converted in full. Each window
+     * pays for codec setup, so the time leans high for short windows. Renditions and clips
+     * are not estimated.
+     * <p>
+     * Progress goes to the listener, which can cancel the estimate like a conversion.
+     *
+     * @return the estimate, or null if cancelled
+     */
+    @WorkerThread
+    public @Nullable Estimate estimate() throws BadMediaException, IOException, MediaConversionException {
+        mCancelled = false;
+        final TimeRanges ranges = TimeRanges.join(mCutList.isEmpty() ? Collections.singletonList(new long[] {mTimeFrom, mTimeTo}) : mCutList);
+        final List<MediaFormat> inputFormats = getInputFormats();
+        final long duration = ranges.getDuration(getDuration(inputFormats));
+        if (duration <= 0) {
+            Log.e(TAG, "unknown duration");
+            throw new BadMediaException();
+        }
+        final SizeBudget sizeBudget = mTargetSize > 0 ? createSizeBudget(ranges, inputFormats) : null;
+        final int videoBitrate = sizeBudget == null ? mVideoBitrate : sizeBudget.getVideoBitrate();
+
+        final int probeCount = duration > 2 * PROBE_COUNT * PROBE_DURATION_US ? PROBE_COUNT : 1;
+        float minSizeRate = Float.MAX_VALUE;
+        float maxSizeRate = 0;
+        float sumSizeRate = 0;
+        float minTimeRate = Float.MAX_VALUE;
+        float maxTimeRate = 0;
+        float sumTimeRate = 0;
+        int completedCount = 0;
+        final int[] percentReported = {-1};
+        for (int i = 0; i < probeCount; i++) {
+            final long from;
+            final long to;
+            if (probeCount == 1) {
+                from = ranges.getStart();
+                to = ranges.getEnd();
+            } else {
+                from = ranges.toInputTime(duration * (2 * i + 1) / (2 * probeCount) - PROBE_DURATION_US / 2);
+                // the window stays within one range
+                to = Math.min(from + PROBE_DURATION_US, ranges.getTo(ranges.indexOf(from)));
+            }
+            final CountingOutputStream sink = new CountingOutputStream();
+            final MediaConverter probe = createProbe(from / 1000, to == Long.MAX_VALUE ? 0 : to / 1000, videoBitrate, sink);
+            if (probeCount == 1) {
+                probe.mCutList.addAll(mCutList);
+            }
+            final int probeIndex = i;
+            probe.mListener = percent -> {
+                final int curPercent = (100 * probeIndex + percent) / probeCount;
+                if (mListener != null && curPercent != percentReported[0]) {
+                    percentReported[0] = curPercent;
+                    mCancelled = mCancelled || mListener.onProgress(curPercent);
+                }
+                return mCancelled;
+            };
+            final long startTime = System.nanoTime();
+            probe.convert();
+            if (mCancelled) {
+                Log.i(TAG, "estimate: cancelled");
+                return null;
+            }
+            final long time = (System.nanoTime() - startTime) / 1000000;
+            final long probeDuration = probeCount == 1 ? duration : to - from;
+            final float sizeRate = (float) sink.count / probeDuration;
+            final float timeRate = (float) time / probeDuration;
+            Log.i(TAG, "estimate: probe " + from + ".." + to + " size:" + sink.count + " time:" + time);
+            minSizeRate = Math.min(minSizeRate, sizeRate);
+            maxSizeRate = Math.max(maxSizeRate, sizeRate);
+            sumSizeRate += sizeRate;
+            minTimeRate = Math.min(minTimeRate, timeRate);
+            maxTimeRate = Math.max(maxTimeRate, timeRate);
+            sumTimeRate += timeRate;
+            completedCount++;
+        }
+        final Estimate estimate = new Estimate(
+                Math.round(sumSizeRate / completedCount * duration),
+                Math.round(minSizeRate * (1 - PROBE_MARGIN) * duration),
+                Math.round(maxSizeRate * (1 + PROBE_MARGIN) * duration),
+                Math.round(sumTimeRate / completedCount * duration),
+                Math.round(minTimeRate * (1 - PROBE_MARGIN) * duration),
+                Math.round(maxTimeRate * (1 + PROBE_MARGIN) * duration));
+        Log.i(TAG, "estimate: " + estimate);
+        return estimate;
+    }
+
+    /**
+     * Returns a converter with the same video and audio settings, that converts a part of the
+     * input to the given stream with a fixed video bitrate.
+     */
+    private @NonNull MediaConverter createProbe(final long timeFrom, final long timeTo, final int videoBitrate, final @NonNull OutputStream outputStream) {
+        final MediaConverter probe = new MediaConverter();
+        probe.mInput = mInput;
+        probe.mProbe = true;
+        probe.mOutput = new StreamOutput(outputStream);
+        probe.mTimeFrom = timeFrom;
+        probe.mTimeTo = timeTo;
+        probe.mVideoResolution = mVideoResolution;
+        probe.mVideoBitrate = videoBitrate;
+        probe.mVideoBitrateMode = mVideoBitrateMode;
+        probe.mVideoCodec = mVideoCodec;
+        probe.mVideoFrameRate = mVideoFrameRate;
+        probe.mStaticFrameThreshold = mStaticFrameThreshold;
+        probe.mSceneChangeKeyFrames = mSceneChangeKeyFrames;
+        probe.mAdaptiveVideoBitrate = mAdaptiveVideoBitrate;
+        probe.mAudioBitrate = mAudioBitrate;
+        probe.mAsyncMode = mAsyncMode;
+        probe.mConcurrentMode = mConcurrentMode;
+        probe.mPipelinedRendering = mPipelinedRendering;
+        probe.mCodecBackend = mCodecBackend;
+        return probe;
+    }
+
+    private static void writeTrace(final @NonNull Tracer tracer, final @NonNull File file) {
+        try {
+            tracer.write(file);
+        } catch (IOException e) {
+            Log.e(TAG, "error writing trace", e);
+        }
+    }
+
+    /**
+     * Returns an output whose MP4 muxers record their chunk writes into the trace.
+     */
+    private static @NonNull Output traced(final @NonNull Output output, final @Nullable Tracer tracer) {
+        if (tracer == null) {
+            return output;
+        }
+        return () -> {
+            final Muxer muxer = output.createMuxer();
+            if (muxer instanceof StreamingMuxer) {
+                ((StreamingMuxer) muxer).setTracer(tracer);
+            }
+            return muxer;
+        };
+    }
+
+    private @NonNull List<MediaFormat> getInputFormats() throws IOException {
+        final Extractor extractor = mInput.createExtractor();
+        try {
+            final List<MediaFormat> formats = new ArrayList<>();
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                formats.add(extractor.getTrackFormat(i));
+            }
+            return formats;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Encoders of the codec backend can only be known by creating them, so with a backend set the
+     * check is left to the conversion.
+     */
+    private boolean hasEncoder(final @NonNull String mimeType) {
+        return mCodecBackend != null || selectCodec(mimeType) != null;
+    }
+
+    /**
+     * Returns how long to wait for codec events: codecs of the app's backend don't signal any,
+     * so with them the wait is only as long as a dequeue timeout.
+     */
+    private static long getEventTimeoutMs(final @NonNull MediaCodecBackend codecs) {
+        return codecs.hasPolledCodecs() ? POLLED_CODEC_EVENT_TIMEOUT_MS : CODEC_EVENT_TIMEOUT_MS;
+    }
+
+    private static long getDuration(final @NonNull List<MediaFormat> formats) {
+        long duration = 0;
+        for (MediaFormat format : formats) {
+            if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                duration = Math.max(duration, format.getLong(MediaFormat.KEY_DURATION));
+            }
+        }
+        return duration;
+    }
+
+    /**
+     * Spreads the target size over the tracks of the input. Returns null if the duration is not
+     * known.
+     */
+    private @Nullable SizeBudget createSizeBudget(final @NonNull TimeRanges ranges, final @NonNull List<MediaFormat> inputFormats) {
+        final long duration = ranges.getDuration(getDuration(inputFormats));
+        if (duration <= 0) {
+            Log.w(TAG, "unknown duration, target size ignored");
+            return null;
+        }
+        boolean hasAudio = false;
+        for (MediaFormat format : inputFormats) {
+            hasAudio |= getMimeTypeFor(format).startsWith("audio/");
+        }
+        return new SizeBudget(mTargetSize, duration, hasAudio ? mAudioBitrate : 0);
+    }
+
     static String getMimeTypeFor(MediaFormat format) {
         return format.getString(MediaFormat.KEY_MIME);
     }
@@ -328,7 +1059,13 @@ public class MediaConverter {
     }
 
     interface Input {
-        @NonNull MediaExtractor createExtractor() throws IOException;
+        @NonNull Extractor createExtractor() throws IOException;
+
+        /**
+         * Called when the conversion ends, frees what the input holds beyond the extractors.
+         */
+        default void release() {
+        }
     }
 
     private static class FileInput implements Input {
@@ -340,10 +1077,10 @@ public class MediaConverter {
         }
 
         @Override
-        public @NonNull MediaExtractor createExtractor() throws IOException {
+        public @NonNull Extractor createExtractor() throws IOException {
             final MediaExtractor extractor = new MediaExtractor();
             extractor.setDataSource(file.getAbsolutePath());
-            return extractor;
+            return new AndroidExtractor(extractor);
         }
     }
 
@@ -358,10 +1095,10 @@ public class MediaConverter {
         }
 
         @Override
-        public @NonNull MediaExtractor createExtractor() throws IOException {
+        public @NonNull Extractor createExtractor() throws IOException {
             final MediaExtractor extractor = new MediaExtractor();
             extractor.setDataSource(context, uri, null);
-            return extractor;
+            return new AndroidExtractor(extractor);
         }
     }
 
@@ -375,10 +1112,41 @@ public class MediaConverter {
         }
 
         @Override
-        public @NonNull MediaExtractor createExtractor() throws IOException {
+        public @NonNull Extractor createExtractor() throws IOException {
             final MediaExtractor extractor = new MediaExtractor();
             extractor.setDataSource(mediaDataSource);
-            return extractor;
+            return new AndroidExtractor(extractor);
+        }
+    }
+
+    @RequiresApi(23)
+    private static class StreamInput implements Input {
+
+        private final InputStream inputStream;
+        private final File bufferFile;
+        private StreamDataSource dataSource;
+
+        StreamInput(final @NonNull InputStream inputStream, final @NonNull File bufferFile) {
+            this.inputStream = inputStream;
+            this.bufferFile = bufferFile;
+        }
+
+        @Override
+        public synchronized @NonNull Extractor createExtractor() throws IOException {
+            // the stream is read once, every extractor of the conversion shares what has arrived
+            if (dataSource == null) {
+                dataSource = new StreamDataSource(inputStream, bufferFile);
+            }
+            final MediaExtractor extractor = new MediaExtractor();
+            extractor.setDataSource(dataSource);
+            return new AndroidExtractor(extractor);
+        }
+
+        @Override
+        public synchronized void release() {
+            if (dataSource != null) {
+                dataSource.release();
+            }
         }
     }
 
@@ -386,6 +1154,41 @@ public class MediaConverter {
         @NonNull Muxer createMuxer() throws IOException;
     }
 
+    static class Rendition {
+
+        final Output output;
+        final int videoResolution;
+        final int videoBitrate;
+        final int videoBitrateMode;
+        final @VideoCodec String videoCodec;
+        // input time written to this output
+        final long timeFromUs;
+        final long timeToUs;
+
+        Rendition(final @NonNull Output output, final int videoResolution, final int videoBitrate, final int videoBitrateMode, final @NonNull @VideoCodec String videoCodec, final long timeFrom, final long timeTo) {
+            this.output = output;
+            this.videoResolution = videoResolution;
+            this.videoBitrate = videoBitrate;
+            this.videoBitrateMode = videoBitrateMode;
+            this.videoCodec = videoCodec;
+            this.timeFromUs = TimeRanges.toUs(timeFrom, false);
+            this.timeToUs = TimeRanges.toUs(timeTo, true);
+        }
+    }
+
+    private static class Clip {
+
+        final Output output;
+        final long timeFrom;
+        final long timeTo;
+
+        Clip(final @NonNull Output output, final long timeFrom, final long timeTo) {
+            this.output = output;
+            this.timeFrom = timeFrom;
+            this.timeTo = timeTo;
+        }
+    }
+
     private static class FileOutput implements Output {
 
         final File file;
@@ -415,6 +1218,21 @@ public class MediaConverter {
         }
     }
 
+    private static class CountingOutputStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final @NonNull byte[] b, final int off, final int len) {
+            count += len;
+        }
+    }
+
     private static class StreamOutput implements Output {
 
         final OutputStream outputStream;
@@ -0,0 +1,117 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Counts the buffers that go through a codec and the time spent in its dequeue calls, which are
+ * also traced.
+ * <p>
+ * Input buffers count as frames taken, output buffers other than codec config and empty end
+ * of stream as frames passed on. Encoders fed through a surface don't queue input buffers, so
+ * their converter counts the frames it draws instead.
+ */
+class MeteredCodec implements Codec {
+
+    private final Codec mCodec;
+    private final TrackMetrics.Stage mStage;
+    private final int mDequeueInputEvent;
+    private final int mDequeueOutputEvent;
+
+    /**
+     * @param name names the codec in traces
+     */
+    MeteredCodec(final @NonNull Codec codec, final @NonNull TrackMetrics.Stage stage, final @NonNull String name) {
+        mCodec = codec;
+        mStage = stage;
+        mDequeueInputEvent = Tracer.event(name + " dequeueInputBuffer");
+        mDequeueOutputEvent = Tracer.event(name + " dequeueOutputBuffer");
+    }
+
+    @Override
+    public @NonNull Surface createInputSurface() {
+        return mCodec.createInputSurface();
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public int dequeueInputBuffer(final long timeoutUs) {
+        final long startTime = System.nanoTime();
+        final int index = mCodec.dequeueInputBuffer(timeoutUs);
+        mStage.block(startTime, mDequeueInputEvent);
+        return index;
+    }
+
+    @Override
+    public @NonNull ByteBuffer getInputBuffer(final int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(final int index, final int offset, final int size, final long presentationTimeUs, final int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+        if (size > 0) {
+            mStage.framesIn.incrementAndGet();
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(final @NonNull MediaCodec.BufferInfo info, final long timeoutUs) {
+        final long startTime = System.nanoTime();
+        final int index = mCodec.dequeueOutputBuffer(info, timeoutUs);
+        mStage.block(startTime, mDequeueOutputEvent);
+        if (index >= 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0
+                && (info.size > 0 || (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0)) {
+            mStage.framesOut.incrementAndGet();
+            mStage.bytes.addAndGet(info.size);
+        }
+        return index;
+    }
+
+    @Override
+    public @NonNull ByteBuffer getOutputBuffer(final int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public @NonNull MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index, final boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @RequiresApi(19)
+    @Override
+    public void setParameters(final @NonNull Bundle params) {
+        mCodec.setParameters(params);
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+    }
+}
@@ -228,6 +228,23 @@ public class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
         mTextureRender.changeFragmentShader(fragmentShader);
     }
 
+    /**
+     * Returns the renderer used by {@link #drawImage()}.
+     */
+    public TextureRender getTextureRender() {
+        return mTextureRender;
+    }
+
+    /**
+     * Creates another renderer for the same texture, so that every frame can also be drawn with
+     * different shaders, e.g. at several sizes.  Must be called with the EGL context current.
+     */
+    public TextureRender createTextureRender() {
+        TextureRender textureRender = new TextureRender();
+        textureRender.surfaceCreated(mTextureRender.getTextureId());
+        return textureRender;
+    }
+
     /**
      * Latches the next buffer into the texture.  Must be called from the thread that created
      * the OutputSurface object, after the onFrameAvailable callback has signaled that new
@@ -269,6 +286,22 @@ public class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
         mTextureRender.drawFrame(mSurfaceTexture);
     }
 
+    /**
+     * Draws the data from SurfaceTexture onto the current EGL surface.  Skips the glFinish if
+     * the caller syncs with the GPU some other way.
+     */
+    public void drawImage(boolean finish) {
+        mTextureRender.drawFrame(mSurfaceTexture, finish);
+    }
+
+    /**
+     * Draws the data from SurfaceTexture onto the current EGL surface with another renderer
+     * from {@link #createTextureRender()}.
+     */
+    public void drawImage(TextureRender textureRender) {
+        textureRender.drawFrame(mSurfaceTexture);
+    }
+
     @Override
     public void onFrameAvailable(SurfaceTexture st) {
         if (VERBOSE) Log.d(TAG, "new frame available");
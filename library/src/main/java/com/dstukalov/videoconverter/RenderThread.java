@@ -0,0 +1,233 @@
+package com.dstukalov.videoconverter;
+
+import android.opengl.EGLSync;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+/**
+ * Draws decoded frames onto the encoder input surface on a dedicated GL thread.
+ * <p>
+ * The decoder can release the next frame as soon as the previous one has been latched from the
+ * {@link OutputSurface}, so decoding, drawing and encoding of consecutive frames overlap. Only one
+ * frame may wait in the SurfaceTexture, because its queue drops frames that are not latched in
+ * time. The GPU may lag behind by {@link #MAX_FRAMES_IN_FLIGHT} frames, tracked with EGL fences
+ * where they are available; otherwise every frame is finished before the next one is drawn.
+ */
+class RenderThread {
+
+    private static final String TAG = "media-converter";
+    private static final boolean VERBOSE = false; // lots of logging
+
+    private static final int MAX_FRAMES_IN_FLIGHT = 2;
+
+    /**
+     * Configures the newly created {@link OutputSurface} on the GL thread.
+     */
+    interface Setup {
+        void onSurfaceCreated(@NonNull OutputSurface outputSurface);
+    }
+
+    private final Thread mThread;
+    private final @Nullable CodecDispatcher mDispatcher;
+
+    // all guarded by this
+    private final ArrayDeque<Long> mPresentationTimes = new ArrayDeque<>();
+    private Surface mSurface;
+    private boolean mLatchPending;
+    private int mPendingFrames;
+    private boolean mReleased;
+    private boolean mFinished;
+    private RuntimeException mError;
+
+    RenderThread(final @NonNull Surface encoderSurface, final @NonNull Setup setup, final @Nullable CodecDispatcher dispatcher) throws InterruptedIOException {
+        mDispatcher = dispatcher;
+        mThread = new Thread(() -> run(encoderSurface, setup), "media-converter-render");
+        mThread.start();
+        synchronized (this) {
+            while (mSurface == null && !mFinished) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    release();
+                    throw new InterruptedIOException();
+                }
+            }
+            checkErrorLocked();
+        }
+    }
+
+    /**
+     * Returns the Surface for the decoder to render into.
+     */
+    synchronized @NonNull Surface getSurface() {
+        return mSurface;
+    }
+
+    /**
+     * Tells whether the decoder may render another frame.
+     */
+    synchronized boolean isReadyForFrame() {
+        checkErrorLocked();
+        return !mLatchPending;
+    }
+
+    /**
+     * Called after the decoder has released an output buffer with rendering enabled.
+     */
+    synchronized void onFrameRendered(final long presentationTimeUs) {
+        checkErrorLocked();
+        Preconditions.checkState("previous frame is not latched yet", !mLatchPending);
+        mPresentationTimes.add(presentationTimeUs);
+        mLatchPending = true;
+        mPendingFrames++;
+        notifyAll();
+    }
+
+    /**
+     * Blocks until every rendered frame has been sent to the encoder.
+     */
+    synchronized void awaitDrained() throws InterruptedIOException {
+        while (mPendingFrames > 0 && !mFinished) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        checkErrorLocked();
+    }
+
+    /**
+     * Stops the thread and releases the EGL state. The encoder should be stopped before, so that
+     * the thread doesn't stay blocked on its input surface.
+     */
+    void release() {
+        synchronized (this) {
+            mReleased = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkErrorLocked() {
+        if (mError != null) {
+            throw mError;
+        }
+        Preconditions.checkState("render thread is released", !mFinished);
+    }
+
+    private void run(final @NonNull Surface encoderSurface, final @NonNull Setup setup) {
+        InputSurface inputSurface = null;
+        OutputSurface outputSurface = null;
+        final ArrayDeque<EGLSync> fences = new ArrayDeque<>();
+        boolean useFences = Build.VERSION.SDK_INT >= 29;
+        try {
+            inputSurface = new InputSurface(encoderSurface);
+            inputSurface.makeCurrent();
+            outputSurface = new OutputSurface();
+            setup.onSurfaceCreated(outputSurface);
+            synchronized (this) {
+                mSurface = outputSurface.getSurface();
+                notifyAll();
+            }
+
+            while (true) {
+                final long presentationTimeUs;
+                synchronized (this) {
+                    while (!mReleased && mPresentationTimes.isEmpty()) {
+                        wait();
+                    }
+                    if (mReleased) {
+                        break;
+                    }
+                    presentationTimeUs = mPresentationTimes.remove();
+                }
+
+                if (VERBOSE) Log.d(TAG, "render thread: await new image");
+                outputSurface.awaitNewImage();
+                synchronized (this) {
+                    mLatchPending = false;
+                    notifyAll();
+                }
+                signalDispatcher();
+
+                if (useFences && fences.size() >= MAX_FRAMES_IN_FLIGHT) {
+                    inputSurface.waitFence(fences.remove());
+                }
+                if (VERBOSE) Log.d(TAG, "render thread: draw image");
+                outputSurface.drawImage(!useFences);
+                inputSurface.setPresentationTime(presentationTimeUs * 1000);
+                if (VERBOSE) Log.d(TAG, "render thread: swap buffers");
+                inputSurface.swapBuffers();
+                if (useFences) {
+                    final EGLSync fence = inputSurface.createFence();
+                    if (fence != null) {
+                        fences.add(fence);
+                    } else {
+                        useFences = false;
+                    }
+                }
+
+                synchronized (this) {
+                    mPendingFrames--;
+                    notifyAll();
+                }
+                signalDispatcher();
+            }
+        } catch (Throwable e) {
+            Log.e(TAG, "render thread failed", e);
+            synchronized (this) {
+                mError = e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+            }
+        } finally {
+            try {
+                if (inputSurface != null && Build.VERSION.SDK_INT >= 29) {
+                    for (EGLSync fence : fences) {
+                        inputSurface.destroyFence(fence);
+                    }
+                }
+                if (outputSurface != null) {
+                    outputSurface.release();
+                }
+                if (inputSurface != null) {
+                    inputSurface.release();
+                } else {
+                    encoderSurface.release();
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "error while releasing render surfaces", e);
+            }
+            synchronized (this) {
+                mFinished = true;
+                notifyAll();
+            }
+            signalDispatcher();
+        }
+    }
+
+    private void signalDispatcher() {
+        if (mDispatcher != null) {
+            synchronized (mDispatcher) {
+                mDispatcher.signal();
+            }
+        }
+    }
+}
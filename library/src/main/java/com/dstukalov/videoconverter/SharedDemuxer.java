@@ -0,0 +1,466 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Input that demuxes the source once for all the track converters.
+ * <p>
+ * Every {@link #createExtractor} call returns a view on one shared extractor. A view reads samples
+ * of its own track straight from the shared extractor, samples of the other tracks met on the way
+ * are copied into the queues of their views. Nothing ever waits for a queue to drain: a view whose
+ * queue overflows, or that seeks while other views are still reading, goes on with an extractor of
+ * its own, so in the worst case the source is read twice, like it was without sharing.
+ */
+class SharedDemuxer implements MediaConverter.Input {
+
+    private static final String TAG = "media-converter";
+
+    private static final int MAX_QUEUED_SAMPLES = 256;
+    // counts the capacity of the queued buffers, which is what stays allocated
+    private static final int MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+    private static final int MIN_SAMPLE_CAPACITY = 64 * 1024;
+    private static final int MAX_SAMPLE_CAPACITY = 64 * 1024 * 1024;
+    private static final int MAX_FREE_SAMPLES = 8;
+
+    private static final int SOURCE_NONE = 0;
+    private static final int SOURCE_QUEUE = 1;
+    private static final int SOURCE_SHARED = 2;
+    private static final int SOURCE_OWN = 3;
+
+    private final MediaConverter.Input mInput;
+    private final List<TrackView> mViews = new ArrayList<>();
+    private @Nullable Extractor mExtractor;
+    private long mSeekTimeUs = -1;
+    private int mSeekMode;
+    private boolean mAdvanced;
+
+    SharedDemuxer(final @NonNull MediaConverter.Input input) {
+        mInput = input;
+    }
+
+    @Override
+    public synchronized @NonNull Extractor createExtractor() throws IOException {
+        if (mExtractor == null) {
+            mExtractor = mInput.createExtractor();
+            mSeekTimeUs = -1;
+            mAdvanced = false;
+        }
+        final TrackView view = new TrackView(mExtractor);
+        mViews.add(view);
+        return view;
+    }
+
+    private @Nullable TrackView findAttachedView(final int track) {
+        for (TrackView view : mViews) {
+            if (view.mTrack == track && !view.mDetached) {
+                return view;
+            }
+        }
+        return null;
+    }
+
+    private static class Sample {
+        @Nullable ByteBuffer data;
+        int size;
+        long timeUs;
+        int flags;
+    }
+
+    private class TrackView implements Extractor {
+
+        private final Extractor mShared;
+        private final ArrayDeque<Sample> mQueue = new ArrayDeque<>();
+        private final ArrayDeque<Sample> mFreeSamples = new ArrayDeque<>();
+        private int mQueuedBytes;
+        private int mSampleCapacity = MIN_SAMPLE_CAPACITY;
+        private int mTrack = -1;
+        private long mRequestedSeekTimeUs = -1;
+        private int mRequestedSeekMode;
+        private boolean mDetached;
+        private @Nullable Extractor mOwnExtractor;
+
+        // where an extractor of our own has to start to continue after the samples already seen
+        private long mResumeTimeUs = -1;
+        private int mResumeMode;
+        private int mResumeSkip;
+
+        TrackView(final @NonNull Extractor shared) {
+            mShared = shared;
+        }
+
+        @Override
+        public int getTrackCount() {
+            synchronized (SharedDemuxer.this) {
+                return mShared.getTrackCount();
+            }
+        }
+
+        @Override
+        public @NonNull MediaFormat getTrackFormat(final int index) {
+            synchronized (SharedDemuxer.this) {
+                return mShared.getTrackFormat(index);
+            }
+        }
+
+        @Override
+        public void selectTrack(final int index) {
+            synchronized (SharedDemuxer.this) {
+                Preconditions.checkState("track already selected", mTrack == -1);
+                final MediaFormat format = mShared.getTrackFormat(index);
+                if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                    mSampleCapacity = Math.max(mSampleCapacity, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+                }
+                final boolean taken = findAttachedView(index) != null;
+                mTrack = index;
+                mDetached = taken || mAdvanced;
+                if (!mDetached) {
+                    mShared.selectTrack(index);
+                    if (mSeekTimeUs >= 0) {
+                        // a newly selected track starts from the beginning until the extractor seeks again
+                        seekShared(mSeekTimeUs, mSeekMode);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void unselectTrack(final int index) {
+            synchronized (SharedDemuxer.this) {
+                Preconditions.checkState("track not selected", mTrack == index);
+                detach();
+                clearQueue();
+                if (mOwnExtractor != null) {
+                    mOwnExtractor.release();
+                    mOwnExtractor = null;
+                }
+                mTrack = -1;
+            }
+        }
+
+        @Override
+        public void seekTo(final long timeUs, final int mode) {
+            synchronized (SharedDemuxer.this) {
+                mRequestedSeekTimeUs = timeUs;
+                mRequestedSeekMode = mode;
+                if (!mDetached) {
+                    if (isOnlyAttachedView()) {
+                        seekShared(timeUs, mode);
+                        return;
+                    }
+                    if (!mAdvanced && mSeekTimeUs >= 0
+                            && (mSeekTimeUs < timeUs || (mSeekTimeUs == timeUs && mSeekMode == mode))) {
+                        // another track has already moved the shared extractor at or before timeUs
+                        return;
+                    }
+                    if (!mAdvanced && coversOtherViews(timeUs, mode)) {
+                        seekShared(timeUs, mode);
+                        return;
+                    }
+                    Log.i(TAG, "track " + mTrack + " seeks on its own to " + timeUs);
+                    detach();
+                }
+                clearQueue();
+                openOwnExtractor(false).seekTo(timeUs, mode);
+            }
+        }
+
+        @Override
+        public int readSampleData(final @NonNull ByteBuffer byteBuf, final int offset) {
+            synchronized (SharedDemuxer.this) {
+                switch (prepare()) {
+                    case SOURCE_QUEUE:
+                        final Sample sample = mQueue.getFirst();
+                        final ByteBuffer src = sample.data.duplicate();
+                        src.position(0);
+                        src.limit(sample.size);
+                        byteBuf.limit(offset + sample.size);
+                        byteBuf.position(offset);
+                        byteBuf.put(src);
+                        byteBuf.position(offset);
+                        return sample.size;
+                    case SOURCE_SHARED:
+                        return mShared.readSampleData(byteBuf, offset);
+                    case SOURCE_OWN:
+                        return mOwnExtractor.readSampleData(byteBuf, offset);
+                    default:
+                        return -1;
+                }
+            }
+        }
+
+        @Override
+        public int getSampleTrackIndex() {
+            synchronized (SharedDemuxer.this) {
+                return prepare() == SOURCE_NONE ? -1 : mTrack;
+            }
+        }
+
+        @Override
+        public long getSampleSize() {
+            synchronized (SharedDemuxer.this) {
+                switch (prepare()) {
+                    case SOURCE_QUEUE:
+                        return mQueue.getFirst().size;
+                    case SOURCE_SHARED:
+                        return mShared.getSampleSize();
+                    case SOURCE_OWN:
+                        return mOwnExtractor.getSampleSize();
+                    default:
+                        return -1;
+                }
+            }
+        }
+
+        @Override
+        public long getSampleTime() {
+            synchronized (SharedDemuxer.this) {
+                switch (prepare()) {
+                    case SOURCE_QUEUE:
+                        return mQueue.getFirst().timeUs;
+                    case SOURCE_SHARED:
+                        return mShared.getSampleTime();
+                    case SOURCE_OWN:
+                        return mOwnExtractor.getSampleTime();
+                    default:
+                        return -1;
+                }
+            }
+        }
+
+        @Override
+        public int getSampleFlags() {
+            synchronized (SharedDemuxer.this) {
+                switch (prepare()) {
+                    case SOURCE_QUEUE:
+                        return mQueue.getFirst().flags;
+                    case SOURCE_SHARED:
+                        return mShared.getSampleFlags();
+                    case SOURCE_OWN:
+                        return mOwnExtractor.getSampleFlags();
+                    default:
+                        return -1;
+                }
+            }
+        }
+
+        @Override
+        public boolean advance() {
+            synchronized (SharedDemuxer.this) {
+                switch (prepare()) {
+                    case SOURCE_QUEUE:
+                        final Sample sample = mQueue.removeFirst();
+                        mQueuedBytes -= sample.data.capacity();
+                        recycle(sample);
+                        return prepare() != SOURCE_NONE;
+                    case SOURCE_SHARED:
+                        onSampleSeen(mShared.getSampleTime(), mShared.getSampleFlags());
+                        mAdvanced = true;
+                        return mShared.advance() && prepare() != SOURCE_NONE;
+                    case SOURCE_OWN:
+                        return mOwnExtractor.advance();
+                    default:
+                        return false;
+                }
+            }
+        }
+
+        @Override
+        public void release() {
+            synchronized (SharedDemuxer.this) {
+                if (mTrack >= 0) {
+                    unselectTrack(mTrack);
+                }
+                mViews.remove(this);
+                if (mViews.isEmpty() && mExtractor == mShared) {
+                    mShared.release();
+                    mExtractor = null;
+                }
+            }
+        }
+
+        /**
+         * Brings the current sample of this view to the head of the queue, to the shared extractor
+         * or to the extractor of our own, and tells which of them has it.
+         */
+        private int prepare() {
+            if (!mQueue.isEmpty()) {
+                return SOURCE_QUEUE;
+            }
+            if (mTrack < 0) {
+                return SOURCE_NONE;
+            }
+            if (mDetached) {
+                return openOwnExtractor(true).getSampleTrackIndex() < 0 ? SOURCE_NONE : SOURCE_OWN;
+            }
+            while (true) {
+                final int track = mShared.getSampleTrackIndex();
+                if (track < 0) {
+                    return SOURCE_NONE;
+                }
+                if (track == mTrack) {
+                    return SOURCE_SHARED;
+                }
+                final TrackView owner = findAttachedView(track);
+                if (owner != null && !owner.enqueue()) {
+                    // the owner has left the shared extractor, which has moved on by itself
+                    continue;
+                }
+                mShared.advance();
+                mAdvanced = true;
+            }
+        }
+
+        /**
+         * Copies the current sample of the shared extractor into the queue. Returns false if the
+         * queue is full and the view has left the shared extractor instead.
+         */
+        private boolean enqueue() {
+            if (mQueue.size() >= MAX_QUEUED_SAMPLES || mQueuedBytes >= MAX_QUEUED_BYTES) {
+                Log.w(TAG, "track " + mTrack + " fell " + mQueue.size() + " samples behind, reading it on its own");
+                detach();
+                return false;
+            }
+            Sample sample = mFreeSamples.poll();
+            if (sample == null) {
+                sample = new Sample();
+            }
+            final long sampleSize = mShared.getSampleSize();
+            while (true) {
+                // without the size, the buffer has to fit the largest sample of the track
+                final int capacity = sampleSize >= 0 ? (int) sampleSize : mSampleCapacity;
+                if (sample.data == null || sample.data.capacity() < capacity
+                        || (sampleSize >= 0 && sample.data.capacity() > 2 * capacity)) {
+                    sample.data = ByteBuffer.allocateDirect(capacity);
+                }
+                try {
+                    sample.size = mShared.readSampleData(sample.data, 0);
+                    break;
+                } catch (IllegalArgumentException e) {
+                    // the size is not known before API 28, the extractor rejects buffers that are too small
+                    if (sampleSize >= 0 || mSampleCapacity >= MAX_SAMPLE_CAPACITY) {
+                        throw e;
+                    }
+                    mSampleCapacity *= 2;
+                }
+            }
+            sample.timeUs = mShared.getSampleTime();
+            sample.flags = mShared.getSampleFlags();
+            onSampleSeen(sample.timeUs, sample.flags);
+            mQueue.addLast(sample);
+            mQueuedBytes += sample.data.capacity();
+            return true;
+        }
+
+        /**
+         * Keeps a few free samples for the next ones to be queued, the rest are left to the
+         * garbage collector, so that the buffers of a long queue don't stay allocated once it
+         * drains.
+         */
+        private void recycle(final @NonNull Sample sample) {
+            if (!mDetached && mFreeSamples.size() < MAX_FREE_SAMPLES) {
+                mFreeSamples.add(sample);
+            }
+        }
+
+        private void onSampleSeen(final long timeUs, final int flags) {
+            if ((flags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                mResumeTimeUs = timeUs;
+                mResumeMode = MediaExtractor.SEEK_TO_CLOSEST_SYNC;
+                mResumeSkip = 1;
+            } else {
+                mResumeSkip++;
+            }
+        }
+
+        private void detach() {
+            if (!mDetached && mTrack >= 0) {
+                mShared.unselectTrack(mTrack);
+            }
+            mDetached = true;
+            // nothing is queued anymore
+            mFreeSamples.clear();
+        }
+
+        private void clearQueue() {
+            while (!mQueue.isEmpty()) {
+                recycle(mQueue.removeFirst());
+            }
+            mQueuedBytes = 0;
+        }
+
+        /**
+         * Opens the extractor of our own on the first use, positioned right after the last sample
+         * this view has got from the shared extractor when resume is true.
+         */
+        private @NonNull Extractor openOwnExtractor(final boolean resume) {
+            if (mOwnExtractor == null) {
+                try {
+                    mOwnExtractor = mInput.createExtractor();
+                } catch (IOException e) {
+                    throw new IllegalStateException("cannot reopen input", e);
+                }
+                mOwnExtractor.selectTrack(mTrack);
+                if (resume) {
+                    if (mResumeTimeUs >= 0) {
+                        mOwnExtractor.seekTo(mResumeTimeUs, mResumeMode);
+                    }
+                    for (int i = 0; i < mResumeSkip; i++) {
+                        mOwnExtractor.advance();
+                    }
+                }
+            }
+            return mOwnExtractor;
+        }
+
+        private boolean isOnlyAttachedView() {
+            for (TrackView view : mViews) {
+                if (view != this && view.mTrack >= 0 && !view.mDetached) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Whether moving the shared extractor to timeUs still lets every other attached view start
+         * where it has asked to, if it has asked at all.
+         */
+        private boolean coversOtherViews(final long timeUs, final int mode) {
+            for (TrackView view : mViews) {
+                if (view != this && view.mTrack >= 0 && !view.mDetached) {
+                    if (view.mRequestedSeekTimeUs < 0 || view.mRequestedSeekTimeUs < timeUs
+                            || (view.mRequestedSeekTimeUs == timeUs && view.mRequestedSeekMode != mode)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void seekShared(final long timeUs, final int mode) {
+            mShared.seekTo(timeUs, mode);
+            mSeekTimeUs = timeUs;
+            mSeekMode = mode;
+            mAdvanced = false;
+            for (TrackView view : mViews) {
+                if (!view.mDetached) {
+                    view.clearQueue();
+                    view.mResumeTimeUs = timeUs;
+                    view.mResumeMode = mode;
+                    view.mResumeSkip = 0;
+                }
+            }
+        }
+    }
+}
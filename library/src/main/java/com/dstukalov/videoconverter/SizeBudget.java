@@ -0,0 +1,119 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Video bitrate that makes the output fit a target size.
+ * <p>
+ * The initial bitrate spreads the target over the output duration, less the audio track and the
+ * container. As the conversion goes, the bitrate is worked out again from the bytes actually
+ * written through the muxer, so that encoder overshoot or undershoot in the first part is made
+ * up for in the rest.
+ */
+class SizeBudget {
+
+    // moov and other boxes, and sample tables
+    private static final float CONTAINER_OVERHEAD = 0.02f;
+    private static final long UPDATE_INTERVAL_US = 1000000;
+    // close to the end a few bytes make a big difference to the bitrate
+    private static final long MIN_REMAINING_US = 2000000;
+    // corrections stay within these factors of the initial bitrate
+    private static final float MIN_SCALE = 0.25f;
+    private static final float MAX_SCALE = 2f;
+    // smaller changes are not worth retuning the encoder
+    private static final float MIN_CHANGE = 0.05f;
+    private static final int MIN_VIDEO_BITRATE = 100000;
+
+    private final long mTargetBytes;
+    private final long mDurationUs;
+    private final int mAudioBitrate;
+    private final int mInitialVideoBitrate;
+    private final AtomicLong mBytesWritten = new AtomicLong();
+
+    private int mVideoBitrate;
+    private long mLastUpdateTime;
+
+    /**
+     * @param audioBitrate bitrate of the audio track, or 0 if there is none
+     */
+    SizeBudget(final long targetBytes, final long durationUs, final int audioBitrate) {
+        mTargetBytes = targetBytes;
+        mDurationUs = durationUs;
+        mAudioBitrate = audioBitrate;
+        mInitialVideoBitrate = getVideoBitrate(targetBytes * 8 * (1 - CONTAINER_OVERHEAD), durationUs);
+        mVideoBitrate = mInitialVideoBitrate;
+    }
+
+    int getVideoBitrate() {
+        return mVideoBitrate;
+    }
+
+    /**
+     * Returns a muxer that counts the bytes written to the given one.
+     */
+    @NonNull Muxer track(final @NonNull Muxer muxer) {
+        return new Muxer() {
+            @Override
+            public void start() throws IOException {
+                muxer.start();
+            }
+
+            @Override
+            public void stop() throws IOException {
+                muxer.stop();
+            }
+
+            @Override
+            public int addTrack(final @NonNull MediaFormat format) throws IOException {
+                return muxer.addTrack(format);
+            }
+
+            @Override
+            public void writeSampleData(final int trackIndex, final @NonNull ByteBuffer byteBuf, final @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException {
+                muxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+                mBytesWritten.addAndGet(bufferInfo.size);
+            }
+
+            @Override
+            public void release() {
+                muxer.release();
+            }
+        };
+    }
+
+    /**
+     * Works out the video bitrate again, once video up to the given time since the start of the
+     * output has been written.
+     *
+     * @return the bitrate to switch the encoder to, or 0 to keep the current one
+     */
+    int update(final long elapsedUs) {
+        if (elapsedUs - mLastUpdateTime < UPDATE_INTERVAL_US) {
+            return 0;
+        }
+        mLastUpdateTime = elapsedUs;
+        final long remainingUs = mDurationUs - elapsedUs;
+        if (remainingUs < MIN_REMAINING_US) {
+            return 0;
+        }
+        final float remainingBits = (mTargetBytes * (1 - CONTAINER_OVERHEAD) - mBytesWritten.get()) * 8;
+        final int bitrate = Math.max(Math.round(mInitialVideoBitrate * MIN_SCALE),
+                Math.min(Math.round(mInitialVideoBitrate * MAX_SCALE), getVideoBitrate(remainingBits, remainingUs)));
+        if (Math.abs(bitrate - mVideoBitrate) < mVideoBitrate * MIN_CHANGE) {
+            return 0;
+        }
+        mVideoBitrate = bitrate;
+        return bitrate;
+    }
+
+    private int getVideoBitrate(final float bits, final long durationUs) {
+        return Math.max(MIN_VIDEO_BITRATE, Math.round(bits * 1000000 / durationUs) - mAudioBitrate);
+    }
+}
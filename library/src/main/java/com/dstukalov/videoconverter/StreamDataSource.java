@@ -0,0 +1,165 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaDataSource;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Data source over a stream that is still arriving, see
+ * {@link MediaConverter#setInput(InputStream, File)}.
+ * <p>
+ * A background thread appends the stream to the buffer file, reads wait until the first of the
+ * bytes they ask for is there and return what has arrived. The extractor goes back to earlier
+ * offsets, so everything received is kept. With the moov box before the media data the conversion
+ * starts after the first samples arrive, with the moov box at the end it starts once the whole
+ * stream is in. The download stops with the conversion, see {@link #release}.
+ */
+@RequiresApi(23)
+class StreamDataSource extends MediaDataSource {
+
+    private static final String TAG = "media-converter";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final InputStream mStream;
+    private final File mFile;
+    private final FileChannel mWriteChannel;
+    private final Thread mThread;
+    private @Nullable FileChannel mReadChannel;
+    private long mLength;
+    private boolean mFinished;
+    private boolean mReleased;
+    private @Nullable IOException mError;
+
+    StreamDataSource(final @NonNull InputStream stream, final @NonNull File file) throws IOException {
+        mStream = stream;
+        mFile = file;
+        final RandomAccessFile output = new RandomAccessFile(file, "rw");
+        output.setLength(0);
+        mWriteChannel = output.getChannel();
+        mThread = new Thread(this::download, "media-converter-download");
+        mThread.start();
+    }
+
+    @Override
+    public synchronized int readAt(final long position, final @NonNull byte[] buffer, final int offset, final int size) throws IOException {
+        while (!mFinished && mLength <= position) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (position >= mLength) {
+            if (mError != null) {
+                throw new IOException("input stream failed", mError);
+            }
+            return -1;
+        }
+        final int length = (int) Math.min(size, mLength - position);
+        if (mReadChannel == null) {
+            mReadChannel = new RandomAccessFile(mFile, "r").getChannel();
+        }
+        final ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+        while (target.hasRemaining()) {
+            if (mReadChannel.read(target, position + target.position() - offset) < 0) {
+                throw new IOException("buffer file truncated");
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Unknown, i.e. -1, until the whole stream is in.
+     */
+    @Override
+    public synchronized long getSize() {
+        return mFinished && mError == null ? mLength : -1;
+    }
+
+    /**
+     * Called by every extractor released, while the conversion may still create another one, so only
+     * the read side of the buffer file is closed and the stream keeps being read.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mReadChannel != null) {
+            mReadChannel.close();
+            mReadChannel = null;
+        }
+    }
+
+    /**
+     * Stops the download once the conversion is over, the stream stays open. A download blocked in
+     * a read of the stream ends at once if the stream is interruptible, else when the read returns,
+     * as the buffer file is closed by then.
+     */
+    void release() {
+        synchronized (this) {
+            mReleased = true;
+            mFinished = true;
+            notifyAll();
+        }
+        mThread.interrupt();
+        try {
+            mWriteChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "error closing buffer file", e);
+        }
+    }
+
+    private void download() {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        IOException error = null;
+        try {
+            long length = 0;
+            while (!isReleased()) {
+                final int count = mStream.read(buffer);
+                if (count < 0) {
+                    break;
+                }
+                final ByteBuffer source = ByteBuffer.wrap(buffer, 0, count);
+                while (source.hasRemaining()) {
+                    mWriteChannel.write(source, length + source.position());
+                }
+                length += count;
+                synchronized (this) {
+                    mLength = length;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            if (!isReleased()) {
+                Log.e(TAG, "error reading input stream", e);
+                error = e;
+            }
+        } finally {
+            try {
+                mWriteChannel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "error closing buffer file", e);
+            }
+            synchronized (this) {
+                mError = error;
+                mFinished = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized boolean isReleased() {
+        return mReleased;
+    }
+}
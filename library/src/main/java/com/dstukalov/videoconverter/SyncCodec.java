@@ -0,0 +1,115 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Drives a {@link MediaCodec} by polling it, the way the CTS test does.
+ * <p>
+ * Uses the per-index buffer getters where available and falls back to the buffer arrays on
+ * older systems.
+ */
+class SyncCodec implements Codec {
+
+    private final MediaCodec mCodec;
+
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+
+    SyncCodec(final @NonNull MediaCodec codec) {
+        mCodec = codec;
+    }
+
+    @Override
+    public @NonNull Surface createInputSurface() {
+        return mCodec.createInputSurface();
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public int dequeueInputBuffer(final long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public @NonNull ByteBuffer getInputBuffer(final int index) {
+        if (Build.VERSION.SDK_INT >= 21) {
+            return Preconditions.checkNotNull(mCodec.getInputBuffer(index));
+        }
+        if (mInputBuffers == null) {
+            mInputBuffers = mCodec.getInputBuffers();
+        }
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(final int index, final int offset, final int size, final long presentationTimeUs, final int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public int dequeueOutputBuffer(final @NonNull MediaCodec.BufferInfo info, final long timeoutUs) {
+        final int index = mCodec.dequeueOutputBuffer(info, timeoutUs);
+        if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            mOutputBuffers = null;
+        }
+        return index;
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public @NonNull ByteBuffer getOutputBuffer(final int index) {
+        if (Build.VERSION.SDK_INT >= 21) {
+            return Preconditions.checkNotNull(mCodec.getOutputBuffer(index));
+        }
+        if (mOutputBuffers == null) {
+            mOutputBuffers = mCodec.getOutputBuffers();
+        }
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public @NonNull MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index, final boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @RequiresApi(19)
+    @Override
+    public void setParameters(final @NonNull Bundle params) {
+        mCodec.setParameters(params);
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+    }
+}
@@ -0,0 +1,88 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the same tracks to several muxers, used for the audio track that all renditions share.
+ * <p>
+ * Every track is added to each muxer, and the muxers are started, stopped and released together.
+ * A failure of one muxer doesn't keep the others from being stopped or released.
+ */
+class TeeMuxer implements Muxer {
+
+    private static final String TAG = "media-converter";
+
+    private final List<Muxer> mMuxers;
+    // muxer track indices of every added track
+    private final List<int[]> mTracks = new ArrayList<>();
+
+    TeeMuxer(final @NonNull List<Muxer> muxers) {
+        mMuxers = muxers;
+    }
+
+    @Override
+    public void start() throws IOException {
+        for (Muxer muxer : mMuxers) {
+            muxer.start();
+        }
+    }
+
+    @Override
+    public void stop() throws IOException {
+        Exception exception = null;
+        for (Muxer muxer : mMuxers) {
+            try {
+                muxer.stop();
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "error while stopping muxer", e);
+                if (exception == null) {
+                    exception = e;
+                }
+            }
+        }
+        if (exception instanceof IOException) {
+            throw (IOException) exception;
+        } else if (exception != null) {
+            throw (RuntimeException) exception;
+        }
+    }
+
+    @Override
+    public int addTrack(final @NonNull MediaFormat format) throws IOException {
+        final int[] tracks = new int[mMuxers.size()];
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i] = mMuxers.get(i).addTrack(format);
+        }
+        mTracks.add(tracks);
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final @NonNull ByteBuffer byteBuf, final @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException {
+        final int[] tracks = mTracks.get(trackIndex);
+        for (int i = 0; i < tracks.length; i++) {
+            // each muxer gets its own view, in case it moves the position
+            mMuxers.get(i).writeSampleData(tracks[i], byteBuf.duplicate(), bufferInfo);
+        }
+    }
+
+    @Override
+    public void release() {
+        for (Muxer muxer : mMuxers) {
+            try {
+                muxer.release();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "error while releasing muxer", e);
+            }
+        }
+    }
+}
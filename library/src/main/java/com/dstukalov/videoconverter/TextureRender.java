@@ -67,8 +67,19 @@ class TextureRender {
             "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
             "}\n";
 
+    private static final String FRAGMENT_SHADER_2D =
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform sampler2D sTexture;\n" +
+            "void main() {\n" +
+            "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+            "}\n";
+
     private final float[] mMVPMatrix = new float[16];
     private final float[] mSTMatrix = new float[16];
+    private final float[] mIdentityMatrix = new float[16];
+    private final int[] mViewport = new int[4];
+    private final int[] mFramebuffer = new int[1];
 
     private int mProgram;
     private int mTextureID = -12345;
@@ -77,6 +88,17 @@ class TextureRender {
     private int maPositionHandle;
     private int maTextureHandle;
 
+    // downscale pyramid, see setDownscale(); no levels when the frame is drawn directly
+    private int[] mLevelTextures = new int[0];
+    private int[] mLevelFramebuffers = new int[0];
+    private int[] mLevelWidths = new int[0];
+    private int[] mLevelHeights = new int[0];
+    private int mProgram2d;
+    private int mu2dMVPMatrixHandle;
+    private int mu2dSTMatrixHandle;
+    private int ma2dPositionHandle;
+    private int ma2dTextureHandle;
+
     public TextureRender() {
         mTriangleVertices = ByteBuffer.allocateDirect(
             mTriangleVerticesData.length * FLOAT_SIZE_BYTES)
@@ -84,6 +106,7 @@ class TextureRender {
         mTriangleVertices.put(mTriangleVerticesData).position(0);
 
         Matrix.setIdentityM(mSTMatrix, 0);
+        Matrix.setIdentityM(mIdentityMatrix, 0);
     }
 
     public int getTextureId() {
@@ -91,45 +114,91 @@ class TextureRender {
     }
 
     public void drawFrame(SurfaceTexture st) {
+        drawFrame(st, true);
+    }
+
+    public void drawFrame(SurfaceTexture st, boolean finish) {
         checkGlError("onDrawFrame start");
         st.getTransformMatrix(mSTMatrix);
 
-        GLES20.glClearColor(0.0f, 1.0f, 0.0f, 1.0f);
-        GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
+        if (mLevelFramebuffers.length == 0) {
+            GLES20.glClearColor(0.0f, 1.0f, 0.0f, 1.0f);
+            GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
+
+            drawQuad(mProgram, maPositionHandle, maTextureHandle, muMVPMatrixHandle, muSTMatrixHandle,
+                    GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureID, mSTMatrix);
+        } else {
+            GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mViewport, 0);
+            GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mFramebuffer, 0);
+            for (int i = 0; i < mLevelFramebuffers.length; i++) {
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mLevelFramebuffers[i]);
+                GLES20.glViewport(0, 0, mLevelWidths[i], mLevelHeights[i]);
+                if (i == 0) {
+                    drawQuad(mProgram, maPositionHandle, maTextureHandle, muMVPMatrixHandle, muSTMatrixHandle,
+                            GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureID, mSTMatrix);
+                } else {
+                    drawQuad(mProgram2d, ma2dPositionHandle, ma2dTextureHandle, mu2dMVPMatrixHandle, mu2dSTMatrixHandle,
+                            GLES20.GL_TEXTURE_2D, mLevelTextures[i - 1], mIdentityMatrix);
+                }
+            }
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+            GLES20.glViewport(mViewport[0], mViewport[1], mViewport[2], mViewport[3]);
+
+            GLES20.glClearColor(0.0f, 1.0f, 0.0f, 1.0f);
+            GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
+
+            drawQuad(mProgram2d, ma2dPositionHandle, ma2dTextureHandle, mu2dMVPMatrixHandle, mu2dSTMatrixHandle,
+                    GLES20.GL_TEXTURE_2D, mLevelTextures[mLevelTextures.length - 1], mIdentityMatrix);
+        }
+        if (finish) {
+            GLES20.glFinish();
+        }
+    }
 
-        GLES20.glUseProgram(mProgram);
+    private void drawQuad(int program, int positionHandle, int textureHandle, int mvpMatrixHandle,
+            int stMatrixHandle, int textureTarget, int textureId, float[] stMatrix) {
+        GLES20.glUseProgram(program);
         checkGlError("glUseProgram");
 
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureID);
+        GLES20.glBindTexture(textureTarget, textureId);
 
         mTriangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-        GLES20.glVertexAttribPointer(maPositionHandle, 3, GLES20.GL_FLOAT, false,
+        GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false,
             TRIANGLE_VERTICES_DATA_STRIDE_BYTES, mTriangleVertices);
         checkGlError("glVertexAttribPointer maPosition");
-        GLES20.glEnableVertexAttribArray(maPositionHandle);
+        GLES20.glEnableVertexAttribArray(positionHandle);
         checkGlError("glEnableVertexAttribArray maPositionHandle");
 
         mTriangleVertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-        GLES20.glVertexAttribPointer(maTextureHandle, 2, GLES20.GL_FLOAT, false,
+        GLES20.glVertexAttribPointer(textureHandle, 2, GLES20.GL_FLOAT, false,
             TRIANGLE_VERTICES_DATA_STRIDE_BYTES, mTriangleVertices);
         checkGlError("glVertexAttribPointer maTextureHandle");
-        GLES20.glEnableVertexAttribArray(maTextureHandle);
+        GLES20.glEnableVertexAttribArray(textureHandle);
         checkGlError("glEnableVertexAttribArray maTextureHandle");
 
         Matrix.setIdentityM(mMVPMatrix, 0);
-        GLES20.glUniformMatrix4fv(muMVPMatrixHandle, 1, false, mMVPMatrix, 0);
-        GLES20.glUniformMatrix4fv(muSTMatrixHandle, 1, false, mSTMatrix, 0);
+        GLES20.glUniformMatrix4fv(mvpMatrixHandle, 1, false, mMVPMatrix, 0);
+        GLES20.glUniformMatrix4fv(stMatrixHandle, 1, false, stMatrix, 0);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
         checkGlError("glDrawArrays");
-        GLES20.glFinish();
     }
 
     /**
      * Initializes GL state.  Call this after the EGL surface has been created and made current.
      */
     public void surfaceCreated() {
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        surfaceCreated(textures[0]);
+    }
+
+    /**
+     * Initializes GL state to draw an existing external texture.  Call this after the EGL surface
+     * has been created and made current.
+     */
+    public void surfaceCreated(int textureId) {
         mProgram = createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
         if (mProgram == 0) {
             throw new GLException(0, "failed creating program");
@@ -157,10 +226,7 @@ class TextureRender {
             throw new GLException(0, "Could not get attrib location for uSTMatrix");
         }
 
-        int[] textures = new int[1];
-        GLES20.glGenTextures(1, textures, 0);
-
-        mTextureID = textures[0];
+        mTextureID = textureId;
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureID);
         checkGlError("glBindTexture mTextureID");
 
@@ -186,6 +252,70 @@ class TextureRender {
         }
     }
 
+    /**
+     * Sets up downscaling through a pyramid of intermediate framebuffers.  Each level halves the
+     * previous one in every dimension that is still more than twice the destination size, so a
+     * single linear-filtered fetch from the corner shared by four texels averages all of them.
+     * The last level is drawn onto the current framebuffer.  Sizes are in the orientation of the
+     * destination surface.  Does nothing if no level is needed.
+     */
+    public void setDownscale(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        int levelCount = 0;
+        for (int w = srcWidth, h = srcHeight; w > 2 * dstWidth || h > 2 * dstHeight; levelCount++) {
+            w = w > 2 * dstWidth ? w / 2 : w;
+            h = h > 2 * dstHeight ? h / 2 : h;
+        }
+        if (levelCount == 0) {
+            return;
+        }
+
+        mProgram2d = createProgram(VERTEX_SHADER, FRAGMENT_SHADER_2D);
+        if (mProgram2d == 0) {
+            throw new GLException(0, "failed creating program");
+        }
+        ma2dPositionHandle = GLES20.glGetAttribLocation(mProgram2d, "aPosition");
+        ma2dTextureHandle = GLES20.glGetAttribLocation(mProgram2d, "aTextureCoord");
+        mu2dMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram2d, "uMVPMatrix");
+        mu2dSTMatrixHandle = GLES20.glGetUniformLocation(mProgram2d, "uSTMatrix");
+        checkGlError("glGetLocation 2d");
+
+        mLevelTextures = new int[levelCount];
+        mLevelFramebuffers = new int[levelCount];
+        mLevelWidths = new int[levelCount];
+        mLevelHeights = new int[levelCount];
+        GLES20.glGenTextures(levelCount, mLevelTextures, 0);
+        GLES20.glGenFramebuffers(levelCount, mLevelFramebuffers, 0);
+        checkGlError("glGen level");
+
+        int w = srcWidth;
+        int h = srcHeight;
+        for (int i = 0; i < levelCount; i++) {
+            w = w > 2 * dstWidth ? w / 2 : w;
+            h = h > 2 * dstHeight ? h / 2 : h;
+            mLevelWidths[i] = w;
+            mLevelHeights[i] = h;
+            Log.i(TAG, "downscale level " + i + ": " + w + "x" + h);
+
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mLevelTextures[i]);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, w, h, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            checkGlError("glTexImage2D level");
+
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mLevelFramebuffers[i]);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    GLES20.GL_TEXTURE_2D, mLevelTextures[i], 0);
+            int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+            if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+                throw new GLException(status, "incomplete framebuffer for level " + i);
+            }
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
     private int loadShader(int shaderType, String source) {
         int shader = GLES20.glCreateShader(shaderType);
         checkGlError("glCreateShader type=" + shaderType);
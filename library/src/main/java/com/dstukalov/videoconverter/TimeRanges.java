@@ -0,0 +1,166 @@
+package com.dstukalov.videoconverter;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sorted, non-overlapping ranges of input time in microseconds. The last range may end at
+ * {@link Long#MAX_VALUE}, meaning the end of the input.
+ * <p>
+ * Joined ranges are played one after another, so the gaps between them are removed from the
+ * output time.
+ */
+class TimeRanges {
+
+    private final long[] mFrom;
+    private final long[] mTo;
+    private final boolean mJoined;
+
+    private TimeRanges(final @NonNull long[] from, final @NonNull long[] to, final boolean joined) {
+        mFrom = from;
+        mTo = to;
+        mJoined = joined;
+    }
+
+    /**
+     * Converts time in milliseconds, as taken by {@link MediaConverter#setTimeRange}, where
+     * non-positive timeTo means the end of the input.
+     */
+    static long toUs(final long timeMs, final boolean end) {
+        if (end && timeMs <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, timeMs) * 1000;
+    }
+
+    /**
+     * Merges the windows of all renditions.
+     */
+    static @NonNull TimeRanges union(final @NonNull List<MediaConverter.Rendition> renditions) {
+        final List<long[]> windows = new ArrayList<>();
+        for (MediaConverter.Rendition rendition : renditions) {
+            windows.add(new long[] {rendition.timeFromUs, rendition.timeToUs});
+        }
+        Collections.sort(windows, (o1, o2) -> Long.compare(o1[0], o2[0]));
+        final List<long[]> merged = new ArrayList<>();
+        for (long[] window : windows) {
+            final long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && window[0] <= last[1]) {
+                last[1] = Math.max(last[1], window[1]);
+            } else {
+                merged.add(new long[] {window[0], window[1]});
+            }
+        }
+        final long[] from = new long[merged.size()];
+        final long[] to = new long[merged.size()];
+        for (int i = 0; i < merged.size(); i++) {
+            from[i] = merged.get(i)[0];
+            to[i] = merged.get(i)[1];
+        }
+        return new TimeRanges(from, to, false);
+    }
+
+    /**
+     * Joins the ranges of a cut list, given in milliseconds as {from, to} pairs in increasing
+     * order.
+     */
+    static @NonNull TimeRanges join(final @NonNull List<long[]> ranges) {
+        final long[] from = new long[ranges.size()];
+        final long[] to = new long[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            from[i] = toUs(ranges.get(i)[0], false);
+            to[i] = toUs(ranges.get(i)[1], true);
+            Preconditions.checkState("ranges should be sorted", i == 0 || from[i] > to[i - 1]);
+        }
+        return new TimeRanges(from, to, true);
+    }
+
+    int size() {
+        return mFrom.length;
+    }
+
+    long getFrom(final int index) {
+        return mFrom[index];
+    }
+
+    long getTo(final int index) {
+        return mTo[index];
+    }
+
+    long getStart() {
+        return mFrom[0];
+    }
+
+    long getEnd() {
+        return mTo[mTo.length - 1];
+    }
+
+    /**
+     * Returns the total duration of the ranges, those that go past the end of the input end with
+     * it, or 0 if that is not known.
+     */
+    long getDuration(final long inputDurationUs) {
+        if (inputDurationUs <= 0 && mTo[mTo.length - 1] == Long.MAX_VALUE) {
+            return 0;
+        }
+        final long end = inputDurationUs <= 0 ? Long.MAX_VALUE : inputDurationUs;
+        long duration = 0;
+        for (int i = 0; i < mFrom.length; i++) {
+            duration += Math.max(0, Math.min(mTo[i], end) - mFrom[i]);
+        }
+        return duration;
+    }
+
+    /**
+     * Maps time since the start of the joined ranges to input time.
+     */
+    long toInputTime(final long offsetUs) {
+        long offset = Math.max(0, offsetUs);
+        for (int i = 0; i < mFrom.length - 1; i++) {
+            if (offset < mTo[i] - mFrom[i]) {
+                return mFrom[i] + offset;
+            }
+            offset -= mTo[i] - mFrom[i];
+        }
+        return mFrom[mFrom.length - 1] + offset;
+    }
+
+    /**
+     * Tells whether output time differs from input time.
+     */
+    boolean shiftsTime() {
+        return mJoined && mFrom.length > 1;
+    }
+
+    /**
+     * Maps input time within the ranges to output time.
+     */
+    long toOutputTime(final long timeUs) {
+        if (!mJoined) {
+            return timeUs;
+        }
+        long gaps = 0;
+        for (int i = 1; i < mFrom.length && mFrom[i] <= timeUs; i++) {
+            gaps += mFrom[i] - mTo[i - 1];
+        }
+        return timeUs - gaps;
+    }
+
+    /**
+     * Returns the index of the range that contains the time, or -1.
+     */
+    int indexOf(final long timeUs) {
+        for (int i = 0; i < mFrom.length; i++) {
+            if (timeUs < mFrom[i]) {
+                return -1;
+            }
+            if (timeUs <= mTo[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
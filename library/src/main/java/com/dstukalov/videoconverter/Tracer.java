@@ -0,0 +1,100 @@
+package com.dstukalov.videoconverter;
+
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records how long the per-frame steps of a conversion take, for viewing in chrome://tracing or
+ * Perfetto, see {@link MediaConverter#setTraceFile}.
+ * <p>
+ * Steps are registered once by name with {@link #event}, then each occurrence is stored as three
+ * longs in a ring buffer that is allocated up front, so recording allocates nothing and only the
+ * latest events are kept. Every traced conversion has a tracer of its own, which it hands to the
+ * parts that record, so conversions running at the same time don't mix their events.
+ */
+public class Tracer {
+
+    private static final int MAX_EVENT_NAMES = 256;
+    private static final String[] sNames = new String[MAX_EVENT_NAMES];
+    private static int sNameCount;
+
+    private final long mOrigin = System.nanoTime();
+    private final int mCapacity;
+    // start time, duration and (event << 32 | thread id) of each event
+    private final long[] mEvents;
+    private final AtomicLong mCount = new AtomicLong();
+
+    /**
+     * Keeps up to the given number of latest events.
+     */
+    Tracer(final int capacity) {
+        mCapacity = capacity;
+        mEvents = new long[capacity * 3];
+    }
+
+    /**
+     * Returns the id of the named step, registering it on first use.
+     */
+    public static synchronized int event(final @NonNull String name) {
+        for (int i = 0; i < sNameCount; i++) {
+            if (sNames[i].equals(name)) {
+                return i;
+            }
+        }
+        Preconditions.checkState("too many trace events", sNameCount < MAX_EVENT_NAMES);
+        sNames[sNameCount] = name;
+        return sNameCount++;
+    }
+
+    /**
+     * Records a step that started at the given {@link System#nanoTime} and ends now.
+     */
+    public void complete(final int event, final long startTimeNs) {
+        final long endTimeNs = System.nanoTime();
+        final int index = (int) (mCount.getAndIncrement() % mCapacity) * 3;
+        mEvents[index] = startTimeNs;
+        mEvents[index + 1] = endTimeNs - startTimeNs;
+        mEvents[index + 2] = ((long) event << 32) | (Thread.currentThread().getId() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes the recorded events in the Chrome trace event format.
+     */
+    void write(final @NonNull File file) throws IOException {
+        final String[] names;
+        synchronized (Tracer.class) {
+            names = sNames.clone();
+        }
+        final int pid = Process.myPid();
+        final long count = mCount.get();
+        try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write("{\"traceEvents\":[");
+            for (long i = Math.max(0, count - mCapacity); i < count; i++) {
+                final int index = (int) (i % mCapacity) * 3;
+                final long start = mEvents[index];
+                final long duration = mEvents[index + 1];
+                final long key = mEvents[index + 2];
+                writer.write(i == Math.max(0, count - mCapacity) ? "\n" : ",\n");
+                writer.write("{\"name\":\"" + names[(int) (key >>> 32)]
+                        + "\",\"ph\":\"X\",\"ts\":" + toUs(start - mOrigin)
+                        + ",\"dur\":" + toUs(duration)
+                        + ",\"pid\":" + pid
+                        + ",\"tid\":" + (key & 0xFFFFFFFFL) + "}");
+            }
+            writer.write("\n]}\n");
+        }
+    }
+
+    private static @NonNull String toUs(final long ns) {
+        return (ns / 1000) + "." + String.format(Locale.US, "%03d", Math.abs(ns % 1000));
+    }
+}
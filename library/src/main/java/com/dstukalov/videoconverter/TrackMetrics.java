@@ -0,0 +1,88 @@
+package com.dstukalov.videoconverter;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of one track converter, updated as it goes and read from any thread, and the trace of
+ * the conversion if it is traced.
+ */
+class TrackMetrics {
+
+    final Stage extract;
+    final Stage decode;
+    final Stage render;
+    final Stage encode;
+    final Stage mux;
+    private final @Nullable Tracer mTracer;
+
+    TrackMetrics(final @Nullable Tracer tracer) {
+        mTracer = tracer;
+        extract = new Stage(tracer);
+        decode = new Stage(tracer);
+        render = new Stage(tracer);
+        encode = new Stage(tracer);
+        mux = new Stage(tracer);
+    }
+
+    /**
+     * Traces a step that started at the given {@link System#nanoTime} and ends now.
+     */
+    void trace(final int traceEvent, final long startTimeNs) {
+        if (mTracer != null) {
+            mTracer.complete(traceEvent, startTimeNs);
+        }
+    }
+
+    @NonNull ConversionMetrics.Track snapshot(final long elapsedNs) {
+        return new ConversionMetrics.Track(
+                extract.snapshot(elapsedNs),
+                decode.snapshot(elapsedNs),
+                render.snapshot(elapsedNs),
+                encode.snapshot(elapsedNs),
+                mux.snapshot(elapsedNs));
+    }
+
+    static class Stage {
+        final AtomicLong framesIn = new AtomicLong();
+        final AtomicLong framesOut = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong blockedNs = new AtomicLong();
+        private final @Nullable Tracer mTracer;
+
+        Stage(final @Nullable Tracer tracer) {
+            mTracer = tracer;
+        }
+
+        /**
+         * Counts a frame that the stage takes and passes on at once.
+         */
+        void pass(final long size) {
+            framesIn.incrementAndGet();
+            framesOut.incrementAndGet();
+            bytes.addAndGet(size);
+        }
+
+        /**
+         * Counts the time since the start of a blocking call, and traces the call.
+         */
+        void block(final long startTimeNs, final int traceEvent) {
+            blockedNs.addAndGet(System.nanoTime() - startTimeNs);
+            if (mTracer != null) {
+                mTracer.complete(traceEvent, startTimeNs);
+            }
+        }
+
+        @NonNull ConversionMetrics.Stage snapshot(final long elapsedNs) {
+            final long out = framesOut.get();
+            return new ConversionMetrics.Stage(
+                    out,
+                    elapsedNs > 0 ? out * 1e9f / elapsedNs : 0,
+                    blockedNs.get() / 1000000,
+                    Math.max(0, framesIn.get() - out),
+                    bytes.get());
+        }
+    }
+}
@@ -12,189 +12,409 @@ import android.view.Surface;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.atomic.AtomicReference;
 
 class VideoTrackConverter {
 
     private static final String TAG = "media-converter";
     private static final boolean VERBOSE = false; // lots of logging
 
+    private static final int TRACE_READ_SAMPLE = Tracer.event("video readSampleData");
+    private static final int TRACE_AWAIT_NEW_IMAGE = Tracer.event("video awaitNewImage");
+    private static final int TRACE_DRAW_IMAGE = Tracer.event("video drawImage");
+    private static final int TRACE_SWAP_BUFFERS = Tracer.event("video swapBuffers");
+    private static final int TRACE_DRAIN_ENCODER = Tracer.event("video drainEncoder");
+    private static final int TRACE_WRITE_SAMPLE = Tracer.event("video writeSampleData");
+
     private static final int OUTPUT_VIDEO_IFRAME_INTERVAL = 1; // 1 second between I-frames
+    private static final int SCENE_CHANGE_IFRAME_INTERVAL = 5; // when I-frames also come at scene cuts
     private static final int OUTPUT_VIDEO_FRAME_RATE = 30; // needed only for MediaFormat.KEY_I_FRAME_INTERVAL to work; the actual frame rate matches the source
 
     private static final int TIMEOUT_USEC = 10000;
 
+    // above this the single pass box filter takes at least 5x5 taps, downscale through a pyramid instead
+    private static final float MAX_SINGLE_PASS_KERNEL_SIZE = 3;
+
+    // a static frame is still encoded after this long, so that players and seeking don't stall
+    private static final long MAX_STATIC_DURATION_US = OUTPUT_VIDEO_IFRAME_INTERVAL * 1000000L;
+
+    // mean luma difference of consecutive frame signatures, out of 255, that counts as a cut
+    private static final float SCENE_CUT_THRESHOLD = 24;
+    // cuts closer than this to the previous one, such as flashes, don't get another I-frame
+    private static final long MIN_SCENE_CUT_INTERVAL_US = 500000;
+
     private static final String MEDIA_FORMAT_KEY_DISPLAY_WIDTH = "display-width";
     private static final String MEDIA_FORMAT_KEY_DISPLAY_HEIGHT = "display-height";
 
-    private final long mTimeFrom;
-    private final long mTimeTo;
+    // input time taken by any of the renditions, and its mapping to output time
+    private final TimeRanges mRanges;
+    private int mExtractedRange;
 
     final long mInputDuration;
+    final TrackMetrics mMetrics;
 
-    private final MediaExtractor mVideoExtractor;
-    private final MediaCodec mVideoDecoder;
-    private final MediaCodec mVideoEncoder;
+    private final Extractor mVideoExtractor;
+    private final Codec mVideoDecoder;
+    // one per rendition, in the order they were passed to create()
+    private final List<Encoder> mEncoders = new ArrayList<>();
+    // encoders that take the current frame
+    private final List<Encoder> mTargets = new ArrayList<>();
 
-    private final InputSurface mInputSurface;
-    private final OutputSurface mOutputSurface;
+    // null in direct mode, when the decoder renders straight into the encoder input surface,
+    // and in pipelined mode, when mRenderThread owns it
+    private final @Nullable OutputSurface mOutputSurface;
+    private final @Nullable RenderThread mRenderThread;
+    // owns the EGL context that all input surfaces share, kept until release
+    private @Nullable InputSurface mContextSurface;
 
-    private final ByteBuffer[] mVideoDecoderInputBuffers;
-    private ByteBuffer[] mVideoEncoderOutputBuffers;
-    private final MediaCodec.BufferInfo mVideoDecoderOutputBufferInfo;
-    private final MediaCodec.BufferInfo mVideoEncoderOutputBufferInfo;
+    private final @Nullable CodecDispatcher mDispatcher;
+    private final MediaCodecBackend mCodecs;
+    private final int mRotation;
+    private final int mCodedWidth;
+    private final int mCodedHeight;
 
-    MediaFormat mEncoderOutputVideoFormat;
+    // with callbacks there is no point to block here, MediaConverter waits for codec events instead
+    private long mDecoderTimeoutUs;
+
+    // 0 to keep every frame
+    private final long mFrameIntervalUs;
+    private long mNextFrameTime = Long.MIN_VALUE;
+
+    // set only when static frames are dropped or I-frames are placed at scene cuts
+    private final @Nullable FrameSignature mFrameSignature;
+    private final float mStaticFrameThreshold;
+    private final boolean mSceneChangeKeyFrames;
+    private long mLastSceneCutTime;
+    // set only when the output has a target size
+    private @Nullable SizeBudget mSizeBudget;
+    private long mLastKeptOutputPresentationTime = Long.MIN_VALUE;
+    // the latched frame was dropped as static, and goes to these encoders if their input ends
+    // before another frame is kept, so that the last sample keeps its time
+    private final List<Encoder> mStaticFrameTargets = new ArrayList<>();
+    private long mStaticFrameOutputPresentationTime;
+
+    private final MediaCodec.BufferInfo mVideoDecoderOutputBufferInfo;
 
     boolean mVideoExtractorDone;
     private boolean mVideoDecoderDone;
     boolean mVideoEncoderDone;
 
-    private int mOutputVideoTrack = -1;
-
-    long mMuxingVideoPresentationTime;
+    volatile long mMuxingVideoPresentationTime;
+    private long mLastFramePresentationTime = Long.MIN_VALUE;
+    private long mLastOutputPresentationTime = Long.MIN_VALUE;
 
     private int mVideoExtractedFrameCount;
     private int mVideoDecodedFrameCount;
-    private int mVideoEncodedFrameCount;
 
-    private Muxer mMuxer;
+    private boolean mMuxing;
+
+    /**
+     * Encoder of one rendition, with the surface it takes frames from. Renditions that start later
+     * than the others, such as clips, get their codec with the first frame of their window.
+     */
+    private static class Encoder {
+        final long timeFromUs;
+        final long timeToUs;
+        final MediaFormat format;
+        final int width;
+        final int height;
+
+        @Nullable Codec codec;
+        long timeoutUs;
+        final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        // set only when frames are drawn on this thread
+        @Nullable InputSurface inputSurface;
+        @Nullable TextureRender textureRender;
+        // set only in direct mode
+        @Nullable Surface directSurface;
+        // set only when the bitrate follows the content
+        @Nullable BitrateController bitrateController;
+
+        MediaFormat outputFormat;
+        boolean hasInput;
+        boolean inputDone;
+        boolean done;
+        boolean released;
+        Muxer muxer;
+        int outputTrack = -1;
+        int encodedFrameCount;
+
+        Encoder(final long timeFromUs, final long timeToUs, final @NonNull MediaFormat format, final int width, final int height) {
+            this.timeFromUs = timeFromUs;
+            this.timeToUs = timeToUs;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+        }
+    }
 
     static @Nullable VideoTrackConverter create(
             final @NonNull MediaConverter.Input input,
-            final long timeFrom,
-            final long timeTo,
-            final int videoResolution,
-            final int videoBitrate,
-            final int videoBitrateMode,
-            final @NonNull String videoCodec) throws IOException {
-
-        final MediaExtractor videoExtractor = input.createExtractor();
+            final @NonNull List<MediaConverter.Rendition> renditions,
+            final @NonNull TimeRanges ranges,
+            final int frameRate,
+            final float staticFrameThreshold,
+            final boolean sceneChangeKeyFrames,
+            final boolean adaptiveBitrate,
+            final @NonNull MediaCodecBackend codecs,
+            final boolean pipelinedRendering,
+            final @Nullable Tracer tracer) throws IOException {
+
+        final Extractor videoExtractor = input.createExtractor();
         final int videoInputTrack = getAndSelectVideoTrackIndex(videoExtractor);
         if (videoInputTrack == -1) {
             videoExtractor.release();
             return null;
         }
-        return new VideoTrackConverter(videoExtractor, videoInputTrack, timeFrom, timeTo, videoResolution, videoBitrate, videoBitrateMode, videoCodec);
+        return new VideoTrackConverter(videoExtractor, videoInputTrack, renditions, ranges, frameRate, staticFrameThreshold, sceneChangeKeyFrames, adaptiveBitrate, codecs, pipelinedRendering, tracer);
     }
 
     private VideoTrackConverter(
-            final @NonNull MediaExtractor videoExtractor,
+            final @NonNull Extractor videoExtractor,
             final int videoInputTrack,
-            final long timeFrom,
-            final long timeTo,
-            final int videoResolution,
-            final int videoBitrate,
-            final int videoBitrateMode,
-            final @NonNull String videoCodec) throws IOException {
-
-        mTimeFrom = timeFrom;
-        mTimeTo = timeTo;
-        mVideoExtractor = videoExtractor;
+            final @NonNull List<MediaConverter.Rendition> renditions,
+            final @NonNull TimeRanges ranges,
+            final int frameRate,
+            final float staticFrameThreshold,
+            final boolean sceneChangeKeyFrames,
+            final boolean adaptiveBitrate,
+            final @NonNull MediaCodecBackend codecs,
+            final boolean pipelinedRendering,
+            final @Nullable Tracer tracer) throws IOException {
 
-        final MediaCodecInfo videoCodecInfo = MediaConverter.selectCodec(videoCodec);
-        if (videoCodecInfo == null) {
-            // Don't fail CTS if they don't have an AVC codec (not here, anyway).
-            Log.e(TAG, "Unable to find an appropriate codec for " + videoCodec);
-            throw new FileNotFoundException();
-        }
-        if (VERBOSE) Log.d(TAG, "video found codec: " + videoCodecInfo.getName());
+        mRanges = ranges;
+        mMetrics = new TrackMetrics(tracer);
+        mStaticFrameThreshold = staticFrameThreshold;
+        // sync frames can be requested and bitrate changed since API 19
+        mSceneChangeKeyFrames = sceneChangeKeyFrames && Build.VERSION.SDK_INT >= 19;
+        final boolean adaptBitrate = adaptiveBitrate && Build.VERSION.SDK_INT >= 19;
+        final boolean measureFrames = staticFrameThreshold > 0 || mSceneChangeKeyFrames || adaptBitrate;
+        mFrameIntervalUs = frameRate > 0 ? 1000000 / frameRate : 0;
+        mVideoExtractor = videoExtractor;
+        mCodecs = codecs;
+        final CodecDispatcher dispatcher = codecs.getDispatcher();
+        mDispatcher = dispatcher;
 
         final MediaFormat inputVideoFormat = mVideoExtractor.getTrackFormat(videoInputTrack);
 
         mInputDuration = inputVideoFormat.containsKey(MediaFormat.KEY_DURATION) ? inputVideoFormat.getLong(MediaFormat.KEY_DURATION) : 0;
 
-        final int rotation = inputVideoFormat.containsKey(MediaFormat.KEY_ROTATION) ? inputVideoFormat.getInteger(MediaFormat.KEY_ROTATION) : 0;
+        mRotation = inputVideoFormat.containsKey(MediaFormat.KEY_ROTATION) ? inputVideoFormat.getInteger(MediaFormat.KEY_ROTATION) : 0;
         final int width = inputVideoFormat.containsKey(MEDIA_FORMAT_KEY_DISPLAY_WIDTH) ? inputVideoFormat.getInteger(MEDIA_FORMAT_KEY_DISPLAY_WIDTH) : inputVideoFormat.getInteger(MediaFormat.KEY_WIDTH);
         final int height = inputVideoFormat.containsKey(MEDIA_FORMAT_KEY_DISPLAY_HEIGHT) ? inputVideoFormat.getInteger(MEDIA_FORMAT_KEY_DISPLAY_HEIGHT) : inputVideoFormat.getInteger(MediaFormat.KEY_HEIGHT);
-        int outputWidth = width;
-        int outputHeight = height;
-        if (outputWidth < outputHeight) {
-            outputWidth = videoResolution;
-            outputHeight = height * outputWidth / width;
-        } else {
-            outputHeight = videoResolution;
-            outputWidth = width * outputHeight / height;
-        }
-        // many encoders do not work when height and width are not multiple of 16 (also, some iPhones do not play some heights)
-        outputHeight = (outputHeight + 7) & ~0xF;
-        outputWidth = (outputWidth + 7) & ~0xF;
-
-        final int outputWidthRotated;
-        final int outputHeightRotated;
-        if ((rotation % 180 == 90)) {
-            //noinspection SuspiciousNameCombination
-            outputWidthRotated = outputHeight;
-            //noinspection SuspiciousNameCombination
-            outputHeightRotated = outputWidth;
+        mCodedWidth = inputVideoFormat.getInteger(MediaFormat.KEY_WIDTH);
+        mCodedHeight = inputVideoFormat.getInteger(MediaFormat.KEY_HEIGHT);
+
+        for (MediaConverter.Rendition rendition : renditions) {
+            int outputWidth = width;
+            int outputHeight = height;
+            if (outputWidth < outputHeight) {
+                outputWidth = rendition.videoResolution;
+                outputHeight = height * outputWidth / width;
+            } else {
+                outputHeight = rendition.videoResolution;
+                outputWidth = width * outputHeight / height;
+            }
+            // many encoders do not work when height and width are not multiple of 16 (also, some iPhones do not play some heights)
+            outputHeight = (outputHeight + 7) & ~0xF;
+            outputWidth = (outputWidth + 7) & ~0xF;
+
+            final int outputWidthRotated;
+            final int outputHeightRotated;
+            if ((mRotation % 180 == 90)) {
+                //noinspection SuspiciousNameCombination
+                outputWidthRotated = outputHeight;
+                //noinspection SuspiciousNameCombination
+                outputHeightRotated = outputWidth;
+            } else {
+                outputWidthRotated = outputWidth;
+                outputHeightRotated = outputHeight;
+            }
+
+            final MediaFormat outputVideoFormat = MediaFormat.createVideoFormat(rendition.videoCodec, outputWidthRotated, outputHeightRotated);
+
+            // Set some properties. Failing to specify some of these can cause the MediaCodec
+            // configure() call to throw an unhelpful exception.
+            outputVideoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            outputVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, rendition.videoBitrate);
+            if (Build.VERSION.SDK_INT >= 21 && rendition.videoBitrateMode >= 0) {
+                outputVideoFormat.setInteger(MediaFormat.KEY_BITRATE_MODE, rendition.videoBitrateMode);
+            }
+            outputVideoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate > 0 ? frameRate : OUTPUT_VIDEO_FRAME_RATE);
+            outputVideoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mSceneChangeKeyFrames ? SCENE_CHANGE_IFRAME_INTERVAL : OUTPUT_VIDEO_IFRAME_INTERVAL);
+            if (VERBOSE) Log.d(TAG, "video format: " + outputVideoFormat);
+
+            final Encoder encoder = new Encoder(rendition.timeFromUs, rendition.timeToUs, outputVideoFormat, outputWidth, outputHeight);
+            if (adaptBitrate) {
+                encoder.bitrateController = new BitrateController(rendition.videoBitrate);
+            }
+            mEncoders.add(encoder);
+        }
+
+        final Encoder first = mEncoders.get(0);
+        // frames are measured in GL on this thread, which needs the inline mode
+        if (mEncoders.size() == 1 && !measureFrames && !mRanges.shiftsTime() && mRotation % 360 == 0 && first.width == mCodedWidth && first.height == mCodedHeight && width == mCodedWidth && height == mCodedHeight) {
+            // nothing to scale, crop or rotate, so there is no need for a GL pass
+            Log.i(TAG, "video: direct decoder to encoder rendering");
+            mOutputSurface = null;
+            mRenderThread = null;
+            mFrameSignature = null;
+            first.directSurface = createVideoEncoder(first);
+            mVideoDecoder = createVideoDecoder(inputVideoFormat, first.directSurface);
+        } else if (mEncoders.size() == 1 && !measureFrames && pipelinedRendering) {
+            Log.i(TAG, "video: pipelined rendering");
+            mOutputSurface = null;
+            mFrameSignature = null;
+            mRenderThread = new RenderThread(createVideoEncoder(first),
+                    outputSurface -> setUpScaling(outputSurface.getTextureRender(), mRotation, mCodedWidth, mCodedHeight, first.width, first.height),
+                    dispatcher);
+            mVideoDecoder = createVideoDecoder(inputVideoFormat, mRenderThread.getSurface());
         } else {
-            outputWidthRotated = outputWidth;
-            outputHeightRotated = outputHeight;
+            mRenderThread = null;
+            // renditions that take the first frame start now, the first of them owns the EGL
+            // context where the decoded texture lives, the others share it
+            for (Encoder encoder : mEncoders) {
+                if (encoder.timeFromUs <= mRanges.getStart()) {
+                    final Surface surface = createVideoEncoder(encoder);
+                    encoder.inputSurface = mContextSurface == null ? new InputSurface(surface) : new InputSurface(surface, mContextSurface);
+                    if (mContextSurface == null) {
+                        mContextSurface = encoder.inputSurface;
+                    }
+                }
+            }
+            Preconditions.checkNotNull(mContextSurface).makeCurrent();
+            // Create a MediaCodec for the decoder, based on the extractor's format.
+            mOutputSurface = new OutputSurface();
+            for (Encoder encoder : mEncoders) {
+                if (encoder.inputSurface != null) {
+                    encoder.textureRender = encoder.inputSurface == mContextSurface ? mOutputSurface.getTextureRender() : mOutputSurface.createTextureRender();
+                    setUpScaling(encoder.textureRender, mRotation, mCodedWidth, mCodedHeight, encoder.width, encoder.height);
+                }
+            }
+            mFrameSignature = measureFrames ? new FrameSignature(mOutputSurface, mCodedWidth, mCodedHeight) : null;
+            mVideoDecoder = createVideoDecoder(inputVideoFormat, mOutputSurface.getSurface());
         }
 
-        final MediaFormat outputVideoFormat = MediaFormat.createVideoFormat(videoCodec, outputWidthRotated, outputHeightRotated);
+        mVideoDecoderOutputBufferInfo = new MediaCodec.BufferInfo();
 
-        // Set some properties. Failing to specify some of these can cause the MediaCodec
-        // configure() call to throw an unhelpful exception.
-        outputVideoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        outputVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, videoBitrate);
-        if (Build.VERSION.SDK_INT >= 21 && videoBitrateMode >= 0) {
-            outputVideoFormat.setInteger(MediaFormat.KEY_BITRATE_MODE, videoBitrateMode);
+        if (mRanges.getStart() > 0) {
+            seekTo(mRanges.getStart());
         }
-        outputVideoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, OUTPUT_VIDEO_FRAME_RATE);
-        outputVideoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, OUTPUT_VIDEO_IFRAME_INTERVAL);
-        if (VERBOSE) Log.d(TAG, "video format: " + outputVideoFormat);
-
-        // Create a MediaCodec for the desired codec, then configure it as an encoder with
-        // our desired properties. Request a Surface to use for input.
-        final AtomicReference<Surface> inputSurfaceReference = new AtomicReference<>();
-        mVideoEncoder = createVideoEncoder(videoCodecInfo, outputVideoFormat, inputSurfaceReference);
-        mInputSurface = new InputSurface(inputSurfaceReference.get());
-        mInputSurface.makeCurrent();
-        // Create a MediaCodec for the decoder, based on the extractor's format.
-        mOutputSurface = new OutputSurface();
+    }
 
-        mOutputSurface.changeFragmentShader(createFragmentShader(
-                inputVideoFormat.getInteger(MediaFormat.KEY_WIDTH), inputVideoFormat.getInteger(MediaFormat.KEY_HEIGHT),
-                outputWidth, outputHeight));
+    private void seekTo(final long timeUs) {
+        mVideoExtractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        Log.i(TAG, "Seek video to " + timeUs + ", actual:" + mVideoExtractor.getSampleTime());
+        if (mVideoExtractor.getSampleTime() > timeUs) {
+            // on some old systems seek to previous doesn't work well, looks like it seeks to next or closest
+            mVideoExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            Log.w(TAG, "Seek video to beginning, actual:" + mVideoExtractor.getSampleTime());
+        }
+    }
 
-        mVideoDecoder = createVideoDecoder(inputVideoFormat, mOutputSurface.getSurface());
+    /**
+     * Starts the encoder of a rendition that begins after the first frame, drawing with the shared
+     * EGL context.
+     */
+    private void startEncoder(final @NonNull Encoder encoder) throws IOException {
+        Log.i(TAG, "video: starting encoder at " + encoder.timeFromUs);
+        final InputSurface contextSurface = Preconditions.checkNotNull(mContextSurface);
+        encoder.inputSurface = new InputSurface(createVideoEncoder(encoder), contextSurface);
+        encoder.inputSurface.makeCurrent();
+        encoder.textureRender = Preconditions.checkNotNull(mOutputSurface).createTextureRender();
+        setUpScaling(encoder.textureRender, mRotation, mCodedWidth, mCodedHeight, encoder.width, encoder.height);
+    }
 
-        mVideoDecoderInputBuffers = mVideoDecoder.getInputBuffers();
-        mVideoEncoderOutputBuffers = mVideoEncoder.getOutputBuffers();
-        mVideoDecoderOutputBufferInfo = new MediaCodec.BufferInfo();
-        mVideoEncoderOutputBufferInfo = new MediaCodec.BufferInfo();
+    /**
+     * Tells the encoder that its window is over.
+     */
+    private void endInput(final @NonNull Encoder encoder) throws IOException {
+        encoder.inputDone = true;
+        if (encoder.codec == null) {
+            Log.w(TAG, "video: no frames in " + encoder.timeFromUs + ".." + encoder.timeToUs);
+            encoder.done = true;
+            return;
+        }
+        if (mRenderThread != null) {
+            mRenderThread.awaitDrained();
+        }
+        if (mStaticFrameTargets.remove(encoder)) {
+            // the texture still holds the dropped frame
+            drawFrame(encoder, mStaticFrameOutputPresentationTime);
+        }
+        encoder.codec.signalEndOfInputStream();
+    }
 
-        if (mTimeFrom > 0) {
-            mVideoExtractor.seekTo(mTimeFrom * 1000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
-            Log.i(TAG, "Seek video to " + mTimeFrom + ", actual:" + mVideoExtractor.getSampleTime());
-            if (mVideoExtractor.getSampleTime() > mTimeFrom * 1000) {
-                // on some old systems seek to previous doesn't work well, looks like it seeks to next or closest
-                mVideoExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-                Log.w(TAG, "Seek video to beginning, actual:" + mVideoExtractor.getSampleTime());
+    /**
+     * Tells whether the output formats of all started renditions are known, so that the muxers
+     * can start.
+     */
+    boolean hasOutputFormats() {
+        for (Encoder encoder : mEncoders) {
+            if (encoder.codec != null && encoder.outputFormat == null) {
+                return false;
             }
         }
+        return true;
     }
 
-    void setMuxer(final @NonNull Muxer muxer) throws IOException {
-        mMuxer = muxer;
-        if (mEncoderOutputVideoFormat != null) {
-            Log.d(TAG, "muxer: adding video track.");
-            mOutputVideoTrack = muxer.addTrack(mEncoderOutputVideoFormat);
+    /**
+     * Adds the video track to the muxer of every rendition.
+     */
+    void setMuxers(final @NonNull List<Muxer> muxers) throws IOException {
+        Preconditions.checkState("one muxer per rendition", muxers.size() == mEncoders.size());
+        for (int i = 0; i < mEncoders.size(); i++) {
+            final Encoder encoder = mEncoders.get(i);
+            encoder.muxer = muxers.get(i);
+            if (encoder.outputFormat != null) {
+                Log.d(TAG, "muxer: adding video track.");
+                encoder.outputTrack = encoder.muxer.addTrack(encoder.outputFormat);
+            }
         }
+        mMuxing = true;
+    }
+
+    /**
+     * Keeps the output within the budget by retuning the bitrate as the encoded video is written.
+     */
+    void setSizeBudget(final @NonNull SizeBudget sizeBudget) {
+        Preconditions.checkState("size budget needs a single rendition", mEncoders.size() == 1);
+        mSizeBudget = sizeBudget;
+    }
+
+    /**
+     * Returns the index of the video track in the muxer of the first rendition.
+     */
+    int getOutputVideoTrack() {
+        return mEncoders.get(0).outputTrack;
+    }
+
+    /**
+     * Tells whether the encoder of the rendition has written all its frames.
+     */
+    boolean isEncoderDone(final int rendition) {
+        return mEncoders.get(rendition).done;
     }
 
-    void step() throws IOException {
+    /**
+     * Moves every stage of the pipeline forward by at most one buffer.
+     *
+     * @return false if no stage could make progress
+     */
+    boolean step() throws IOException {
+        boolean progress = false;
+
+        // Do not extract or decode video if we have determined the output formats but we are not
+        // yet ready to mux the frames.
+        final boolean waitingForMuxer = !mMuxing && hasOutputFormats();
+
         // Extract video from file and feed to decoder.
-        // Do not extract video if we have determined the output format but we are not yet
-        // ready to mux the frames.
-        while (!mVideoExtractorDone
-                && (mEncoderOutputVideoFormat == null || mMuxer != null)) {
-            int decoderInputBufferIndex = mVideoDecoder.dequeueInputBuffer(TIMEOUT_USEC);
+        while (!mVideoExtractorDone && !waitingForMuxer) {
+            int decoderInputBufferIndex = mVideoDecoder.dequeueInputBuffer(mDecoderTimeoutUs);
             if (decoderInputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 if (VERBOSE) Log.d(TAG, "no video decoder input buffer");
                 break;
@@ -202,14 +422,24 @@ class VideoTrackConverter {
             if (VERBOSE) {
                 Log.d(TAG, "video decoder: returned input buffer: " + decoderInputBufferIndex);
             }
-            final ByteBuffer decoderInputBuffer = mVideoDecoderInputBuffers[decoderInputBufferIndex];
-            final int size = mVideoExtractor.readSampleData(decoderInputBuffer, 0);
-            final long presentationTime = mVideoExtractor.getSampleTime();
+            final ByteBuffer decoderInputBuffer = mVideoDecoder.getInputBuffer(decoderInputBufferIndex);
+            int size = readSampleData(decoderInputBuffer);
+            long presentationTime = mVideoExtractor.getSampleTime();
+            while (size >= 0 && presentationTime > mRanges.getTo(mExtractedRange) && mExtractedRange + 1 < mRanges.size()) {
+                // skip the gap till the next range, frames decoded twice after the seek are dropped below
+                mExtractedRange++;
+                if (presentationTime < mRanges.getFrom(mExtractedRange)) {
+                    seekTo(mRanges.getFrom(mExtractedRange));
+                    decoderInputBuffer.clear();
+                    size = readSampleData(decoderInputBuffer);
+                    presentationTime = mVideoExtractor.getSampleTime();
+                }
+            }
             if (VERBOSE) {
                 Log.d(TAG, "video extractor: returned buffer of size " + size);
                 Log.d(TAG, "video extractor: returned buffer for time " + presentationTime);
             }
-            mVideoExtractorDone = size < 0 || (mTimeTo > 0 && presentationTime > mTimeTo * 1000);
+            mVideoExtractorDone = size < 0 || presentationTime > mRanges.getTo(mExtractedRange);
 
             if (mVideoExtractorDone) {
                 if (VERBOSE) Log.d(TAG, "video extractor: EOS");
@@ -220,6 +450,7 @@ class VideoTrackConverter {
                         0,
                         MediaCodec.BUFFER_FLAG_END_OF_STREAM);
             } else {
+                mMetrics.extract.pass(size);
                 mVideoDecoder.queueInputBuffer(
                         decoderInputBufferIndex,
                         0,
@@ -229,19 +460,22 @@ class VideoTrackConverter {
                 mVideoExtractor.advance();
                 mVideoExtractedFrameCount++;
             }
+            progress = true;
             // We extracted a frame, let's try something else next.
             break;
         }
 
-        // Poll output frames from the video decoder and feed the encoder.
-        while (!mVideoDecoderDone && (mEncoderOutputVideoFormat == null || mMuxer != null)) {
+        // Poll output frames from the video decoder and feed the encoders.
+        while (!mVideoDecoderDone && !waitingForMuxer
+                && (mRenderThread == null || mRenderThread.isReadyForFrame())) {
             final int decoderOutputBufferIndex =
                     mVideoDecoder.dequeueOutputBuffer(
-                            mVideoDecoderOutputBufferInfo, TIMEOUT_USEC);
+                            mVideoDecoderOutputBufferInfo, mDecoderTimeoutUs);
             if (decoderOutputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 if (VERBOSE) Log.d(TAG, "no video decoder output buffer");
                 break;
             }
+            progress = true;
             if (decoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                 if (VERBOSE) Log.d(TAG, "video decoder: output buffers changed");
                 break;
@@ -263,90 +497,342 @@ class VideoTrackConverter {
                 mVideoDecoder.releaseOutputBuffer(decoderOutputBufferIndex, false);
                 break;
             }
-            if (mVideoDecoderOutputBufferInfo.presentationTimeUs < mTimeFrom * 1000 &&
+            final long presentationTime = mVideoDecoderOutputBufferInfo.presentationTimeUs;
+            if ((presentationTime <= mLastFramePresentationTime || mRanges.indexOf(presentationTime) < 0) &&
                     (mVideoDecoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
-                if (VERBOSE) Log.d(TAG, "video decoder: frame prior to " + mVideoDecoderOutputBufferInfo.presentationTimeUs);
+                if (VERBOSE) Log.d(TAG, "video decoder: frame out of range " + presentationTime);
                 mVideoDecoder.releaseOutputBuffer(decoderOutputBufferIndex, false);
                 break;
             }
             if (VERBOSE) {
-                Log.d(TAG, "video decoder: returned buffer for time " + mVideoDecoderOutputBufferInfo.presentationTimeUs);
+                Log.d(TAG, "video decoder: returned buffer for time " + presentationTime);
             }
-            boolean render = mVideoDecoderOutputBufferInfo.size != 0;
+            mTargets.clear();
+            if (mVideoDecoderOutputBufferInfo.size != 0) {
+                // dropped frames are not rendered, so they cost neither drawing nor encoding
+                if (isDecimated(mRanges.toOutputTime(presentationTime))) {
+                    if (VERBOSE) Log.d(TAG, "video decoder: frame dropped for frame rate " + presentationTime);
+                } else {
+                    selectEncoders(presentationTime);
+                }
+            }
+            final boolean render = !mTargets.isEmpty();
             mVideoDecoder.releaseOutputBuffer(decoderOutputBufferIndex, render);
+            // frames at both ends of a gap in a cut list may map to the same time
+            final long outputPresentationTime = Math.max(mRanges.toOutputTime(presentationTime), mLastOutputPresentationTime + 1);
             if (render) {
-                if (VERBOSE) Log.d(TAG, "output surface: await new image");
-                mOutputSurface.awaitNewImage();
-                // Edit the frame and send it to the encoder.
-                if (VERBOSE) Log.d(TAG, "output surface: draw image");
-                mOutputSurface.drawImage();
-                mInputSurface.setPresentationTime(mVideoDecoderOutputBufferInfo.presentationTimeUs * 1000);
-                if (VERBOSE) Log.d(TAG, "input surface: swap buffers");
-                mInputSurface.swapBuffers();
+                mLastFramePresentationTime = presentationTime;
+                mLastOutputPresentationTime = outputPresentationTime;
+            }
+            if (render && mOutputSurface == null && mRenderThread == null) {
+                // direct mode, the decoder has queued the frame to the encoder with its timestamp
                 if (VERBOSE) Log.d(TAG, "video encoder: notified of new frame");
+                mMetrics.render.pass(0);
+                mMetrics.encode.framesIn.incrementAndGet();
+                mVideoDecodedFrameCount++;
+            } else if (render && mRenderThread != null) {
+                if (VERBOSE) Log.d(TAG, "render thread: notified of new frame");
+                mRenderThread.onFrameRendered(outputPresentationTime);
+                mMetrics.render.pass(0);
+                mMetrics.encode.framesIn.incrementAndGet();
+                mVideoDecodedFrameCount++;
+            } else if (render) {
+                if (VERBOSE) Log.d(TAG, "output surface: await new image");
+                final long awaitStartTime = System.nanoTime();
+                Preconditions.checkNotNull(mOutputSurface).awaitNewImage();
+                mMetrics.render.block(awaitStartTime, TRACE_AWAIT_NEW_IMAGE);
+                mMetrics.render.pass(0);
+                mStaticFrameTargets.clear();
+                if (mFrameSignature != null) {
+                    mFrameSignature.measure();
+                }
+                if (isStaticFrame(outputPresentationTime)) {
+                    if (VERBOSE) Log.d(TAG, "video decoder: static frame dropped " + presentationTime);
+                    for (Encoder encoder : mTargets) {
+                        if (encoder.hasInput) {
+                            mStaticFrameTargets.add(encoder);
+                        } else {
+                            // a clip that starts here still needs its first frame
+                            drawFrame(encoder, outputPresentationTime);
+                        }
+                    }
+                    mStaticFrameOutputPresentationTime = outputPresentationTime;
+                } else {
+                    final boolean sceneCut = isSceneCut(outputPresentationTime);
+                    // Edit the frame and send it to the encoders.
+                    for (Encoder encoder : mTargets) {
+                        if (sceneCut && encoder.hasInput) {
+                            requestSyncFrame(encoder);
+                        }
+                        adaptBitrate(encoder, outputPresentationTime);
+                        drawFrame(encoder, outputPresentationTime);
+                    }
+                    if (VERBOSE) Log.d(TAG, "video encoder: notified of new frame");
+                }
                 mVideoDecodedFrameCount++;
             }
             if ((mVideoDecoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                 if (VERBOSE) Log.d(TAG, "video decoder: EOS");
                 mVideoDecoderDone = true;
-                mVideoEncoder.signalEndOfInputStream();
+                for (Encoder encoder : mEncoders) {
+                    if (!encoder.inputDone) {
+                        endInput(encoder);
+                    }
+                }
             }
             // We extracted a pending frame, let's try something else next.
             break;
         }
 
-        // Poll frames from the video encoder and send them to the muxer.
-        while (!mVideoEncoderDone && (mEncoderOutputVideoFormat == null || mMuxer != null)) {
-            final int encoderOutputBufferIndex = mVideoEncoder.dequeueOutputBuffer(mVideoEncoderOutputBufferInfo, TIMEOUT_USEC);
+        // Poll frames from the video encoders and send them to the muxers.
+        boolean encodersDone = true;
+        for (Encoder encoder : mEncoders) {
+            final long drainStartTime = System.nanoTime();
+            progress |= drainEncoder(encoder);
+            mMetrics.trace(TRACE_DRAIN_ENCODER, drainStartTime);
+            encodersDone &= encoder.done;
+        }
+        mVideoEncoderDone = encodersDone;
+        return progress;
+    }
+
+    private void drawFrame(final @NonNull Encoder encoder, final long outputPresentationTimeUs) {
+        final InputSurface inputSurface = Preconditions.checkNotNull(encoder.inputSurface);
+        inputSurface.makeCurrent();
+        if (VERBOSE) Log.d(TAG, "output surface: draw image");
+        final long drawStartTime = System.nanoTime();
+        Preconditions.checkNotNull(mOutputSurface).drawImage(Preconditions.checkNotNull(encoder.textureRender));
+        mMetrics.trace(TRACE_DRAW_IMAGE, drawStartTime);
+        inputSurface.setPresentationTime(outputPresentationTimeUs * 1000);
+        if (VERBOSE) Log.d(TAG, "input surface: swap buffers");
+        final long swapStartTime = System.nanoTime();
+        inputSurface.swapBuffers();
+        mMetrics.trace(TRACE_SWAP_BUFFERS, swapStartTime);
+        encoder.hasInput = true;
+        mMetrics.encode.framesIn.incrementAndGet();
+    }
+
+    /**
+     * Tells whether the latched frame looks the same as the last kept one. The previous sample
+     * then lasts until the next kept frame, since muxers take sample durations from timestamps.
+     */
+    private boolean isStaticFrame(final long outputPresentationTimeUs) {
+        if (mFrameSignature == null || mStaticFrameThreshold <= 0) {
+            return false;
+        }
+        final float difference = mFrameSignature.getDifferenceFromAccepted();
+        if (difference < mStaticFrameThreshold && outputPresentationTimeUs - mLastKeptOutputPresentationTime < MAX_STATIC_DURATION_US) {
+            return true;
+        }
+        mFrameSignature.accept();
+        mLastKeptOutputPresentationTime = outputPresentationTimeUs;
+        return false;
+    }
+
+    /**
+     * Tells whether the measured frame starts a new scene, judging by how much it differs from
+     * the previous frame.
+     */
+    private boolean isSceneCut(final long outputPresentationTimeUs) {
+        if (mFrameSignature == null || !mSceneChangeKeyFrames) {
+            return false;
+        }
+        final float difference = mFrameSignature.getDifferenceFromPrevious();
+        if (difference == Float.MAX_VALUE) {
+            // the first frame is an I-frame anyway
+            mLastSceneCutTime = outputPresentationTimeUs;
+            return false;
+        }
+        if (difference > SCENE_CUT_THRESHOLD && outputPresentationTimeUs - mLastSceneCutTime >= MIN_SCENE_CUT_INTERVAL_US) {
+            Log.i(TAG, "video: scene cut at " + outputPresentationTimeUs + ", difference " + difference);
+            mLastSceneCutTime = outputPresentationTimeUs;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Asks the encoder to make the next frame it gets an I-frame.
+     */
+    private void requestSyncFrame(final @NonNull Encoder encoder) {
+        if (Build.VERSION.SDK_INT >= 19) {
+            final Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            Preconditions.checkNotNull(encoder.codec).setParameters(params);
+        }
+    }
+
+    /**
+     * Retunes the encoder bitrate to the complexity of the recent frames.
+     */
+    private void adaptBitrate(final @NonNull Encoder encoder, final long outputPresentationTimeUs) {
+        if (encoder.bitrateController == null || Build.VERSION.SDK_INT < 19) {
+            return;
+        }
+        final FrameSignature signature = Preconditions.checkNotNull(mFrameSignature);
+        final int bitrate = encoder.bitrateController.addFrame(outputPresentationTimeUs, signature.getDetail(), signature.getDifferenceFromPrevious());
+        if (bitrate > 0) {
+            Log.i(TAG, "video: bitrate " + bitrate + " at " + outputPresentationTimeUs);
+            final Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            Preconditions.checkNotNull(encoder.codec).setParameters(params);
+        }
+    }
+
+    /**
+     * Moves the encoder bitrate towards the one the rest of the output can afford.
+     */
+    private void followSizeBudget(final @NonNull Encoder encoder, final @NonNull SizeBudget sizeBudget) {
+        if (Build.VERSION.SDK_INT < 19) {
+            return;
+        }
+        final int bitrate = sizeBudget.update(encoder.bufferInfo.presentationTimeUs - mRanges.getStart());
+        if (bitrate <= 0) {
+            return;
+        }
+        Log.i(TAG, "video: bitrate " + bitrate + " for target size at " + encoder.bufferInfo.presentationTimeUs);
+        if (encoder.bitrateController != null) {
+            // scaled by the content from the next window on
+            encoder.bitrateController.setBaseBitrate(bitrate);
+        } else {
+            final Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            Preconditions.checkNotNull(encoder.codec).setParameters(params);
+        }
+    }
+
+    /**
+     * Tells whether the frame comes too soon after the previous one for the target frame rate.
+     * Kept frames follow a grid of the frame interval, which a quarter of the interval of jitter
+     * doesn't break; when the input is slower than the target, the grid restarts at each frame.
+     */
+    private boolean isDecimated(final long presentationTimeUs) {
+        if (mFrameIntervalUs == 0) {
+            return false;
+        }
+        final long tolerance = mFrameIntervalUs / 4;
+        if (presentationTimeUs + tolerance < mNextFrameTime) {
+            return true;
+        }
+        if (presentationTimeUs + tolerance >= mNextFrameTime + mFrameIntervalUs) {
+            mNextFrameTime = presentationTimeUs + mFrameIntervalUs;
+        } else {
+            mNextFrameTime += mFrameIntervalUs;
+        }
+        return false;
+    }
+
+    /**
+     * Collects the encoders whose window has the frame into mTargets, starting the ones that
+     * begin with it and ending the ones that are past their window.
+     */
+    private void selectEncoders(final long presentationTimeUs) throws IOException {
+        for (Encoder encoder : mEncoders) {
+            if (encoder.inputDone) {
+                continue;
+            }
+            if (presentationTimeUs > encoder.timeToUs) {
+                endInput(encoder);
+            } else if (presentationTimeUs >= encoder.timeFromUs) {
+                if (encoder.codec == null) {
+                    startEncoder(encoder);
+                }
+                mTargets.add(encoder);
+            }
+        }
+    }
+
+    /**
+     * Releases the encoder of a finished clip, so that clips take no more encoders than overlap at
+     * a time. The encoder that owns the EGL context is kept until the end.
+     */
+    private void releaseEncoder(final @NonNull Encoder encoder) {
+        final InputSurface inputSurface = encoder.inputSurface;
+        if (inputSurface == null || inputSurface == mContextSurface || encoder.codec == null) {
+            return;
+        }
+        inputSurface.release();
+        encoder.inputSurface = null;
+        Preconditions.checkNotNull(mContextSurface).makeCurrent();
+        encoder.codec.stop();
+        encoder.codec.release();
+        encoder.released = true;
+    }
+
+    private boolean drainEncoder(final @NonNull Encoder encoder) throws IOException {
+        boolean progress = false;
+        final Codec codec = encoder.codec;
+        while (codec != null && !encoder.done && (encoder.outputFormat == null || mMuxing)) {
+            // keep waiting once decoder is done, so that missing EOS from the encoder can be detected below
+            final int encoderOutputBufferIndex = codec.dequeueOutputBuffer(encoder.bufferInfo, mVideoDecoderDone ? TIMEOUT_USEC : encoder.timeoutUs);
             if (encoderOutputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 if (VERBOSE) Log.d(TAG, "no video encoder output buffer");
                 if (mVideoDecoderDone) {
                     // on some devices and encoder stops after signalEndOfInputStream
                     Log.w(TAG, "mVideoDecoderDone, but didn't get BUFFER_FLAG_END_OF_STREAM");
-                    mVideoEncodedFrameCount = mVideoDecodedFrameCount;
-                    mVideoEncoderDone = true;
+                    encoder.encodedFrameCount = mVideoDecodedFrameCount;
+                    encoder.done = true;
+                    progress = true;
                 }
                 break;
             }
+            progress = true;
             if (encoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                 if (VERBOSE) Log.d(TAG, "video encoder: output buffers changed");
-                mVideoEncoderOutputBuffers = mVideoEncoder.getOutputBuffers();
                 break;
             }
             if (encoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 if (VERBOSE) Log.d(TAG, "video encoder: output format changed");
-                Preconditions.checkState("video encoder changed its output format again?", mOutputVideoTrack < 0);
-                mEncoderOutputVideoFormat = mVideoEncoder.getOutputFormat();
+                Preconditions.checkState("video encoder changed its output format again?", encoder.outputTrack < 0);
+                encoder.outputFormat = codec.getOutputFormat();
+                if (encoder.muxer != null) {
+                    // started after the muxers
+                    Log.d(TAG, "muxer: adding video track.");
+                    encoder.outputTrack = encoder.muxer.addTrack(encoder.outputFormat);
+                }
                 break;
             }
-            Preconditions.checkState("should have added track before processing output", mMuxer != null);
+            Preconditions.checkState("should have added track before processing output", encoder.muxer != null);
             if (VERBOSE) {
                 Log.d(TAG, "video encoder: returned output buffer: " + encoderOutputBufferIndex);
-                Log.d(TAG, "video encoder: returned buffer of size " + mVideoEncoderOutputBufferInfo.size);
+                Log.d(TAG, "video encoder: returned buffer of size " + encoder.bufferInfo.size);
             }
-            final ByteBuffer encoderOutputBuffer = mVideoEncoderOutputBuffers[encoderOutputBufferIndex];
-            if ((mVideoEncoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            final ByteBuffer encoderOutputBuffer = codec.getOutputBuffer(encoderOutputBufferIndex);
+            if ((encoder.bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
                 if (VERBOSE) Log.d(TAG, "video encoder: codec config buffer");
                 // Simply ignore codec config buffers.
-                mVideoEncoder.releaseOutputBuffer(encoderOutputBufferIndex, false);
+                codec.releaseOutputBuffer(encoderOutputBufferIndex, false);
                 break;
             }
             if (VERBOSE) {
-                Log.d(TAG, "video encoder: returned buffer for time " + mVideoEncoderOutputBufferInfo.presentationTimeUs);
+                Log.d(TAG, "video encoder: returned buffer for time " + encoder.bufferInfo.presentationTimeUs);
             }
-            if (mVideoEncoderOutputBufferInfo.size != 0) {
-                mMuxer.writeSampleData(mOutputVideoTrack, encoderOutputBuffer, mVideoEncoderOutputBufferInfo);
-                mMuxingVideoPresentationTime = Math.max(mMuxingVideoPresentationTime, mVideoEncoderOutputBufferInfo.presentationTimeUs);
-                mVideoEncodedFrameCount++;
+            if (encoder.bufferInfo.size != 0) {
+                final long writeStartTime = System.nanoTime();
+                encoder.muxer.writeSampleData(encoder.outputTrack, encoderOutputBuffer, encoder.bufferInfo);
+                mMetrics.mux.block(writeStartTime, TRACE_WRITE_SAMPLE);
+                mMetrics.mux.pass(encoder.bufferInfo.size);
+                if (encoder.bitrateController != null) {
+                    encoder.bitrateController.addOutput(encoder.bufferInfo.size);
+                }
+                if (mSizeBudget != null) {
+                    followSizeBudget(encoder, mSizeBudget);
+                }
+                mMuxingVideoPresentationTime = Math.max(mMuxingVideoPresentationTime, encoder.bufferInfo.presentationTimeUs);
+                encoder.encodedFrameCount++;
             }
-            if ((mVideoEncoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            if ((encoder.bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                 if (VERBOSE) Log.d(TAG, "video encoder: EOS");
-                mVideoEncoderDone = true;
+                encoder.done = true;
+            }
+            codec.releaseOutputBuffer(encoderOutputBufferIndex, false);
+            if (encoder.done && mOutputSurface != null) {
+                releaseEncoder(encoder);
             }
-            mVideoEncoder.releaseOutputBuffer(encoderOutputBufferIndex, false);
             // We enqueued an encoded frame, let's try something else next.
             break;
         }
+        return progress;
     }
 
     void release() throws Exception {
@@ -380,23 +866,51 @@ class VideoTrackConverter {
                 exception = e;
             }
         }
+        for (Encoder encoder : mEncoders) {
+            try {
+                if (encoder.inputSurface != null && encoder.inputSurface != mContextSurface) {
+                    encoder.inputSurface.release();
+                }
+                if (encoder.directSurface != null) {
+                    encoder.directSurface.release();
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "error while releasing video encoder surface", e);
+                if (exception == null) {
+                    exception = e;
+                }
+            }
+        }
         try {
-            if (mInputSurface != null) {
-                mInputSurface.release();
+            // owns the EGL context, so it goes last
+            if (mContextSurface != null) {
+                mContextSurface.release();
             }
         } catch (Exception e) {
-            Log.e(TAG, "error while releasing mInputSurface", e);
+            Log.e(TAG, "error while releasing mContextSurface", e);
             if (exception == null) {
                 exception = e;
             }
         }
+        for (Encoder encoder : mEncoders) {
+            try {
+                if (encoder.codec != null && !encoder.released) {
+                    encoder.codec.stop();
+                    encoder.codec.release();
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "error while releasing video encoder", e);
+                if (exception == null) {
+                    exception = e;
+                }
+            }
+        }
         try {
-            if (mVideoEncoder != null) {
-                mVideoEncoder.stop();
-                mVideoEncoder.release();
+            if (mRenderThread != null) {
+                mRenderThread.release();
             }
         } catch (Exception e) {
-            Log.e(TAG, "error while releasing mVideoEncoder", e);
+            Log.e(TAG, "error while releasing mRenderThread", e);
             if (exception == null) {
                 exception = e;
             }
@@ -407,24 +921,50 @@ class VideoTrackConverter {
     }
 
     String dumpState() {
+        final StringBuilder encoded = new StringBuilder();
+        for (Encoder encoder : mEncoders) {
+            encoded.append(String.format(Locale.US, "%d(done:%b track:%d) ", encoder.encodedFrameCount, encoder.done, encoder.outputTrack));
+        }
         return String.format(Locale.US,
                 "V{"
                         + "extracted:%d(done:%b) "
                         + "decoded:%d(done:%b) "
-                        + "encoded:%d(done:%b) "
-                        + "muxing:%b(track:%d)} ",
+                        + "encoded:%s"
+                        + "muxing:%b} ",
                 mVideoExtractedFrameCount, mVideoExtractorDone,
                 mVideoDecodedFrameCount, mVideoDecoderDone,
-                mVideoEncodedFrameCount, mVideoEncoderDone,
-                mMuxer != null, mOutputVideoTrack);
+                encoded,
+                mMuxing);
     }
 
     void verifyEndState() {
-        Log.i(TAG, "extracted " + mVideoExtractedFrameCount + " frames; decoded " + mVideoDecodedFrameCount + " frames; encoded " + mVideoEncodedFrameCount + " frames");
-        Preconditions.checkState("encoded (" + mVideoEncodedFrameCount + ") and decoded (" + mVideoDecodedFrameCount + ") video frame counts should match", mVideoDecodedFrameCount >= mVideoEncodedFrameCount);
+        for (Encoder encoder : mEncoders) {
+            Log.i(TAG, "extracted " + mVideoExtractedFrameCount + " frames; decoded " + mVideoDecodedFrameCount + " frames; encoded " + encoder.encodedFrameCount + " frames");
+            Preconditions.checkState("encoded (" + encoder.encodedFrameCount + ") and decoded (" + mVideoDecodedFrameCount + ") video frame counts should match", mVideoDecodedFrameCount >= encoder.encodedFrameCount);
+        }
         Preconditions.checkState("decoded )" + mVideoDecodedFrameCount + ") frame count should be less than extracted (" + mVideoExtractedFrameCount + ") frame count", mVideoDecodedFrameCount <= mVideoExtractedFrameCount);
     }
 
+    private static void setUpScaling(
+            final @NonNull TextureRender textureRender,
+            final int rotation,
+            final int srcWidth,
+            final int srcHeight,
+            final int dstWidth,
+            final int dstHeight) {
+        if ((float) srcWidth / dstWidth > MAX_SINGLE_PASS_KERNEL_SIZE || (float) srcHeight / dstHeight > MAX_SINGLE_PASS_KERNEL_SIZE) {
+            // pyramid levels are drawn in the orientation of the encoder surface
+            if (rotation % 180 == 90) {
+                //noinspection SuspiciousNameCombination
+                textureRender.setDownscale(srcHeight, srcWidth, dstHeight, dstWidth);
+            } else {
+                textureRender.setDownscale(srcWidth, srcHeight, dstWidth, dstHeight);
+            }
+        } else {
+            textureRender.changeFragmentShader(createFragmentShader(srcWidth, srcHeight, dstWidth, dstHeight));
+        }
+    }
+
     private static String createFragmentShader(
             final int srcWidth,
             final int srcHeight,
@@ -473,44 +1013,38 @@ class VideoTrackConverter {
         return shader;
     }
 
-    private @NonNull MediaCodec createVideoDecoder(
-            final @NonNull MediaFormat inputFormat,
-            final @NonNull Surface surface) throws IOException {
-        final MediaCodec decoder = MediaCodec.createDecoderByType(MediaConverter.getMimeTypeFor(inputFormat));
-
-        if (Build.VERSION.SDK_INT >= 31) {
-            final String VENDOR_DOLBY_CODEC_TRANSFER_PARAMKEY = "vendor.dolby.codec.transfer.value";
-            final MediaCodec.ParameterDescriptor descriptor = decoder.getParameterDescriptor(VENDOR_DOLBY_CODEC_TRANSFER_PARAMKEY);
-            if (descriptor != null) {
-                final Bundle transferBundle = new Bundle();
-                transferBundle.putString(VENDOR_DOLBY_CODEC_TRANSFER_PARAMKEY, "transfer.sdr.normal");
-                decoder.setParameters(transferBundle);
-            } else {
-                inputFormat.setInteger(MediaFormat.KEY_COLOR_TRANSFER_REQUEST, MediaFormat.COLOR_TRANSFER_SDR_VIDEO);
-            }
-        } else {
-            //The Dolby Vision decoder doesn't support transfer parameter
-            //In this case the decoded video buffer is HLG and in-app tone mapping has to be used instead
-        }
-
-        decoder.configure(inputFormat, surface, null, 0);
-        decoder.start();
-        return decoder;
+    private @NonNull Codec createVideoDecoder(final @NonNull MediaFormat inputFormat, final @NonNull Surface surface) throws IOException {
+        final Codec codec = mCodecs.createDecoder(inputFormat, surface);
+        mDecoderTimeoutUs = mCodecs.getTimeoutUs(codec, TIMEOUT_USEC);
+        codec.start();
+        return new MeteredCodec(codec, mMetrics.decode, "video decoder");
     }
 
-    private @NonNull MediaCodec createVideoEncoder(
-            final @NonNull MediaCodecInfo codecInfo,
-            final @NonNull MediaFormat format,
-            final @NonNull AtomicReference<Surface> surfaceReference) throws IOException {
-        final MediaCodec encoder = MediaCodec.createByCodecName(codecInfo.getName());
-        encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    /**
+     * Creates and starts the codec of the encoder.
+     *
+     * @return the input surface of the codec
+     */
+    private @NonNull Surface createVideoEncoder(final @NonNull Encoder encoder) throws IOException {
+        // Create a codec for the desired format, configured as an encoder with our desired
+        // properties. Request a Surface to use for input.
+        final Codec codec = mCodecs.createEncoder(encoder.format);
         // Must be called before start()
-        surfaceReference.set(encoder.createInputSurface());
-        encoder.start();
-        return encoder;
+        final Surface surface = codec.createInputSurface();
+        codec.start();
+        encoder.timeoutUs = mCodecs.getTimeoutUs(codec, TIMEOUT_USEC);
+        encoder.codec = new MeteredCodec(codec, mMetrics.encode, "video encoder");
+        return surface;
+    }
+
+    private int readSampleData(final @NonNull ByteBuffer buffer) {
+        final long startTime = System.nanoTime();
+        final int size = mVideoExtractor.readSampleData(buffer, 0);
+        mMetrics.extract.block(startTime, TRACE_READ_SAMPLE);
+        return size;
     }
 
-    private static int getAndSelectVideoTrackIndex(@NonNull MediaExtractor extractor) {
+    private static int getAndSelectVideoTrackIndex(@NonNull Extractor extractor) {
         for (int index = 0; index < extractor.getTrackCount(); ++index) {
             if (VERBOSE) {
                 Log.d(TAG, "format for track " + index + " is " + MediaConverter.getMimeTypeFor(extractor.getTrackFormat(index)));
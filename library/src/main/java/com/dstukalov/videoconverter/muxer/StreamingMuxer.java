@@ -4,142 +4,78 @@ import android.media.MediaCodec;
 import android.media.MediaFormat;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.dstukalov.videoconverter.Muxer;
 import com.dstukalov.videoconverter.Preconditions;
-
-import org.mp4parser.streaming.StreamingTrack;
+import com.dstukalov.videoconverter.Tracer;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.util.ArrayList;
-import java.util.List;
 
+/**
+ * Muxer that writes MP4 sequentially into an {@link OutputStream}.
+ * <p>
+ * Thin adapter of MediaCodec formats and buffers to {@link Mp4Muxer}. {@link #writeSampleData} may be
+ * called concurrently for different tracks, see {@link Mp4Writer}.
+ */
 public class StreamingMuxer implements Muxer {
 
-    private final OutputStream outputStream;
-    private final List<MediaCodecTrack> tracks = new ArrayList<>();
-    private Mp4Writer mp4Writer;
+    private static final int TRACE_WRITE_CHUNK = Tracer.event("writeChunkContainer");
+
+    private final Mp4Muxer muxer;
 
     public StreamingMuxer(OutputStream outputStream) {
-        this.outputStream = outputStream;
+        muxer = new Mp4Muxer(outputStream);
+    }
+
+    /**
+     * Records the chunk writes into the trace of the conversion, must be called before start.
+     */
+    public void setTracer(final @Nullable Tracer tracer) {
+        muxer.setTraceListener(tracer == null ? null : startTimeNs -> tracer.complete(TRACE_WRITE_CHUNK, startTimeNs));
     }
 
     @Override
     public void start() throws IOException {
-        final List<StreamingTrack> source = new ArrayList<>();
-        for (MediaCodecTrack track : tracks) {
-            source.add((StreamingTrack) track);
-        }
-        mp4Writer = new Mp4Writer(source, Channels.newChannel(outputStream));
+        muxer.start();
     }
 
     @Override
     public void stop() throws IOException {
-        if (mp4Writer == null) {
-            throw new IllegalStateException("calling stop prior to start");
-        }
-        for (MediaCodecTrack track : tracks) {
-            track.finish();
-        }
-        mp4Writer.close();
-        mp4Writer = null;
+        muxer.stop();
     }
 
     @Override
     public int addTrack(@NonNull MediaFormat format) throws IOException {
         final String mime = format.getString(MediaFormat.KEY_MIME);
         switch (Preconditions.checkNotNull(mime)) {
-            case "video/avc":
-                tracks.add(new MediaCodecAvcTrack(format));
-                break;
-            case "audio/mp4a-latm":
-                tracks.add(new MediaCodecAacTrack(format));
-                break;
-            case "video/hevc":
-                tracks.add(new MediaCodecHevcTrack(format));
-                break;
+            case TrackFormat.MIME_AVC:
+                return muxer.addTrack(TrackFormat.avc(Preconditions.checkNotNull(format.getByteBuffer("csd-0")),
+                        Preconditions.checkNotNull(format.getByteBuffer("csd-1"))));
+            case TrackFormat.MIME_AAC:
+                return muxer.addTrack(TrackFormat.aac(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                        format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), format.getInteger(MediaFormat.KEY_BIT_RATE),
+                        format.getInteger(MediaFormat.KEY_AAC_PROFILE)));
+            case TrackFormat.MIME_HEVC:
+                return muxer.addTrack(TrackFormat.hevc(Preconditions.checkNotNull(format.getByteBuffer("csd-0"))));
             default:
                 throw new IllegalArgumentException("unknown track format");
         }
-        return tracks.size() - 1;
     }
 
     @Override
     public void writeSampleData(int trackIndex, @NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException {
-        tracks.get(trackIndex).writeSampleData(byteBuf, bufferInfo);
+        final ByteBuffer data = byteBuf.duplicate();
+        data.limit(bufferInfo.offset + bufferInfo.size);
+        data.position(bufferInfo.offset);
+        muxer.writeSample(trackIndex, data, bufferInfo.presentationTimeUs);
     }
 
     @Override
     public void release() {
-    }
-
-    interface MediaCodecTrack {
-        void writeSampleData(@NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException;
-        void finish() throws IOException;
-    }
-
-    static class MediaCodecAvcTrack extends AvcTrack implements MediaCodecTrack {
-
-        MediaCodecAvcTrack(@NonNull MediaFormat format) {
-            super(Utils.subBuffer(Preconditions.checkNotNull(format.getByteBuffer("csd-0")), 4),
-                    Utils.subBuffer(Preconditions.checkNotNull(format.getByteBuffer("csd-1")), 4));
-        }
-
-        @Override
-        public void writeSampleData(@NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException {
-            final List<ByteBuffer> nals = Utils.getNals(byteBuf);
-            for (ByteBuffer nal : nals) {
-                consumeNal(Utils.clone(nal), bufferInfo.presentationTimeUs);
-            }
-        }
-
-        @Override
-        public void finish() throws IOException {
-            consumeLastNal();
-        }
-    }
-
-    static class MediaCodecHevcTrack extends HevcTrack implements MediaCodecTrack {
-
-        MediaCodecHevcTrack(@NonNull MediaFormat format) throws IOException {
-            super(Utils.getNals(Preconditions.checkNotNull(format.getByteBuffer("csd-0"))));
-        }
-
-        @Override
-        public void writeSampleData(@NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException {
-            final List<ByteBuffer> nals = Utils.getNals(byteBuf);
-            for (ByteBuffer nal : nals) {
-                consumeNal(Utils.clone(nal), bufferInfo.presentationTimeUs);
-            }
-        }
-
-        @Override
-        public void finish() throws IOException {
-            consumeLastNal();
-        }
-    }
-
-    static class MediaCodecAacTrack extends AacTrack implements MediaCodecTrack {
-
-        MediaCodecAacTrack(@NonNull MediaFormat format) {
-            super(format.getInteger(MediaFormat.KEY_BIT_RATE), format.getInteger(MediaFormat.KEY_BIT_RATE),
-                    format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
-                    format.getInteger(MediaFormat.KEY_AAC_PROFILE));
-        }
-
-        @Override
-        public void writeSampleData(@NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException {
-            final byte [] buffer = new byte[bufferInfo.size];
-            byteBuf.position(bufferInfo.offset);
-            byteBuf.get(buffer, 0, bufferInfo.size);
-            processSample(ByteBuffer.wrap(buffer));
-        }
-
-        @Override
-        public void finish() {
-        }
+        // no-op if stop was called and succeeded
+        muxer.abort();
     }
 }
@@ -0,0 +1,89 @@
+package com.dstukalov.videoconverter;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+public class BitrateControllerTest {
+
+    private static final int BASE_BITRATE = 2000000;
+    private static final long FRAME_US = 40000;
+
+    @Test
+    public void keepsBitrateWithinWindow() {
+        final BitrateController controller = new BitrateController(BASE_BITRATE);
+        for (int i = 0; i < 25; i++) {
+            assertEquals(0, controller.addFrame(i * FRAME_US, 1, 0));
+        }
+    }
+
+    @Test
+    public void lowersBitrateOfSimpleContent() {
+        final BitrateController controller = new BitrateController(BASE_BITRATE);
+        assertEquals(BASE_BITRATE / 2, runWindow(controller, 0, 2, 0));
+        // already there
+        assertEquals(0, runWindow(controller, 1, 2, 0));
+    }
+
+    @Test
+    public void raisesBitrateOfComplexContent() {
+        final BitrateController controller = new BitrateController(BASE_BITRATE);
+        assertEquals(BASE_BITRATE * 5 / 4, runWindow(controller, 0, 20, 10));
+    }
+
+    @Test
+    public void scalesWithMotion() {
+        final BitrateController controller = new BitrateController(BASE_BITRATE);
+        // 4 + 2 * 4 out of 16
+        assertEquals(BASE_BITRATE * 3 / 4, runWindow(controller, 0, 4, 4));
+    }
+
+    @Test
+    public void ignoresMotionOfFirstFrame() {
+        final BitrateController controller = new BitrateController(BASE_BITRATE);
+        controller.addFrame(0, 16, Float.MAX_VALUE);
+        for (int i = 1; i <= 25; i++) {
+            assertEquals(0, controller.addFrame(i * FRAME_US, 16, 0));
+        }
+    }
+
+    @Test
+    public void ignoresSmallChanges() {
+        final BitrateController controller = new BitrateController(BASE_BITRATE);
+        assertEquals(0, runWindow(controller, 0, 17, 0));
+    }
+
+    @Test
+    public void capsComplexContentOverBudget() {
+        final BitrateController controller = new BitrateController(BASE_BITRATE);
+        assertEquals(BASE_BITRATE / 2, runWindow(controller, 0, 2, 0));
+        // one and a half times the base bitrate over the two seconds
+        controller.addOutput(BASE_BITRATE / 8 * 3);
+        assertEquals(BASE_BITRATE, runWindow(controller, 1, 40, 0));
+    }
+
+    @Test
+    public void appliesBaseBitrateFromNextWindow() {
+        final BitrateController controller = new BitrateController(BASE_BITRATE);
+        controller.setBaseBitrate(BASE_BITRATE / 2);
+        assertEquals(BASE_BITRATE / 2, runWindow(controller, 0, 16, 0));
+    }
+
+    /**
+     * Sends the frames of a second of the same content and returns what the last one has
+     * returned, the first second starts with a frame at 0.
+     */
+    private static int runWindow(final @NonNull BitrateController controller, final int second, final float detail, final float motion) {
+        final long endUs = (second + 1) * 1000000L;
+        int bitrate = 0;
+        for (long presentationTimeUs = second == 0 ? 0 : second * 1000000L + FRAME_US; presentationTimeUs <= endUs; presentationTimeUs += FRAME_US) {
+            bitrate = controller.addFrame(presentationTimeUs, detail, motion);
+            if (presentationTimeUs < endUs) {
+                assertEquals(0, bitrate);
+            }
+        }
+        return bitrate;
+    }
+}
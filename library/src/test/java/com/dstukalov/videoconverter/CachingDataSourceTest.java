@@ -0,0 +1,140 @@
+package com.dstukalov.videoconverter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaDataSource;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+@RunWith(RobolectricTestRunner.class)
+public class CachingDataSourceTest {
+
+    private static final int BLOCK_SIZE = 1024;
+    private static final int CACHE_SIZE = 16 * BLOCK_SIZE;
+
+    @Test
+    public void readsWhatTheSourceHas() throws IOException {
+        final ArraySource source = new ArraySource(10 * BLOCK_SIZE + 100);
+        final CachingDataSource cache = new CachingDataSource(source, BLOCK_SIZE, CACHE_SIZE);
+        final Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            final int position = random.nextInt(source.data.length);
+            final int size = 1 + random.nextInt(3 * BLOCK_SIZE);
+            final byte[] buffer = new byte[size + 10];
+            final int read = cache.readAt(position, buffer, 10, size);
+            assertEquals(Math.min(size, source.data.length - position), read);
+            assertArrayEquals(Arrays.copyOfRange(source.data, position, position + read), Arrays.copyOfRange(buffer, 10, 10 + read));
+        }
+        assertEquals(-1, cache.readAt(source.data.length, new byte[10], 0, 10));
+        assertEquals(source.data.length, cache.getSize());
+    }
+
+    @Test
+    public void servesRepeatedReadsFromTheCache() throws IOException {
+        final ArraySource source = new ArraySource(8 * BLOCK_SIZE);
+        final CachingDataSource cache = new CachingDataSource(source, BLOCK_SIZE, CACHE_SIZE);
+        final byte[] buffer = new byte[100];
+        cache.readAt(BLOCK_SIZE + 10, buffer, 0, buffer.length);
+        final int reads = source.reads;
+        for (int i = 0; i < 10; i++) {
+            cache.readAt(BLOCK_SIZE + 10 * i, buffer, 0, buffer.length);
+        }
+        assertEquals(reads, source.reads);
+    }
+
+    @Test
+    public void readsAheadOnSequentialMisses() throws IOException {
+        final ArraySource source = new ArraySource(63 * BLOCK_SIZE);
+        final CachingDataSource cache = new CachingDataSource(source, BLOCK_SIZE, 64 * BLOCK_SIZE);
+        final byte[] buffer = new byte[BLOCK_SIZE];
+        for (int block = 0; block < 63; block++) {
+            assertEquals(BLOCK_SIZE, cache.readAt((long) block * BLOCK_SIZE, buffer, 0, BLOCK_SIZE));
+        }
+        // 1, 2, 4, 8, 16 and then at most a quarter of the cache, 16 blocks, at a time
+        assertEquals(7, source.reads);
+    }
+
+    @Test
+    public void dropsTheLeastRecentlyUsedBlocks() throws IOException {
+        final ArraySource source = new ArraySource(8 * BLOCK_SIZE);
+        final CachingDataSource cache = new CachingDataSource(source, BLOCK_SIZE, 4 * BLOCK_SIZE);
+        final byte[] buffer = new byte[1];
+        // skip a block between the reads, so that nothing is read ahead
+        for (int block = 0; block < 8; block += 2) {
+            cache.readAt((long) block * BLOCK_SIZE, buffer, 0, 1);
+        }
+        cache.readAt(0, buffer, 0, 1);
+        assertEquals(4, source.reads);
+        cache.readAt(6L * BLOCK_SIZE + 5, buffer, 0, 1);
+        assertEquals(4, source.reads);
+        cache.readAt(8L * BLOCK_SIZE - 1, buffer, 0, 1);
+        assertEquals(5, source.reads);
+        // the block at 2 was used last before the others and is gone
+        cache.readAt(2L * BLOCK_SIZE, buffer, 0, 1);
+        assertEquals(6, source.reads);
+    }
+
+    @Test
+    public void keepsTheSourceOpenWhenClosed() throws IOException {
+        final ArraySource source = new ArraySource(4 * BLOCK_SIZE);
+        final CachingDataSource cache = new CachingDataSource(source, BLOCK_SIZE, CACHE_SIZE);
+        final byte[] buffer = new byte[10];
+        cache.readAt(0, buffer, 0, buffer.length);
+        cache.close();
+        assertFalse(source.closed);
+        // a miss after close, as when the conversion creates its next extractor
+        assertEquals(buffer.length, cache.readAt(3L * BLOCK_SIZE, buffer, 0, buffer.length));
+        assertTrue(source.reads > 1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsCacheOfLessThanFourBlocks() {
+        new CachingDataSource(new ArraySource(BLOCK_SIZE), BLOCK_SIZE, 3 * BLOCK_SIZE);
+    }
+
+    private static class ArraySource extends MediaDataSource {
+        final byte[] data;
+        int reads;
+        boolean closed;
+
+        ArraySource(final int size) {
+            data = new byte[size];
+            new Random(size).nextBytes(data);
+        }
+
+        @Override
+        public int readAt(final long position, final @NonNull byte[] buffer, final int offset, final int size) throws IOException {
+            if (closed) {
+                throw new IOException("closed");
+            }
+            reads++;
+            if (position >= data.length) {
+                return -1;
+            }
+            final int count = (int) Math.min(size, data.length - position);
+            System.arraycopy(data, (int) position, buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public long getSize() {
+            return data.length;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
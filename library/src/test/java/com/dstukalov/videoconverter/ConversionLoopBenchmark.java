@@ -0,0 +1,77 @@
+package com.dstukalov.videoconverter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Locale;
+
+/**
+ * Times the scheduling policies of the conversion loop on {@link FakeCodec}s with the latencies
+ * and buffer counts of typical devices, and prints how long each took and how often the codecs
+ * were polled in vain. The fakes come from a codec backend, so they are polled in async mode too,
+ * which then only changes how long the loop waits between steps. Scale FRAME_COUNT up when
+ * tuning, the default only keeps it working.
+ * <p>
+ * Skipped unless the benchmark system property is true, e.g.
+ * {@code ./gradlew :library:testDebugUnitTest -Pbenchmark --tests '*ConversionLoopBenchmark'}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ConversionLoopBenchmark {
+
+    private static final int FRAME_COUNT = 60;
+
+    private static final String[] POLICIES = {"sync", "concurrent", "async", "async concurrent"};
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+    }
+
+    @Test
+    public void balancedCodecs() throws Exception {
+        run("balanced", 2000, 2, 500, 4);
+    }
+
+    @Test
+    public void slowVideoEncoder() throws Exception {
+        run("slow video", 8000, 2, 500, 4);
+    }
+
+    @Test
+    public void shallowBuffers() throws Exception {
+        run("shallow buffers", 2000, 1, 500, 1);
+    }
+
+    private static void run(final @NonNull String name, final long videoLatencyUs, final int videoBufferCount, final long audioLatencyUs, final int audioBufferCount) throws Exception {
+        for (String policy : POLICIES) {
+            final FakeCodecBackend backend = new FakeCodecBackend(
+                    new FakeCodec.Spec(videoBufferCount, videoBufferCount, videoLatencyUs / 2, 1),
+                    new FakeCodec.Spec(1, videoBufferCount, videoLatencyUs, 10000),
+                    new FakeCodec.Spec(audioBufferCount, audioBufferCount, audioLatencyUs, 4096),
+                    new FakeCodec.Spec(audioBufferCount, audioBufferCount, audioLatencyUs, 300));
+            final int audioFrameCount = (int) ((long) FRAME_COUNT * ConversionLoopTest.SAMPLE_RATE / ConversionLoopTest.FRAME_RATE / 1024);
+            final ConversionLoopTest.Harness harness = new ConversionLoopTest.Harness(backend,
+                    ConversionLoopTest.video(FRAME_COUNT), ConversionLoopTest.audio(audioFrameCount));
+            harness.converter.setAsyncMode(policy.startsWith("async"));
+            harness.converter.setConcurrentMode(policy.endsWith("concurrent"));
+            final long time = harness.convert();
+
+            final RecordingMuxer muxer = harness.muxer;
+            assertEquals(FRAME_COUNT, muxer.times.get(muxer.getTrack("video/")).size());
+            final StringBuilder report = new StringBuilder(String.format(Locale.US,
+                    "%-16s %-17s %5d ms %5.1f fps lead %4d ms", name, policy, time, FRAME_COUNT * 1000f / time, muxer.maxLeadUs / 1000));
+            for (FakeCodec codec : backend.codecs) {
+                report.append(String.format(Locale.US, " | %s: %d/%d idle, %d ms waited",
+                        codec.name, codec.tryAgainCount, codec.dequeueCount, codec.waitNanos / 1000000));
+            }
+            System.out.println(report);
+        }
+    }
+}
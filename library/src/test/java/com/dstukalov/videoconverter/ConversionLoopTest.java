@@ -0,0 +1,191 @@
+package com.dstukalov.videoconverter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs whole conversions on {@link FakeCodec}s, in direct mode, which needs no GL.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ConversionLoopTest {
+
+    static final int FRAME_RATE = 30;
+    static final int SAMPLE_RATE = 44100;
+
+    /**
+     * A conversion of scripted tracks to a {@link RecordingMuxer}.
+     */
+    static class Harness {
+        final List<FakeExtractor.Track> tracks;
+        final FakeCodecBackend backend;
+        final RecordingMuxer muxer = new RecordingMuxer();
+        final List<FakeExtractor> extractors = new ArrayList<>();
+        final MediaConverter converter = new MediaConverter();
+
+        Harness(final @NonNull FakeCodecBackend backend, final @NonNull FakeExtractor.Track... tracks) {
+            this.tracks = Arrays.asList(tracks);
+            this.backend = backend;
+            converter.setInput(() -> {
+                final FakeExtractor extractor = new FakeExtractor(this.tracks);
+                extractors.add(extractor);
+                return extractor;
+            });
+            converter.setOutput(() -> muxer);
+            // the size of the input, so that frames go straight from the decoder to the encoder
+            converter.setVideoResolution(720);
+            converter.setCodecBackend(backend);
+        }
+
+        /**
+         * Converts and returns the time it took in milliseconds.
+         */
+        long convert() throws Exception {
+            final long startTime = System.nanoTime();
+            converter.convert();
+            return (System.nanoTime() - startTime) / 1000000;
+        }
+    }
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    static @NonNull FakeCodecBackend createBackend(final long videoLatencyUs, final long audioLatencyUs) {
+        return new FakeCodecBackend(
+                new FakeCodec.Spec(4, 4, videoLatencyUs, 1),
+                new FakeCodec.Spec(1, 4, videoLatencyUs, 10000),
+                new FakeCodec.Spec(4, 4, audioLatencyUs, 4096),
+                new FakeCodec.Spec(4, 4, audioLatencyUs, 300));
+    }
+
+    static @NonNull FakeExtractor.Track video(final int frameCount) {
+        return FakeExtractor.video(1280, 720, FRAME_RATE, frameCount);
+    }
+
+    static @NonNull FakeExtractor.Track audio(final int frameCount) {
+        return FakeExtractor.audio(SAMPLE_RATE, frameCount);
+    }
+
+    @Test
+    public void convertsEverySample() throws Exception {
+        final Harness harness = new Harness(createBackend(500, 200), video(60), audio(86));
+        harness.convert();
+
+        final RecordingMuxer muxer = harness.muxer;
+        assertTrue(muxer.started && muxer.stopped && muxer.released);
+        assertTimes(muxer.times.get(muxer.getTrack("video/")), 60, 1000000 / FRAME_RATE, 0);
+        assertTimes(muxer.times.get(muxer.getTrack("audio/")), 86, 1024 * 1000000L / SAMPLE_RATE, 0);
+        for (FakeCodec codec : harness.backend.codecs) {
+            assertEquals(codec.name, codec.name.startsWith("video") ? 60 : 86, codec.frameCount);
+        }
+        // both tracks come from one pass over the input
+        assertEquals(1, harness.extractors.size());
+        assertTrue(harness.extractors.get(0).released);
+    }
+
+    @Test
+    public void convertsVideoOnly() throws Exception {
+        final Harness harness = new Harness(createBackend(500, 200), video(45));
+        harness.convert();
+
+        assertEquals(1, harness.muxer.formats.size());
+        assertTimes(harness.muxer.times.get(0), 45, 1000000 / FRAME_RATE, 0);
+    }
+
+    @Test
+    public void convertsTimeRange() throws Exception {
+        final Harness harness = new Harness(createBackend(500, 200), video(90), audio(130));
+        harness.converter.setTimeRange(1000, 2000);
+        harness.convert();
+
+        final List<Long> videoTimes = harness.muxer.times.get(harness.muxer.getTrack("video/"));
+        assertTrue(videoTimes.get(0) >= 1000000 && videoTimes.get(0) < 1000000 + 1000000 / FRAME_RATE);
+        assertTrue(videoTimes.get(videoTimes.size() - 1) <= 2000000);
+        final List<Long> audioTimes = harness.muxer.times.get(harness.muxer.getTrack("audio/"));
+        assertTrue(audioTimes.get(0) >= 1000000 - 1024 * 1000000L / SAMPLE_RATE);
+        assertTrue(audioTimes.get(audioTimes.size() - 1) <= 2000000);
+    }
+
+    @Test
+    public void concurrentModeKeepsTracksInterleaved() throws Exception {
+        // audio is done way before video, unless the muxer holds it back
+        final Harness harness = new Harness(createBackend(3000, 0), video(90), audio(130));
+        harness.converter.setConcurrentMode(true);
+        harness.convert();
+
+        final RecordingMuxer muxer = harness.muxer;
+        assertEquals(90, muxer.times.get(muxer.getTrack("video/")).size());
+        assertEquals(130, muxer.times.get(muxer.getTrack("audio/")).size());
+        assertTrue("lead " + muxer.maxLeadUs, muxer.maxLeadUs <= 1100000);
+    }
+
+    @Test
+    public void asyncModePollsBackendCodecs() throws Exception {
+        final Harness harness = new Harness(createBackend(500, 200), video(60), audio(86));
+        harness.converter.setAsyncMode(true);
+        harness.convert();
+
+        final RecordingMuxer muxer = harness.muxer;
+        assertEquals(60, muxer.times.get(muxer.getTrack("video/")).size());
+        assertEquals(86, muxer.times.get(muxer.getTrack("audio/")).size());
+        // polled codecs never signal, so they have to wait in their own dequeue calls instead of
+        // being tried at once and leaving the loop to wait for events
+        for (FakeCodec codec : harness.backend.codecs) {
+            assertTrue(codec.name, codec.dequeueCount > 0);
+            assertEquals(codec.name, 0, codec.immediateDequeueCount);
+        }
+    }
+
+    @Test
+    public void tracesEachConversionOnItsOwn() throws Exception {
+        final Harness both = new Harness(createBackend(500, 200), video(60), audio(86));
+        final File bothTrace = mFolder.newFile();
+        both.converter.setTraceFile(bothTrace);
+        final Harness videoOnly = new Harness(createBackend(500, 200), video(60));
+        final File videoOnlyTrace = mFolder.newFile();
+        videoOnly.converter.setTraceFile(videoOnlyTrace);
+
+        final Exception[] error = new Exception[1];
+        final Thread thread = new Thread(() -> {
+            try {
+                videoOnly.convert();
+            } catch (Exception e) {
+                error[0] = e;
+            }
+        });
+        thread.start();
+        both.convert();
+        thread.join();
+        assertNull(error[0]);
+
+        final String bothEvents = new String(Files.readAllBytes(bothTrace.toPath()), StandardCharsets.UTF_8);
+        assertTrue(bothEvents.contains("\"video encoder dequeueOutputBuffer\""));
+        assertTrue(bothEvents.contains("\"audio encoder dequeueOutputBuffer\""));
+        final String videoOnlyEvents = new String(Files.readAllBytes(videoOnlyTrace.toPath()), StandardCharsets.UTF_8);
+        assertTrue(videoOnlyEvents.contains("\"video encoder dequeueOutputBuffer\""));
+        assertFalse(videoOnlyEvents.contains("\"audio "));
+    }
+
+    private static void assertTimes(final @NonNull List<Long> times, final int count, final long intervalUs, final long startUs) {
+        assertEquals(count, times.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(startUs + i * intervalUs, (long) times.get(i));
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.dstukalov.videoconverter;
+
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Scripted {@link Codec} with a fixed number of buffers that takes a fixed time per buffer,
+ * polled like {@link SyncCodec}: dequeue calls wait up to their timeout.
+ * <p>
+ * Buffers are processed one after another, each is done the latency after the previous one, or
+ * after it was queued if the codec was idle. An input buffer stays taken until the codec is done
+ * with it, and a done buffer waits for a free output buffer, so a slow consumer stalls the codec
+ * the way it does a real one. A decoder that renders to the surface of another fake codec
+ * queues the frame to it.
+ */
+class FakeCodec implements Codec {
+
+    /**
+     * The number of input and output buffers, the time the codec takes per buffer and the size
+     * of the buffers it produces.
+     */
+    static class Spec {
+        final int inputBufferCount;
+        final int outputBufferCount;
+        final long latencyUs;
+        final int outputSize;
+
+        Spec(final int inputBufferCount, final int outputBufferCount, final long latencyUs, final int outputSize) {
+            this.inputBufferCount = inputBufferCount;
+            this.outputBufferCount = outputBufferCount;
+            this.latencyUs = latencyUs;
+            this.outputSize = outputSize;
+        }
+    }
+
+    private static class Frame {
+        final int inputIndex;
+        final int size;
+        final long timeUs;
+        final int flags;
+        final long doneNanos;
+
+        Frame(final int inputIndex, final int size, final long timeUs, final int flags, final long doneNanos) {
+            this.inputIndex = inputIndex;
+            this.size = size;
+            this.timeUs = timeUs;
+            this.flags = flags;
+            this.doneNanos = doneNanos;
+        }
+    }
+
+    private static final int INPUT_BUFFER_CAPACITY = 64 * 1024;
+
+    final String name;
+    private final Spec mSpec;
+    private final MediaFormat mOutputFormat;
+
+    private final ByteBuffer[] mInputBuffers;
+    private final ByteBuffer[] mOutputBuffers;
+    private final long[] mOutputTimes;
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mFreeOutputs = new ArrayDeque<>();
+    private final ArrayDeque<Frame> mFrames = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mOutputs = new ArrayDeque<>();
+    private final ArrayDeque<MediaCodec.BufferInfo> mOutputInfos = new ArrayDeque<>();
+    private long mLastDoneNanos;
+    private boolean mFormatReported;
+    private boolean mStarted;
+    private @Nullable Surface mInputSurface;
+    private @Nullable FakeCodec mRenderTarget;
+
+    int dequeueCount;
+    // dequeue calls that did not wait at all
+    int immediateDequeueCount;
+    int tryAgainCount;
+    long waitNanos;
+    int frameCount;
+
+    FakeCodec(final @NonNull String name, final @NonNull Spec spec, final @NonNull MediaFormat outputFormat) {
+        this.name = name;
+        mSpec = spec;
+        mOutputFormat = outputFormat;
+        mInputBuffers = new ByteBuffer[spec.inputBufferCount];
+        for (int i = 0; i < spec.inputBufferCount; i++) {
+            mInputBuffers[i] = ByteBuffer.allocate(INPUT_BUFFER_CAPACITY);
+            mFreeInputs.add(i);
+        }
+        mOutputBuffers = new ByteBuffer[spec.outputBufferCount];
+        mOutputTimes = new long[spec.outputBufferCount];
+        for (int i = 0; i < spec.outputBufferCount; i++) {
+            mOutputBuffers[i] = ByteBuffer.allocate(Math.max(spec.outputSize, 1));
+            mFreeOutputs.add(i);
+        }
+    }
+
+    /**
+     * Makes the frames rendered by this decoder go to the encoder.
+     */
+    void renderTo(final @NonNull FakeCodec encoder) {
+        mRenderTarget = encoder;
+    }
+
+    synchronized @Nullable Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    @Override
+    public synchronized @NonNull Surface createInputSurface() {
+        mInputSurface = new Surface(new SurfaceTexture(0));
+        return mInputSurface;
+    }
+
+    @Override
+    public synchronized void start() {
+        mStarted = true;
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(final long timeoutUs) {
+        Preconditions.checkState(name + " not started", mStarted);
+        dequeueCount++;
+        if (timeoutUs == 0) {
+            immediateDequeueCount++;
+        }
+        if (!await(timeoutUs, true)) {
+            tryAgainCount++;
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        return mFreeInputs.remove();
+    }
+
+    @Override
+    public synchronized @NonNull ByteBuffer getInputBuffer(final int index) {
+        final ByteBuffer buffer = mInputBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(final int index, final int offset, final int size, final long presentationTimeUs, final int flags) {
+        queue(index, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(final @NonNull MediaCodec.BufferInfo info, final long timeoutUs) {
+        Preconditions.checkState(name + " not started", mStarted);
+        dequeueCount++;
+        if (timeoutUs == 0) {
+            immediateDequeueCount++;
+        }
+        if (!await(timeoutUs, false)) {
+            tryAgainCount++;
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        final int index = mOutputs.remove();
+        final MediaCodec.BufferInfo output = mOutputInfos.remove();
+        if (index >= 0) {
+            info.set(output.offset, output.size, output.presentationTimeUs, output.flags);
+        }
+        return index;
+    }
+
+    @Override
+    public synchronized @NonNull ByteBuffer getOutputBuffer(final int index) {
+        final ByteBuffer buffer = mOutputBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public @NonNull MediaFormat getOutputFormat() {
+        return mOutputFormat;
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index, final boolean render) {
+        final long timeUs;
+        synchronized (this) {
+            timeUs = mOutputTimes[index];
+            mFreeOutputs.add(index);
+            notifyAll();
+        }
+        if (render && mRenderTarget != null) {
+            mRenderTarget.queueFromSurface(timeUs, 0);
+        }
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        queueFromSurface(0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    @Override
+    public void setParameters(final @NonNull Bundle params) {
+    }
+
+    @Override
+    public synchronized void stop() {
+        mStarted = false;
+    }
+
+    @Override
+    public synchronized void release() {
+        if (mInputSurface != null) {
+            mInputSurface.release();
+        }
+    }
+
+    private synchronized void queueFromSurface(final long timeUs, final int flags) {
+        Preconditions.checkState(name + " has no input surface", mInputSurface != null);
+        queue(-1, (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 ? 0 : 1, timeUs, flags);
+    }
+
+    private void queue(final int inputIndex, final int size, final long timeUs, final int flags) {
+        final long doneNanos = Math.max(System.nanoTime(), mLastDoneNanos) + mSpec.latencyUs * 1000;
+        mLastDoneNanos = doneNanos;
+        mFrames.add(new Frame(inputIndex, size, timeUs, flags, doneNanos));
+        notifyAll();
+    }
+
+    /**
+     * Moves the frames that are done to the output buffers, reporting the output format first.
+     */
+    private void update() {
+        final long now = System.nanoTime();
+        while (!mFrames.isEmpty() && mFrames.peek().doneNanos <= now) {
+            final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            if (!mFormatReported) {
+                mFormatReported = true;
+                mOutputs.add(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED);
+                mOutputInfos.add(info);
+                continue;
+            }
+            if (mFreeOutputs.isEmpty()) {
+                return;
+            }
+            final Frame frame = mFrames.remove();
+            if (frame.inputIndex >= 0) {
+                mFreeInputs.add(frame.inputIndex);
+            }
+            final int index = mFreeOutputs.remove();
+            mOutputTimes[index] = frame.timeUs;
+            info.set(0, frame.size == 0 ? 0 : mSpec.outputSize, frame.timeUs, frame.flags);
+            mOutputs.add(index);
+            mOutputInfos.add(info);
+            if (frame.size > 0) {
+                frameCount++;
+            }
+        }
+    }
+
+    /**
+     * Waits up to the timeout for a free input buffer or an output, whichever is asked for.
+     */
+    private boolean await(final long timeoutUs, final boolean input) {
+        final long startTime = System.nanoTime();
+        final long deadline = startTime + timeoutUs * 1000;
+        update();
+        while (input ? mFreeInputs.isEmpty() : mOutputs.isEmpty()) {
+            final long now = System.nanoTime();
+            if (now >= deadline) {
+                waitNanos += now - startTime;
+                return false;
+            }
+            long until = deadline;
+            if (!mFrames.isEmpty() && mFrames.peek().doneNanos > now) {
+                until = Math.min(until, mFrames.peek().doneNanos);
+            }
+            final long nanos = Math.max(until - now, 1000);
+            try {
+                wait(nanos / 1000000, (int) (nanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            update();
+        }
+        waitNanos += System.nanoTime() - startTime;
+        return true;
+    }
+}
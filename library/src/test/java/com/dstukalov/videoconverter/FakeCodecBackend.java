@@ -0,0 +1,68 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out {@link FakeCodec}s with the specs of their kind, and connects every video decoder
+ * to the encoder whose input surface it renders to.
+ */
+class FakeCodecBackend implements CodecBackend {
+
+    final FakeCodec.Spec videoDecoder;
+    final FakeCodec.Spec videoEncoder;
+    final FakeCodec.Spec audioDecoder;
+    final FakeCodec.Spec audioEncoder;
+    final List<FakeCodec> codecs = new ArrayList<>();
+
+    FakeCodecBackend(final @NonNull FakeCodec.Spec videoDecoder, final @NonNull FakeCodec.Spec videoEncoder,
+                     final @NonNull FakeCodec.Spec audioDecoder, final @NonNull FakeCodec.Spec audioEncoder) {
+        this.videoDecoder = videoDecoder;
+        this.videoEncoder = videoEncoder;
+        this.audioDecoder = audioDecoder;
+        this.audioEncoder = audioEncoder;
+    }
+
+    @Override
+    public synchronized @NonNull Codec createDecoder(final @NonNull MediaFormat format, final @Nullable Surface surface) {
+        final boolean video = MediaConverter.getMimeTypeFor(format).startsWith("video/");
+        final FakeCodec decoder = new FakeCodec(video ? "video decoder" : "audio decoder", video ? videoDecoder : audioDecoder, format);
+        if (surface != null) {
+            decoder.renderTo(findEncoder(surface));
+        }
+        codecs.add(decoder);
+        return decoder;
+    }
+
+    @Override
+    public synchronized @NonNull Codec createEncoder(final @NonNull MediaFormat format) {
+        final boolean video = MediaConverter.getMimeTypeFor(format).startsWith("video/");
+        final FakeCodec encoder = new FakeCodec(video ? "video encoder" : "audio encoder", video ? videoEncoder : audioEncoder, format);
+        codecs.add(encoder);
+        return encoder;
+    }
+
+    synchronized @NonNull FakeCodec get(final @NonNull String name) {
+        for (FakeCodec codec : codecs) {
+            if (codec.name.equals(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    private @NonNull FakeCodec findEncoder(final @NonNull Surface surface) {
+        for (FakeCodec codec : codecs) {
+            if (codec.getInputSurface() == surface) {
+                return codec;
+            }
+        }
+        throw new IllegalStateException("decoder renders to a surface of no fake encoder, only the direct mode runs without GL");
+    }
+}
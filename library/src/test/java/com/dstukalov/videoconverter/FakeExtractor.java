@@ -0,0 +1,192 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scripted {@link Extractor} over tracks of evenly spaced samples, interleaved by time like in a
+ * regular file.
+ */
+class FakeExtractor implements Extractor {
+
+    static class Track {
+        final MediaFormat format;
+        final long sampleDurationUs;
+        final int sampleCount;
+        final int sampleSize;
+        // 1 makes every sample a sync sample
+        final int syncInterval;
+
+        Track(final @NonNull MediaFormat format, final long sampleDurationUs, final int sampleCount, final int sampleSize, final int syncInterval) {
+            this.format = format;
+            this.sampleDurationUs = sampleDurationUs;
+            this.sampleCount = sampleCount;
+            this.sampleSize = sampleSize;
+            this.syncInterval = syncInterval;
+            format.setLong(MediaFormat.KEY_DURATION, sampleDurationUs * sampleCount);
+        }
+    }
+
+    private static class Sample {
+        final int track;
+        final long timeUs;
+        final boolean sync;
+
+        Sample(final int track, final long timeUs, final boolean sync) {
+            this.track = track;
+            this.timeUs = timeUs;
+            this.sync = sync;
+        }
+    }
+
+    /**
+     * Returns a video track with a sync frame every second.
+     */
+    static @NonNull Track video(final int width, final int height, final int frameRate, final int frameCount) {
+        final MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
+        return new Track(format, 1000000 / frameRate, frameCount, 20000, frameRate);
+    }
+
+    /**
+     * Returns an AAC track of 1024 samples per frame.
+     */
+    static @NonNull Track audio(final int sampleRate, final int frameCount) {
+        final MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, 2);
+        return new Track(format, 1024 * 1000000L / sampleRate, frameCount, 400, 1);
+    }
+
+    private final List<Track> mTracks;
+    private final List<Sample> mSamples = new ArrayList<>();
+    private final boolean[] mSelected;
+    private int mPosition;
+
+    int readCount;
+    int seekCount;
+    boolean released;
+
+    FakeExtractor(final @NonNull List<Track> tracks) {
+        mTracks = tracks;
+        mSelected = new boolean[tracks.size()];
+        final int[] next = new int[tracks.size()];
+        while (true) {
+            int track = -1;
+            for (int i = 0; i < tracks.size(); i++) {
+                if (next[i] < tracks.get(i).sampleCount && (track < 0 || next[i] * tracks.get(i).sampleDurationUs < next[track] * tracks.get(track).sampleDurationUs)) {
+                    track = i;
+                }
+            }
+            if (track < 0) {
+                break;
+            }
+            final Track t = tracks.get(track);
+            mSamples.add(new Sample(track, next[track] * t.sampleDurationUs, next[track] % t.syncInterval == 0));
+            next[track]++;
+        }
+    }
+
+    @Override
+    public int getTrackCount() {
+        return mTracks.size();
+    }
+
+    @Override
+    public @NonNull MediaFormat getTrackFormat(final int index) {
+        return mTracks.get(index).format;
+    }
+
+    /**
+     * Starts over from the first sample, a newly selected track starts from the beginning until
+     * the extractor seeks.
+     */
+    @Override
+    public void selectTrack(final int index) {
+        mSelected[index] = true;
+        mPosition = 0;
+        skipUnselected();
+    }
+
+    @Override
+    public void unselectTrack(final int index) {
+        mSelected[index] = false;
+        skipUnselected();
+    }
+
+    @Override
+    public void seekTo(final long timeUs, final int mode) {
+        seekCount++;
+        long syncTimeUs = 0;
+        for (Sample sample : mSamples) {
+            if (sample.timeUs > timeUs) {
+                break;
+            }
+            if (mSelected[sample.track] && (sample.sync || mode != MediaExtractor.SEEK_TO_PREVIOUS_SYNC)) {
+                syncTimeUs = sample.timeUs;
+            }
+        }
+        mPosition = 0;
+        while (mPosition < mSamples.size() && mSamples.get(mPosition).timeUs < syncTimeUs) {
+            mPosition++;
+        }
+        skipUnselected();
+    }
+
+    @Override
+    public int readSampleData(final @NonNull ByteBuffer byteBuf, final int offset) {
+        if (mPosition >= mSamples.size()) {
+            return -1;
+        }
+        readCount++;
+        final int size = mTracks.get(mSamples.get(mPosition).track).sampleSize;
+        byteBuf.limit(offset + size);
+        byteBuf.position(offset);
+        return size;
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return mPosition < mSamples.size() ? mSamples.get(mPosition).track : -1;
+    }
+
+    @Override
+    public long getSampleSize() {
+        return mPosition < mSamples.size() ? mTracks.get(mSamples.get(mPosition).track).sampleSize : -1;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mPosition < mSamples.size() ? mSamples.get(mPosition).timeUs : -1;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mPosition < mSamples.size() && mSamples.get(mPosition).sync ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+    }
+
+    @Override
+    public boolean advance() {
+        if (mPosition >= mSamples.size()) {
+            return false;
+        }
+        mPosition++;
+        skipUnselected();
+        return mPosition < mSamples.size();
+    }
+
+    @Override
+    public void release() {
+        released = true;
+    }
+
+    private void skipUnselected() {
+        while (mPosition < mSamples.size() && !mSelected[mSamples.get(mPosition).track]) {
+            mPosition++;
+        }
+    }
+}
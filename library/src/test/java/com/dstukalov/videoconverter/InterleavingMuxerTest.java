@@ -0,0 +1,141 @@
+package com.dstukalov.videoconverter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(RobolectricTestRunner.class)
+public class InterleavingMuxerTest {
+
+    private final RecordingMuxer mRecording = new RecordingMuxer();
+    private final InterleavingMuxer mMuxer = new InterleavingMuxer(mRecording);
+
+    @Test
+    public void writesInTimeOrder() throws IOException {
+        start();
+        write(0, 0, 100000, 200000);
+        // nothing is known about the audio yet
+        assertTrue(mRecording.times.get(0).isEmpty());
+
+        write(1, 50000);
+        assertEquals(Collections.singletonList(0L), mRecording.times.get(0));
+        assertEquals(Collections.singletonList(50000L), mRecording.times.get(1));
+
+        write(1, 150000);
+        assertEquals(Arrays.asList(0L, 100000L), mRecording.times.get(0));
+        assertEquals(Arrays.asList(50000L, 150000L), mRecording.times.get(1));
+        assertEquals(50000, mRecording.maxLeadUs);
+    }
+
+    @Test
+    public void passesSingleTrackThrough() throws IOException {
+        assertEquals(0, mMuxer.addTrack(MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 1280, 720)));
+        mMuxer.start();
+        write(0, 0, 5000000, 10000000);
+        assertEquals(Arrays.asList(0L, 5000000L, 10000000L), mRecording.times.get(0));
+    }
+
+    @Test
+    public void finishedTrackDoesNotHoldOthersBack() throws IOException {
+        start();
+        write(0, 0, 100000);
+        write(1, 0);
+        mMuxer.finishTrack(1);
+        assertEquals(Arrays.asList(0L, 100000L), mRecording.times.get(0));
+        write(0, 200000, 3000000);
+        assertEquals(Arrays.asList(0L, 100000L, 200000L, 3000000L), mRecording.times.get(0));
+        // out of range indexes are ignored
+        mMuxer.finishTrack(5);
+    }
+
+    @Test
+    public void stopWritesQueuedSamples() throws IOException {
+        start();
+        write(0, 0, 100000, 200000);
+        mMuxer.stop();
+        mMuxer.release();
+        assertEquals(Arrays.asList(0L, 100000L, 200000L), mRecording.times.get(0));
+        assertTrue(mRecording.stopped && mRecording.released);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsSamplesOfFinishedTrack() throws IOException {
+        start();
+        mMuxer.finishTrack(0);
+        write(0, 0);
+    }
+
+    @Test
+    public void blocksTrackThatRunsAhead() throws Exception {
+        start();
+        write(1, 0);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final Thread video = new Thread(() -> {
+            try {
+                write(0, 0, 500000, 1000000, 1600000);
+            } catch (IOException e) {
+                error.set(e);
+            }
+        });
+        video.start();
+        video.join(500);
+        // the last video sample is more than a second ahead of the first one queued
+        assertTrue(video.isAlive());
+
+        write(1, 600000);
+        video.join(5000);
+        assertFalse(video.isAlive());
+        assertNull(error.get());
+        assertEquals(Arrays.asList(0L, 500000L), mRecording.times.get(0));
+        assertTrue("lead " + mRecording.maxLeadUs, mRecording.maxLeadUs <= 1000000);
+    }
+
+    @Test
+    public void finishingOtherTrackUnblocks() throws Exception {
+        start();
+        write(1, 0);
+        final Thread video = new Thread(() -> {
+            try {
+                write(0, 0, 500000, 2000000);
+            } catch (IOException ignored) {
+            }
+        });
+        video.start();
+        video.join(500);
+        assertTrue(video.isAlive());
+
+        mMuxer.finishTrack(1);
+        video.join(5000);
+        assertFalse(video.isAlive());
+        assertEquals(Arrays.asList(0L, 500000L, 2000000L), mRecording.times.get(0));
+    }
+
+    private void start() throws IOException {
+        assertEquals(0, mMuxer.addTrack(MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 1280, 720)));
+        assertEquals(1, mMuxer.addTrack(MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, 44100, 2)));
+        mMuxer.start();
+    }
+
+    private void write(final int trackIndex, final long... timesUs) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(100);
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (long timeUs : timesUs) {
+            info.set(10, 50, timeUs, 0);
+            mMuxer.writeSampleData(trackIndex, buffer, info);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.dstukalov.videoconverter;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link Muxer} that keeps the timestamps of the samples written to it, and how far a track ran
+ * ahead of the others.
+ */
+class RecordingMuxer implements Muxer {
+
+    final List<MediaFormat> formats = new ArrayList<>();
+    final List<List<Long>> times = new ArrayList<>();
+    boolean started;
+    boolean stopped;
+    boolean released;
+    // largest difference between a sample written and the last sample of another track
+    long maxLeadUs;
+
+    @Override
+    public synchronized void start() {
+        Preconditions.checkState("started twice", !started);
+        started = true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        Preconditions.checkState("stopped before start", started && !stopped);
+        stopped = true;
+    }
+
+    @Override
+    public synchronized int addTrack(final @NonNull MediaFormat format) {
+        Preconditions.checkState("track added after start", !started);
+        formats.add(format);
+        times.add(new ArrayList<>());
+        return formats.size() - 1;
+    }
+
+    @Override
+    public synchronized void writeSampleData(final int trackIndex, final @NonNull ByteBuffer byteBuf, final @NonNull MediaCodec.BufferInfo bufferInfo) {
+        Preconditions.checkState("sample written before start", started && !stopped);
+        times.get(trackIndex).add(bufferInfo.presentationTimeUs);
+        for (int i = 0; i < times.size(); i++) {
+            final List<Long> other = times.get(i);
+            if (i != trackIndex && !other.isEmpty()) {
+                maxLeadUs = Math.max(maxLeadUs, bufferInfo.presentationTimeUs - other.get(other.size() - 1));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void release() {
+        released = true;
+    }
+
+    synchronized int getTrack(final @NonNull String mimePrefix) {
+        for (int i = 0; i < formats.size(); i++) {
+            if (MediaConverter.getMimeTypeFor(formats.get(i)).startsWith(mimePrefix)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,156 @@
+package com.dstukalov.videoconverter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class SharedDemuxerTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    private final List<FakeExtractor> mExtractors = new ArrayList<>();
+
+    @Test
+    public void readsSourceOnce() throws IOException {
+        final SharedDemuxer demuxer = create(90, 130);
+        final Extractor video = open(demuxer, VIDEO);
+        final Extractor audio = open(demuxer, AUDIO);
+
+        // the audio met on the way is queued for its view
+        assertTimes(readAll(video), 90, ConversionLoopTest.video(1).sampleDurationUs, 0);
+        assertTimes(readAll(audio), 130, ConversionLoopTest.audio(1).sampleDurationUs, 0);
+        assertEquals(1, mExtractors.size());
+        assertEquals(90 + 130, mExtractors.get(0).readCount);
+
+        video.release();
+        assertFalse(mExtractors.get(0).released);
+        audio.release();
+        assertTrue(mExtractors.get(0).released);
+    }
+
+    @Test
+    public void readsOverflowingTrackOnItsOwn() throws IOException {
+        // far more audio samples than a queue holds before the video ends
+        final SharedDemuxer demuxer = create(300, 500);
+        final Extractor video = open(demuxer, VIDEO);
+        final Extractor audio = open(demuxer, AUDIO);
+
+        assertTimes(readAll(video), 300, ConversionLoopTest.video(1).sampleDurationUs, 0);
+        assertEquals(1, mExtractors.size());
+        assertTimes(readAll(audio), 500, ConversionLoopTest.audio(1).sampleDurationUs, 0);
+        assertEquals(2, mExtractors.size());
+
+        video.release();
+        audio.release();
+        for (FakeExtractor extractor : mExtractors) {
+            assertTrue(extractor.released);
+        }
+    }
+
+    @Test
+    public void sizesQueuedBuffersToSamples() throws IOException {
+        final FakeExtractor.Track videoTrack = ConversionLoopTest.video(200);
+        // a buffer of this size for each queued sample would not fit in memory
+        videoTrack.format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16 * 1024 * 1024);
+        final SharedDemuxer demuxer = create(Arrays.asList(videoTrack, ConversionLoopTest.audio(300)));
+        final Extractor video = open(demuxer, VIDEO);
+        final Extractor audio = open(demuxer, AUDIO);
+
+        // the video met on the way is queued at its own size, well within the byte limit
+        assertTimes(readAll(audio), 300, ConversionLoopTest.audio(1).sampleDurationUs, 0);
+        assertTimes(readAll(video), 200, videoTrack.sampleDurationUs, 0);
+        assertEquals(1, mExtractors.size());
+    }
+
+    @Test
+    public void sharesSeekBeforeReading() throws IOException {
+        final SharedDemuxer demuxer = create(90, 130);
+        final Extractor video = open(demuxer, VIDEO);
+        video.seekTo(1000000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        final Extractor audio = open(demuxer, AUDIO);
+        audio.seekTo(1000000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+        final List<Long> videoTimes = readAll(video);
+        assertEquals(60, videoTimes.size());
+        assertNear(1000000, videoTimes.get(0), ConversionLoopTest.video(1).sampleDurationUs);
+        final List<Long> audioTimes = readAll(audio);
+        assertNear(1000000, audioTimes.get(0), ConversionLoopTest.audio(1).sampleDurationUs);
+        assertEquals(1, mExtractors.size());
+    }
+
+    @Test
+    public void seeksOnItsOwnAfterReading() throws IOException {
+        final SharedDemuxer demuxer = create(90, 130);
+        final Extractor video = open(demuxer, VIDEO);
+        final Extractor audio = open(demuxer, AUDIO);
+        final ByteBuffer buffer = ByteBuffer.allocate(65536);
+        for (int i = 0; i < 10; i++) {
+            video.readSampleData(buffer, 0);
+            video.advance();
+        }
+
+        audio.seekTo(2000000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        assertEquals(2, mExtractors.size());
+        final List<Long> audioTimes = readAll(audio);
+        assertNear(2000000, audioTimes.get(0), ConversionLoopTest.audio(1).sampleDurationUs);
+        // the video goes on where it was
+        final List<Long> videoTimes = readAll(video);
+        assertTimes(videoTimes, 80, ConversionLoopTest.video(1).sampleDurationUs, 10 * ConversionLoopTest.video(1).sampleDurationUs);
+    }
+
+    private @NonNull SharedDemuxer create(final int videoFrameCount, final int audioFrameCount) {
+        return create(Arrays.asList(ConversionLoopTest.video(videoFrameCount), ConversionLoopTest.audio(audioFrameCount)));
+    }
+
+    private @NonNull SharedDemuxer create(final @NonNull List<FakeExtractor.Track> tracks) {
+        return new SharedDemuxer(() -> {
+            final FakeExtractor extractor = new FakeExtractor(tracks);
+            mExtractors.add(extractor);
+            return extractor;
+        });
+    }
+
+    private static @NonNull Extractor open(final @NonNull SharedDemuxer demuxer, final int track) throws IOException {
+        final Extractor extractor = demuxer.createExtractor();
+        extractor.selectTrack(track);
+        return extractor;
+    }
+
+    private static @NonNull List<Long> readAll(final @NonNull Extractor extractor) {
+        final ByteBuffer buffer = ByteBuffer.allocate(65536);
+        final List<Long> times = new ArrayList<>();
+        while (extractor.readSampleData(buffer, 0) >= 0) {
+            times.add(extractor.getSampleTime());
+            extractor.advance();
+        }
+        return times;
+    }
+
+    private static void assertTimes(final @NonNull List<Long> times, final int count, final long intervalUs, final long startUs) {
+        assertEquals(count, times.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(startUs + i * intervalUs, (long) times.get(i));
+        }
+    }
+
+    private static void assertNear(final long expectedUs, final long actualUs, final long toleranceUs) {
+        assertTrue("time " + actualUs, Math.abs(actualUs - expectedUs) <= toleranceUs);
+    }
+}
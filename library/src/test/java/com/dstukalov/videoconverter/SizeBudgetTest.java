@@ -0,0 +1,131 @@
+package com.dstukalov.videoconverter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+@RunWith(RobolectricTestRunner.class)
+public class SizeBudgetTest {
+
+    private static final long TARGET_BYTES = 10000000;
+    private static final long DURATION_US = 100000000;
+    // the target less 2% for the container, over the duration
+    private static final int FULL_BITRATE = 784000;
+
+    @Test
+    public void spreadsTargetOverDuration() {
+        assertEquals(FULL_BITRATE, new SizeBudget(TARGET_BYTES, DURATION_US, 0).getVideoBitrate());
+        assertEquals(FULL_BITRATE - 128000, new SizeBudget(TARGET_BYTES, DURATION_US, 128000).getVideoBitrate());
+    }
+
+    @Test
+    public void keepsMinimumBitrate() {
+        assertEquals(100000, new SizeBudget(100000, DURATION_US, 128000).getVideoBitrate());
+    }
+
+    @Test
+    public void keepsBitrateOnTrack() throws IOException {
+        final SizeBudget budget = new SizeBudget(TARGET_BYTES, DURATION_US, 0);
+        final Muxer muxer = start(budget);
+        write(muxer, FULL_BITRATE, 10000000);
+        assertEquals(0, budget.update(10000000));
+        assertEquals(FULL_BITRATE, budget.getVideoBitrate());
+    }
+
+    @Test
+    public void lowersBitrateAfterOvershoot() throws IOException {
+        final SizeBudget budget = new SizeBudget(TARGET_BYTES, DURATION_US, 0);
+        final Muxer muxer = start(budget);
+        write(muxer, 2 * FULL_BITRATE, 10000000);
+        final int bitrate = budget.update(10000000);
+        // what is left of the target over the remaining 90 seconds
+        assertEquals((TARGET_BYTES * 0.98 - 2 * FULL_BITRATE * 10 / 8) * 8 / 90, bitrate, 100);
+        assertEquals(bitrate, budget.getVideoBitrate());
+    }
+
+    @Test
+    public void raisesBitrateAfterUndershoot() throws IOException {
+        final SizeBudget budget = new SizeBudget(TARGET_BYTES, DURATION_US, 0);
+        final Muxer muxer = start(budget);
+        write(muxer, FULL_BITRATE / 2, 10000000);
+        final int bitrate = budget.update(10000000);
+        assertEquals((TARGET_BYTES * 0.98 - FULL_BITRATE / 2 * 10 / 8) * 8 / 90, bitrate, 100);
+    }
+
+    @Test
+    public void limitsCorrection() throws IOException {
+        final SizeBudget budget = new SizeBudget(TARGET_BYTES, DURATION_US, 0);
+        final Muxer muxer = start(budget);
+        write(muxer, 10 * FULL_BITRATE, 10000000);
+        assertEquals(FULL_BITRATE / 4, budget.update(10000000));
+
+        final SizeBudget idle = new SizeBudget(TARGET_BYTES, DURATION_US, 0);
+        start(idle);
+        assertEquals(2 * FULL_BITRATE, idle.update(60000000));
+    }
+
+    @Test
+    public void updatesOncePerSecond() throws IOException {
+        final SizeBudget budget = new SizeBudget(TARGET_BYTES, DURATION_US, 0);
+        final Muxer muxer = start(budget);
+        write(muxer, 20 * FULL_BITRATE, 500000);
+        assertEquals(0, budget.update(500000));
+        assertTrue(budget.update(1000000) > 0);
+        write(muxer, 20 * FULL_BITRATE, 500000);
+        assertEquals(0, budget.update(1500000));
+        assertTrue(budget.update(2000000) > 0);
+    }
+
+    @Test
+    public void keepsBitrateCloseToEnd() throws IOException {
+        final SizeBudget budget = new SizeBudget(TARGET_BYTES, DURATION_US, 0);
+        final Muxer muxer = start(budget);
+        write(muxer, 2 * FULL_BITRATE, DURATION_US - 1000000);
+        assertEquals(0, budget.update(DURATION_US - 1000000));
+    }
+
+    @Test
+    public void passesSamplesThrough() throws IOException {
+        final RecordingMuxer recording = new RecordingMuxer();
+        final Muxer muxer = new SizeBudget(TARGET_BYTES, DURATION_US, 0).track(recording);
+        assertEquals(0, muxer.addTrack(MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 1280, 720)));
+        muxer.start();
+        write(muxer, FULL_BITRATE, 1000000);
+        muxer.stop();
+        muxer.release();
+        assertEquals(25, recording.times.get(0).size());
+        assertTrue(recording.started && recording.stopped && recording.released);
+    }
+
+    private static @NonNull Muxer start(final @NonNull SizeBudget budget) throws IOException {
+        final Muxer muxer = budget.track(new RecordingMuxer());
+        muxer.addTrack(MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 1280, 720));
+        muxer.start();
+        return muxer;
+    }
+
+    /**
+     * Writes 25 samples a second at the bitrate.
+     */
+    private static void write(final @NonNull Muxer muxer, final int bitrate, final long durationUs) throws IOException {
+        final int frameCount = (int) (durationUs * 25 / 1000000);
+        final int size = bitrate / 8 / 25;
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int i = 0; i < frameCount; i++) {
+            info.set(0, size, i * 40000L, 0);
+            muxer.writeSampleData(0, buffer, info);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.dstukalov.videoconverter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class TimeRangesTest {
+
+    @Test
+    public void convertsMilliseconds() {
+        assertEquals(0, TimeRanges.toUs(0, false));
+        assertEquals(0, TimeRanges.toUs(-5, false));
+        assertEquals(1500000, TimeRanges.toUs(1500, false));
+        assertEquals(1500000, TimeRanges.toUs(1500, true));
+        assertEquals(Long.MAX_VALUE, TimeRanges.toUs(0, true));
+        assertEquals(Long.MAX_VALUE, TimeRanges.toUs(-1, true));
+    }
+
+    @Test
+    public void unionMergesOverlappingWindows() {
+        final TimeRanges ranges = TimeRanges.union(Arrays.asList(
+                rendition(5000, 7000),
+                rendition(1000, 3000),
+                rendition(2000, 4000),
+                rendition(7000, 8000)));
+        assertEquals(2, ranges.size());
+        assertEquals(1000000, ranges.getFrom(0));
+        assertEquals(4000000, ranges.getTo(0));
+        assertEquals(5000000, ranges.getFrom(1));
+        assertEquals(8000000, ranges.getTo(1));
+        assertEquals(1000000, ranges.getStart());
+        assertEquals(8000000, ranges.getEnd());
+    }
+
+    @Test
+    public void unionKeepsInputTime() {
+        final TimeRanges ranges = TimeRanges.union(Arrays.asList(rendition(1000, 2000), rendition(5000, 6000)));
+        assertFalse(ranges.shiftsTime());
+        assertEquals(5500000, ranges.toOutputTime(5500000));
+    }
+
+    @Test
+    public void unionWithWholeInput() {
+        final TimeRanges ranges = TimeRanges.union(Arrays.asList(rendition(0, 0), rendition(1000, 2000)));
+        assertEquals(1, ranges.size());
+        assertEquals(0, ranges.getStart());
+        assertEquals(Long.MAX_VALUE, ranges.getEnd());
+        assertEquals(0, ranges.getDuration(0));
+        assertEquals(10000000, ranges.getDuration(10000000));
+    }
+
+    @Test
+    public void joinRemovesGaps() {
+        final TimeRanges ranges = TimeRanges.join(cutList(1000, 2000, 4000, 5000, 8000, 0));
+        assertEquals(3, ranges.size());
+        assertTrue(ranges.shiftsTime());
+        assertEquals(Long.MAX_VALUE, ranges.getEnd());
+
+        assertEquals(1000000, ranges.toOutputTime(1000000));
+        assertEquals(2000000, ranges.toOutputTime(2000000));
+        assertEquals(2000000, ranges.toOutputTime(4000000));
+        assertEquals(3000000, ranges.toOutputTime(5000000));
+        assertEquals(3500000, ranges.toOutputTime(8500000));
+
+        assertEquals(1000000, ranges.toInputTime(0));
+        assertEquals(1500000, ranges.toInputTime(500000));
+        assertEquals(4000000, ranges.toInputTime(1000000));
+        assertEquals(8000000, ranges.toInputTime(2000000));
+        assertEquals(9000000, ranges.toInputTime(3000000));
+        assertEquals(1000000, ranges.toInputTime(-1));
+    }
+
+    @Test
+    public void singleJoinedRangeKeepsInputTime() {
+        final TimeRanges ranges = TimeRanges.join(cutList(1000, 2000));
+        assertFalse(ranges.shiftsTime());
+        assertEquals(0, ranges.toOutputTime(0));
+    }
+
+    @Test
+    public void durationEndsWithInput() {
+        final TimeRanges ranges = TimeRanges.join(cutList(1000, 2000, 4000, 0));
+        assertEquals(0, ranges.getDuration(0));
+        assertEquals(1000000 + 6000000, ranges.getDuration(10000000));
+        // the second range starts past the end of the input
+        assertEquals(1000000, ranges.getDuration(3000000));
+        assertEquals(500000, ranges.getDuration(1500000));
+
+        final TimeRanges bounded = TimeRanges.join(cutList(1000, 2000, 4000, 5000));
+        assertEquals(2000000, bounded.getDuration(0));
+    }
+
+    @Test
+    public void indexOfFindsRange() {
+        final TimeRanges ranges = TimeRanges.join(cutList(1000, 2000, 4000, 5000));
+        assertEquals(-1, ranges.indexOf(0));
+        assertEquals(0, ranges.indexOf(1000000));
+        assertEquals(0, ranges.indexOf(2000000));
+        assertEquals(-1, ranges.indexOf(3000000));
+        assertEquals(1, ranges.indexOf(4500000));
+        assertEquals(-1, ranges.indexOf(6000000));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void joinRejectsUnsortedRanges() {
+        TimeRanges.join(cutList(4000, 5000, 1000, 2000));
+    }
+
+    private static @NonNull MediaConverter.Rendition rendition(final long timeFrom, final long timeTo) {
+        return new MediaConverter.Rendition(() -> {
+            throw new UnsupportedOperationException();
+        }, 720, 2000000, -1, MediaConverter.VIDEO_CODEC_H264, timeFrom, timeTo);
+    }
+
+    private static @NonNull List<long[]> cutList(final long... times) {
+        final long[][] ranges = new long[times.length / 2][];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = new long[] {times[2 * i], times[2 * i + 1]};
+        }
+        return Arrays.asList(ranges);
+    }
+}
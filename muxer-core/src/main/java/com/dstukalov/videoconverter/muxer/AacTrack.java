@@ -0,0 +1,98 @@
+package com.dstukalov.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class AacTrack extends Mp4Track {
+
+    private static final int[] SAMPLING_FREQUENCIES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000
+    };
+
+    private static final int TAG_ES_DESCRIPTOR = 3;
+    private static final int TAG_DECODER_CONFIG_DESCRIPTOR = 4;
+    private static final int TAG_DECODER_SPECIFIC_INFO = 5;
+    private static final int TAG_SL_CONFIG_DESCRIPTOR = 6;
+    // payload sizes, all below 128 so every descriptor size fits in one byte
+    private static final int AUDIO_SPECIFIC_CONFIG_SIZE = 2;
+    private static final int DECODER_CONFIG_SIZE = 13 + 2 + AUDIO_SPECIFIC_CONFIG_SIZE;
+    private static final int SL_CONFIG_SIZE = 1;
+    private static final int ES_DESCRIPTOR_SIZE = 3 + 2 + DECODER_CONFIG_SIZE + 2 + SL_CONFIG_SIZE;
+
+    private final long avgBitrate;
+    private final long maxBitrate;
+    private final int sampleRate;
+    private final int channelCount;
+    private final int aacProfile;
+
+    AacTrack(long avgBitrate, long maxBitrate, int sampleRate, int channelCount, int aacProfile) {
+        this.avgBitrate = avgBitrate;
+        this.maxBitrate = maxBitrate;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.aacProfile = aacProfile;
+    }
+
+    @Override
+    long getTimescale() {
+        return sampleRate;
+    }
+
+    @Override
+    @NonNull String getHandler() {
+        return HANDLER_SOUND;
+    }
+
+    @Override
+    void writeSampleEntry(@NonNull BoxWriter out) {
+        out.start("mp4a");
+        out.putZeros(6);
+        out.putShort(1); // data reference index
+        out.putZeros(8);
+        out.putShort(channelCount == 7 ? 8 : channelCount);
+        out.putShort(16); // sample size
+        out.putZeros(4);
+        out.putInt(sampleRate > 0xFFFF ? 0 : sampleRate << 16);
+
+        out.startFull("esds", 0, 0);
+        out.put(TAG_ES_DESCRIPTOR);
+        out.put(ES_DESCRIPTOR_SIZE);
+        out.putShort(0); // ES_ID
+        out.put(0);
+
+        out.put(TAG_DECODER_CONFIG_DESCRIPTOR);
+        out.put(DECODER_CONFIG_SIZE);
+        out.put(0x40); // Audio ISO/IEC 14496-3
+        out.put((5 /*audio stream*/ << 2) | 1);
+        out.put(0); // 24 bit buffer size
+        out.putShort(1536);
+        out.putInt((int) maxBitrate);
+        out.putInt((int) avgBitrate);
+
+        out.put(TAG_DECODER_SPECIFIC_INFO);
+        out.put(AUDIO_SPECIFIC_CONFIG_SIZE);
+        out.putShort((aacProfile << 11) | (getSamplingFrequencyIndex(sampleRate) << 7) | (channelCount << 3));
+
+        out.put(TAG_SL_CONFIG_DESCRIPTOR);
+        out.put(SL_CONFIG_SIZE);
+        out.put(2); // predefined for MP4 files
+        out.end();
+
+        out.end();
+    }
+
+    void processSample(@NonNull ByteBuffer frame) throws IOException {
+        sampleSink.acceptSample(new Mp4Sample(frame, 1024, true), this);
+    }
+
+    private static int getSamplingFrequencyIndex(int sampleRate) {
+        for (int i = 0; i < SAMPLING_FREQUENCIES.length; i++) {
+            if (SAMPLING_FREQUENCIES[i] == sampleRate) {
+                return i;
+            }
+        }
+        return 0;
+    }
+}
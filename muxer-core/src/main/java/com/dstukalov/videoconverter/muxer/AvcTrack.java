@@ -1,22 +1,8 @@
 package com.dstukalov.videoconverter.muxer;
 
-import android.util.Log;
-
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import org.mp4parser.boxes.iso14496.part12.SampleDescriptionBox;
-import org.mp4parser.boxes.iso14496.part15.AvcConfigurationBox;
-import org.mp4parser.boxes.sampleentry.VisualSampleEntry;
-import org.mp4parser.streaming.SampleExtension;
-import org.mp4parser.streaming.StreamingSample;
-import org.mp4parser.streaming.extensions.CompositionTimeSampleExtension;
-import org.mp4parser.streaming.extensions.CompositionTimeTrackExtension;
-import org.mp4parser.streaming.extensions.DimensionTrackExtension;
-import org.mp4parser.streaming.extensions.SampleFlagsSampleExtension;
-import org.mp4parser.streaming.input.AbstractStreamingTrack;
-import org.mp4parser.streaming.input.StreamingSampleImpl;
-import org.mp4parser.streaming.input.h264.H264NalUnitHeader;
 import org.mp4parser.streaming.input.h264.H264NalUnitTypes;
 import org.mp4parser.streaming.input.h264.spspps.PictureParameterSet;
 import org.mp4parser.streaming.input.h264.spspps.SeqParameterSet;
@@ -25,17 +11,17 @@ import org.mp4parser.streaming.input.h264.spspps.SliceHeader;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.logging.Logger;
 
-public class AvcTrack extends AbstractStreamingTrack {
+public class AvcTrack extends Mp4Track {
 
-    private static final String TAG = "AvcTrack";
+    private static final Logger LOG = Logger.getLogger("AvcTrack");
 
     private int maxDecFrameBuffering = 16;
-    private final List<StreamingSample> decFrameBuffer = new ArrayList<>();
-    private final List<StreamingSample> decFrameBuffer2 = new ArrayList<>();
+    private final List<DecodedFrame> decFrameBuffer = new ArrayList<>();
+    private final List<DecodedFrame> decFrameBuffer2 = new ArrayList<>();
 
     private final LinkedHashMap<Integer, ByteBuffer> spsIdToSpsBytes = new LinkedHashMap<>();
     private final LinkedHashMap<Integer, SeqParameterSet> spsIdToSps = new LinkedHashMap<>();
@@ -45,14 +31,26 @@ public class AvcTrack extends AbstractStreamingTrack {
     private int timescale = 90000;
     private int frametick = 3000;
 
-    private final SampleDescriptionBox stsd;
+    private final byte[] spsBytes;
+    private final byte[] ppsBytes;
+    private final int width;
+    private final int height;
+    private final int profileIndication;
+    private final int profileCompatibility;
+    private final int levelIndication;
+    private final int chromaFormat;
+    private final int bitDepthLumaMinus8;
+    private final int bitDepthChromaMinus8;
+    private final boolean compositionTimeOffsets;
 
     private final List<ByteBuffer> bufferedNals = new ArrayList<>();
     private FirstVclNalDetector fvnd;
-    private H264NalUnitHeader sliceNalUnitHeader;
+    private int sliceNalUnitType;
     private long currentPresentationTimeUs;
 
     AvcTrack(final @NonNull ByteBuffer spsBuffer, final @NonNull ByteBuffer ppsBuffer) {
+        spsBytes = Utils.toArray(spsBuffer);
+        ppsBytes = Utils.toArray(ppsBuffer);
 
         handlePPS(ppsBuffer);
 
@@ -81,46 +79,19 @@ public class AvcTrack extends AbstractStreamingTrack {
         }
 
 
-        final VisualSampleEntry visualSampleEntry = new VisualSampleEntry("avc1");
-        visualSampleEntry.setDataReferenceIndex(1);
-        visualSampleEntry.setDepth(24);
-        visualSampleEntry.setFrameCount(1);
-        visualSampleEntry.setHorizresolution(72);
-        visualSampleEntry.setVertresolution(72);
-        final DimensionTrackExtension dte = this.getTrackExtension(DimensionTrackExtension.class);
-        if (dte == null) {
-            this.addTrackExtension(new DimensionTrackExtension(width, height));
-        }
-        visualSampleEntry.setWidth(width);
-        visualSampleEntry.setHeight(height);
-
-        visualSampleEntry.setCompressorname("AVC Coding");
-
-        final AvcConfigurationBox avcConfigurationBox = new AvcConfigurationBox();
-
-        avcConfigurationBox.setSequenceParameterSets(Collections.singletonList(spsBuffer));
-        avcConfigurationBox.setPictureParameterSets(Collections.singletonList(ppsBuffer));
-        avcConfigurationBox.setAvcLevelIndication(sps.level_idc);
-        avcConfigurationBox.setAvcProfileIndication(sps.profile_idc);
-        avcConfigurationBox.setBitDepthLumaMinus8(sps.bit_depth_luma_minus8);
-        avcConfigurationBox.setBitDepthChromaMinus8(sps.bit_depth_chroma_minus8);
-        avcConfigurationBox.setChromaFormat(sps.chroma_format_idc.getId());
-        avcConfigurationBox.setConfigurationVersion(1);
-        avcConfigurationBox.setLengthSizeMinusOne(3);
-
-
-        avcConfigurationBox.setProfileCompatibility(
-                (sps.constraint_set_0_flag ? 128 : 0) +
-                        (sps.constraint_set_1_flag ? 64 : 0) +
-                        (sps.constraint_set_2_flag ? 32 : 0) +
-                        (sps.constraint_set_3_flag ? 16 : 0) +
-                        (sps.constraint_set_4_flag ? 8 : 0) +
-                        (int) (sps.reserved_zero_2bits & 0x3)
-        );
-
-        visualSampleEntry.addBox(avcConfigurationBox);
-        stsd = new SampleDescriptionBox();
-        stsd.addBox(visualSampleEntry);
+        this.width = width;
+        this.height = height;
+        profileIndication = sps.profile_idc;
+        profileCompatibility = (sps.constraint_set_0_flag ? 128 : 0) +
+                (sps.constraint_set_1_flag ? 64 : 0) +
+                (sps.constraint_set_2_flag ? 32 : 0) +
+                (sps.constraint_set_3_flag ? 16 : 0) +
+                (sps.constraint_set_4_flag ? 8 : 0) +
+                (int) (sps.reserved_zero_2bits & 0x3);
+        levelIndication = sps.level_idc;
+        chromaFormat = sps.chroma_format_idc.getId();
+        bitDepthLumaMinus8 = sps.bit_depth_luma_minus8;
+        bitDepthChromaMinus8 = sps.bit_depth_chroma_minus8;
 
         int _timescale;
         int _frametick;
@@ -128,22 +99,22 @@ public class AvcTrack extends AbstractStreamingTrack {
             _timescale = sps.vuiParams.time_scale >> 1; // Not sure why, but I found this in several places, and it works...
             _frametick = sps.vuiParams.num_units_in_tick;
             if (_timescale == 0 || _frametick == 0) {
-                Log.w(TAG, "vuiParams contain invalid values: time_scale: " + _timescale + " and frame_tick: " + _frametick + ". Setting frame rate to 30fps");
+                LOG.warning("vuiParams contain invalid values: time_scale: " + _timescale + " and frame_tick: " + _frametick + ". Setting frame rate to 30fps");
                 _timescale = 0;
                 _frametick = 0;
             }
             if (_frametick > 0) {
                 if (_timescale / _frametick > 100) {
-                    Log.w(TAG, "Framerate is " + (_timescale / _frametick) + ". That is suspicious.");
+                    LOG.warning("Framerate is " + (_timescale / _frametick) + ". That is suspicious.");
                 }
             } else {
-                Log.w(TAG, "Frametick is " + _frametick + ". That is suspicious.");
+                LOG.warning("Frametick is " + _frametick + ". That is suspicious.");
             }
             if (sps.vuiParams.bitstreamRestriction != null) {
                 maxDecFrameBuffering = sps.vuiParams.bitstreamRestriction.max_dec_frame_buffering;
             }
         } else {
-            Log.w(TAG, "Can't determine frame rate as SPS does not contain vuiParama");
+            LOG.warning("Can't determine frame rate as SPS does not contain vuiParama");
             _timescale = 0;
             _frametick = 0;
         }
@@ -151,56 +122,80 @@ public class AvcTrack extends AbstractStreamingTrack {
             timescale = _timescale;
             frametick = _frametick;
         }
-        if (sps.pic_order_cnt_type == 0) {
-            addTrackExtension(new CompositionTimeTrackExtension());
-        } else if (sps.pic_order_cnt_type == 1) {
+        if (sps.pic_order_cnt_type == 1) {
             throw new MuxingException("Have not yet imlemented pic_order_cnt_type 1");
         }
+        compositionTimeOffsets = sps.pic_order_cnt_type == 0;
     }
 
-    public long getTimescale() {
+    @Override
+    long getTimescale() {
         return timescale;
     }
 
-    public String getHandler() {
-        return "vide";
+    @Override
+    @NonNull String getHandler() {
+        return HANDLER_VIDEO;
     }
 
-    public String getLanguage() {
-        return "\u0060\u0060\u0060"; // 0 in Iso639
+    @Override
+    int getWidth() {
+        return width;
     }
 
-    public SampleDescriptionBox getSampleDescriptionBox() {
-        return stsd;
+    @Override
+    int getHeight() {
+        return height;
     }
 
-    public void close(){
+    @Override
+    boolean hasCompositionTimeOffsets() {
+        return compositionTimeOffsets;
     }
 
-    private static H264NalUnitHeader getNalUnitHeader(@NonNull final ByteBuffer nal) {
-        final H264NalUnitHeader nalUnitHeader = new H264NalUnitHeader();
-        final int type = nal.get(0);
-        nalUnitHeader.nal_ref_idc = (type >> 5) & 3;
-        nalUnitHeader.nal_unit_type = type & 0x1f;
-        return nalUnitHeader;
+    @Override
+    void writeSampleEntry(@NonNull BoxWriter out) {
+        startVisualSampleEntry(out, "avc1", width, height, "AVC Coding");
+        out.start("avcC");
+        out.put(1); // configuration version
+        out.put(profileIndication);
+        out.put(profileCompatibility);
+        out.put(levelIndication);
+        out.put(0xFC | 3); // 4 byte NAL unit lengths
+        out.put(0xE0 | 1);
+        out.putShort(spsBytes.length);
+        out.putBytes(spsBytes);
+        out.put(1);
+        out.putShort(ppsBytes.length);
+        out.putBytes(ppsBytes);
+        if (profileIndication == 100 || profileIndication == 110 || profileIndication == 122 || profileIndication == 144) {
+            out.put(0xFC | chromaFormat);
+            out.put(0xF8 | bitDepthLumaMinus8);
+            out.put(0xF8 | bitDepthChromaMinus8);
+            out.put(0); // no sps extensions
+        }
+        out.end();
+        out.end();
     }
 
     void consumeNal(@NonNull final ByteBuffer nal, final long presentationTimeUs) throws IOException {
 
-        final H264NalUnitHeader nalUnitHeader = getNalUnitHeader(nal);
-        switch (nalUnitHeader.nal_unit_type) {
+        final int header = nal.get(0);
+        final int nalRefIdc = (header >> 5) & 3;
+        final int nalUnitType = header & 0x1f;
+        switch (nalUnitType) {
             case H264NalUnitTypes.CODED_SLICE_NON_IDR:
             case H264NalUnitTypes.CODED_SLICE_DATA_PART_A:
             case H264NalUnitTypes.CODED_SLICE_DATA_PART_B:
             case H264NalUnitTypes.CODED_SLICE_DATA_PART_C:
             case H264NalUnitTypes.CODED_SLICE_IDR:
-                final FirstVclNalDetector current = new FirstVclNalDetector(nal, nalUnitHeader.nal_ref_idc, nalUnitHeader.nal_unit_type);
+                final FirstVclNalDetector current = new FirstVclNalDetector(nal, nalRefIdc, nalUnitType);
                 if (fvnd != null && fvnd.isFirstInNew(current)) {
-                    pushSample(createSample(bufferedNals, fvnd.sliceHeader, sliceNalUnitHeader, presentationTimeUs - currentPresentationTimeUs), false, false);
+                    pushSample(createSample(bufferedNals, fvnd.sliceHeader, sliceNalUnitType, presentationTimeUs - currentPresentationTimeUs), false, false);
                     bufferedNals.clear();
                 }
                 currentPresentationTimeUs = Math.max(currentPresentationTimeUs, presentationTimeUs);
-                sliceNalUnitHeader = nalUnitHeader;
+                sliceNalUnitType = nalUnitType;
                 fvnd = current;
                 bufferedNals.add(nal);
                 break;
@@ -208,7 +203,7 @@ public class AvcTrack extends AbstractStreamingTrack {
             case H264NalUnitTypes.SEI:
             case H264NalUnitTypes.AU_UNIT_DELIMITER:
                 if (fvnd != null) {
-                    pushSample(createSample(bufferedNals, fvnd.sliceHeader, sliceNalUnitHeader, presentationTimeUs - currentPresentationTimeUs), false, false);
+                    pushSample(createSample(bufferedNals, fvnd.sliceHeader, sliceNalUnitType, presentationTimeUs - currentPresentationTimeUs), false, false);
                     bufferedNals.clear();
                     fvnd = null;
                 }
@@ -217,7 +212,7 @@ public class AvcTrack extends AbstractStreamingTrack {
 
             case H264NalUnitTypes.SEQ_PARAMETER_SET:
                 if (fvnd != null) {
-                    pushSample(createSample(bufferedNals, fvnd.sliceHeader, sliceNalUnitHeader, presentationTimeUs - currentPresentationTimeUs), false, false);
+                    pushSample(createSample(bufferedNals, fvnd.sliceHeader, sliceNalUnitType, presentationTimeUs - currentPresentationTimeUs), false, false);
                     bufferedNals.clear();
                     fvnd = null;
                 }
@@ -226,7 +221,7 @@ public class AvcTrack extends AbstractStreamingTrack {
 
             case H264NalUnitTypes.PIC_PARAMETER_SET:
                 if (fvnd != null) {
-                    pushSample(createSample(bufferedNals, fvnd.sliceHeader, sliceNalUnitHeader, presentationTimeUs - currentPresentationTimeUs), false, false);
+                    pushSample(createSample(bufferedNals, fvnd.sliceHeader, sliceNalUnitType, presentationTimeUs - currentPresentationTimeUs), false, false);
                     bufferedNals.clear();
                     fvnd = null;
                 }
@@ -241,18 +236,18 @@ public class AvcTrack extends AbstractStreamingTrack {
                 throw new IOException("Sequence parameter set extension is not yet handled. Needs TLC.");
 
             default:
-                Log.w(TAG, "Unknown NAL unit type: " + nalUnitHeader.nal_unit_type);
+                LOG.warning("Unknown NAL unit type: " + nalUnitType);
 
         }
     }
 
     void consumeLastNal() throws IOException {
-        pushSample(createSample(bufferedNals, fvnd.sliceHeader, sliceNalUnitHeader, 0), true, true);
+        pushSample(createSample(bufferedNals, fvnd.sliceHeader, sliceNalUnitType, 0), true, true);
     }
 
-    private void pushSample(final StreamingSample ss, final boolean all, final boolean force) throws IOException {
-        if (ss != null) {
-            decFrameBuffer.add(ss);
+    private void pushSample(final DecodedFrame frame, final boolean all, final boolean force) throws IOException {
+        if (frame != null) {
+            decFrameBuffer.add(frame);
         }
         if (all) {
             while (decFrameBuffer.size() > 0) {
@@ -260,56 +255,40 @@ public class AvcTrack extends AbstractStreamingTrack {
             }
         } else {
             if ((decFrameBuffer.size() - 1 > maxDecFrameBuffering) || force) {
-                final StreamingSample first = decFrameBuffer.remove(0);
-                final PictureOrderCountType0SampleExtension poct0se = first.getSampleExtension(PictureOrderCountType0SampleExtension.class);
-                if (poct0se == null) {
-                    sampleSink.acceptSample(first, this);
+                final DecodedFrame first = decFrameBuffer.remove(0);
+                final PictureOrderCount poc = first.pictureOrderCount;
+                if (poc == null) {
+                    sampleSink.acceptSample(first.sample, this);
                 } else {
                     int delay = 0;
-                    for (StreamingSample streamingSample : decFrameBuffer) {
-                        if (poct0se.getPoc() > streamingSample.getSampleExtension(PictureOrderCountType0SampleExtension.class).getPoc()) {
+                    for (DecodedFrame other : decFrameBuffer) {
+                        if (poc.getPoc() > Preconditions.checkNotNull(other.pictureOrderCount).getPoc()) {
                             delay++;
                         }
                     }
-                    for (StreamingSample streamingSample : decFrameBuffer2) {
-                        if (poct0se.getPoc() < streamingSample.getSampleExtension(PictureOrderCountType0SampleExtension.class).getPoc()) {
+                    for (DecodedFrame other : decFrameBuffer2) {
+                        if (poc.getPoc() < Preconditions.checkNotNull(other.pictureOrderCount).getPoc()) {
                             delay--;
                         }
                     }
                     decFrameBuffer2.add(first);
                     if (decFrameBuffer2.size() > maxDecFrameBuffering) {
-                        decFrameBuffer2.remove(0).removeSampleExtension(PictureOrderCountType0SampleExtension.class);
+                        decFrameBuffer2.remove(0);
                     }
 
-                    first.addSampleExtension(CompositionTimeSampleExtension.create(delay * frametick));
-                    sampleSink.acceptSample(first, this);
+                    first.sample.compositionTimeOffset = delay * frametick;
+                    sampleSink.acceptSample(first.sample, this);
                 }
             }
         }
 
     }
 
-    private SampleFlagsSampleExtension createSampleFlagsSampleExtension(H264NalUnitHeader nu, SliceHeader sliceHeader) {
-        final SampleFlagsSampleExtension sampleFlagsSampleExtension = new SampleFlagsSampleExtension();
-        if (nu.nal_ref_idc == 0) {
-            sampleFlagsSampleExtension.setSampleIsDependedOn(2);
-        } else {
-            sampleFlagsSampleExtension.setSampleIsDependedOn(1);
-        }
-        if ((sliceHeader.slice_type == SliceHeader.SliceType.I) || (sliceHeader.slice_type == SliceHeader.SliceType.SI)) {
-            sampleFlagsSampleExtension.setSampleDependsOn(2);
-        } else {
-            sampleFlagsSampleExtension.setSampleDependsOn(1);
-        }
-        sampleFlagsSampleExtension.setSampleIsNonSyncSample(H264NalUnitTypes.CODED_SLICE_IDR != nu.nal_unit_type);
-        return sampleFlagsSampleExtension;
-    }
-
-    private PictureOrderCountType0SampleExtension createPictureOrderCountType0SampleExtension(SliceHeader sliceHeader) {
+    private PictureOrderCount createPictureOrderCount(SliceHeader sliceHeader) {
         if (sliceHeader.sps.pic_order_cnt_type == 0) {
-            return new PictureOrderCountType0SampleExtension(
+            return new PictureOrderCount(
                     sliceHeader, decFrameBuffer.size() > 0 ?
-                    decFrameBuffer.get(decFrameBuffer.size() - 1).getSampleExtension(PictureOrderCountType0SampleExtension.class) :
+                    decFrameBuffer.get(decFrameBuffer.size() - 1).pictureOrderCount :
                     null);
 /*            decFrameBuffer.add(ssi);
             if (decFrameBuffer.size() - 1 > maxDecFrameBuffering) { // just added one
@@ -325,15 +304,10 @@ public class AvcTrack extends AbstractStreamingTrack {
 
 
 
-    private StreamingSample createSample(List<ByteBuffer> nals, SliceHeader sliceHeader, H264NalUnitHeader nu, long sampleDurationNs) {
+    private DecodedFrame createSample(List<ByteBuffer> nals, SliceHeader sliceHeader, int nalUnitType, long sampleDurationNs) {
         final long sampleDuration = getTimescale() * Math.max(0, sampleDurationNs) / 1000000L;
-        final StreamingSample ss = new StreamingSampleImpl(nals, sampleDuration);
-        ss.addSampleExtension(createSampleFlagsSampleExtension(nu, sliceHeader));
-        final SampleExtension pictureOrderCountType0SampleExtension = createPictureOrderCountType0SampleExtension(sliceHeader);
-        if (pictureOrderCountType0SampleExtension != null) {
-            ss.addSampleExtension(pictureOrderCountType0SampleExtension);
-        }
-        return ss;
+        final Mp4Sample sample = Mp4Sample.ofNals(nals, sampleDuration, nalUnitType == H264NalUnitTypes.CODED_SLICE_IDR);
+        return new DecodedFrame(sample, createPictureOrderCount(sliceHeader));
     }
 
     private void handlePPS(final @NonNull ByteBuffer nal) {
@@ -442,11 +416,24 @@ public class AvcTrack extends AbstractStreamingTrack {
         }
     }
 
-    static class PictureOrderCountType0SampleExtension implements SampleExtension {
+    /**
+     * A sample waiting in the decoded picture buffer for its composition time offset.
+     */
+    static class DecodedFrame {
+        final @NonNull Mp4Sample sample;
+        final @Nullable PictureOrderCount pictureOrderCount;
+
+        DecodedFrame(final @NonNull Mp4Sample sample, final @Nullable PictureOrderCount pictureOrderCount) {
+            this.sample = sample;
+            this.pictureOrderCount = pictureOrderCount;
+        }
+    }
+
+    static class PictureOrderCount {
         int picOrderCntMsb;
         int picOrderCountLsb;
 
-        PictureOrderCountType0SampleExtension(final @NonNull SliceHeader currentSlice, final @Nullable PictureOrderCountType0SampleExtension previous) {
+        PictureOrderCount(final @NonNull SliceHeader currentSlice, final @Nullable PictureOrderCount previous) {
             int prevPicOrderCntLsb = 0;
             int prevPicOrderCntMsb = 0;
             if (previous != null) {
@@ -0,0 +1,123 @@
+package com.dstukalov.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hand-written serializer for the few MP4 boxes {@link Mp4Writer} emits.
+ * <p>
+ * Box sizes are patched in when a box ends. The same {@link Content} is written twice: first into a
+ * writer that only counts bytes, then into a single direct buffer of exactly that size.
+ */
+final class BoxWriter {
+
+    private static final int MAX_DEPTH = 12;
+
+    interface Content {
+        void write(@NonNull BoxWriter out);
+    }
+
+    private final @Nullable ByteBuffer buffer;
+    private final int[] boxStarts = new int[MAX_DEPTH];
+    private int depth;
+    private int position;
+
+    private BoxWriter(final @Nullable ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Returns the serialized content, ready to be read.
+     */
+    static @NonNull ByteBuffer serialize(final @NonNull Content content) {
+        final BoxWriter measure = new BoxWriter(null);
+        content.write(measure);
+        Preconditions.checkState("unbalanced boxes", measure.depth == 0);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(measure.position);
+        content.write(new BoxWriter(buffer));
+        buffer.flip();
+        return buffer;
+    }
+
+    void start(final @NonNull String type) {
+        boxStarts[depth++] = position;
+        putInt(0);
+        putType(type);
+    }
+
+    void startFull(final @NonNull String type, final int version, final int flags) {
+        start(type);
+        putInt((version << 24) | flags);
+    }
+
+    void end() {
+        final int start = boxStarts[--depth];
+        if (buffer != null) {
+            buffer.putInt(start, position - start);
+        }
+    }
+
+    void put(final int value) {
+        if (buffer != null) {
+            buffer.put((byte) value);
+        }
+        position += 1;
+    }
+
+    void putShort(final int value) {
+        if (buffer != null) {
+            buffer.putShort((short) value);
+        }
+        position += 2;
+    }
+
+    void putInt(final int value) {
+        if (buffer != null) {
+            buffer.putInt(value);
+        }
+        position += 4;
+    }
+
+    void putLong(final long value) {
+        if (buffer != null) {
+            buffer.putLong(value);
+        }
+        position += 8;
+    }
+
+    void putBytes(final @NonNull byte[] bytes) {
+        if (buffer != null) {
+            buffer.put(bytes);
+        }
+        position += bytes.length;
+    }
+
+    void putZeros(final int count) {
+        for (int i = 0; i < count; i++) {
+            put(0);
+        }
+    }
+
+    void putType(final @NonNull String type) {
+        for (int i = 0; i < 4; i++) {
+            put(type.charAt(i));
+        }
+    }
+
+    /**
+     * Writes the identity transformation matrix of tkhd and mvhd.
+     */
+    void putMatrix() {
+        putInt(0x00010000);
+        putInt(0);
+        putInt(0);
+        putInt(0);
+        putInt(0x00010000);
+        putInt(0);
+        putInt(0);
+        putInt(0);
+        putInt(0x40000000);
+    }
+}
@@ -0,0 +1,217 @@
+package com.dstukalov.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.mp4parser.muxer.tracks.CleanInputStream;
+import org.mp4parser.muxer.tracks.h265.H265NalUnitHeader;
+import org.mp4parser.muxer.tracks.h265.H265NalUnitTypes;
+import org.mp4parser.muxer.tracks.h265.SequenceParameterSetRbsp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class HevcTrack extends Mp4Track implements H265NalUnitTypes {
+
+    private final ArrayList<ByteBuffer> bufferedNals = new ArrayList<>();
+    private boolean vclNalUnitSeenInAU;
+    private boolean isIdr = true;
+    private long currentPresentationTimeUs;
+    private final List<byte[]> vps = new ArrayList<>();
+    private final List<byte[]> sps = new ArrayList<>();
+    private final List<byte[]> pps = new ArrayList<>();
+    private final @Nullable SequenceParameterSetRbsp spsStruct;
+    private final boolean temporalIdNested;
+
+    HevcTrack(final @NonNull List<ByteBuffer> csd) throws IOException {
+        SequenceParameterSetRbsp spsStruct = null;
+        boolean temporalIdNested = false;
+        for (ByteBuffer nal : csd) {
+            final H265NalUnitHeader unitHeader = getNalUnitHeader(nal);
+            nal.position(0);
+            // collect sps/vps/pps
+            switch (unitHeader.nalUnitType) {
+                case NAL_TYPE_PPS_NUT:
+                    pps.add(Utils.toArray(nal));
+                    break;
+                case NAL_TYPE_VPS_NUT:
+                    vps.add(Utils.toArray(nal));
+                    break;
+                case NAL_TYPE_SPS_NUT:
+                    sps.add(Utils.toArray(nal));
+                    nal.position(2);
+                    // the parser reads sps_temporal_id_nesting_flag but doesn't keep it
+                    temporalIdNested = (nal.get(2) & 0x01) != 0;
+                    spsStruct = new SequenceParameterSetRbsp(new CleanInputStream(new ByteArrayInputStream(Utils.toArray(nal))));
+                    break;
+                case NAL_TYPE_PREFIX_SEI_NUT:
+                    //new SEIMessage(new BitReaderBuffer(nal.slice()));
+                    break;
+            }
+        }
+        this.spsStruct = spsStruct;
+        this.temporalIdNested = temporalIdNested;
+    }
+
+    @Override
+    long getTimescale() {
+        return 90000;
+    }
+
+    @Override
+    @NonNull String getHandler() {
+        return HANDLER_VIDEO;
+    }
+
+    @Override
+    int getWidth() {
+        return spsStruct == null ? 0 : spsStruct.pic_width_in_luma_samples;
+    }
+
+    @Override
+    int getHeight() {
+        return spsStruct == null ? 0 : spsStruct.pic_height_in_luma_samples;
+    }
+
+    void consumeLastNal() throws IOException {
+        wrapUp(bufferedNals, currentPresentationTimeUs);
+    }
+
+    void consumeNal(final @NonNull ByteBuffer nal, final long presentationTimeUs) throws IOException {
+
+        final H265NalUnitHeader unitHeader = getNalUnitHeader(nal);
+        final boolean isVcl = isVcl(unitHeader);
+        //
+        if (vclNalUnitSeenInAU) { // we need at least 1 VCL per AU
+            // This branch checks if we encountered the start of a samples/AU
+            if (isVcl) {
+                if ((nal.get(2) & -128) != 0) { // this is: first_slice_segment_in_pic_flag  u(1)
+                    wrapUp(bufferedNals, presentationTimeUs);
+                }
+            } else {
+                switch (unitHeader.nalUnitType) {
+                    case NAL_TYPE_PREFIX_SEI_NUT:
+                    case NAL_TYPE_AUD_NUT:
+                    case NAL_TYPE_PPS_NUT:
+                    case NAL_TYPE_VPS_NUT:
+                    case NAL_TYPE_SPS_NUT:
+                    case NAL_TYPE_RSV_NVCL41:
+                    case NAL_TYPE_RSV_NVCL42:
+                    case NAL_TYPE_RSV_NVCL43:
+                    case NAL_TYPE_RSV_NVCL44:
+                    case NAL_TYPE_UNSPEC48:
+                    case NAL_TYPE_UNSPEC49:
+                    case NAL_TYPE_UNSPEC50:
+                    case NAL_TYPE_UNSPEC51:
+                    case NAL_TYPE_UNSPEC52:
+                    case NAL_TYPE_UNSPEC53:
+                    case NAL_TYPE_UNSPEC54:
+                    case NAL_TYPE_UNSPEC55:
+
+                    case NAL_TYPE_EOB_NUT: // a bit special but also causes a sample to be formed
+                    case NAL_TYPE_EOS_NUT:
+                        wrapUp(bufferedNals, presentationTimeUs);
+                        break;
+                }
+            }
+        }
+
+
+        switch (unitHeader.nalUnitType) {
+            case NAL_TYPE_SPS_NUT:
+            case NAL_TYPE_VPS_NUT:
+            case NAL_TYPE_PPS_NUT:
+            case NAL_TYPE_EOB_NUT:
+            case NAL_TYPE_EOS_NUT:
+            case NAL_TYPE_AUD_NUT:
+            case NAL_TYPE_FD_NUT:
+                // ignore these
+                break;
+            default:
+                bufferedNals.add(nal);
+                break;
+        }
+
+        if (isVcl) {
+            isIdr = unitHeader.nalUnitType == NAL_TYPE_IDR_W_RADL || unitHeader.nalUnitType == NAL_TYPE_IDR_N_LP;
+            vclNalUnitSeenInAU = true;
+        }
+    }
+
+    private void wrapUp(final @NonNull List<ByteBuffer> nals, final long presentationTimeUs) throws IOException {
+
+        final long duration = presentationTimeUs - currentPresentationTimeUs;
+        currentPresentationTimeUs = presentationTimeUs;
+
+        final Mp4Sample sample = Mp4Sample.ofNals(
+                nals, getTimescale() * Math.max(0, duration) / 1000000L, isIdr);
+
+        sampleSink.acceptSample(sample, this);
+
+        vclNalUnitSeenInAU = false;
+        isIdr = true;
+        nals.clear();
+    }
+
+    private static @NonNull H265NalUnitHeader getNalUnitHeader(final @NonNull ByteBuffer nal) {
+        nal.position(0);
+        final int nalUnitHeaderValue = nal.getShort() & 0xFFFF;
+        final H265NalUnitHeader nalUnitHeader = new H265NalUnitHeader();
+        nalUnitHeader.forbiddenZeroFlag = (nalUnitHeaderValue & 0x8000) >> 15;
+        nalUnitHeader.nalUnitType = (nalUnitHeaderValue & 0x7E00) >> 9;
+        nalUnitHeader.nuhLayerId = (nalUnitHeaderValue & 0x1F8) >> 3;
+        nalUnitHeader.nuhTemporalIdPlusOne = (nalUnitHeaderValue & 0x7);
+        return nalUnitHeader;
+    }
+
+    @Override
+    void writeSampleEntry(@NonNull BoxWriter out) {
+        startVisualSampleEntry(out, "hvc1", getWidth(), getHeight(), "HEVC Coding");
+        out.start("hvcC");
+        out.put(1); // configuration version
+        if (spsStruct != null) {
+            out.put((spsStruct.general_profile_space << 6) | (spsStruct.general_tier_flag ? 0x20 : 0) | spsStruct.general_profile_idc);
+            out.putInt((int) spsStruct.general_profile_compatibility_flags);
+            out.putShort((int) (spsStruct.general_constraint_indicator_flags >> 32));
+            out.putInt((int) spsStruct.general_constraint_indicator_flags);
+            out.put(spsStruct.general_level_idc);
+        } else {
+            out.putZeros(12);
+        }
+        out.putShort(0xF000); // min_spatial_segmentation_idc
+        out.put(0xFC); // parallelismType
+        if (spsStruct != null) {
+            out.put(0xFC | spsStruct.chroma_format_idc);
+            out.put(0xF8 | spsStruct.bit_depth_luma_minus8);
+            out.put(0xF8 | spsStruct.bit_depth_chroma_minus8);
+        } else {
+            out.put(0xFC);
+            out.put(0xF8);
+            out.put(0xF8);
+        }
+        out.putShort(0); // avgFrameRate
+        out.put((temporalIdNested ? 0x04 : 0) | 3); // 4 byte NAL unit lengths
+        out.put(3);
+        writeNalArray(out, NAL_TYPE_VPS_NUT, vps);
+        writeNalArray(out, NAL_TYPE_SPS_NUT, sps);
+        writeNalArray(out, NAL_TYPE_PPS_NUT, pps);
+        out.end();
+        out.end();
+    }
+
+    private static void writeNalArray(final @NonNull BoxWriter out, final int nalUnitType, final @NonNull List<byte[]> nals) {
+        out.put(nalUnitType); // array_completeness is not set
+        out.putShort(nals.size());
+        for (byte[] nal : nals) {
+            out.putShort(nal.length);
+            out.putBytes(nal);
+        }
+    }
+
+    private boolean isVcl(final @NonNull H265NalUnitHeader nalUnitHeader) {
+        return nalUnitHeader.nalUnitType >= 0 && nalUnitHeader.nalUnitType <= 31;
+    }
+}
@@ -0,0 +1,169 @@
+package com.dstukalov.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Writes MP4 sequentially into an {@link OutputStream} from raw Annex-B H.264/H.265 and AAC frames.
+ * <p>
+ * Doesn't depend on Android, so the same writer can run on a server. {@link #writeSample} may be called
+ * concurrently for different tracks, see {@link Mp4Writer}.
+ */
+public class Mp4Muxer {
+
+    private final OutputStream outputStream;
+    // read by the producer threads, written only before start
+    private final List<SampleTrack> tracks = new CopyOnWriteArrayList<>();
+    private @Nullable TraceListener traceListener;
+    private Mp4Writer mp4Writer;
+
+    public Mp4Muxer(final @NonNull OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    public int addTrack(final @NonNull TrackFormat format) throws IOException {
+        Preconditions.checkState("tracks must be added before start", mp4Writer == null);
+        switch (format.mime) {
+            case TrackFormat.MIME_AVC:
+                tracks.add(new AnnexBAvcTrack(format));
+                break;
+            case TrackFormat.MIME_AAC:
+                tracks.add(new RawAacTrack(format));
+                break;
+            case TrackFormat.MIME_HEVC:
+                tracks.add(new AnnexBHevcTrack(format));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown track format");
+        }
+        return tracks.size() - 1;
+    }
+
+    /**
+     * Sets the hook that is told how long the writer takes, must be called before start.
+     */
+    public void setTraceListener(final @Nullable TraceListener listener) {
+        Preconditions.checkState("trace listener must be set before start", mp4Writer == null);
+        traceListener = listener;
+    }
+
+    public void start() throws IOException {
+        final List<Mp4Track> source = new ArrayList<>();
+        for (SampleTrack track : tracks) {
+            source.add((Mp4Track) track);
+        }
+        mp4Writer = new Mp4Writer(source, Channels.newChannel(outputStream), traceListener);
+    }
+
+    /**
+     * Writes the sample between the position and the limit of data: Annex-B NAL units for video
+     * or a single raw AAC frame for audio.
+     */
+    public void writeSample(final int trackIndex, final @NonNull ByteBuffer data, final long presentationTimeUs) throws IOException {
+        tracks.get(trackIndex).writeSample(data, presentationTimeUs);
+    }
+
+    public void stop() throws IOException {
+        if (mp4Writer == null) {
+            throw new IllegalStateException("calling stop prior to start");
+        }
+        for (SampleTrack track : tracks) {
+            track.finish();
+        }
+        mp4Writer.close();
+        mp4Writer = null;
+    }
+
+    /**
+     * Stops the writer without finishing the file, if it is still running.
+     */
+    public void abort() {
+        if (mp4Writer != null) {
+            mp4Writer.abort();
+            mp4Writer = null;
+        }
+    }
+
+    /**
+     * Timing of the writer steps, e.g. for a trace of the whole conversion. Called on the thread that
+     * writes, so it has to be cheap.
+     */
+    public interface TraceListener {
+        /**
+         * A chunk of samples that started to be written at the given {@link System#nanoTime} is written.
+         */
+        void onChunkWritten(long startTimeNs);
+    }
+
+    interface SampleTrack {
+        void writeSample(@NonNull ByteBuffer data, long presentationTimeUs) throws IOException;
+        void finish() throws IOException;
+    }
+
+    static class AnnexBAvcTrack extends AvcTrack implements SampleTrack {
+
+        AnnexBAvcTrack(@NonNull TrackFormat format) {
+            super(Utils.subBuffer(Preconditions.checkNotNull(format.csd0), 4),
+                    Utils.subBuffer(Preconditions.checkNotNull(format.csd1), 4));
+        }
+
+        @Override
+        public void writeSample(@NonNull ByteBuffer data, long presentationTimeUs) throws IOException {
+            final List<ByteBuffer> nals = Utils.getNals(data);
+            for (ByteBuffer nal : nals) {
+                consumeNal(Utils.clone(nal), presentationTimeUs);
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            consumeLastNal();
+        }
+    }
+
+    static class AnnexBHevcTrack extends HevcTrack implements SampleTrack {
+
+        AnnexBHevcTrack(@NonNull TrackFormat format) throws IOException {
+            super(Utils.getNals(Preconditions.checkNotNull(format.csd0).duplicate()));
+        }
+
+        @Override
+        public void writeSample(@NonNull ByteBuffer data, long presentationTimeUs) throws IOException {
+            final List<ByteBuffer> nals = Utils.getNals(data);
+            for (ByteBuffer nal : nals) {
+                consumeNal(Utils.clone(nal), presentationTimeUs);
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            consumeLastNal();
+        }
+    }
+
+    static class RawAacTrack extends AacTrack implements SampleTrack {
+
+        RawAacTrack(@NonNull TrackFormat format) {
+            super(format.bitrate, format.bitrate, format.sampleRate, format.channelCount, format.aacProfile);
+        }
+
+        @Override
+        public void writeSample(@NonNull ByteBuffer data, long presentationTimeUs) throws IOException {
+            final byte [] buffer = new byte[data.remaining()];
+            data.get(buffer);
+            processSample(ByteBuffer.wrap(buffer));
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.dstukalov.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A sample on its way from a track to {@link Mp4Writer}, with what the sample tables need to know about it.
+ */
+final class Mp4Sample {
+
+    final @NonNull ByteBuffer content;
+    final long duration;
+    final boolean syncSample;
+    long compositionTimeOffset;
+
+    Mp4Sample(final @NonNull ByteBuffer content, final long duration, final boolean syncSample) {
+        this.content = content;
+        this.duration = duration;
+        this.syncSample = syncSample;
+    }
+
+    /**
+     * Sample of NAL units, each prefixed with its 4 byte length.
+     */
+    static @NonNull Mp4Sample ofNals(final @NonNull List<ByteBuffer> nals, final long duration, final boolean syncSample) {
+        int size = 0;
+        for (ByteBuffer nal : nals) {
+            size += 4 + nal.limit();
+        }
+        final ByteBuffer content = ByteBuffer.allocate(size);
+        for (ByteBuffer nal : nals) {
+            content.putInt(nal.limit());
+            content.put((ByteBuffer) nal.duplicate().rewind());
+        }
+        content.flip();
+        return new Mp4Sample(content, duration, syncSample);
+    }
+}
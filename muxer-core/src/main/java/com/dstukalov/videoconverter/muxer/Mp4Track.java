@@ -0,0 +1,71 @@
+package com.dstukalov.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * Track fed to {@link Mp4Writer}. Knows how to describe itself in the sample description box.
+ */
+abstract class Mp4Track {
+
+    static final String HANDLER_VIDEO = "vide";
+    static final String HANDLER_SOUND = "soun";
+
+    interface SampleSink {
+        void acceptSample(@NonNull Mp4Sample sample, @NonNull Mp4Track track) throws IOException;
+    }
+
+    SampleSink sampleSink;
+
+    void setSampleSink(final @NonNull SampleSink sampleSink) {
+        this.sampleSink = sampleSink;
+    }
+
+    abstract long getTimescale();
+
+    abstract @NonNull String getHandler();
+
+    int getWidth() {
+        return 0;
+    }
+
+    int getHeight() {
+        return 0;
+    }
+
+    /**
+     * Whether the samples carry composition time offsets, i.e. the decode order differs from the presentation order.
+     */
+    boolean hasCompositionTimeOffsets() {
+        return false;
+    }
+
+    /**
+     * Writes the only entry of the stsd box.
+     */
+    abstract void writeSampleEntry(@NonNull BoxWriter out);
+
+    /**
+     * Starts a visual sample entry box, the codec configuration box and {@link BoxWriter#end} are left to the caller.
+     */
+    static void startVisualSampleEntry(final @NonNull BoxWriter out, final @NonNull String type,
+                                       final int width, final int height, final @NonNull String compressorName) {
+        out.start(type);
+        out.putZeros(6);
+        out.putShort(1); // data reference index
+        out.putZeros(16);
+        out.putShort(width);
+        out.putShort(height);
+        out.putInt(0x00480000); // 72 dpi
+        out.putInt(0x00480000);
+        out.putInt(0);
+        out.putShort(1); // frame count
+        out.put(compressorName.length());
+        for (int i = 0; i < 31; i++) {
+            out.put(i < compressorName.length() ? compressorName.charAt(i) : 0);
+        }
+        out.putShort(24); // depth
+        out.putShort(-1);
+    }
+}
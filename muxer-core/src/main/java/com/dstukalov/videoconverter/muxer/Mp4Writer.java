@@ -0,0 +1,626 @@
+package com.dstukalov.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates an MP4 file with ftyp, mdat+, moov order.
+ * A very special property of this variant is that it written sequentially. You can start transferring the
+ * data while the <code>sink</code> receives it. (in contrast to typical implementations which need random
+ * access to write length fields at the beginning of the file)
+ * <p>
+ * Tracks may be fed from different threads. Samples are put into lock-free per-track queues and a single
+ * writer thread does the interleaving and all I/O, so the chunk bookkeeping below is only ever touched by
+ * that thread. Producers block while the queues hold more than {@link #MAX_QUEUED_BYTES}, so a slow sink
+ * holds them back. The writer doesn't hold back a track that runs ahead of the others in time, its chunks
+ * wait in memory until the others catch up, so callers keep the tracks close, e.g. by feeding them in
+ * presentation time order.
+ * <p>
+ * Boxes are serialized by {@link BoxWriter}; the sample tables are kept in plain arrays until moov is written.
+ */
+public class Mp4Writer implements Mp4Track.SampleSink {
+
+    private static final Logger LOG = Logger.getLogger("Mp4Writer");
+
+    // seconds between 1904-01-01 and 1970-01-01
+    private static final long MP4_EPOCH_OFFSET = 2082844800L;
+    private static final long MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+    private static final long ABORT_TIMEOUT_MS = 5000;
+
+    private static final int LANGUAGE_UNDETERMINED = ('u' - 0x60) << 10 | ('n' - 0x60) << 5 | ('d' - 0x60);
+
+    private final WritableByteChannel sink;
+    private final List<Mp4Track> source;
+    private final @Nullable Mp4Muxer.TraceListener traceListener;
+    private final long creationTime = System.currentTimeMillis() / 1000 + MP4_EPOCH_OFFSET;
+
+    private final List<Mp4Track> tracks;
+    private final Map<Mp4Track, Queue<Mp4Sample>> sampleQueues = new HashMap<>();
+    private final Thread writerThread;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private volatile boolean closing;
+    private volatile boolean aborted;
+    private volatile Exception writerException;
+
+
+    /**
+     * Contains the start time of the next segment in line that will be created.
+     */
+    private final Map<Mp4Track, Long> nextChunkCreateStartTime = new HashMap<>();
+    /**
+     * Contains the start time of the next segment in line that will be written.
+     */
+    private final Map<Mp4Track, Long> nextChunkWriteStartTime = new HashMap<>();
+    /**
+     * Contains the next sample's start time.
+     */
+    private final Map<Mp4Track, Long> nextSampleStartTime = new HashMap<>();
+    /**
+     * Buffers the samples per track until there are enough samples to form a Segment.
+     */
+    private final Map<Mp4Track, List<Mp4Sample>> sampleBuffers = new HashMap<>();
+    private final Map<Mp4Track, SampleTables> sampleTables = new HashMap<>();
+    /**
+     * Buffers segments until it's time for a segment to be written.
+     */
+    private final Map<Mp4Track, Queue<ChunkContainer>> chunkBuffers = new HashMap<>();
+    private final Map<Mp4Track, Long> chunkNumbers = new HashMap<>();
+    private final Map<Mp4Track, Long> sampleNumbers = new HashMap<>();
+    private long bytesWritten = 0;
+
+    Mp4Writer(final @NonNull List<Mp4Track> source, final @NonNull WritableByteChannel sink,
+              final @Nullable Mp4Muxer.TraceListener traceListener) throws IOException {
+        this.source = new ArrayList<>(source);
+        this.tracks = new ArrayList<>(source);
+        this.sink = sink;
+        this.traceListener = traceListener;
+
+        for (Mp4Track track : source) {
+            track.setSampleSink(this);
+            chunkNumbers.put(track, 1L);
+            sampleNumbers.put(track, 1L);
+            nextSampleStartTime.put(track, 0L);
+            nextChunkCreateStartTime.put(track, 0L);
+            nextChunkWriteStartTime.put(track, 0L);
+            sampleBuffers.put(track, new ArrayList<>());
+            sampleQueues.put(track, new ConcurrentLinkedQueue<>());
+            chunkBuffers.put(track, new LinkedList<>());
+            sampleTables.put(track, new SampleTables());
+        }
+
+        write(Mp4Writer::writeFtyp);
+
+        writerThread = new Thread(this::runWriter, "media-converter-mp4-writer");
+        writerThread.start();
+    }
+
+    public void close() throws IOException {
+        closing = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        throwWriterException();
+
+        for (Queue<ChunkContainer> tracksFragmentQueue : chunkBuffers.values()) {
+            for ( ChunkContainer chunkContainer : tracksFragmentQueue) {
+                writeChunkContainer(chunkContainer);
+            }
+        }
+        for (Mp4Track track : source) {
+            if (!Preconditions.checkNotNull(sampleBuffers.get(track)).isEmpty()) {
+                writeChunkContainer(createChunkContainer(track));
+            }
+        }
+        write(this::writeMoov);
+    }
+
+    private static void writeFtyp(final @NonNull BoxWriter out) {
+        out.start("ftyp");
+        out.putType("mp42");
+        out.putInt(0);
+        out.putType("isom");
+        out.putType("mp42");
+        out.end();
+    }
+
+    private void writeMoov(final @NonNull BoxWriter out) {
+        long movieTimescale = 1;
+        double movieDuration = 0;
+        for (Mp4Track track : source) {
+            movieTimescale = lcm(movieTimescale, track.getTimescale());
+            movieDuration = Math.max((double) Preconditions.checkNotNull(nextSampleStartTime.get(track)) / track.getTimescale(), movieDuration);
+        }
+
+        out.start("moov");
+
+        out.startFull("mvhd", 1, 0);
+        out.putLong(creationTime);
+        out.putLong(creationTime);
+        out.putInt((int) movieTimescale);
+        out.putLong((long) (movieTimescale * movieDuration));
+        out.putInt(0x00010000); // rate 1.0
+        out.putShort(0x0100); // volume 1.0
+        out.putZeros(10);
+        out.putMatrix();
+        out.putZeros(24);
+        out.putInt(tracks.size() + 1); // next track id
+        out.end();
+
+        // track ids follow the order the tracks were added in, not the current interleaving order
+        for (int i = 0; i < tracks.size(); i++) {
+            final Mp4Track track = tracks.get(i);
+            final long duration = Preconditions.checkNotNull(nextSampleStartTime.get(track));
+            out.start("trak");
+            writeTkhd(out, track, i + 1, (long) (movieTimescale * ((double) duration / track.getTimescale())));
+            out.start("mdia");
+            writeMdhd(out, track, duration);
+            out.startFull("hdlr", 0, 0);
+            out.putInt(0);
+            out.putType(track.getHandler());
+            out.putZeros(12);
+            out.put(0); // empty name
+            out.end();
+            out.start("minf");
+            if (Mp4Track.HANDLER_VIDEO.equals(track.getHandler())) {
+                out.startFull("vmhd", 0, 1);
+                out.putZeros(8);
+            } else {
+                out.startFull("smhd", 0, 0);
+                out.putZeros(4);
+            }
+            out.end();
+            out.start("dinf");
+            out.startFull("dref", 0, 0);
+            out.putInt(1);
+            out.startFull("url ", 0, 1); // media is in this file
+            out.end();
+            out.end();
+            out.end();
+            Preconditions.checkNotNull(sampleTables.get(track)).write(out, track);
+            out.end();
+            out.end();
+            out.end();
+        }
+
+        out.end();
+    }
+
+    private void writeTkhd(final @NonNull BoxWriter out, final @NonNull Mp4Track track, final int trackId, final long duration) {
+        final boolean longDuration = duration > 0xFFFFFFFFL;
+        out.startFull("tkhd", longDuration ? 1 : 0, 3); // enabled, in movie
+        if (longDuration) {
+            out.putLong(creationTime);
+            out.putLong(creationTime);
+            out.putInt(trackId);
+            out.putInt(0);
+            out.putLong(duration);
+        } else {
+            out.putInt((int) creationTime);
+            out.putInt((int) creationTime);
+            out.putInt(trackId);
+            out.putInt(0);
+            out.putInt((int) duration);
+        }
+        out.putZeros(8);
+        out.putShort(0); // layer
+        out.putShort(0); // alternate group
+        out.putShort(Mp4Track.HANDLER_SOUND.equals(track.getHandler()) ? 0x0100 : 0);
+        out.putShort(0);
+        out.putMatrix();
+        out.putInt(track.getWidth() << 16);
+        out.putInt(track.getHeight() << 16);
+        out.end();
+    }
+
+    private void writeMdhd(final @NonNull BoxWriter out, final @NonNull Mp4Track track, final long duration) {
+        final boolean longDuration = duration > 0xFFFFFFFFL;
+        out.startFull("mdhd", longDuration ? 1 : 0, 0);
+        if (longDuration) {
+            out.putLong(creationTime);
+            out.putLong(creationTime);
+            out.putInt((int) track.getTimescale());
+            out.putLong(duration);
+        } else {
+            out.putInt((int) creationTime);
+            out.putInt((int) creationTime);
+            out.putInt((int) track.getTimescale());
+            out.putInt((int) duration);
+        }
+        out.putShort(LANGUAGE_UNDETERMINED);
+        out.putShort(0);
+        out.end();
+    }
+
+    private static long lcm(final long a, final long b) {
+        long x = a;
+        long y = b;
+        while (y != 0) {
+            final long t = x % y;
+            x = y;
+            y = t;
+        }
+        return a / x * b;
+    }
+
+    private void sortTracks() {
+        Collections.sort(source, (o1, o2) -> {
+            // compare times and account for timestamps!
+            final long a = Preconditions.checkNotNull(nextChunkWriteStartTime.get(o1)) * o2.getTimescale();
+            final long b = Preconditions.checkNotNull(nextChunkWriteStartTime.get(o2)) * o1.getTimescale();
+            return (int) Math.signum(a - b);
+        });
+    }
+
+    private void write(final @NonNull BoxWriter.Content content) throws IOException {
+        final ByteBuffer buffer = BoxWriter.serialize(content);
+        final int size = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            sink.write(buffer);
+        }
+        bytesWritten += size;
+    }
+
+    /**
+     * Tests if the currently received samples for a given track
+     * are already a 'chunk' as we want to have it. The next
+     * sample will not be part of the chunk
+     * will be added to the fragment buffer later.
+     *
+     * @param track track to test
+     * @param next           the lastest samples
+     * @return true if a chunk is to b e created.
+     */
+    private boolean isChunkReady(Mp4Track track, Mp4Sample next) {
+        final long ts = Preconditions.checkNotNull(nextSampleStartTime.get(track));
+        final long cfst = Preconditions.checkNotNull(nextChunkCreateStartTime.get(track));
+
+        return (ts >= cfst + 2 * track.getTimescale());
+        // chunk interleave of 2 seconds
+    }
+
+    private void writeChunkContainer(ChunkContainer chunkContainer) throws IOException {
+        final long startTime = System.nanoTime();
+        Preconditions.checkNotNull(sampleTables.get(chunkContainer.track)).chunkOffsets.add(bytesWritten + 8);
+        chunkContainer.mdat.write(sink);
+        bytesWritten += chunkContainer.mdat.size;
+        if (traceListener != null) {
+            traceListener.onChunkWritten(startTime);
+        }
+    }
+
+    /**
+     * Queues the sample for the writer thread. Safe to call from any thread, as long as samples of the
+     * same track come from one thread at a time.
+     */
+    public void acceptSample(
+            final @NonNull Mp4Sample sample,
+            final @NonNull Mp4Track track) throws IOException {
+        throwWriterException();
+        Preconditions.checkState("writer is closed", !closing);
+        final long size = sample.content.limit();
+        Preconditions.checkNotNull(sampleQueues.get(track)).add(sample);
+        final long queued = queuedBytes.addAndGet(size);
+        LockSupport.unpark(writerThread);
+        if (queued > MAX_QUEUED_BYTES) {
+            synchronized (queuedBytes) {
+                while (queuedBytes.get() > MAX_QUEUED_BYTES && !aborted && writerException == null) {
+                    try {
+                        queuedBytes.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            throwWriterException();
+        }
+    }
+
+    /**
+     * Stops the writer thread without writing what is still queued, and waits a while for it to end,
+     * as it may be blocked in the sink.
+     */
+    public void abort() {
+        aborted = true;
+        closing = true;
+        LockSupport.unpark(writerThread);
+        releaseProducers();
+        try {
+            writerThread.join(ABORT_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writerThread.isAlive()) {
+            LOG.warning("writer did not stop in " + ABORT_TIMEOUT_MS + " ms");
+        }
+    }
+
+    private void releaseProducers() {
+        synchronized (queuedBytes) {
+            queuedBytes.notifyAll();
+        }
+    }
+
+    private void runWriter() {
+        try {
+            while (!aborted) {
+                // read the flag before polling, so that samples queued prior to close() are never missed
+                final boolean closed = closing;
+                boolean idle = true;
+                // take samples round-robin so that no track is starved
+                for (Mp4Track track : tracks) {
+                    final Mp4Sample sample = Preconditions.checkNotNull(sampleQueues.get(track)).poll();
+                    if (sample != null) {
+                        writeSample(sample, track);
+                        final long size = sample.content.limit();
+                        if (queuedBytes.addAndGet(-size) + size > MAX_QUEUED_BYTES) {
+                            releaseProducers();
+                        }
+                        idle = false;
+                    }
+                }
+                if (idle) {
+                    if (closed) {
+                        break;
+                    }
+                    LockSupport.park(this);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.SEVERE, "writer failed", e);
+            writerException = e;
+            releaseProducers();
+        }
+    }
+
+    private void throwWriterException() throws IOException {
+        final Exception exception = writerException;
+        if (exception instanceof IOException) {
+            throw (IOException) exception;
+        } else if (exception != null) {
+            throw new MuxingException("writer failed", exception);
+        }
+    }
+
+    private void writeSample(
+            final @NonNull Mp4Sample sample,
+            final @NonNull Mp4Track track) throws IOException {
+
+        if (isChunkReady(track, sample)) {
+
+            final ChunkContainer chunkContainer = createChunkContainer(track);
+            //System.err.println("Creating fragment for " + track);
+            Preconditions.checkNotNull(sampleBuffers.get(track)).clear();
+            nextChunkCreateStartTime.put(track, Preconditions.checkNotNull(nextChunkCreateStartTime.get(track)) + chunkContainer.duration);
+            final Queue<ChunkContainer> chunkQueue = Preconditions.checkNotNull(chunkBuffers.get(track));
+            chunkQueue.add(chunkContainer);
+            if (source.get(0) == track) {
+
+                Queue<ChunkContainer> tracksFragmentQueue;
+                Mp4Track currentTrack;
+                // This will write AT LEAST the currently created fragment and possibly a few more
+                while (!(tracksFragmentQueue = chunkBuffers.get((currentTrack = this.source.get(0)))).isEmpty()) {
+                    final ChunkContainer currentFragmentContainer = tracksFragmentQueue.remove();
+                    writeChunkContainer(currentFragmentContainer);
+                    LOG.fine("write chunk " + currentTrack.getHandler() + ". duration " + (double) currentFragmentContainer.duration / currentTrack.getTimescale());
+                    final long ts = Preconditions.checkNotNull(nextChunkWriteStartTime.get(currentTrack)) + currentFragmentContainer.duration;
+                    nextChunkWriteStartTime.put(currentTrack, ts);
+                    LOG.fine(currentTrack.getHandler() + " track advanced to " + (double) ts / currentTrack.getTimescale());
+                    sortTracks();
+                }
+            } else {
+                LOG.fine(track.getHandler() + " track delayed, queue size is " + chunkQueue.size());
+            }
+        }
+
+        Preconditions.checkNotNull(sampleBuffers.get(track)).add(sample);
+        nextSampleStartTime.put(track, Preconditions.checkNotNull(nextSampleStartTime.get(track)) + sample.duration);
+
+    }
+
+    private ChunkContainer createChunkContainer(final @NonNull Mp4Track track) {
+
+        final List<Mp4Sample> samples = Preconditions.checkNotNull(sampleBuffers.get(track));
+        final long chunkNumber = Preconditions.checkNotNull(chunkNumbers.get(track));
+        chunkNumbers.put(track, chunkNumber + 1);
+        final ChunkContainer cc = new ChunkContainer();
+        cc.track = track;
+        cc.mdat = new Mdat(samples);
+        cc.duration = Preconditions.checkNotNull(nextSampleStartTime.get(track)) - Preconditions.checkNotNull(nextChunkCreateStartTime.get(track));
+        final SampleTables tables = Preconditions.checkNotNull(sampleTables.get(track));
+        if (tables.chunkSamples.size == 0 || tables.chunkSamples.last() != samples.size()) {
+            tables.chunkFirst.add(chunkNumber);
+            tables.chunkSamples.add(samples.size());
+        }
+        long sampleNumber = Preconditions.checkNotNull(sampleNumbers.get(track));
+        for (Mp4Sample sample : samples) {
+            tables.addSample(sample, sampleNumber);
+            sampleNumber++;
+        }
+
+        sampleNumbers.put(track, sampleNumber);
+        samples.clear();
+        LOG.fine("chunk container created for " + track.getHandler() + ". mdat size: " + cc.mdat.size + ". chunk duration is " + (double) cc.duration / track.getTimescale());
+        return cc;
+    }
+
+    private class Mdat {
+        final ArrayList<Mp4Sample> samples;
+        long size;
+
+        Mdat(final @NonNull List<Mp4Sample> samples) {
+            this.samples = new ArrayList<>(samples);
+            size = 8;
+            for (Mp4Sample sample : samples) {
+                size += sample.content.limit();
+            }
+        }
+
+        void write(WritableByteChannel writableByteChannel) throws IOException {
+            writableByteChannel.write(ByteBuffer.wrap(new byte[]{
+                    (byte) ((size & 0xff000000) >> 24),
+                    (byte) ((size & 0xff0000) >> 16),
+                    (byte) ((size & 0xff00) >> 8),
+                    (byte) ((size & 0xff)),
+                    109, 100, 97, 116, // mdat
+
+            }));
+            for (Mp4Sample sample : samples) {
+                writableByteChannel.write((ByteBuffer) sample.content.rewind());
+            }
+        }
+    }
+
+    /**
+     * The stbl entries of a track, run-length encoded where the box allows it.
+     */
+    private static class SampleTables {
+        final LongArray chunkOffsets = new LongArray();
+        final LongArray chunkFirst = new LongArray();
+        final LongArray chunkSamples = new LongArray();
+        final LongArray sampleSizes = new LongArray();
+        final LongArray durationCounts = new LongArray();
+        final LongArray durations = new LongArray();
+        final LongArray offsetCounts = new LongArray();
+        final LongArray offsets = new LongArray();
+        final LongArray syncSamples = new LongArray();
+        boolean hasNonSyncSamples;
+        boolean hasNegativeOffsets;
+
+        void addSample(final @NonNull Mp4Sample sample, final long sampleNumber) {
+            sampleSizes.add(sample.content.limit());
+            addRun(durationCounts, durations, sample.duration);
+            final long offset = sample.compositionTimeOffset;
+            hasNegativeOffsets |= offset < 0;
+            addRun(offsetCounts, offsets, offset);
+            if (sample.syncSample) {
+                syncSamples.add(sampleNumber);
+            } else {
+                hasNonSyncSamples = true;
+            }
+        }
+
+        private static void addRun(final @NonNull LongArray counts, final @NonNull LongArray values, final long value) {
+            if (values.size > 0 && values.last() == value) {
+                counts.values[counts.size - 1]++;
+            } else {
+                counts.add(1);
+                values.add(value);
+            }
+        }
+
+        void write(final @NonNull BoxWriter out, final @NonNull Mp4Track track) {
+            out.start("stbl");
+
+            out.startFull("stsd", 0, 0);
+            out.putInt(1);
+            track.writeSampleEntry(out);
+            out.end();
+
+            writeRuns(out, "stts", 0, durationCounts, durations);
+            if (track.hasCompositionTimeOffsets()) {
+                // version 1 has signed offsets
+                writeRuns(out, "ctts", hasNegativeOffsets ? 1 : 0, offsetCounts, offsets);
+            }
+
+            // no stss means that every sample is a sync sample
+            if (hasNonSyncSamples) {
+                out.startFull("stss", 0, 0);
+                out.putInt(syncSamples.size);
+                for (int i = 0; i < syncSamples.size; i++) {
+                    out.putInt((int) syncSamples.values[i]);
+                }
+                out.end();
+            }
+
+            out.startFull("stsc", 0, 0);
+            out.putInt(chunkFirst.size);
+            for (int i = 0; i < chunkFirst.size; i++) {
+                out.putInt((int) chunkFirst.values[i]);
+                out.putInt((int) chunkSamples.values[i]);
+                out.putInt(1); // sample description index
+            }
+            out.end();
+
+            out.startFull("stsz", 0, 0);
+            out.putInt(0); // sizes differ
+            out.putInt(sampleSizes.size);
+            for (int i = 0; i < sampleSizes.size; i++) {
+                out.putInt((int) sampleSizes.values[i]);
+            }
+            out.end();
+
+            // offsets grow, so the last one tells if 32 bits are enough
+            if (chunkOffsets.size == 0 || chunkOffsets.last() <= 0xFFFFFFFFL) {
+                out.startFull("stco", 0, 0);
+                out.putInt(chunkOffsets.size);
+                for (int i = 0; i < chunkOffsets.size; i++) {
+                    out.putInt((int) chunkOffsets.values[i]);
+                }
+            } else {
+                out.startFull("co64", 0, 0);
+                out.putInt(chunkOffsets.size);
+                for (int i = 0; i < chunkOffsets.size; i++) {
+                    out.putLong(chunkOffsets.values[i]);
+                }
+            }
+            out.end();
+
+            out.end();
+        }
+
+        private static void writeRuns(final @NonNull BoxWriter out, final @NonNull String type, final int version,
+                                      final @NonNull LongArray counts, final @NonNull LongArray values) {
+            out.startFull(type, version, 0);
+            out.putInt(counts.size);
+            for (int i = 0; i < counts.size; i++) {
+                out.putInt((int) counts.values[i]);
+                out.putInt((int) values.values[i]);
+            }
+            out.end();
+        }
+    }
+
+    private static class LongArray {
+        long[] values = new long[64];
+        int size;
+
+        void add(final long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long last() {
+            return values[size - 1];
+        }
+    }
+
+    private class ChunkContainer {
+        Mdat mdat;
+        Mp4Track track;
+        long duration;
+    }
+}
@@ -0,0 +1,22 @@
+package com.dstukalov.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+
+final class Preconditions {
+
+    private Preconditions() {
+    }
+
+    static @NonNull <T> T checkNotNull(T reference) {
+        if (reference == null) {
+            throw new NullPointerException();
+        }
+        return reference;
+    }
+
+    static void checkState(final Object errorMessage, final boolean expression) {
+        if (!expression) {
+            throw new IllegalStateException(String.valueOf(errorMessage));
+        }
+    }
+}
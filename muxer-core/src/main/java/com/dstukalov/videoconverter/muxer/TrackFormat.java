@@ -0,0 +1,60 @@
+package com.dstukalov.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Platform independent description of a track for {@link Mp4Muxer}.
+ */
+public final class TrackFormat {
+
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_HEVC = "video/hevc";
+    public static final String MIME_AAC = "audio/mp4a-latm";
+
+    final @NonNull String mime;
+    final @Nullable ByteBuffer csd0;
+    final @Nullable ByteBuffer csd1;
+    final int sampleRate;
+    final int channelCount;
+    final int bitrate;
+    final int aacProfile;
+
+    private TrackFormat(final @NonNull String mime, final @Nullable ByteBuffer csd0, final @Nullable ByteBuffer csd1,
+                        final int sampleRate, final int channelCount, final int bitrate, final int aacProfile) {
+        this.mime = mime;
+        this.csd0 = csd0;
+        this.csd1 = csd1;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.bitrate = bitrate;
+        this.aacProfile = aacProfile;
+    }
+
+    /**
+     * H.264 track, sps and pps are Annex-B NAL units with the start code, as in MediaCodec csd-0 and csd-1.
+     */
+    public static @NonNull TrackFormat avc(final @NonNull ByteBuffer sps, final @NonNull ByteBuffer pps) {
+        return new TrackFormat(MIME_AVC, sps, pps, 0, 0, 0, 0);
+    }
+
+    /**
+     * H.265 track, csd holds the Annex-B VPS, SPS and PPS NAL units, as in MediaCodec csd-0.
+     */
+    public static @NonNull TrackFormat hevc(final @NonNull ByteBuffer csd) {
+        return new TrackFormat(MIME_HEVC, csd, null, 0, 0, 0, 0);
+    }
+
+    /**
+     * AAC track, aacProfile is the audio object type, e.g. 2 for AAC LC.
+     */
+    public static @NonNull TrackFormat aac(final int sampleRate, final int channelCount, final int bitrate, final int aacProfile) {
+        return new TrackFormat(MIME_AAC, null, null, sampleRate, channelCount, bitrate, aacProfile);
+    }
+
+    public @NonNull String getMime() {
+        return mime;
+    }
+}
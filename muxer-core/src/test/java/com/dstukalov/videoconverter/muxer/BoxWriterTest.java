@@ -0,0 +1,61 @@
+package com.dstukalov.videoconverter.muxer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class BoxWriterTest {
+
+    @Test
+    public void patchesSizesOfNestedBoxes() {
+        final ByteBuffer buffer = BoxWriter.serialize(out -> {
+            out.start("moov");
+            out.startFull("mvhd", 1, 0x020304);
+            out.putInt(7);
+            out.end();
+            out.start("free");
+            out.putBytes(new byte[]{1, 2, 3});
+            out.putShort(0x0405);
+            out.put(6);
+            out.end();
+            out.end();
+        });
+        assertArrayEquals(new byte[]{
+                0, 0, 0, 38, 'm', 'o', 'o', 'v',
+                0, 0, 0, 16, 'm', 'v', 'h', 'd', 1, 2, 3, 4, 0, 0, 0, 7,
+                0, 0, 0, 14, 'f', 'r', 'e', 'e', 1, 2, 3, 4, 5, 6,
+        }, toArray(buffer));
+    }
+
+    @Test
+    public void allocatesExactlyWhatIsWritten() {
+        final ByteBuffer buffer = BoxWriter.serialize(out -> {
+            out.start("free");
+            out.putLong(-1);
+            out.putZeros(5);
+            out.putMatrix();
+            out.end();
+        });
+        assertTrue(buffer.isDirect());
+        assertEquals(0, buffer.position());
+        assertEquals(8 + 8 + 5 + 36, buffer.limit());
+        assertEquals(buffer.limit(), buffer.capacity());
+        assertEquals(8 + 8 + 5 + 36, buffer.getInt(0));
+        assertEquals(0x40000000, buffer.getInt(buffer.limit() - 4));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsUnbalancedBoxes() {
+        BoxWriter.serialize(out -> out.start("moov"));
+    }
+
+    private static byte[] toArray(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
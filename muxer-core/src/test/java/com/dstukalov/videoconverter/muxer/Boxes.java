@@ -0,0 +1,146 @@
+package com.dstukalov.videoconverter.muxer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads back the box tree of a written file, checking on the way that every box fits in its parent.
+ */
+final class Boxes {
+
+    final String type;
+    final int offset;
+    final int size;
+    // where the payload starts, after the size and type, and the version and flags of full boxes
+    final ByteBuffer payload;
+    final List<Boxes> children = new ArrayList<>();
+    private final ByteBuffer file;
+
+    private Boxes(final String type, final ByteBuffer file, final int offset, final int size, final int headerSize) {
+        this.type = type;
+        this.offset = offset;
+        this.size = size;
+        this.file = file;
+        final ByteBuffer payload = file.duplicate();
+        payload.limit(offset + size);
+        payload.position(offset + headerSize);
+        this.payload = payload.slice();
+        final int childrenOffset = childrenOffset(type);
+        if (childrenOffset >= 0) {
+            readChildren(file, offset + headerSize + childrenOffset, offset + size, children);
+        }
+    }
+
+    /**
+     * Top level boxes of the file, which they have to fill exactly.
+     */
+    static List<Boxes> read(final byte[] file) {
+        final List<Boxes> boxes = new ArrayList<>();
+        readChildren(ByteBuffer.wrap(file), 0, file.length, boxes);
+        return boxes;
+    }
+
+    static Boxes find(final List<Boxes> boxes, final String type) {
+        for (Boxes box : boxes) {
+            if (box.type.equals(type)) {
+                return box;
+            }
+        }
+        fail("no " + type + " in " + boxes);
+        return null;
+    }
+
+    /**
+     * Follows a path like "mdia/minf/stbl/stts", taking the first box of each type.
+     */
+    Boxes find(final String path) {
+        Boxes box = this;
+        for (String type : path.split("/")) {
+            box = find(box.children, type);
+        }
+        return box;
+    }
+
+    List<Boxes> findAll(final String type) {
+        final List<Boxes> found = new ArrayList<>();
+        for (Boxes box : children) {
+            if (box.type.equals(type)) {
+                found.add(box);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Version of a full box.
+     */
+    int version() {
+        return file.get(offset + 8) & 0xFF;
+    }
+
+    /**
+     * The unsigned 32 bit values of the payload, e.g. the entry count and the entries of a sample table box.
+     */
+    long[] uints() {
+        final ByteBuffer data = payload.duplicate();
+        final long[] values = new long[data.remaining() / 4];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = data.getInt() & 0xFFFFFFFFL;
+        }
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return type;
+    }
+
+    private static void readChildren(final ByteBuffer file, final int from, final int to, final List<Boxes> boxes) {
+        int offset = from;
+        while (offset < to) {
+            assertTrue("box header past the end at " + offset, offset + 8 <= to);
+            final int size = file.getInt(offset);
+            final String type = new String(new byte[]{file.get(offset + 4), file.get(offset + 5), file.get(offset + 6), file.get(offset + 7)});
+            assertTrue(type + " size " + size + " at " + offset, size >= 8 && offset + size <= to);
+            boxes.add(new Boxes(type, file, offset, size, isFullBox(type) ? 12 : 8));
+            offset += size;
+        }
+        assertEquals("children fill the parent", to, offset);
+    }
+
+    private static boolean isFullBox(final String type) {
+        return Arrays.asList("mvhd", "tkhd", "mdhd", "hdlr", "vmhd", "smhd", "dref", "url ", "stsd", "stts", "ctts",
+                "stss", "stsc", "stsz", "stco", "co64", "esds").contains(type);
+    }
+
+    /**
+     * Offset of the child boxes in the payload, or -1 for boxes without children.
+     */
+    private static int childrenOffset(final String type) {
+        switch (type) {
+            case "moov":
+            case "trak":
+            case "mdia":
+            case "minf":
+            case "dinf":
+            case "stbl":
+                return 0;
+            case "stsd":
+            case "dref":
+                return 4; // entry count
+            case "avc1":
+            case "hvc1":
+                return 78; // visual sample entry
+            case "mp4a":
+                return 28; // audio sample entry
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.dstukalov.videoconverter.muxer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.mp4parser.IsoFile;
+import org.mp4parser.boxes.iso14496.part1.objectdescriptors.AudioSpecificConfig;
+import org.mp4parser.boxes.iso14496.part12.CompositionTimeToSample;
+import org.mp4parser.boxes.iso14496.part12.SampleTableBox;
+import org.mp4parser.boxes.iso14496.part12.SampleToChunkBox;
+import org.mp4parser.boxes.iso14496.part12.TimeToSampleBox;
+import org.mp4parser.boxes.iso14496.part12.TrackBox;
+import org.mp4parser.boxes.iso14496.part14.ESDescriptorBox;
+import org.mp4parser.boxes.iso14496.part15.AvcConfigurationBox;
+import org.mp4parser.boxes.sampleentry.AudioSampleEntry;
+import org.mp4parser.boxes.sampleentry.VisualSampleEntry;
+import org.mp4parser.tools.Path;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.List;
+
+/**
+ * Parses the written file with mp4parser, as an independent reader of the boxes.
+ */
+public class IsoParserRoundTripTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int AAC_FRAME_COUNT = 10;
+    // decode order of an I P B B P B B stream
+    private static final int[] PIC_ORDER_COUNTS = {0, 6, 2, 4, 12, 8, 10};
+
+    @Test
+    public void readsBackWithIsoParser() throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Mp4Muxer muxer = new Mp4Muxer(output);
+        final byte[] sps = SyntheticStreams.avcSps(0);
+        final byte[] pps = SyntheticStreams.avcPps();
+        final int videoTrack = muxer.addTrack(TrackFormat.avc(SyntheticStreams.annexB(sps), SyntheticStreams.annexB(pps)));
+        final int audioTrack = muxer.addTrack(TrackFormat.aac(SAMPLE_RATE, 2, 96000, 2));
+        muxer.start();
+        for (int i = 0; i < PIC_ORDER_COUNTS.length; i++) {
+            final byte[] slice = SyntheticStreams.avcSlice(i == 0, i, PIC_ORDER_COUNTS[i], true, 50);
+            muxer.writeSample(videoTrack, SyntheticStreams.annexB(slice), i * 40000L);
+        }
+        for (int i = 0; i < AAC_FRAME_COUNT; i++) {
+            muxer.writeSample(audioTrack, ByteBuffer.wrap(SyntheticStreams.aacFrame(100, i)), i * 1024L * 1000000 / SAMPLE_RATE);
+        }
+        muxer.stop();
+
+        final IsoFile isoFile = new IsoFile(Channels.newChannel(new ByteArrayInputStream(output.toByteArray())));
+        final List<TrackBox> tracks = isoFile.getMovieBox().getBoxes(TrackBox.class);
+        assertEquals(2, tracks.size());
+
+        final TrackBox video = tracks.get(videoTrack);
+        assertEquals(1, video.getTrackHeaderBox().getTrackId());
+        assertEquals(SyntheticStreams.AVC_WIDTH, video.getTrackHeaderBox().getWidth(), 0);
+        assertEquals(SyntheticStreams.AVC_HEIGHT, video.getTrackHeaderBox().getHeight(), 0);
+        assertEquals("vide", video.getMediaBox().getHandlerBox().getHandlerType());
+        assertEquals(90000, video.getMediaBox().getMediaHeaderBox().getTimescale());
+        final SampleTableBox videoTables = video.getSampleTableBox();
+        final VisualSampleEntry avc1 = Path.getPath(videoTables, "stsd[0]/avc1[0]");
+        assertEquals(SyntheticStreams.AVC_WIDTH, avc1.getWidth());
+        final AvcConfigurationBox avcC = Path.getPath(avc1, "avcC[0]");
+        assertEquals(ByteBuffer.wrap(sps), avcC.getSequenceParameterSets().get(0));
+        assertEquals(ByteBuffer.wrap(pps), avcC.getPictureParameterSets().get(0));
+        assertEquals(4, avcC.getLengthSizeMinusOne() + 1);
+
+        assertEquals(
+                List.of(new TimeToSampleBox.Entry(PIC_ORDER_COUNTS.length - 1, 3600), new TimeToSampleBox.Entry(1, 0)).toString(),
+                videoTables.getTimeToSampleBox().getEntries().toString());
+        final CompositionTimeToSample ctts = Path.getPath(videoTables, "ctts[0]");
+        assertEquals(1, ctts.getVersion());
+        assertEquals(List.of(
+                new CompositionTimeToSample.Entry(1, 0),
+                new CompositionTimeToSample.Entry(1, 6000),
+                new CompositionTimeToSample.Entry(2, -3000),
+                new CompositionTimeToSample.Entry(1, 6000),
+                new CompositionTimeToSample.Entry(2, -3000)).toString(), ctts.getEntries().toString());
+        assertArrayEquals(new long[]{1}, videoTables.getSyncSampleBox().getSampleNumber());
+        assertEquals(PIC_ORDER_COUNTS.length, videoTables.getSampleSizeBox().getSampleCount());
+        assertEquals(List.of(new SampleToChunkBox.Entry(1, PIC_ORDER_COUNTS.length, 1)).toString(),
+                videoTables.getSampleToChunkBox().getEntries().toString());
+
+        final TrackBox audio = tracks.get(audioTrack);
+        assertEquals("soun", audio.getMediaBox().getHandlerBox().getHandlerType());
+        assertEquals(SAMPLE_RATE, audio.getMediaBox().getMediaHeaderBox().getTimescale());
+        final SampleTableBox audioTables = audio.getSampleTableBox();
+        final AudioSampleEntry mp4a = Path.getPath(audioTables, "stsd[0]/mp4a[0]");
+        assertEquals(2, mp4a.getChannelCount());
+        assertEquals(SAMPLE_RATE, mp4a.getSampleRate());
+        final ESDescriptorBox esds = Path.getPath(mp4a, "esds[0]");
+        final AudioSpecificConfig config = esds.getEsDescriptor().getDecoderConfigDescriptor().getAudioSpecificInfo();
+        assertEquals(2, config.getAudioObjectType());
+        assertEquals(SAMPLE_RATE, config.getSamplingFrequency());
+        assertEquals(2, config.getChannelConfiguration());
+        assertEquals(List.of(new TimeToSampleBox.Entry(AAC_FRAME_COUNT, 1024)).toString(),
+                audioTables.getTimeToSampleBox().getEntries().toString());
+        assertNull(audioTables.getSyncSampleBox());
+        assertEquals(AAC_FRAME_COUNT, audioTables.getSampleSizeBox().getSampleCount());
+        assertEquals(100, audioTables.getSampleSizeBox().getSampleSizeAtIndex(0));
+    }
+}
@@ -0,0 +1,145 @@
+package com.dstukalov.videoconverter.muxer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Mp4MuxerTest {
+
+    private static final int FRAME_COUNT = 30;
+    private static final long FRAME_DURATION_US = 40000;
+    private static final int KEY_FRAME_INTERVAL = 10;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int AAC_FRAME_COUNT = 43;
+
+    @Test
+    public void muxesAvcAndAac() throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Mp4Muxer muxer = new Mp4Muxer(output);
+        final byte[] sps = SyntheticStreams.avcSps(2);
+        final byte[] pps = SyntheticStreams.avcPps();
+        final int videoTrack = muxer.addTrack(TrackFormat.avc(SyntheticStreams.annexB(sps), SyntheticStreams.annexB(pps)));
+        final int audioTrack = muxer.addTrack(TrackFormat.aac(SAMPLE_RATE, 2, 128000, 2));
+        muxer.start();
+
+        final List<byte[]> videoSamples = new ArrayList<>();
+        final List<byte[]> audioSamples = new ArrayList<>();
+        int audioFrame = 0;
+        for (int frame = 0; frame < FRAME_COUNT; frame++) {
+            final long presentationTimeUs = frame * FRAME_DURATION_US;
+            while (audioFrame < AAC_FRAME_COUNT && audioFrame * 1024L * 1000000 / SAMPLE_RATE <= presentationTimeUs) {
+                final byte[] aac = SyntheticStreams.aacFrame(200 + audioFrame, audioFrame);
+                muxer.writeSample(audioTrack, ByteBuffer.wrap(aac), audioFrame * 1024L * 1000000 / SAMPLE_RATE);
+                audioSamples.add(aac);
+                audioFrame++;
+            }
+            final byte[] slice = SyntheticStreams.avcSlice(frame % KEY_FRAME_INTERVAL == 0, frame, 0, false, 100 + frame);
+            muxer.writeSample(videoTrack, SyntheticStreams.annexB(slice), presentationTimeUs);
+            videoSamples.add(ByteBuffer.allocate(4 + slice.length).putInt(slice.length).put(slice).array());
+        }
+        while (audioFrame < AAC_FRAME_COUNT) {
+            final byte[] aac = SyntheticStreams.aacFrame(200 + audioFrame, audioFrame);
+            muxer.writeSample(audioTrack, ByteBuffer.wrap(aac), audioFrame * 1024L * 1000000 / SAMPLE_RATE);
+            audioSamples.add(aac);
+            audioFrame++;
+        }
+        muxer.stop();
+
+        final byte[] file = output.toByteArray();
+        final List<Boxes> boxes = Boxes.read(file);
+        assertEquals("ftyp", boxes.get(0).type);
+        assertEquals("moov", boxes.get(boxes.size() - 1).type);
+        for (Boxes box : boxes.subList(1, boxes.size() - 1)) {
+            assertEquals("mdat", box.type);
+        }
+
+        final List<Boxes> traks = Boxes.find(boxes, "moov").findAll("trak");
+        assertEquals(2, traks.size());
+
+        final Boxes video = traks.get(videoTrack);
+        assertEquals("vide", handler(video));
+        final ByteBuffer tkhd = video.find("tkhd").payload;
+        assertEquals(SyntheticStreams.AVC_WIDTH << 16, tkhd.getInt(72));
+        assertEquals(SyntheticStreams.AVC_HEIGHT << 16, tkhd.getInt(76));
+        final Boxes avcC = video.find("mdia/minf/stbl/stsd/avc1/avcC");
+        assertEquals(66, avcC.payload.get(1));
+        assertEquals(sps.length, avcC.payload.getShort(6));
+        final Boxes videoTables = video.find("mdia/minf/stbl");
+        assertArrayEquals(new long[]{2, FRAME_COUNT - 1, FRAME_DURATION_US * 90000 / 1000000, 1, 0}, videoTables.find("stts").uints());
+        assertArrayEquals(new long[]{3, 1, 1 + KEY_FRAME_INTERVAL, 1 + 2 * KEY_FRAME_INTERVAL}, videoTables.find("stss").uints());
+        assertFalse(videoTables.children.toString().contains("ctts"));
+        assertSamples(videoSamples, file, videoTables);
+
+        final Boxes audio = traks.get(audioTrack);
+        assertEquals("soun", handler(audio));
+        final Boxes audioTables = audio.find("mdia/minf/stbl");
+        assertArrayEquals(new long[]{1, AAC_FRAME_COUNT, 1024}, audioTables.find("stts").uints());
+        assertFalse("every AAC frame is a sync sample", audioTables.children.toString().contains("stss"));
+        assertSamples(audioSamples, file, audioTables);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void stopBeforeStartFails() throws IOException {
+        final Mp4Muxer muxer = new Mp4Muxer(new ByteArrayOutputStream());
+        muxer.addTrack(TrackFormat.aac(SAMPLE_RATE, 2, 128000, 2));
+        muxer.stop();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addTrackAfterStartFails() throws IOException {
+        final Mp4Muxer muxer = new Mp4Muxer(new ByteArrayOutputStream());
+        muxer.addTrack(TrackFormat.aac(SAMPLE_RATE, 2, 128000, 2));
+        muxer.start();
+        try {
+            muxer.addTrack(TrackFormat.aac(SAMPLE_RATE, 2, 128000, 2));
+        } finally {
+            muxer.abort();
+        }
+    }
+
+    private static String handler(final Boxes trak) {
+        final ByteBuffer hdlr = trak.find("mdia/hdlr").payload;
+        return new String(new byte[]{hdlr.get(4), hdlr.get(5), hdlr.get(6), hdlr.get(7)});
+    }
+
+    /**
+     * Reads the samples back through stsc, stsz and stco, the way a player finds them.
+     */
+    private static void assertSamples(final List<byte[]> expected, final byte[] file, final Boxes stbl) {
+        final long[] stsc = stbl.find("stsc").uints();
+        final long[] stsz = stbl.find("stsz").uints();
+        final long[] stco = stbl.find("stco").uints();
+        assertEquals(0, stsz[0]);
+        assertEquals(expected.size(), stsz[1]);
+
+        int sample = 0;
+        for (int chunk = 1; chunk <= stco[0]; chunk++) {
+            long samplesPerChunk = 0;
+            for (int entry = 0; entry < stsc[0]; entry++) {
+                if (stsc[1 + entry * 3] <= chunk) {
+                    samplesPerChunk = stsc[2 + entry * 3];
+                }
+            }
+            long offset = stco[chunk];
+            for (int i = 0; i < samplesPerChunk; i++) {
+                final int size = (int) stsz[2 + sample];
+                final byte[] actual = new byte[size];
+                System.arraycopy(file, (int) offset, actual, 0, size);
+                assertArrayEquals("sample " + sample, expected.get(sample), actual);
+                offset += size;
+                sample++;
+            }
+        }
+        assertEquals(expected.size(), sample);
+        assertTrue(sample > 0);
+    }
+}
@@ -0,0 +1,267 @@
+package com.dstukalov.videoconverter.muxer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Byte level checks of the sample tables {@link Mp4Writer} puts in moov.
+ */
+public class Mp4WriterTest {
+
+    private static final int TIMESCALE = 1000;
+
+    @Test
+    public void runLengthEncodesDurations() throws IOException {
+        final TestTrack track = new TestTrack(false);
+        final Boxes stbl = write(track, sink -> {
+            for (long duration : new long[]{1000, 1000, 1000, 2000, 2000, 1000}) {
+                track.add(sample(10, duration, true, 0));
+            }
+        });
+        assertArrayEquals(new long[]{3, 3, 1000, 2, 2000, 1, 1000}, stbl.find("stts").uints());
+        assertFalse(stbl.children.toString().contains("ctts"));
+    }
+
+    @Test
+    public void writesSignedCompositionOffsetsInVersion1() throws IOException {
+        final TestTrack track = new TestTrack(true);
+        final Boxes stbl = write(track, sink -> {
+            for (long offset : new long[]{0, 0, 3000, 3000, -1000}) {
+                track.add(sample(10, 1000, true, offset));
+            }
+        });
+        final Boxes ctts = stbl.find("ctts");
+        assertEquals(1, ctts.version());
+        assertArrayEquals(new long[]{3, 2, 0, 2, 3000, 1, -1000 & 0xFFFFFFFFL}, ctts.uints());
+    }
+
+    @Test
+    public void writesUnsignedCompositionOffsetsInVersion0() throws IOException {
+        final TestTrack track = new TestTrack(true);
+        final Boxes stbl = write(track, sink -> {
+            for (long offset : new long[]{2000, 0, 1000, 1000}) {
+                track.add(sample(10, 1000, true, offset));
+            }
+        });
+        final Boxes ctts = stbl.find("ctts");
+        assertEquals(0, ctts.version());
+        assertArrayEquals(new long[]{3, 1, 2000, 1, 0, 2, 1000}, ctts.uints());
+    }
+
+    @Test
+    public void mergesChunksOfEqualSampleCount() throws IOException {
+        final TestTrack track = new TestTrack(false);
+        final Boxes stbl = write(track, sink -> {
+            // chunks span 2 seconds, so 4 samples each and the 2 left over in the last one
+            for (int i = 0; i < 10; i++) {
+                track.add(sample(100 + i, 500, true, 0));
+            }
+        });
+        assertArrayEquals(new long[]{2, 1, 4, 1, 3, 2, 1}, stbl.find("stsc").uints());
+        final long[] stco = stbl.find("stco").uints();
+        assertEquals(3, stco[0]);
+        // ftyp is 24 bytes, every chunk has its own mdat header
+        assertEquals(24 + 8, stco[1]);
+        assertEquals(stco[1] + 100 + 101 + 102 + 103 + 8, stco[2]);
+        assertEquals(stco[2] + 104 + 105 + 106 + 107 + 8, stco[3]);
+        final long[] stsz = stbl.find("stsz").uints();
+        assertEquals(10, stsz[1]);
+        assertEquals(100, stsz[2]);
+        assertEquals(109, stsz[11]);
+    }
+
+    @Test
+    public void listsSyncSamplesOnlyIfSomeAreNot() throws IOException {
+        final TestTrack allSync = new TestTrack(false);
+        final Boxes allSyncTables = write(allSync, sink -> {
+            for (int i = 0; i < 3; i++) {
+                allSync.add(sample(10, 1000, true, 0));
+            }
+        });
+        assertFalse(allSyncTables.children.toString().contains("stss"));
+
+        final TestTrack someSync = new TestTrack(false);
+        final Boxes someSyncTables = write(someSync, sink -> {
+            for (boolean sync : new boolean[]{true, false, false, true, false}) {
+                someSync.add(sample(10, 1000, sync, 0));
+            }
+        });
+        assertArrayEquals(new long[]{2, 1, 4}, someSyncTables.find("stss").uints());
+    }
+
+    @Test
+    public void switchesToCo64Past4GB() throws IOException {
+        final int sampleSize = 64 * 1024 * 1024;
+        final int sampleCount = 68;
+        final ByteBuffer content = ByteBuffer.allocate(sampleSize);
+        final DiscardingChannel sink = new DiscardingChannel();
+        final TestTrack track = new TestTrack(false);
+        final Mp4Writer writer = new Mp4Writer(Collections.singletonList(track), sink, null);
+        for (int i = 0; i < sampleCount; i++) {
+            track.add(new Mp4Sample(content.duplicate(), TIMESCALE, true));
+        }
+        writer.close();
+
+        assertTrue(sink.size > 0xFFFFFFFFL);
+        final Boxes stbl = Boxes.read(sink.last).get(0).find("trak/mdia/minf/stbl");
+        assertFalse(stbl.children.toString().contains("stco"));
+        final ByteBuffer co64 = stbl.find("co64").payload;
+        // 2 samples per chunk
+        assertEquals(sampleCount / 2, co64.getInt(0));
+        for (int i = 0; i < sampleCount / 2; i++) {
+            assertEquals(24 + 8 + i * (8 + 2L * sampleSize), co64.getLong(4 + i * 8));
+        }
+    }
+
+    @Test
+    public void writesHvcC() throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Mp4Muxer muxer = new Mp4Muxer(output);
+        final byte[] vps = SyntheticStreams.hevcVps();
+        final byte[] sps = SyntheticStreams.hevcSps();
+        final byte[] pps = SyntheticStreams.hevcPps();
+        muxer.addTrack(TrackFormat.hevc(SyntheticStreams.annexB(vps, sps, pps)));
+        muxer.start();
+        for (int i = 0; i < 5; i++) {
+            muxer.writeSample(0, SyntheticStreams.annexB(SyntheticStreams.hevcSlice(i == 0, 50)), i * 40000L);
+        }
+        muxer.stop();
+
+        final Boxes trak = Boxes.find(Boxes.read(output.toByteArray()), "moov").find("trak");
+        final ByteBuffer tkhd = trak.find("tkhd").payload;
+        assertEquals(SyntheticStreams.HEVC_WIDTH << 16, tkhd.getInt(72));
+        assertEquals(SyntheticStreams.HEVC_HEIGHT << 16, tkhd.getInt(76));
+        final Boxes hvc1 = trak.find("mdia/minf/stbl/stsd/hvc1");
+        assertEquals(SyntheticStreams.HEVC_WIDTH, hvc1.payload.getShort(24));
+        assertEquals(SyntheticStreams.HEVC_HEIGHT, hvc1.payload.getShort(26));
+
+        final ByteBuffer hvcC = hvc1.find("hvcC").payload;
+        final ByteBuffer expected = ByteBuffer.allocate(23 + 3 * 5 + vps.length + sps.length + pps.length);
+        expected.put((byte) 1); // configuration version
+        expected.put((byte) 1); // profile space, tier, Main profile
+        expected.putInt(0x60000000); // profile compatibility
+        expected.putShort((short) 0x9000); // constraint indicator flags
+        expected.putInt(0);
+        expected.put((byte) 93); // level 3.1
+        expected.putShort((short) 0xF000);
+        expected.put((byte) 0xFC);
+        expected.put((byte) 0xFD); // 4:2:0
+        expected.put((byte) 0xF8); // 8 bit luma
+        expected.put((byte) 0xF8); // 8 bit chroma
+        expected.putShort((short) 0); // frame rate
+        expected.put((byte) 0x07); // temporal id nested, 4 byte lengths
+        expected.put((byte) 3);
+        for (byte[] nal : new byte[][]{vps, sps, pps}) {
+            expected.put((byte) ((nal[0] >> 1) & 0x3F));
+            expected.putShort((short) 1);
+            expected.putShort((short) nal.length);
+            expected.put(nal);
+        }
+        assertEquals(ByteBuffer.wrap(expected.array()), hvcC);
+
+        final Boxes stbl = trak.find("mdia/minf/stbl");
+        assertEquals(5, stbl.find("stsz").uints()[1]);
+        assertArrayEquals(new long[]{1, 1}, stbl.find("stss").uints());
+    }
+
+    private static @NonNull Mp4Sample sample(final int size, final long duration, final boolean sync, final long compositionTimeOffset) {
+        final Mp4Sample sample = new Mp4Sample(ByteBuffer.wrap(SyntheticStreams.aacFrame(size, size)), duration, sync);
+        sample.compositionTimeOffset = compositionTimeOffset;
+        return sample;
+    }
+
+    /**
+     * Writes the samples of a single track and returns its stbl box.
+     */
+    private static @NonNull Boxes write(final @NonNull TestTrack track, final @NonNull Feeder feeder) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final WritableByteChannel sink = Channels.newChannel(output);
+        final Mp4Writer writer = new Mp4Writer(Collections.singletonList(track), sink, null);
+        feeder.feed(sink);
+        writer.close();
+        final List<Boxes> boxes = Boxes.read(output.toByteArray());
+        return Boxes.find(boxes, "moov").find("trak/mdia/minf/stbl");
+    }
+
+    private interface Feeder {
+        void feed(@NonNull WritableByteChannel sink) throws IOException;
+    }
+
+    private static class TestTrack extends Mp4Track {
+
+        private final boolean compositionTimeOffsets;
+
+        TestTrack(final boolean compositionTimeOffsets) {
+            this.compositionTimeOffsets = compositionTimeOffsets;
+        }
+
+        void add(final @NonNull Mp4Sample sample) throws IOException {
+            sampleSink.acceptSample(sample, this);
+        }
+
+        @Override
+        long getTimescale() {
+            return TIMESCALE;
+        }
+
+        @Override
+        @NonNull String getHandler() {
+            return HANDLER_VIDEO;
+        }
+
+        @Override
+        boolean hasCompositionTimeOffsets() {
+            return compositionTimeOffsets;
+        }
+
+        @Override
+        void writeSampleEntry(@NonNull BoxWriter out) {
+            out.start("test");
+            out.end();
+        }
+    }
+
+    /**
+     * Counts what is written and keeps only the last write, which is moov.
+     */
+    private static class DiscardingChannel implements WritableByteChannel {
+        long size;
+        byte[] last;
+
+        @Override
+        public int write(final ByteBuffer src) {
+            final int count = src.remaining();
+            if (count < 1024 * 1024) {
+                last = new byte[count];
+                src.get(last);
+            } else {
+                src.position(src.limit());
+            }
+            size += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.dstukalov.videoconverter.muxer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Smallest H.264, H.265 and AAC streams the tracks accept. Only the headers the muxer parses are real,
+ * the slice data is filler.
+ */
+final class SyntheticStreams {
+
+    static final int AVC_WIDTH = 320;
+    static final int AVC_HEIGHT = 240;
+    static final int HEVC_WIDTH = 1280;
+    static final int HEVC_HEIGHT = 720;
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private SyntheticStreams() {
+    }
+
+    /**
+     * Baseline SPS without VUI, so the track uses 90 kHz timescale with 3000 ticks per frame.
+     */
+    static byte[] avcSps(final int picOrderCntType) {
+        final BitWriter out = new BitWriter();
+        out.bits(0x67, 8);
+        out.bits(66, 8); // profile_idc
+        out.bits(0xC0, 8); // constraint flags
+        out.bits(30, 8); // level_idc
+        out.ue(0); // seq_parameter_set_id
+        out.ue(0); // log2_max_frame_num_minus4
+        out.ue(picOrderCntType);
+        if (picOrderCntType == 0) {
+            out.ue(0); // log2_max_pic_order_cnt_lsb_minus4
+        }
+        out.ue(1); // max_num_ref_frames
+        out.bits(0, 1); // gaps_in_frame_num_value_allowed_flag
+        out.ue(AVC_WIDTH / 16 - 1);
+        out.ue(AVC_HEIGHT / 16 - 1);
+        out.bits(1, 1); // frame_mbs_only_flag
+        out.bits(1, 1); // direct_8x8_inference_flag
+        out.bits(0, 1); // frame_cropping_flag
+        out.bits(0, 1); // vui_parameters_present_flag
+        return out.toNal();
+    }
+
+    static byte[] avcPps() {
+        final BitWriter out = new BitWriter();
+        out.bits(0x68, 8);
+        out.ue(0); // pic_parameter_set_id
+        out.ue(0); // seq_parameter_set_id
+        out.bits(0, 1); // entropy_coding_mode_flag
+        out.bits(0, 1); // bottom_field_pic_order_in_frame_present_flag
+        out.ue(0); // num_slice_groups_minus1
+        out.ue(0); // num_ref_idx_l0_default_active_minus1
+        out.ue(0); // num_ref_idx_l1_default_active_minus1
+        out.bits(0, 1); // weighted_pred_flag
+        out.bits(0, 2); // weighted_bipred_idc
+        out.se(0); // pic_init_qp_minus26
+        out.se(0); // pic_init_qs_minus26
+        out.se(0); // chroma_qp_index_offset
+        out.bits(1, 1); // deblocking_filter_control_present_flag
+        out.bits(0, 1); // constrained_intra_pred_flag
+        out.bits(0, 1); // redundant_pic_cnt_present_flag
+        return out.toNal();
+    }
+
+    /**
+     * Slice of a whole frame, frame_num and the pic_order_cnt_lsb take 4 bits each.
+     */
+    static byte[] avcSlice(final boolean idr, final int frameNum, final int picOrderCntLsb, final boolean picOrderCntType0, final int fillerSize) {
+        final BitWriter out = new BitWriter();
+        out.bits(idr ? 0x65 : 0x41, 8);
+        out.ue(0); // first_mb_in_slice
+        out.ue(idr ? 7 : 5); // slice_type I or P
+        out.ue(0); // pic_parameter_set_id
+        out.bits(frameNum & 0xF, 4);
+        if (idr) {
+            out.ue(0); // idr_pic_id
+        }
+        if (picOrderCntType0) {
+            out.bits(picOrderCntLsb & 0xF, 4);
+        }
+        for (int i = 0; i < fillerSize; i++) {
+            out.bits(0xA5, 8);
+        }
+        return out.toNal();
+    }
+
+    static byte[] hevcVps() {
+        return new byte[]{0x40, 0x01, 0x0C, 0x01, (byte) 0xFF, (byte) 0xFF};
+    }
+
+    /**
+     * Main profile, level 3.1, 8 bit 4:2:0.
+     */
+    static byte[] hevcSps() {
+        final BitWriter out = new BitWriter();
+        out.bits(0x4201, 16); // NAL header
+        out.bits(0, 4); // sps_video_parameter_set_id
+        out.bits(0, 3); // sps_max_sub_layers_minus1
+        out.bits(1, 1); // sps_temporal_id_nesting_flag
+        out.bits(0, 2); // general_profile_space
+        out.bits(0, 1); // general_tier_flag
+        out.bits(1, 5); // general_profile_idc
+        out.bits(0x60000000L, 32); // general_profile_compatibility_flags
+        out.bits(0x900000000000L, 48); // general_constraint_indicator_flags
+        out.bits(93, 8); // general_level_idc
+        out.ue(0); // sps_seq_parameter_set_id
+        out.ue(1); // chroma_format_idc
+        out.ue(HEVC_WIDTH);
+        out.ue(HEVC_HEIGHT);
+        out.bits(0, 1); // conformance_window_flag
+        out.ue(0); // bit_depth_luma_minus8
+        out.ue(0); // bit_depth_chroma_minus8
+        out.ue(4); // log2_max_pic_order_cnt_lsb_minus4
+        out.bits(1, 1); // sps_sub_layer_ordering_info_present_flag
+        out.ue(4); // sps_max_dec_pic_buffering_minus1
+        out.ue(0); // sps_max_num_reorder_pics
+        out.ue(0); // sps_max_latency_increase_plus1
+        out.ue(0); // log2_min_luma_coding_block_size_minus3
+        out.ue(3); // log2_diff_max_min_luma_coding_block_size
+        out.ue(0); // log2_min_transform_block_size_minus2
+        out.ue(3); // log2_diff_max_min_transform_block_size
+        out.ue(0); // max_transform_hierarchy_depth_inter
+        out.ue(0); // max_transform_hierarchy_depth_intra
+        out.bits(0, 1); // scaling_list_enabled_flag
+        out.bits(0, 1); // amp_enabled_flag
+        out.bits(0, 1); // sample_adaptive_offset_enabled_flag
+        out.bits(0, 1); // pcm_enabled_flag
+        out.ue(0); // num_short_term_ref_pic_sets
+        out.bits(0, 1); // long_term_ref_pics_present_flag
+        out.bits(0, 1); // sps_temporal_mvp_enabled_flag
+        out.bits(0, 1); // strong_intra_smoothing_enabled_flag
+        out.bits(0, 1); // vui_parameters_present_flag
+        out.bits(0, 1); // sps_extension_present_flag
+        return out.toNal();
+    }
+
+    static byte[] hevcPps() {
+        return new byte[]{0x44, 0x01, (byte) 0xC1, 0x72, (byte) 0xB4, 0x62, 0x40};
+    }
+
+    /**
+     * Slice segment that starts a picture, IDR_W_RADL or TRAIL_R.
+     */
+    static byte[] hevcSlice(final boolean idr, final int fillerSize) {
+        final byte[] nal = new byte[3 + fillerSize];
+        nal[0] = (byte) ((idr ? 19 : 1) << 1);
+        nal[1] = 0x01;
+        nal[2] = (byte) 0x80; // first_slice_segment_in_pic_flag
+        for (int i = 3; i < nal.length; i++) {
+            nal[i] = (byte) 0xA5;
+        }
+        return nal;
+    }
+
+    static byte[] aacFrame(final int size, final int seed) {
+        final byte[] frame = new byte[size];
+        for (int i = 0; i < size; i++) {
+            frame[i] = (byte) (seed + i);
+        }
+        return frame;
+    }
+
+    /**
+     * Joins the NAL units with 4 byte start codes, as MediaCodec outputs them.
+     */
+    static ByteBuffer annexB(final byte[]... nals) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] nal : nals) {
+            out.write(START_CODE, 0, START_CODE.length);
+            out.write(nal, 0, nal.length);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static class BitWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int current;
+        private int count;
+
+        void bits(final long value, final int length) {
+            for (int i = length - 1; i >= 0; i--) {
+                current = (current << 1) | (int) ((value >>> i) & 1);
+                if (++count == 8) {
+                    bytes.write(current);
+                    current = 0;
+                    count = 0;
+                }
+            }
+        }
+
+        void ue(final int value) {
+            final int length = 32 - Integer.numberOfLeadingZeros(value + 1);
+            bits(0, length - 1);
+            bits(value + 1, length);
+        }
+
+        void se(final int value) {
+            ue(value <= 0 ? -2 * value : 2 * value - 1);
+        }
+
+        /**
+         * Adds the stop bit and the emulation prevention bytes.
+         */
+        byte[] toNal() {
+            bits(1, 1);
+            while (count != 0) {
+                bits(0, 1);
+            }
+            final ByteArrayOutputStream nal = new ByteArrayOutputStream();
+            int zeros = 0;
+            for (byte b : bytes.toByteArray()) {
+                if (zeros >= 2 && (b & 0xFF) <= 3) {
+                    nal.write(3);
+                    zeros = 0;
+                }
+                nal.write(b);
+                zeros = b == 0 ? zeros + 1 : 0;
+            }
+            return nal.toByteArray();
+        }
+    }
+}